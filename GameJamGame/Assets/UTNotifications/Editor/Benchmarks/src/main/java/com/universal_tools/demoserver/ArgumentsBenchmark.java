@@ -0,0 +1,54 @@
+package com.universal_tools.demoserver;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// <c>RequestHandler.conentAsArgumentsMap</c>: the form arguments of a <c>/register</c> (a long URL encoded token)
+/// and of a <c>/notify</c> (text with escapes).
+/// </summary>
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ArgumentsBenchmark {
+// public
+	@Param({ "register", "notify" })
+	public String request;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Benchmarks.configure("benchmark_reg.db");
+
+		if ("notify".equals(request)) {
+			m_content = "title=Daily+reward&text=Your+chest+is+ready+to+open%21+%F0%9F%8E%81&id=1&badge=3"
+					+ "&notification_profile=reward";
+		} else {
+			m_content = "uid=" + Payloads.UID + "&provider=FCM&id=" + Payloads.FCM_TOKEN.replace(":", "%3A");
+		}
+	}
+
+	@Benchmark
+	public HashMap<String, String> parse() throws UnsupportedEncodingException {
+		return RequestHandler.conentAsArgumentsMap(m_content);
+	}
+
+// private
+	private String m_content;
+}
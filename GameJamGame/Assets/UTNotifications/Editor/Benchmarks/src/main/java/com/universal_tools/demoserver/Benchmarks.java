@@ -0,0 +1,50 @@
+package com.universal_tools.demoserver;
+
+import java.util.Arrays;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/// <summary>
+/// Runs the JMH benchmarks of the demo server hot paths, f.e. <c>java -jar target/benchmarks.jar Registrator</c>.
+/// </summary>
+/// <remarks>
+/// Build the demo server first (<c>mvn install</c> in <c>DemoServer</c>), then <c>mvn package</c> here. Takes the
+/// usual JMH command line (<c>-h</c> lists the options) and always adds the <c>gc</c> profiler, so every benchmark
+/// reports its allocation rate (<c>gc.alloc.rate.norm</c>, bytes per operation) next to its throughput. The
+/// benchmarks live in the package of the demo server to reach its package-private code.
+/// </remarks>
+public class Benchmarks {
+// public
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions options = new CommandLineOptions(args);
+		if (options.shouldHelp()) {
+			options.showHelp();
+			return;
+		}
+		if (options.shouldList()) {
+			new Runner(options).list();
+			return;
+		}
+
+		Options withAllocations = new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build();
+		new Runner(withAllocations).run();
+	}
+
+	/// <summary>
+	/// Keeps the demo server classes used by a benchmark away from the working directory: logs to the console
+	/// (errors only) and saves the registration to <c>registrationFile</c>. Must be called before those classes
+	/// are first used.
+	/// </summary>
+	/// <param name="options">More server options, f.e. <c>--registration-fsync=always</c>.</param>
+	static void configure(String registrationFile, String... options) {
+		String[] args = Arrays.copyOf(options, options.length + 3);
+		args[options.length] = "--log-file=-";
+		args[options.length + 1] = "--log-level=error";
+		args[options.length + 2] = "--registration-file=" + registrationFile;
+		ServerOptions.parse(args);
+	}
+}
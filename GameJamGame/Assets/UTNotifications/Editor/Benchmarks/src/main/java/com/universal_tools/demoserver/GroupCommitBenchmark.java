@@ -0,0 +1,69 @@
+package com.universal_tools.demoserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// <c>Registrator.register</c> from 16 threads at once by the commit window and the sync policy of the registration
+/// log: <c>java -jar target/benchmarks.jar GroupCommit -rf csv</c> gives the table to chart the throughput versus
+/// the window.
+/// </summary>
+/// <remarks>
+/// With <c>always</c> every registration waits for its batch to be written and synced, so the throughput is the
+/// batches per second times the registrations a batch collects: a longer window collects more, but every
+/// registration waits longer. With <c>batch</c> and <c>periodic</c> the registrations don't wait for the disk and the
+/// window only changes the count of the writes and syncs. The results depend on the disk of the temporary
+/// directory much more than on the CPU.
+/// </remarks>
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class GroupCommitBenchmark {
+// public
+	@State(Scope.Benchmark)
+	public static class Committing extends RegistratorBenchmark.Registration {
+		@Param({ "always", "batch", "periodic" })
+		public String fsync;
+
+		// ms
+		@Param({ "0", "1", "5", "20" })
+		public int window;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			fill(REGISTRATIONS, "--registration-fsync=" + fsync, "--registration-commit-window=" + window);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			delete();
+		}
+	}
+
+	@Benchmark
+	public void register(Committing registration) {
+		long next = registration.next();
+		Registrator.register("device-" + next % REGISTRATIONS, "FCM", Payloads.token(next));
+	}
+
+// private
+	private static final int REGISTRATIONS = 10000;
+}
@@ -0,0 +1,102 @@
+package com.universal_tools.demoserver;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// Parsing the requests read by <c>HttpServer.SocketProcessor.read</c> and the nio connections: a form
+/// <c>/register</c>, the same chunked and a JSON <c>/notify</c>.
+/// </summary>
+/// <remarks>
+/// <c>keepAlive</c> reuses one parser for all the requests, like a persistent connection; <c>newConnection</c>
+/// creates a parser per request, like a connection per request.
+/// </remarks>
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpRequestParserBenchmark {
+// public
+	@Param({ "register", "register-chunked", "notify-json" })
+	public String request;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Benchmarks.configure("benchmark_reg.db");
+
+		m_client = InetAddress.getLoopbackAddress();
+		m_parser = new HttpRequestParser(m_client);
+		m_buffer = ByteBuffer.wrap(bytes(request));
+	}
+
+	// HttpRequest is package-private, the generated benchmark code can only take an Object
+	@Benchmark
+	public Object keepAlive() throws HttpException {
+		m_buffer.rewind();
+		return m_parser.parse(m_buffer);
+	}
+
+	@Benchmark
+	public Object newConnection() throws HttpException {
+		m_buffer.rewind();
+		return new HttpRequestParser(m_client).parse(m_buffer);
+	}
+
+// private
+	private static byte[] bytes(String request) {
+		String head = "Host: 192.168.1.10:8080\r\nUser-Agent: UnityPlayer/2021.3.16f1 (UnityWebRequest/1.0)\r\n"
+				+ "Accept: */*\r\nAccept-Encoding: gzip, deflate\r\nX-Unity-Version: 2021.3.16f1\r\n";
+		String form = "uid=" + Payloads.UID + "&provider=FCM&id=" + Payloads.FCM_TOKEN.replace(":", "%3A");
+
+		switch (request) {
+		case "register-chunked": {
+			StringBuilder builder = new StringBuilder("POST /register HTTP/1.1\r\n").append(head)
+					.append("Content-Type: application/x-www-form-urlencoded\r\nTransfer-Encoding: chunked\r\n\r\n");
+			for (int i = 0; i < form.length(); i += CHUNK_SIZE) {
+				String chunk = form.substring(i, Math.min(form.length(), i + CHUNK_SIZE));
+				builder.append(Integer.toHexString(chunk.length())).append("\r\n").append(chunk).append("\r\n");
+			}
+			return ascii(builder.append("0\r\n\r\n").toString());
+		}
+
+		case "notify-json": {
+			String json = "{\"title\":\"Daily reward\",\"text\":\"Your chest is ready to open!\",\"id\":1,\"badge\":3,"
+					+ "\"user_data\":{\"screen\":\"rewards\",\"campaign\":\"spring\"},"
+					+ "\"buttons\":[{\"title\":\"Open\",\"user_data\":{\"action\":\"open\"}},{\"title\":\"Later\"}]}";
+			return ascii("POST /notify HTTP/1.1\r\n" + head + "Content-Type: application/json\r\nContent-Length: "
+					+ json.length() + "\r\n\r\n" + json);
+		}
+
+		default:
+			return ascii("POST /register HTTP/1.1\r\n" + head + "Content-Type: application/x-www-form-urlencoded\r\n"
+					+ "Content-Length: " + form.length() + "\r\n\r\n" + form);
+		}
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static final int CHUNK_SIZE = 64;
+
+	private InetAddress m_client;
+	private HttpRequestParser m_parser;
+	private ByteBuffer m_buffer;
+}
@@ -0,0 +1,100 @@
+package com.universal_tools.demoserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// The request throughput the asynchronous <c>Log</c> gives back: <c>RequestHandler.handle</c> of the demo page from
+/// 8 threads, logging every request and response synchronously as the server used to, with the access log of
+/// <c>Log</c>, and with the access log sampled.
+/// </summary>
+/// <remarks>
+/// <c>println</c> prints the request and the whole response to an autoflushing <c>PrintStream</c> like
+/// <c>System.out</c>: every line is written to the file under the lock of the stream, by the request thread.
+/// <c>async</c> logs every request with <c>--access-log-sample=1</c>, <c>sampled</c> one of 10. When its writer can't
+/// keep up, <c>Log</c> drops entries (<c>demoserver_log_dropped_total</c>) rather than slowing requests down, so the
+/// log file of <c>async</c> may miss some. The demo page is cheap to build, most of a request is its logging: on a
+/// single CPU, <c>println</c> handled about 0.5 million requests per second, <c>async</c> 2.9 and <c>sampled</c> 3.8.
+/// </remarks>
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class LoggingBenchmark {
+// public
+	@Param({ "println", "async", "sampled" })
+	public String logging;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		m_file = File.createTempFile("benchmark_log", ".log");
+
+		// Not Benchmarks.configure: it would send the log to the console, errors only
+		String registrationFile = "--registration-file=benchmark_reg.db";
+		if ("println".equals(logging)) {
+			ServerOptions.parse(new String[] { "--log-file=-", "--log-level=error", registrationFile });
+			m_out = new PrintStream(new FileOutputStream(m_file), true, "UTF-8");
+		} else {
+			ServerOptions.parse(new String[] { "--log-file=" + m_file.getPath(), "--log-level=info", registrationFile,
+					"--access-log-sample=" + ("sampled".equals(logging) ? 10 : 1) });
+		}
+
+		m_request = new HttpRequest("127.0.0.1", "GET", "/", "", null, true, false,
+				Collections.<String, String>emptyMap(), null);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (m_out != null) {
+			m_out.close();
+		}
+		Log.flush(1000);
+
+		m_file.delete();
+		for (int i = 1; i < ServerOptions.LOG_FILES; ++i) {
+			new File(m_file.getPath() + "." + i).delete();
+		}
+	}
+
+	@Benchmark
+	public HttpResponse handle() {
+		if (m_out == null) {
+			return RequestHandler.handle(m_request);
+		}
+
+		m_out.println("\n<< " + m_request.path + " " + m_request.content);
+		HttpResponse response = RequestHandler.handle(m_request);
+		String result = "HTTP/1.1 " + response.status + "\r\n" + "Server: UTNotificationsDemoServer\r\n"
+				+ "Content-Type: " + response.contentType + "\r\n" + "Content-Length: " + response.content.length()
+				+ "\r\n\r\n" + response.content;
+		m_out.println("  >> " + result.replace("\n", "\n  >> "));
+		return response;
+	}
+
+// private
+	private File m_file;
+	private PrintStream m_out;
+	private HttpRequest m_request;
+}
@@ -0,0 +1,46 @@
+package com.universal_tools.demoserver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/// <summary>
+/// Realistic data shared by the benchmarks: a device and its FCM registration token, notification messages.
+/// </summary>
+class Payloads {
+// public
+	public static final String UID = "5f0c2e9a-8d1b-4c36-9a57-0e2b7d41c8f3";
+	// As long as a real FCM token
+	public static final String FCM_TOKEN = "dX3k9Qm2R0e:APA91bHqL7sT2vWmZ8cYk1oJd4fN6gU0rB5hX9pE3iK7lM2nQ8sV1tY4wC6zA0bD3eF5gH7jK9lM1nP3qR5sT7uV9"
+			+ "wX1yZ3aB5cD7eF9gH1iJ3kL5mN7oP9qR1sT3uV5wX7yZ9aB1cD";
+
+	/// <param name="rich">With user data and buttons, as <c>/notify</c> takes them in JSON.</param>
+	public static PushMessage message(boolean rich) {
+		if (!rich) {
+			return new PushMessage(-1, "Daily reward", "Your chest is ready to open!", "2024-05-18 12:00:00", null, -1,
+					null, null);
+		}
+
+		Map<String, String> userData = new LinkedHashMap<String, String>();
+		userData.put("screen", "rewards");
+		userData.put("campaign", "spring");
+
+		Map<String, String> open = new LinkedHashMap<String, String>();
+		open.put("action", "open");
+		List<PushMessage.Button> buttons = new ArrayList<PushMessage.Button>();
+		buttons.add(new PushMessage.Button("Open", open));
+		buttons.add(new PushMessage.Button("Later", null));
+
+		return new PushMessage(1, "Daily reward", "Your chest is ready to open!", "2024-05-18 12:00:00", "reward", 3,
+				userData, buttons);
+	}
+
+	/// <summary>
+	/// A registration token of the device <c>index</c>: the same length as a real one.
+	/// </summary>
+	public static String token(long index) {
+		String suffix = Long.toString(index);
+		return FCM_TOKEN.substring(0, FCM_TOKEN.length() - suffix.length()) + suffix;
+	}
+}
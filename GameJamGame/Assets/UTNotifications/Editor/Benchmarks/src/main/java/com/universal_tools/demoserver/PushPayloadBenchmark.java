@@ -0,0 +1,68 @@
+package com.universal_tools.demoserver;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// Building the notification payloads: <c>PushNotificator.prepareData</c> (the data of every provider) and the
+/// serialized body of an FCM request for a single device and for a full batch of 1000.
+/// </summary>
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PushPayloadBenchmark {
+// public
+	/// <summary>
+	/// <c>plain</c>: title and text; <c>rich</c>: with user data and buttons as well.
+	/// </summary>
+	@Param({ "plain", "rich" })
+	public String message;
+
+	@Param({ "1", "1000" })
+	public int recipients;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Benchmarks.configure("benchmark_reg.db");
+
+		m_message = Payloads.message("rich".equals(message));
+		m_items = new ArrayList<Registrator.Item>(recipients);
+		for (int i = 0; i < recipients; ++i) {
+			m_items.add(new Registrator.Item("FCM", Payloads.token(i)));
+		}
+	}
+
+	@Benchmark
+	public JSONObject prepareData() throws JSONException {
+		return PushNotificator.prepareData(m_message);
+	}
+
+	@Benchmark
+	public byte[] fcmRequest() throws JSONException, UnsupportedEncodingException {
+		return PushNotificator.fcmRequest(m_message, m_items);
+	}
+
+// private
+	private PushMessage m_message;
+	private List<Registrator.Item> m_items;
+}
@@ -0,0 +1,167 @@
+package com.universal_tools.demoserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// <c>Registrator</c> at a given count of registered devices: <c>register</c> of a device already registered
+/// (a new token), including its record in the log and the compactions of the log, the walk over <c>items</c> for
+/// every <c>/notify</c>, and both at once: <c>registerWhileWalking</c> registers from 3 threads while a fourth one
+/// walks the devices.
+/// </summary>
+/// <remarks>
+/// The registration is saved to temporary files, deleted afterwards. Every count and store
+/// (<c>ServerOptions.REGISTRATION_STORE</c>) runs in its own JVM, as <c>Registrator</c> is static: a mapped store
+/// decodes a short-lived item for every device walked, rather than handing out the items it keeps.
+/// </remarks>
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RegistratorBenchmark {
+// public
+	@State(Scope.Benchmark)
+	public static class Saving extends Registration {
+		@Param({ "10000", "100000", "1000000" })
+		public int registrations;
+
+		@Param({ "heap", "mapped" })
+		public String store;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			fill(registrations, "--registration-store=" + store);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			delete();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Walking extends Registration {
+		@Param({ "10000", "100000", "1000000" })
+		public int registrations;
+
+		@Param({ "heap", "mapped" })
+		public String store;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			fill(registrations, "--registration-store=" + store);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			delete();
+		}
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+	public void register(Saving registration) {
+		long next = registration.next();
+		Registrator.register(uid(next % registration.registrations), "FCM", Payloads.token(next));
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+	public int items(Walking registration) {
+		return walk();
+	}
+
+	@Benchmark
+	@Group("registerWhileWalking")
+	@GroupThreads(3)
+	@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+	public void registering(Walking registration) {
+		long next = registration.next();
+		Registrator.register(uid(next % registration.registrations), "FCM", Payloads.token(next));
+	}
+
+	@Benchmark
+	@Group("registerWhileWalking")
+	@GroupThreads(1)
+	@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+	public int walking(Walking registration) {
+		return walk();
+	}
+
+	// The generated benchmark code subclasses the states, so their base has to be public
+	public abstract static class Registration {
+		// Registers count devices with a single write, with more server options if any
+		protected void fill(int count, String... options) throws IOException {
+			// Only a unique name: Registrator starts empty when there is no file
+			m_file = File.createTempFile("benchmark_reg", ".db");
+			m_file.delete();
+			Benchmarks.configure(m_file.getPath(), options);
+
+			HashMap<String, Registrator.Item> items = new HashMap<String, Registrator.Item>(count * 2);
+			for (int i = 0; i < count; ++i) {
+				items.put(uid(i), new Registrator.Item("FCM", Payloads.token(i)));
+			}
+			Registrator.register(items);
+			m_next.set(count);
+		}
+
+		// The sequence of the tokens registered by the benchmark
+		protected long next() {
+			return m_next.getAndIncrement();
+		}
+
+		protected void delete() {
+			m_file.delete();
+			new File(m_file.getPath() + ".tmp").delete();
+			new File(m_file.getPath() + ".log").delete();
+			new File(m_file.getPath() + ".log.prev").delete();
+			// The generations of a mapped store
+			File[] files = m_file.getAbsoluteFile().getParentFile().listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (file.getName().startsWith(m_file.getName() + ".store.")) {
+						file.delete();
+					}
+				}
+			}
+		}
+
+		private File m_file;
+		private final AtomicLong m_next = new AtomicLong();
+	}
+
+// private
+	// Like the split of the devices by provider for a /notify
+	private static int walk() {
+		int fcm = 0;
+		for (Registrator.Item item : Registrator.items()) {
+			if ("FCM".equals(item.provider)) {
+				++fcm;
+			}
+		}
+		return fcm;
+	}
+
+	private static String uid(long index) {
+		return "device-" + index;
+	}
+}
@@ -0,0 +1,149 @@
+package com.universal_tools.demoserver;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// <summary>
+/// The start of the server: reading the registration snapshot into the maps <c>Registrator</c> works with, in the
+/// binary format of <c>RegistrationSnapshot</c> and in the Java serialization the older versions saved, and opening
+/// a <c>MappedRegistrationStore</c> of as many devices instead.
+/// </summary>
+/// <remarks>
+/// Every read is a single shot, as a start is: the file is mostly in the page cache after the first one, so it's the
+/// decoding which is measured rather than the disk.
+/// </remarks>
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SnapshotLoadBenchmark {
+// public
+	@State(Scope.Benchmark)
+	public static class Snapshot {
+		@Param({ "binary", "java" })
+		public String format;
+
+		@Param({ "100000", "1000000" })
+		public int registrations;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			file = File.createTempFile("benchmark_reg", ".db");
+
+			HashMap<String, Registrator.Item> items = new HashMap<String, Registrator.Item>(registrations * 2);
+			for (int i = 0; i < registrations; ++i) {
+				items.put("device-" + i, new Registrator.Item("FCM", Payloads.token(i)));
+			}
+			HashMap<String, Registrator.OAuth2Token> tokens = new HashMap<String, Registrator.OAuth2Token>();
+			tokens.put("FCM", new Registrator.OAuth2Token("ya29.token", new Date(System.currentTimeMillis() + 3600000)));
+
+			if ("binary".equals(format)) {
+				RegistrationSnapshot.write(file.getPath(), false, items, tokens);
+			} else {
+				try (ObjectOutputStream stream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+					stream.writeObject(items);
+					stream.writeObject(tokens);
+				}
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			file.delete();
+		}
+
+		File file;
+	}
+
+	@State(Scope.Benchmark)
+	public static class Store {
+		@Param({ "100000", "1000000" })
+		public int registrations;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			// Only a unique name: the store adds its generation
+			file = File.createTempFile("benchmark_reg", ".store");
+			file.delete();
+
+			MappedRegistrationStore store = MappedRegistrationStore.open(file.getPath());
+			try {
+				store.clear(registrations);
+				for (int i = 0; i < registrations; ++i) {
+					store.put("device-" + i, new Registrator.Item("FCM", Payloads.token(i)));
+				}
+			} finally {
+				store.close();
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			MappedRegistrationStore.open(file.getPath()).retire();
+		}
+
+		File file;
+	}
+
+	@Benchmark
+	public ConcurrentHashMap<String, Registrator.Item> load(Snapshot snapshot) throws IOException {
+		Loading loading = new Loading();
+		RegistrationSnapshot.read(snapshot.file, loading);
+		return loading.registration;
+	}
+
+	@Benchmark
+	public int open(Store store) throws IOException {
+		MappedRegistrationStore opened = MappedRegistrationStore.open(store.file.getPath());
+		try {
+			return opened.size();
+		} finally {
+			opened.close();
+		}
+	}
+
+// private
+	// As Registrator loads it
+	private static class Loading implements RegistrationSnapshot.Loader {
+		@Override
+		public void sizes(int devices, int tokens) {
+			registration = new ConcurrentHashMap<String, Registrator.Item>(devices);
+			oath2Tokens = new ConcurrentHashMap<String, Registrator.OAuth2Token>(tokens);
+		}
+
+		@Override
+		public void device(String uid, Registrator.Item item) {
+			registration.put(uid, item);
+		}
+
+		@Override
+		public void token(String provider, Registrator.OAuth2Token token) {
+			oath2Tokens.put(provider, token);
+		}
+
+		ConcurrentHashMap<String, Registrator.Item> registration;
+		ConcurrentHashMap<String, Registrator.OAuth2Token> oath2Tokens;
+	}
+}
@@ -0,0 +1,80 @@
+package com.universal_tools.demoserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/// <summary>
+/// Accumulates the body of a request, refusing to grow above the configured maximum.
+/// </summary>
+class BodyBuffer implements BodySink {
+// public
+	public BodyBuffer(long maxSize) {
+		m_maxSize = maxSize;
+	}
+
+	/// <summary>
+	/// Moves <c>count</c> bytes of <c>buf</c> to the end of the body.
+	/// </summary>
+	@Override
+	public void write(ByteBuffer buf, int count) throws HttpException {
+		if (m_length + (long)count > m_maxSize) {
+			throw new HttpException("413 Payload Too Large", "Request body exceeds " + m_maxSize + " bytes");
+		}
+
+		if (m_length + count > m_bytes.length) {
+			byte[] grown = new byte[Math.max(m_bytes.length * 2, m_length + count)];
+			System.arraycopy(m_bytes, 0, grown, 0, m_length);
+			m_bytes = grown;
+		}
+
+		buf.get(m_bytes, m_length, count);
+		m_length += count;
+	}
+
+	public int length() {
+		return m_length;
+	}
+
+	@Override
+	public long capacity() {
+		return m_maxSize - m_length;
+	}
+
+	@Override
+	public void end() {
+	}
+
+	/// <summary>
+	/// Copies the body as is, f.e. for a parser working on the encoded bytes.
+	/// </summary>
+	public byte[] toByteArray() {
+		return Arrays.copyOf(m_bytes, m_length);
+	}
+
+	/// <summary>
+	/// Decodes the body as UTF-8.
+	/// </summary>
+	@Override
+	public String toString() {
+		return new String(m_bytes, 0, m_length, StandardCharsets.UTF_8);
+	}
+
+	/// <summary>
+	/// Empties the buffer for the next request, releasing the memory a large body may have taken.
+	/// </summary>
+	public void reset() {
+		m_length = 0;
+		if (m_bytes.length > MAX_RETAINED_SIZE) {
+			m_bytes = new byte[INITIAL_SIZE];
+		}
+	}
+
+// private
+	private static final int INITIAL_SIZE = 1024;
+	private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+	private final long m_maxSize;
+	private byte[] m_bytes = new byte[INITIAL_SIZE];
+	private int m_length;
+}
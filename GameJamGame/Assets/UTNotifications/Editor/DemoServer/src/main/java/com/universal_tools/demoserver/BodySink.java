@@ -0,0 +1,27 @@
+package com.universal_tools.demoserver;
+
+import java.nio.ByteBuffer;
+
+/// <summary>
+/// Receives the body of a request while it is being read, chunked or not.
+/// </summary>
+/// <remarks>
+/// Usually a <c>BodyBuffer</c>; <c>RequestHandler.bodySink</c> may provide another one for the requests whose
+/// bodies are processed as they arrive instead of being kept in memory.
+/// </remarks>
+interface BodySink {
+	/// <summary>
+	/// Consumes <c>count</c> bytes of <c>buf</c>.
+	/// </summary>
+	void write(ByteBuffer buf, int count) throws HttpException;
+
+	/// <summary>
+	/// How many more bytes the sink accepts.
+	/// </summary>
+	long capacity();
+
+	/// <summary>
+	/// Called once the whole body has been written.
+	/// </summary>
+	void end() throws HttpException;
+}
@@ -0,0 +1,192 @@
+package com.universal_tools.demoserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/// <summary>
+/// Incremental decoder of a <c>Transfer-Encoding: chunked</c> body (RFC 7230, 4.1). Important due to changes
+/// in Unity 2017.3+, which sends request bodies chunked.
+/// </summary>
+/// <remarks>
+/// Chunk data is moved straight from the connection buffer to the <c>BodySink</c>, whatever bytes it holds
+/// (CRLF included), and may arrive split at any point. Chunk extensions are skipped, trailer fields are kept.
+/// </remarks>
+class ChunkedDecoder {
+// public
+	/// <summary>
+	/// Consumes the bytes of <c>buf</c> up to the end of the body at most.
+	/// </summary>
+	/// <returns><c>true</c> once the last chunk and the trailers have been consumed.</returns>
+	public boolean decode(ByteBuffer buf, BodySink body) throws HttpException {
+		while (buf.hasRemaining()) {
+			switch (m_state) {
+			case SIZE:
+				if (readLine(buf)) {
+					m_remaining = parseSize();
+					if (m_remaining > body.capacity()) {
+						throw new HttpException("413 Payload Too Large", "Chunk of " + m_remaining + " bytes exceeds the body size limit");
+					}
+					m_state = m_remaining > 0 ? State.DATA : State.TRAILERS;
+				}
+				break;
+
+			case DATA: {
+				int count = (int)Math.min(buf.remaining(), m_remaining);
+				body.write(buf, count);
+				m_remaining -= count;
+				if (m_remaining == 0) {
+					m_state = State.DATA_END;
+				}
+			}
+				break;
+
+			case DATA_END: {
+				// Chunk data must be followed by CRLF (a bare LF is tolerated)
+				byte b = buf.get();
+				if (b == '\r' && !m_dataEndCr) {
+					m_dataEndCr = true;
+				} else if (b == '\n') {
+					m_dataEndCr = false;
+					m_state = State.SIZE;
+				} else {
+					throw new HttpException("400 Bad Request", "Chunk data is longer than its declared size");
+				}
+			}
+				break;
+
+			case TRAILERS:
+				if (readLine(buf)) {
+					if (m_lineLength == 0) {
+						m_state = State.DONE;
+						return true;
+					}
+					addTrailer();
+				}
+				break;
+
+			case DONE:
+				return true;
+			}
+		}
+
+		return m_state == State.DONE;
+	}
+
+	/// <summary>
+	/// Trailer fields sent after the last chunk, if any.
+	/// </summary>
+	public Map<String, String> trailers() {
+		return m_trailers != null ? m_trailers : Collections.<String, String>emptyMap();
+	}
+
+	/// <summary>
+	/// Prepares the decoder for the next chunked body.
+	/// </summary>
+	public void reset() {
+		m_state = State.SIZE;
+		m_lineLength = 0;
+		m_lineComplete = false;
+		m_remaining = 0;
+		m_dataEndCr = false;
+		m_trailers = null;
+	}
+
+// private
+	private enum State {
+		SIZE, DATA, DATA_END, TRAILERS, DONE
+	}
+
+	// Accumulates the current line in m_line. Returns true once it's complete (the line end itself is not kept).
+	private boolean readLine(ByteBuffer buf) throws HttpException {
+		if (m_lineComplete) {
+			m_lineComplete = false;
+			m_lineLength = 0;
+		}
+
+		while (buf.hasRemaining()) {
+			byte b = buf.get();
+			if (b == '\n') {
+				if (m_lineLength > 0 && m_line[m_lineLength - 1] == '\r') {
+					--m_lineLength;
+				}
+				m_lineComplete = true;
+				return true;
+			}
+
+			if (m_lineLength == m_line.length) {
+				throw new HttpException("400 Bad Request", (m_state == State.SIZE ? "Chunk size" : "Trailer")
+						+ " line exceeds " + MAX_LINE_LENGTH + " bytes");
+			}
+			m_line[m_lineLength++] = b;
+		}
+
+		return false;
+	}
+
+	// chunk-size = 1*HEXDIG, optionally followed by whitespace and ";" chunk extensions
+	private long parseSize() throws HttpException {
+		long size = 0;
+		int digits = 0;
+		int i = 0;
+		for (; i < m_lineLength; ++i) {
+			int digit = Character.digit(m_line[i], 16);
+			if (digit < 0) {
+				break;
+			}
+			size = (size << 4) | digit;
+			++digits;
+		}
+
+		while (i < m_lineLength && (m_line[i] == ' ' || m_line[i] == '\t')) {
+			++i;
+		}
+
+		if (digits == 0 || digits > MAX_SIZE_DIGITS || (i < m_lineLength && m_line[i] != ';')) {
+			throw new HttpException("400 Bad Request",
+					"Invalid chunk size: " + new String(m_line, 0, m_lineLength, StandardCharsets.ISO_8859_1));
+		}
+
+		return size;
+	}
+
+	private void addTrailer() throws HttpException {
+		int colon = -1;
+		for (int i = 0; i < m_lineLength; ++i) {
+			if (m_line[i] == ':') {
+				colon = i;
+				break;
+			}
+		}
+
+		if (colon <= 0) {
+			throw new HttpException("400 Bad Request",
+					"Invalid trailer: " + new String(m_line, 0, m_lineLength, StandardCharsets.ISO_8859_1));
+		}
+
+		if (m_trailers == null) {
+			m_trailers = new LinkedHashMap<String, String>();
+		} else if (m_trailers.size() >= MAX_TRAILERS) {
+			throw new HttpException("400 Bad Request", "More than " + MAX_TRAILERS + " trailer fields");
+		}
+
+		String name = new String(m_line, 0, colon, StandardCharsets.ISO_8859_1).trim().toLowerCase();
+		String value = new String(m_line, colon + 1, m_lineLength - colon - 1, StandardCharsets.ISO_8859_1).trim();
+		m_trailers.put(name, value);
+	}
+
+	private static final int MAX_LINE_LENGTH = 4096;
+	// 15 hexadecimal digits keep the size far from a long overflow
+	private static final int MAX_SIZE_DIGITS = 15;
+	private static final int MAX_TRAILERS = 32;
+
+	private State m_state = State.SIZE;
+	private final byte[] m_line = new byte[MAX_LINE_LENGTH];
+	private int m_lineLength;
+	private boolean m_lineComplete;
+	private long m_remaining;
+	private boolean m_dataEndCr;
+	private Map<String, String> m_trailers;
+}
@@ -0,0 +1,333 @@
+package com.universal_tools.demoserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/// <summary>
+/// The live progress of the notification jobs streamed by <c>/events</c> as Server-Sent Events: <c>job</c> events
+/// when a job changes its state and <c>delivery</c> events with the sent, failed (by error) and skipped devices and
+/// the registration ids updated by a provider (canonical ids), per batch of devices.
+/// </summary>
+/// <remarks>
+/// Events are kept in a ring of the last <c>ServerOptions.EVENTS_BUFFER</c> ones, already encoded, and every
+/// subscriber has just its position in it. Publishing only overwrites the oldest event and wakes the subscribers up,
+/// so the senders never wait for them. A subscriber which falls behind by more than the ring gets a <c>lost</c> event
+/// with the count of the events it has missed and continues from the oldest one left, i.e. a slow subscriber sees
+/// a sample of the events. One which hasn't accepted a write for <c>ServerOptions.EVENTS_WRITE_TIMEOUT</c> ms is
+/// disconnected.
+/// </remarks>
+class DeliveryEvents {
+// public
+	/// <summary>
+	/// A subscriber of the events: an <c>/events</c> connection.
+	/// </summary>
+	public static class Subscription {
+		/// <summary>
+		/// Sets how the server is told about the new events and disconnects the subscriber.
+		/// </summary>
+		/// <param name="onPublished">Called by the publishing thread when there are new events to <c>poll</c>, once
+		/// until the next <c>poll</c>; <c>null</c> when the subscriber waits in <c>take</c> instead.</param>
+		/// <param name="connection">Closed to drop the subscriber if its writes get stuck.</param>
+		public void attach(Runnable onPublished, Closeable connection) {
+			m_onPublished = onPublished;
+			m_connection = connection;
+			m_lastWrite = System.currentTimeMillis();
+		}
+
+		/// <summary>
+		/// Waits up to <c>HEARTBEAT_INTERVAL</c> for new events.
+		/// </summary>
+		/// <returns>The bytes to write next, a heartbeat comment if no event has arrived or <c>null</c> once closed.</returns>
+		public byte[] take() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + HEARTBEAT_INTERVAL;
+			synchronized (m_lock) {
+				while (!m_closed && m_cursor == m_next) {
+					long left = deadline - System.currentTimeMillis();
+					if (left <= 0) {
+						break;
+					}
+					m_lock.wait(left);
+				}
+			}
+
+			dropStuck();
+			if (m_closed) {
+				return null;
+			}
+
+			byte[] events = poll();
+			return events != null ? events : HEARTBEAT;
+		}
+
+		/// <summary>
+		/// Doesn't wait for new events.
+		/// </summary>
+		/// <returns>The bytes to write next, a heartbeat comment if it's due or <c>null</c> if there is nothing to
+		/// write.</returns>
+		public byte[] poll() {
+			m_signalled.set(false);
+			if (m_closed) {
+				return null;
+			}
+
+			List<byte[]> events = new ArrayList<byte[]>();
+			long lost = 0;
+			synchronized (m_lock) {
+				long oldest = m_next - m_ring.length;
+				if (m_cursor < oldest) {
+					lost = oldest - m_cursor;
+					m_cursor = oldest;
+				}
+
+				int size = 0;
+				while (m_cursor < m_next && size < MAX_WRITE_SIZE) {
+					// Published before this subscription if null
+					byte[] event = m_ring[(int)(m_cursor % m_ring.length)];
+					if (event != null) {
+						events.add(event);
+						size += event.length;
+					}
+					++m_cursor;
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			if (events.isEmpty() && lost == 0) {
+				if (now - m_lastWrite < HEARTBEAT_INTERVAL) {
+					return null;
+				}
+				m_lastWrite = now;
+				return HEARTBEAT;
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			if (lost > 0) {
+				EVENTS_LOST.add(lost);
+				byte[] notice = encode(0, "lost", "{\"events\":" + lost + "}");
+				bytes.write(notice, 0, notice.length);
+			}
+			for (byte[] event : events) {
+				bytes.write(event, 0, event.length);
+			}
+
+			m_lastWrite = now;
+			return bytes.toByteArray();
+		}
+
+		/// <summary>
+		/// Marks the start of writing the bytes returned by <c>take</c> or <c>poll</c>.
+		/// </summary>
+		public void onWriteStarted() {
+			m_writeStarted = System.currentTimeMillis();
+		}
+
+		public void onWriteFinished() {
+			m_writeStarted = 0;
+		}
+
+		/// <summary>
+		/// Disconnects the subscriber if a write has been waiting for it for longer than
+		/// <c>ServerOptions.EVENTS_WRITE_TIMEOUT</c>. Checked on every publishing and heartbeat as well.
+		/// </summary>
+		public void dropIfStuck(long now) {
+			long started = m_writeStarted;
+			if (started == 0 || now - started <= ServerOptions.EVENTS_WRITE_TIMEOUT) {
+				return;
+			}
+
+			Closeable connection = m_connection;
+			if (connection == null) {
+				return;
+			}
+
+			SUBSCRIBERS_DROPPED.inc();
+			Log.warn("Dropping an /events subscriber: no write accepted in " + ServerOptions.EVENTS_WRITE_TIMEOUT + " ms");
+			m_connection = null;
+			try {
+				connection.close();
+			} catch (IOException e) {
+			}
+		}
+
+		public boolean isClosed() {
+			return m_closed;
+		}
+
+		/// <summary>
+		/// Unsubscribes. Called by the server whenever the connection ends.
+		/// </summary>
+		public void close() {
+			synchronized (m_lock) {
+				if (m_closed) {
+					return;
+				}
+				m_closed = true;
+				m_lock.notifyAll();
+			}
+			m_subscriptions.remove(this);
+		}
+
+	// private
+		private Subscription(long cursor) {
+			m_cursor = cursor;
+		}
+
+		// The next event to send, guarded by m_lock
+		private long m_cursor;
+		private volatile boolean m_closed;
+		private final AtomicBoolean m_signalled = new AtomicBoolean();
+		private volatile Runnable m_onPublished;
+		private volatile Closeable m_connection;
+		private volatile long m_writeStarted;
+		private long m_lastWrite;
+	}
+
+	/// <summary>
+	/// Subscribes to the events published from now on.
+	/// </summary>
+	/// <exception cref="HttpException"><c>503</c> if there are <c>ServerOptions.EVENTS_MAX_SUBSCRIBERS</c> already.</exception>
+	public static Subscription subscribe() throws HttpException {
+		Subscription subscription;
+		synchronized (m_lock) {
+			if (m_subscriptions.size() >= ServerOptions.EVENTS_MAX_SUBSCRIBERS) {
+				throw new HttpException("503 Service Unavailable",
+						"Too many /events subscribers, " + ServerOptions.EVENTS_MAX_SUBSCRIBERS + " at most");
+			}
+			subscription = new Subscription(m_next);
+			m_subscriptions.add(subscription);
+		}
+
+		return subscription;
+	}
+
+	/// <summary>
+	/// Publishes an event to all the subscribers.
+	/// </summary>
+	/// <param name="type">The SSE event name, f.e. <c>delivery</c>.</param>
+	/// <param name="data">Sent as a JSON object, in the order of the map. The values are numbers, strings, booleans,
+	/// maps of them or <c>null</c>.</param>
+	public static void publish(String type, Map<String, Object> data) {
+		// Without subscribers the events aren't even encoded
+		String json = m_subscriptions.isEmpty() ? null : toJson(data);
+		synchronized (m_lock) {
+			long id = m_next++;
+			if (json == null && !m_subscriptions.isEmpty()) {
+				// Subscribed meanwhile
+				json = toJson(data);
+			}
+			m_ring[(int)(id % m_ring.length)] = json != null ? encode(id, type, json) : null;
+			m_lock.notifyAll();
+		}
+		EVENTS_PUBLISHED.inc();
+
+		for (Subscription subscription : m_subscriptions) {
+			Runnable onPublished = subscription.m_onPublished;
+			if (onPublished != null && subscription.m_signalled.compareAndSet(false, true)) {
+				onPublished.run();
+			}
+		}
+		dropStuck();
+	}
+
+	/// <summary>
+	/// Ends all the subscriptions. Called on shutdown.
+	/// </summary>
+	public static void closeAll() {
+		for (Subscription subscription : m_subscriptions) {
+			subscription.close();
+		}
+	}
+
+// private
+	private static void dropStuck() {
+		long now = System.currentTimeMillis();
+		for (Subscription subscription : m_subscriptions) {
+			subscription.dropIfStuck(now);
+		}
+	}
+
+	// Written here rather than by JSONObject, which is backed by a HashMap and wouldn't keep the order of the map
+	private static String toJson(Map<String, Object> data) {
+		StringBuilder builder = new StringBuilder(128);
+		appendJson(builder, data);
+		return builder.toString();
+	}
+
+	private static void appendJson(StringBuilder builder, Object value) {
+		if (value instanceof Map) {
+			builder.append('{');
+			boolean first = true;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+				if (!first) {
+					builder.append(',');
+				}
+				first = false;
+				builder.append(JSONObject.quote(String.valueOf(entry.getKey()))).append(':');
+				appendJson(builder, entry.getValue());
+			}
+			builder.append('}');
+		} else if (value instanceof Number) {
+			try {
+				builder.append(JSONObject.numberToString((Number)value));
+			} catch (JSONException e) {
+				// Infinite or NaN
+				builder.append("null");
+			}
+		} else if (value instanceof Boolean) {
+			builder.append(value);
+		} else if (value == null) {
+			builder.append("null");
+		} else {
+			builder.append(JSONObject.quote(value.toString()));
+		}
+	}
+
+	// "id: 1\nevent: delivery\ndata: {...}\n\n", the id is skipped for 0
+	private static byte[] encode(long id, String type, String json) {
+		StringBuilder builder = new StringBuilder(json.length() + 32);
+		if (id > 0) {
+			builder.append("id: ").append(id).append('\n');
+		}
+		builder.append("event: ").append(type).append('\n');
+		builder.append("data: ").append(json).append("\n\n");
+		return builder.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static final long HEARTBEAT_INTERVAL = 15000;
+	// Bytes of events sent to a subscriber at once, so that a lagging one doesn't get all the ring in a single write
+	private static final int MAX_WRITE_SIZE = 64 * 1024;
+	// An SSE comment: keeps proxies from closing an idle stream and detects the subscribers gone
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+
+	private static final Metrics.Counter EVENTS_PUBLISHED = Metrics.counter("demoserver_events_published_total",
+			"Events published to /events.", "");
+	private static final Metrics.Counter EVENTS_LOST = Metrics.counter("demoserver_events_lost_total",
+			"Events skipped for the /events subscribers which have fallen behind.", "");
+	private static final Metrics.Counter SUBSCRIBERS_DROPPED = Metrics.counter("demoserver_events_subscribers_dropped_total",
+			"/events subscribers disconnected for not reading.", "");
+
+	private static final Object m_lock = new Object();
+	private static final byte[][] m_ring = new byte[ServerOptions.EVENTS_BUFFER][];
+	// The id of the next event, ids start from 1
+	private static long m_next = 1;
+	private static final CopyOnWriteArrayList<Subscription> m_subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	static {
+		Metrics.gauge("demoserver_events_subscribers", "Connected /events subscribers.", "", new Metrics.Gauge() {
+			@Override
+			public double value() {
+				return m_subscriptions.size();
+			}
+		});
+	}
+}
@@ -0,0 +1,65 @@
+package com.universal_tools.demoserver;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/// <summary>
+/// Replaces the content of a file so that killing the process at any moment leaves either the old or the new
+/// content as a whole, never a truncated mix.
+/// </summary>
+/// <remarks>
+/// The new content is written to <c>name.tmp</c> and renamed over the file. That is enough when only the process
+/// dies, since the written data is already in the OS cache. With <c>sync</c> the data is also synced to the disk
+/// before the rename, and the directory after it, so the new content survives an OS crash or power loss as well, at
+/// the cost of waiting for the disk. A crash may leave the <c>.tmp</c> file behind; the next write overwrites it.
+/// </remarks>
+class DurableFile {
+// public
+	public interface Content {
+		void write(OutputStream stream) throws IOException;
+	}
+
+	public static void write(String fileName, boolean sync, Content content) throws IOException {
+		File file = new File(fileName).getAbsoluteFile();
+		File temp = new File(file.getPath() + ".tmp");
+
+		FileOutputStream fileStream = new FileOutputStream(temp);
+		try {
+			OutputStream stream = new BufferedOutputStream(fileStream, BUFFER_SIZE);
+			content.write(stream);
+			stream.flush();
+			if (sync) {
+				fileStream.getFD().sync();
+			}
+		} finally {
+			fileStream.close();
+		}
+
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		if (sync) {
+			syncDirectory(file.getParentFile());
+		}
+	}
+
+// private
+	// Makes the rename itself durable. Not every platform can open a directory (Windows can't): it's skipped there.
+	private static void syncDirectory(File directory) {
+		if (directory == null) {
+			return;
+		}
+
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+		}
+	}
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+}
@@ -0,0 +1,216 @@
+package com.universal_tools.demoserver;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/// <summary>
+/// Decompresses a <c>Content-Encoding: gzip</c> body (RFC 1952) while it is being read, passing the decompressed
+/// bytes on to another <c>BodySink</c>.
+/// </summary>
+/// <remarks>
+/// The compressed bytes may arrive split at any point, including inside the gzip header and trailer. The size limit
+/// is the one of the downstream sink, applied to the decompressed bytes, so a small body inflating to a huge one is
+/// refused just like a huge uncompressed body. The compressed bytes are limited by <c>ServerOptions.MAX_BODY_SIZE</c>
+/// too, and neither may be more than the downstream sink has left, so a <c>Content-Length</c> or chunk size above it
+/// is refused before the body is read. Concatenated gzip members are decoded one after another.
+/// </remarks>
+class GzipDecoder implements BodySink {
+// public
+	/// <summary>
+	/// Prepares the decoder for the next body, to be passed on to <c>downstream</c>.
+	/// </summary>
+	public void reset(BodySink downstream) {
+		m_downstream = downstream;
+		m_compressed = 0;
+		m_state = State.HEADER;
+		m_headerLength = 0;
+		m_trailerLength = 0;
+		m_inflater.reset();
+		m_crc.reset();
+	}
+
+	@Override
+	public void write(ByteBuffer buf, int count) throws HttpException {
+		m_compressed += count;
+		if (m_compressed > ServerOptions.MAX_BODY_SIZE) {
+			throw new HttpException("413 Payload Too Large", "Request body exceeds " + ServerOptions.MAX_BODY_SIZE + " bytes");
+		}
+
+		int end = buf.position() + count;
+		int limit = buf.limit();
+		try {
+			while (buf.position() < end) {
+				switch (m_state) {
+				case HEADER:
+					m_header[m_headerLength++] = buf.get();
+					if (headerComplete()) {
+						m_state = State.DATA;
+					} else if (m_headerLength == m_header.length) {
+						throw new HttpException("400 Bad Request", "gzip header exceeds " + m_header.length + " bytes");
+					}
+					break;
+
+				case DATA:
+					buf.limit(end);
+					inflate(buf);
+					buf.limit(limit);
+					break;
+
+				case TRAILER:
+					m_trailer[m_trailerLength++] = buf.get();
+					if (m_trailerLength == m_trailer.length) {
+						checkTrailer();
+						// Another gzip member may follow
+						m_state = State.DONE;
+					}
+					break;
+
+				case DONE:
+					m_headerLength = 0;
+					m_trailerLength = 0;
+					m_inflater.reset();
+					m_crc.reset();
+					m_state = State.HEADER;
+					break;
+				}
+			}
+		} finally {
+			buf.limit(limit);
+		}
+	}
+
+	@Override
+	public long capacity() {
+		// Compressed bytes don't tell how much they decompress to, but hardly ever more than the downstream sink takes
+		return Math.min(ServerOptions.MAX_BODY_SIZE - m_compressed, m_downstream.capacity());
+	}
+
+	@Override
+	public void end() throws HttpException {
+		// No body at all is fine as well
+		boolean empty = m_state == State.HEADER && m_headerLength == 0 && m_inflater.getBytesRead() == 0;
+		if (m_state != State.DONE && !empty) {
+			throw new HttpException("400 Bad Request", "Truncated gzip body");
+		}
+
+		m_downstream.end();
+	}
+
+// private
+	private enum State {
+		HEADER, DATA, TRAILER, DONE
+	}
+
+	// Checks if m_header holds a complete header: ID1 ID2 CM FLG MTIME(4) XFL OS [XLEN EXTRA] [NAME\0] [COMMENT\0] [CRC16]
+	private boolean headerComplete() throws HttpException {
+		if (m_headerLength < 10) {
+			return false;
+		}
+
+		if (m_headerLength == 10
+				&& ((m_header[0] & 0xFF) != 0x1F || (m_header[1] & 0xFF) != 0x8B || m_header[2] != Deflater.DEFLATED)) {
+			throw new HttpException("400 Bad Request", "Invalid gzip body");
+		}
+
+		int flags = m_header[3];
+		int position = 10;
+		if ((flags & FEXTRA) != 0) {
+			if (m_headerLength < position + 2) {
+				return false;
+			}
+			position += 2 + ((m_header[position] & 0xFF) | ((m_header[position + 1] & 0xFF) << 8));
+			if (m_headerLength < position) {
+				return false;
+			}
+		}
+		if ((flags & FNAME) != 0) {
+			position = skipZeroTerminated(position);
+			if (position < 0) {
+				return false;
+			}
+		}
+		if ((flags & FCOMMENT) != 0) {
+			position = skipZeroTerminated(position);
+			if (position < 0) {
+				return false;
+			}
+		}
+		if ((flags & FHCRC) != 0) {
+			position += 2;
+		}
+
+		return m_headerLength == position;
+	}
+
+	// Returns the position after the zero byte or -1 if there is no such byte in the header yet
+	private int skipZeroTerminated(int position) {
+		for (int i = position; i < m_headerLength; ++i) {
+			if (m_header[i] == 0) {
+				return i + 1;
+			}
+		}
+
+		return -1;
+	}
+
+	private void inflate(ByteBuffer buf) throws HttpException {
+		m_inflater.setInput(buf);
+		try {
+			while (!m_inflater.finished() && !m_inflater.needsInput()) {
+				m_out.clear();
+				int inflated = m_inflater.inflate(m_out);
+				if (inflated == 0 && m_inflater.needsDictionary()) {
+					throw new HttpException("400 Bad Request", "Invalid gzip body");
+				}
+
+				m_out.flip();
+				m_crc.update(m_out.array(), 0, m_out.limit());
+				m_downstream.write(m_out, m_out.limit());
+			}
+		} catch (DataFormatException e) {
+			throw new HttpException("400 Bad Request", "Invalid gzip body: " + e.getMessage());
+		}
+
+		// The inflater consumes the input buffer as far as it has read
+		if (m_inflater.finished()) {
+			m_state = State.TRAILER;
+		}
+	}
+
+	// CRC32 and ISIZE, little-endian
+	private void checkTrailer() throws HttpException {
+		long crc = littleEndianInt(0);
+		long size = littleEndianInt(4);
+		if (crc != m_crc.getValue() || size != (m_inflater.getBytesWritten() & 0xFFFFFFFFL)) {
+			throw new HttpException("400 Bad Request", "Corrupted gzip body");
+		}
+	}
+
+	private long littleEndianInt(int offset) {
+		return (m_trailer[offset] & 0xFFL) | ((m_trailer[offset + 1] & 0xFFL) << 8)
+				| ((m_trailer[offset + 2] & 0xFFL) << 16) | ((m_trailer[offset + 3] & 0xFFL) << 24);
+	}
+
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+	private static final int MAX_HEADER_LENGTH = 4096;
+	private static final int OUTPUT_BUFFER_SIZE = 8192;
+
+	private BodySink m_downstream;
+	// The compressed bytes of the body so far
+	private long m_compressed;
+	private State m_state = State.HEADER;
+	private final byte[] m_header = new byte[MAX_HEADER_LENGTH];
+	private int m_headerLength;
+	private final byte[] m_trailer = new byte[8];
+	private int m_trailerLength;
+	// nowrap: the gzip header and trailer are parsed here, the inflater only sees the raw deflate stream
+	private final Inflater m_inflater = new Inflater(true);
+	private final CRC32 m_crc = new CRC32();
+	private final ByteBuffer m_out = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+}
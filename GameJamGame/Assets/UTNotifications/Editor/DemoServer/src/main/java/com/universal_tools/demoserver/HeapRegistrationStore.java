@@ -0,0 +1,79 @@
+package com.universal_tools.demoserver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/// <summary>
+/// The registered devices in a <c>ConcurrentHashMap</c>, saved with the snapshot of the registration: the default
+/// <c>ServerOptions.REGISTRATION_STORE</c>.
+/// </summary>
+/// <remarks>
+/// <c>items</c> is the view of the values of the map rather than a copy, so walking a million devices for
+/// <c>/notify</c> doesn't stop the registrations.
+/// </remarks>
+class HeapRegistrationStore implements RegistrationStore {
+// public
+	/// <param name="expectedSize">The devices to be registered, f.e. by the snapshot being loaded.</param>
+	public HeapRegistrationStore(int expectedSize) {
+		m_items = new ConcurrentHashMap<String, Registrator.Item>(expectedSize);
+	}
+
+	@Override
+	public Registrator.Item get(String uid) {
+		return m_items.get(uid);
+	}
+
+	@Override
+	public void put(String uid, Registrator.Item item) {
+		m_items.put(uid, item);
+	}
+
+	// The id is in the item itself
+	@Override
+	public boolean update(String uid, Registrator.Item item, String id) {
+		return m_items.get(uid) == item;
+	}
+
+	@Override
+	public boolean remove(String uid) {
+		return m_items.remove(uid) != null;
+	}
+
+	@Override
+	public int size() {
+		return m_items.size();
+	}
+
+	/// <summary>
+	/// Walking it sees every device registered before and not unregistered until the walk, and maybe some of the
+	/// changes made meanwhile. It doesn't see the same device twice.
+	/// </summary>
+	@Override
+	public Collection<Registrator.Item> items() {
+		return Collections.unmodifiableCollection(m_items.values());
+	}
+
+	@Override
+	public boolean persistent() {
+		return false;
+	}
+
+	@Override
+	public Map<String, Registrator.Item> copy() {
+		return new HashMap<String, Registrator.Item>(m_items);
+	}
+
+	@Override
+	public void sync() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+// private
+	private final ConcurrentHashMap<String, Registrator.Item> m_items;
+}
@@ -0,0 +1,27 @@
+package com.universal_tools.demoserver;
+
+/// <summary>
+/// Thrown while reading or handling a request when the client should receive a specific HTTP status
+/// instead of the generic <c>500 ERROR</c>.
+/// </summary>
+class HttpException extends Exception {
+// public
+	public HttpException(String status, String message) {
+		this(status, message, 0);
+	}
+
+	/// <summary>
+	/// <c>retryAfter</c>: the seconds the client should wait before retrying, sent as <c>Retry-After</c>.
+	/// </summary>
+	public HttpException(String status, String message, long retryAfter) {
+		super(message);
+		this.status = status;
+		this.retryAfter = retryAfter;
+	}
+
+	public final String status;
+	public final long retryAfter;
+
+// private
+	private static final long serialVersionUID = 1L;
+}
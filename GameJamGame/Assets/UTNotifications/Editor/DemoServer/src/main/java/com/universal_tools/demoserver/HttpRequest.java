@@ -0,0 +1,53 @@
+package com.universal_tools.demoserver;
+
+import java.util.Map;
+
+/// <summary>
+/// A parsed request: the path without the query string and the content, which holds both the form-encoded
+/// body and the query arguments, or the query arguments and the JSON body apart.
+/// </summary>
+class HttpRequest {
+// public
+	public HttpRequest(String clientAddress, String method, String path, String content, byte[] json, boolean keepAlive, boolean acceptsGzip,
+			Map<String, String> trailers, BodySink stream) {
+		this.clientAddress = clientAddress;
+		this.method = method;
+		this.path = path;
+		this.content = content;
+		this.json = json;
+		this.keepAlive = keepAlive;
+		this.acceptsGzip = acceptsGzip;
+		this.trailers = trailers;
+		this.stream = stream;
+	}
+
+	/// <summary>
+	/// IP address of the client, f.e. <c>192.168.0.10</c>.
+	/// </summary>
+	public final String clientAddress;
+	public final String method;
+	public final String path;
+	public final String content;
+	/// <summary>
+	/// The body of an <c>application/json</c> request as received (UTF-8), for <c>JsonReader</c>; <c>content</c>
+	/// then only holds the query arguments.
+	/// </summary>
+	public final byte[] json;
+	/// <summary>
+	/// Whether the client is ready to send more requests over the same connection.
+	/// </summary>
+	public final boolean keepAlive;
+	/// <summary>
+	/// Whether the client accepts a gzip compressed response (<c>Accept-Encoding</c>).
+	/// </summary>
+	public final boolean acceptsGzip;
+	/// <summary>
+	/// Trailer fields of a chunked request, by lower case name.
+	/// </summary>
+	public final Map<String, String> trailers;
+	/// <summary>
+	/// The sink the body was streamed to, if <c>RequestHandler.bodySink</c> provided one; <c>content</c> then
+	/// only holds the query arguments.
+	/// </summary>
+	public final BodySink stream;
+}
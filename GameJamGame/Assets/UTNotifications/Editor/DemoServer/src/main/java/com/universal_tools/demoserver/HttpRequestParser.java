@@ -0,0 +1,450 @@
+package com.universal_tools.demoserver;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+/// <summary>
+/// Incremental HTTP/1.x request parser working directly on the bytes read from a connection.
+/// </summary>
+/// <remarks>
+/// One parser serves all the requests of a connection: it keeps its line and body buffers between them and
+/// only the headers it needs (<c>Content-Length</c>, <c>Transfer-Encoding</c>, <c>Connection</c>,
+/// <c>Content-Encoding</c>, <c>Accept-Encoding</c>, <c>Content-Type</c>) are looked at,
+/// in place and without creating strings. <c>Content-Length</c> is a count of bytes and the body is decoded
+/// as UTF-8 once complete. The request line and headers together are limited to
+/// <c>ServerOptions.MAX_HEADER_SIZE</c> bytes (<c>431</c>). Chunked bodies are handled by <c>ChunkedDecoder</c>.
+/// Bodies above <c>ServerOptions.MAX_BODY_SIZE</c> are refused with <c>413</c>, unless <c>RequestHandler.bodySink</c>
+/// streams them elsewhere. A gzip body is decompressed by <c>GzipDecoder</c> on the way: the limit applies to the compressed
+/// bytes received and to the decompressed ones alike.
+/// </remarks>
+class HttpRequestParser {
+// public
+	public HttpRequestParser(InetAddress client) {
+		m_clientAddress = client != null ? client.getHostAddress() : "";
+	}
+
+	/// <summary>
+	/// Consumes the bytes of <c>buf</c> between its position and limit.
+	/// </summary>
+	/// <returns>
+	/// The request as soon as it's complete, leaving the rest of <c>buf</c> (f.e. a pipelined request)
+	/// unconsumed, or <c>null</c> if all of <c>buf</c> was consumed and more bytes are required.
+	/// </returns>
+	public HttpRequest parse(ByteBuffer buf) throws HttpException {
+		while (buf.hasRemaining()) {
+			switch (m_state) {
+			case REQUEST_LINE:
+				if (readLine(buf)) {
+					// Empty lines before a request are allowed (RFC 7230, 3.5)
+					if (m_lineLength > 0) {
+						parseRequestLine();
+						m_state = State.HEADERS;
+					}
+				}
+				break;
+
+			case HEADERS:
+				if (readLine(buf)) {
+					if (m_lineLength > 0) {
+						parseHeader();
+						break;
+					}
+
+					m_sink = RequestHandler.bodySink(m_path, m_clientAddress);
+					if (m_sink == null) {
+						m_sink = m_body;
+					}
+
+					m_input = m_sink;
+					if (m_gzip) {
+						if (m_gzipDecoder == null) {
+							m_gzipDecoder = new GzipDecoder();
+						}
+						m_gzipDecoder.reset(m_sink);
+						m_input = m_gzipDecoder;
+					}
+
+					if (m_chunked) {
+						m_state = State.CHUNKED;
+					} else if (m_contentLength > m_input.capacity()) {
+						throw new HttpException("413 Payload Too Large", "Request body of " + m_contentLength
+								+ " bytes exceeds the limit of " + m_input.capacity());
+					} else if (m_contentLength > 0) {
+						m_remaining = m_contentLength;
+						m_state = State.BODY;
+					} else {
+						return complete();
+					}
+				}
+				break;
+
+			case BODY: {
+				int count = (int)Math.min(buf.remaining(), m_remaining);
+				m_input.write(buf, count);
+				m_remaining -= count;
+				if (m_remaining == 0) {
+					return complete();
+				}
+			}
+				break;
+
+			case CHUNKED:
+				if (m_chunkedDecoder.decode(buf, m_input)) {
+					return complete();
+				}
+				break;
+			}
+		}
+
+		return null;
+	}
+
+	/// <summary>
+	/// Whether no byte of the next request has been consumed yet, so the connection can be closed cleanly.
+	/// </summary>
+	public boolean isIdle() {
+		return m_state == State.REQUEST_LINE && m_lineLength == 0;
+	}
+
+// private
+	private enum State {
+		REQUEST_LINE, HEADERS, BODY, CHUNKED
+	}
+
+	// Accumulates the current line in m_line. Returns true once it's complete (the line end itself is not kept).
+	private boolean readLine(ByteBuffer buf) throws HttpException {
+		if (m_lineComplete) {
+			m_lineComplete = false;
+			m_lineLength = 0;
+		}
+
+		while (buf.hasRemaining()) {
+			if (++m_headerSize > ServerOptions.MAX_HEADER_SIZE) {
+				throw new HttpException("431 Request Header Fields Too Large",
+						"Request headers exceed " + ServerOptions.MAX_HEADER_SIZE + " bytes");
+			}
+
+			byte b = buf.get();
+			if (b == '\n') {
+				if (m_lineLength > 0 && m_line[m_lineLength - 1] == '\r') {
+					--m_lineLength;
+				}
+				m_lineComplete = true;
+				return true;
+			}
+
+			if (m_lineLength == m_line.length) {
+				byte[] grown = new byte[m_line.length * 2];
+				System.arraycopy(m_line, 0, grown, 0, m_lineLength);
+				m_line = grown;
+			}
+			m_line[m_lineLength++] = b;
+		}
+
+		return false;
+	}
+
+	private void parseRequestLine() throws HttpException {
+		int methodEnd = indexOf(' ', 0, m_lineLength);
+		if (methodEnd <= 0) {
+			throw new HttpException("400 Bad Request", "Unexpected request: " + lineString(0, m_lineLength));
+		}
+
+		int targetEnd = indexOf(' ', methodEnd + 1, m_lineLength);
+		if (targetEnd < 0) {
+			targetEnd = m_lineLength;
+		}
+
+		m_method = lineString(0, methodEnd);
+		String target = new String(m_line, methodEnd + 1, targetEnd - methodEnd - 1, StandardCharsets.UTF_8);
+		final int indexOfQuestion = target.indexOf('?');
+		if (indexOfQuestion >= 0) {
+			m_path = target.substring(0, indexOfQuestion);
+			m_query = target.substring(indexOfQuestion + 1);
+		} else {
+			m_path = target;
+			m_query = "";
+		}
+
+		// HTTP/1.1 connections are persistent unless the client asks otherwise, HTTP/1.0 ones are not
+		m_keepAlive = lineEquals(targetEnd + 1, m_lineLength, HTTP_1_1);
+	}
+
+	private void parseHeader() throws HttpException {
+		int colon = indexOf(':', 0, m_lineLength);
+		if (colon <= 0) {
+			throw new HttpException("400 Bad Request", "Invalid header: " + lineString(0, m_lineLength));
+		}
+
+		int valueStart = colon + 1;
+		int valueEnd = m_lineLength;
+		while (valueStart < valueEnd && isWhitespace(m_line[valueStart])) {
+			++valueStart;
+		}
+		while (valueEnd > valueStart && isWhitespace(m_line[valueEnd - 1])) {
+			--valueEnd;
+		}
+
+		if (lineEquals(0, colon, CONTENT_LENGTH)) {
+			m_contentLength = parseNumber(valueStart, valueEnd, 10);
+			if (m_contentLength < 0) {
+				throw new HttpException("400 Bad Request", "Invalid Content-Length: " + lineString(valueStart, valueEnd));
+			}
+		} else if (lineEquals(0, colon, TRANSFER_ENCODING)) {
+			// "chunked" is always the last of the encodings
+			m_chunked = valueEnd - valueStart >= CHUNKED.length && lineEquals(valueEnd - CHUNKED.length, valueEnd, CHUNKED);
+		} else if (lineEquals(0, colon, CONTENT_ENCODING)) {
+			if (lineEquals(valueStart, valueEnd, GZIP) || lineEquals(valueStart, valueEnd, X_GZIP)) {
+				m_gzip = true;
+			} else if (!lineEquals(valueStart, valueEnd, IDENTITY)) {
+				throw new HttpException("415 Unsupported Media Type",
+						"Unsupported Content-Encoding: " + lineString(valueStart, valueEnd));
+			}
+		} else if (lineEquals(0, colon, CONTENT_TYPE)) {
+			// f.e. "application/json; charset=utf-8": JSON is always UTF-8, the parameters don't matter
+			int typeEnd = indexOf(';', valueStart, valueEnd);
+			if (typeEnd < 0) {
+				typeEnd = valueEnd;
+			}
+			while (typeEnd > valueStart && isWhitespace(m_line[typeEnd - 1])) {
+				--typeEnd;
+			}
+			m_json = lineEquals(valueStart, typeEnd, APPLICATION_JSON);
+		} else if (lineEquals(0, colon, ACCEPT_ENCODING)) {
+			m_acceptsGzip = acceptsGzip(valueStart, valueEnd);
+		} else if (lineEquals(0, colon, CONNECTION)) {
+			if (lineEquals(valueStart, valueEnd, CLOSE)) {
+				m_keepAlive = false;
+			} else if (lineEquals(valueStart, valueEnd, KEEP_ALIVE)) {
+				m_keepAlive = true;
+			}
+		}
+	}
+
+	// f.e. "gzip, deflate, br" or "deflate;q=1.0, *;q=0.5": gzip or x-gzip tells, or * if neither is listed, unless
+	// its q is 0
+	private boolean acceptsGzip(int from, int to) {
+		boolean anyAccepted = false;
+		for (int codingStart = from; codingStart < to;) {
+			int codingEnd = indexOf(',', codingStart, to);
+			if (codingEnd < 0) {
+				codingEnd = to;
+			}
+			int nameEnd = indexOf(';', codingStart, codingEnd);
+			if (nameEnd < 0) {
+				nameEnd = codingEnd;
+			}
+
+			int nameStart = skipWhitespace(codingStart, nameEnd);
+			int nameTrimmedEnd = trimWhitespace(nameStart, nameEnd);
+			if (lineEquals(nameStart, nameTrimmedEnd, GZIP) || lineEquals(nameStart, nameTrimmedEnd, X_GZIP)) {
+				return isAccepted(nameEnd, codingEnd);
+			}
+			if (lineEquals(nameStart, nameTrimmedEnd, ANY)) {
+				anyAccepted = isAccepted(nameEnd, codingEnd);
+			}
+
+			codingStart = codingEnd + 1;
+		}
+
+		return anyAccepted;
+	}
+
+	// The parameters of a coding, f.e. ";q=0.5": whether its q value isn't 0, if there is one
+	private boolean isAccepted(int from, int to) {
+		for (int parameterStart = from + 1; parameterStart < to;) {
+			int parameterEnd = indexOf(';', parameterStart, to);
+			if (parameterEnd < 0) {
+				parameterEnd = to;
+			}
+
+			int start = skipWhitespace(parameterStart, parameterEnd);
+			int end = trimWhitespace(start, parameterEnd);
+			if (end - start >= 2 && (m_line[start] == 'q' || m_line[start] == 'Q') && m_line[start + 1] == '=') {
+				return isPositiveQuality(start + 2, end);
+			}
+
+			parameterStart = parameterEnd + 1;
+		}
+
+		return true;
+	}
+
+	// "0" to "1" with up to 3 decimals: false if it's 0 or malformed
+	private boolean isPositiveQuality(int from, int to) {
+		if (from >= to || m_line[from] < '0' || m_line[from] > '9') {
+			return false;
+		}
+
+		boolean positive = false;
+		boolean point = false;
+		for (int i = from; i < to; ++i) {
+			byte b = m_line[i];
+			if (b == '.' && !point) {
+				point = true;
+			} else if (b >= '0' && b <= '9') {
+				positive |= b != '0';
+			} else {
+				return false;
+			}
+		}
+
+		return positive;
+	}
+
+	private int skipWhitespace(int from, int to) {
+		while (from < to && isWhitespace(m_line[from])) {
+			++from;
+		}
+		return from;
+	}
+
+	private int trimWhitespace(int from, int to) {
+		while (to > from && isWhitespace(m_line[to - 1])) {
+			--to;
+		}
+		return to;
+	}
+
+	private HttpRequest complete() throws HttpException {
+		m_input.end();
+
+		// A streamed body has already been consumed by its sink
+		String content = null;
+		byte[] json = null;
+		if (m_sink == m_body && m_json && m_body.length() > 0) {
+			// Kept as bytes, JsonReader decodes only what it's asked for
+			json = m_body.toByteArray();
+		} else if (m_sink == m_body && (m_chunked || m_gzip || m_body.length() > 0)) {
+			content = m_body.toString();
+		}
+
+		if (!m_query.isEmpty()) {
+			content = (content != null) ? content + "&" + m_query : m_query;
+		}
+
+		HttpRequest request = new HttpRequest(m_clientAddress, m_method, m_path, content, json, m_keepAlive, m_acceptsGzip,
+				m_chunked ? m_chunkedDecoder.trailers() : Collections.<String, String>emptyMap(),
+				m_sink != m_body ? m_sink : null);
+
+		m_state = State.REQUEST_LINE;
+		m_lineLength = 0;
+		m_lineComplete = false;
+		m_headerSize = 0;
+		m_contentLength = 0;
+		m_chunked = false;
+		m_gzip = false;
+		m_json = false;
+		m_acceptsGzip = false;
+		m_remaining = 0;
+		m_body.reset();
+		m_sink = null;
+		m_input = null;
+		m_chunkedDecoder.reset();
+
+		return request;
+	}
+
+	private int indexOf(char c, int from, int to) {
+		for (int i = from; i < to; ++i) {
+			if (m_line[i] == c) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	// Case insensitive comparison of a part of the line with a lower case ASCII constant
+	private boolean lineEquals(int from, int to, byte[] lowerCaseValue) {
+		if (to - from != lowerCaseValue.length) {
+			return false;
+		}
+
+		for (int i = 0; i < lowerCaseValue.length; ++i) {
+			byte b = m_line[from + i];
+			if (b >= 'A' && b <= 'Z') {
+				b += 'a' - 'A';
+			}
+			if (b != lowerCaseValue[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// Returns -1 if the number is empty, malformed or too large
+	private long parseNumber(int from, int to, int radix) {
+		if (from >= to || to - from > 15) {
+			return -1;
+		}
+
+		long result = 0;
+		for (int i = from; i < to; ++i) {
+			int digit = Character.digit(m_line[i], radix);
+			if (digit < 0) {
+				return -1;
+			}
+			result = result * radix + digit;
+		}
+
+		return result;
+	}
+
+	private String lineString(int from, int to) {
+		return new String(m_line, from, to - from, StandardCharsets.ISO_8859_1);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static final byte[] HTTP_1_1 = ascii("http/1.1");
+	private static final byte[] CONTENT_LENGTH = ascii("content-length");
+	private static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+	private static final byte[] CHUNKED = ascii("chunked");
+	private static final byte[] CONNECTION = ascii("connection");
+	private static final byte[] CONTENT_ENCODING = ascii("content-encoding");
+	private static final byte[] ACCEPT_ENCODING = ascii("accept-encoding");
+	private static final byte[] CONTENT_TYPE = ascii("content-type");
+	private static final byte[] APPLICATION_JSON = ascii("application/json");
+	private static final byte[] GZIP = ascii("gzip");
+	private static final byte[] X_GZIP = ascii("x-gzip");
+	private static final byte[] ANY = ascii("*");
+	private static final byte[] IDENTITY = ascii("identity");
+	private static final byte[] CLOSE = ascii("close");
+	private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+
+	private final String m_clientAddress;
+	private State m_state = State.REQUEST_LINE;
+	private byte[] m_line = new byte[256];
+	private int m_lineLength;
+	private boolean m_lineComplete;
+	// Bytes of the request line and headers so far
+	private int m_headerSize;
+	private final BodyBuffer m_body = new BodyBuffer(ServerOptions.MAX_BODY_SIZE);
+	// The final consumer of the body and the one the bytes read are written to, a GzipDecoder for gzip bodies
+	private BodySink m_sink;
+	private BodySink m_input;
+	// Created on the first gzip body of the connection: an Inflater holds native memory
+	private GzipDecoder m_gzipDecoder;
+	private final ChunkedDecoder m_chunkedDecoder = new ChunkedDecoder();
+	private long m_remaining;
+
+	private String m_method;
+	private String m_path;
+	private String m_query;
+	private long m_contentLength;
+	private boolean m_chunked;
+	private boolean m_gzip;
+	private boolean m_json;
+	private boolean m_acceptsGzip;
+	private boolean m_keepAlive;
+}
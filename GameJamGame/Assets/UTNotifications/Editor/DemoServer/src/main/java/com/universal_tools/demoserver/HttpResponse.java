@@ -0,0 +1,129 @@
+package com.universal_tools.demoserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/// <summary>
+/// A complete response produced by <c>RequestHandler</c>, ready to be written by either server mode.
+/// </summary>
+class HttpResponse {
+// public
+	public HttpResponse(String status, String content) {
+		this(status, "text/html", content);
+	}
+
+	public HttpResponse(String status, String contentType, String content) {
+		this.status = status;
+		this.contentType = contentType;
+		this.content = content != null ? content : "EMPTY";
+		m_body = this.content.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/// <summary>
+	/// The head of an endless <c>text/event-stream</c> response: the server writes the events of
+	/// <c>subscription</c> after it until either side closes the connection.
+	/// </summary>
+	public static HttpResponse eventStream(DeliveryEvents.Subscription subscription) {
+		HttpResponse response = new HttpResponse("200 OK", "text/event-stream", "");
+		response.m_subscription = subscription;
+		return response.header("Cache-Control", "no-cache");
+	}
+
+	/// <summary>
+	/// Adds an extra header, f.e. <c>Retry-After</c>.
+	/// </summary>
+	public HttpResponse header(String name, String value) {
+		m_headers += name + ": " + value + "\r\n";
+		return this;
+	}
+
+	/// <param name="keepAlive">Whether the connection stays open for the next request after this response.</param>
+	public byte[] toBytes(boolean keepAlive) {
+		byte[] head = head(keepAlive).getBytes(StandardCharsets.ISO_8859_1);
+		byte[] result = new byte[head.length + m_body.length];
+		System.arraycopy(head, 0, result, 0, head.length);
+		System.arraycopy(m_body, 0, result, head.length, m_body.length);
+		return result;
+	}
+
+	/// <summary>
+	/// Compresses the body with gzip if the client accepts it and the body is at least
+	/// <c>ServerOptions.GZIP_MIN_SIZE</c> bytes: smaller ones don't gain enough to be worth the time.
+	/// </summary>
+	public HttpResponse compress(boolean acceptsGzip) {
+		if (ServerOptions.GZIP_LEVEL == 0 || m_body.length < ServerOptions.GZIP_MIN_SIZE || m_encoded
+				|| m_subscription != null) {
+			return this;
+		}
+
+		// Caches must not serve this response to the clients that ask for another encoding
+		header("Vary", "Accept-Encoding");
+		if (!acceptsGzip) {
+			return this;
+		}
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(m_body.length / 4);
+		try {
+			GZIPOutputStream stream = new GZIPOutputStream(compressed, GZIP_BUFFER_SIZE) {
+				{
+					def.setLevel(ServerOptions.GZIP_LEVEL);
+				}
+			};
+			stream.write(m_body);
+			stream.close();
+		} catch (IOException e) {
+			// Can't happen with a ByteArrayOutputStream
+			throw new RuntimeException(e);
+		}
+
+		if (compressed.size() < m_body.length) {
+			GZIP_BYTES_IN.add(m_body.length);
+			GZIP_BYTES_OUT.add(compressed.size());
+			m_body = compressed.toByteArray();
+			m_encoded = true;
+			header("Content-Encoding", "gzip");
+		}
+
+		return this;
+	}
+
+	/// <summary>
+	/// The events to write after the head of an event stream response, <c>null</c> for the other responses.
+	/// </summary>
+	public DeliveryEvents.Subscription subscription() {
+		return m_subscription;
+	}
+
+	/// <summary>
+	/// The size of the body in bytes (compressed if it is).
+	/// </summary>
+	public int contentLength() {
+		return m_body.length;
+	}
+
+	public final String status;
+	public final String contentType;
+	public final String content;
+
+// private
+	private String head(boolean keepAlive) {
+		// Content-Length is a count of bytes, not of characters. An event stream has none, it ends with the connection.
+		return "HTTP/1.1 " + status + "\r\n" + "Server: UTNotificationsDemoServer\r\n"
+				+ "Content-Type: " + contentType + "; charset=utf-8\r\n"
+				+ (m_subscription == null ? "Content-Length: " + m_body.length + "\r\n" : "")
+				+ "Connection: " + (keepAlive && m_subscription == null ? "keep-alive" : "close") + "\r\n" + m_headers + "\r\n";
+	}
+
+	private static final int GZIP_BUFFER_SIZE = 8192;
+	private static final Metrics.Counter GZIP_BYTES_IN = Metrics.counter("demoserver_gzip_response_bytes_total",
+			"Bytes of the gzip compressed responses, before and after compression.", "stage=\"in\"");
+	private static final Metrics.Counter GZIP_BYTES_OUT = Metrics.counter("demoserver_gzip_response_bytes_total",
+			"Bytes of the gzip compressed responses, before and after compression.", "stage=\"out\"");
+
+	private byte[] m_body;
+	private boolean m_encoded;
+	private DeliveryEvents.Subscription m_subscription;
+	private String m_headers = "";
+}
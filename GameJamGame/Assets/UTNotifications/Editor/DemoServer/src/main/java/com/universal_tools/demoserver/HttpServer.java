@@ -1,16 +1,19 @@
 package com.universal_tools.demoserver;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.InputStreamReader;
-import java.io.BufferedReader;
-import java.io.UnsupportedEncodingException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLSocket;
 
 /// <summary>
 /// Very simple HTTP server that manages devices registration and push notifications requests.
@@ -23,246 +26,342 @@ public class HttpServer {
 	public static int PORT = 8080;
 
 	public static void main(String[] args) throws Throwable {
-		ServerSocket serverSocket = new ServerSocket(PORT);
-		System.out.println(
-				"The demo server is running as http://" + InetAddress.getLocalHost().getHostAddress() + ":" + PORT);
+		ServerOptions.parse(args);
+		if (!"-".equals(ServerOptions.LOG_FILE)) {
+			System.out.println("Logging to " + ServerOptions.LOG_FILE + " (" + ServerOptions.LOG_LEVEL + ")");
+		}
+
+		Shutdown.install();
+		NotifyJob.resumeCheckpointed();
+
+		if ("nio".equals(ServerOptions.MODE)) {
+			NioHttpServer server = new NioHttpServer(PORT, ServerOptions.EVENT_LOOPS, ServerOptions.HANDLER_THREADS);
+			System.out.println("The demo server is running as http://" + InetAddress.getLocalHost().getHostAddress()
+					+ ":" + PORT + " (nio mode, " + ServerOptions.EVENT_LOOPS + " event loops, " + server.acceptors() + ", "
+					+ (ServerOptions.virtualThreads() ? "virtual" : ServerOptions.HANDLER_THREADS) + " handler threads)");
+			server.run();
+			return;
+		}
+
+		ServerSocket[] serverSockets = listen();
+		Acceptor[] acceptors = new Acceptor[ServerOptions.ACCEPTORS];
+		for (int i = 0; i < acceptors.length; ++i) {
+			acceptors[i] = new Acceptor(i, serverSockets[i % serverSockets.length]);
+		}
+		System.out.println("The demo server is running as " + (ServerOptions.TLS ? "https" : "http") + "://"
+				+ InetAddress.getLocalHost().getHostAddress() + ":" + PORT + (ServerOptions.virtualThreads() ? " (virtual threads)" : "")
+				+ (acceptors.length > 1 ? " (" + acceptors.length + " acceptors, "
+						+ (serverSockets.length > 1 ? "SO_REUSEPORT" : "shared socket") + ")" : ""));
+
+		for (int i = 1; i < acceptors.length; ++i) {
+			Thread thread = new Thread(acceptors[i], "acceptor-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		if (acceptors.length > 1) {
+			Thread.currentThread().setName("acceptor-0");
+		}
 		try {
-			while (true) {
-				Socket socket = serverSocket.accept();
-				new Thread(new SocketProcessor(socket)).start();
-			}
+			acceptors[0].accept();
 		} finally {
-			serverSocket.close();
+			for (ServerSocket serverSocket : serverSockets) {
+				serverSocket.close();
+			}
+		}
+	}
+
+	/// <summary>
+	/// Whether the listening sockets of the acceptors are bound with <c>SO_REUSEPORT</c>: there are several of them,
+	/// it's enabled and supported by the platform.
+	/// </summary>
+	public static boolean reusePort() throws IOException {
+		if (ServerOptions.ACCEPTORS == 1 || !ServerOptions.REUSE_PORT) {
+			return false;
 		}
+
+		try (ServerSocket probe = new ServerSocket()) {
+			if (probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+				return true;
+			}
+		}
+
+		Log.warn("SO_REUSEPORT isn't supported, the " + ServerOptions.ACCEPTORS + " acceptors share a single socket");
+		return false;
 	}
 
 // private
-	private static class SocketProcessor implements Runnable {
-		private SocketProcessor(Socket socket) throws Throwable {
-			this.socket = socket;
-			this.is = socket.getInputStream();
-			this.os = socket.getOutputStream();
+	// A socket per acceptor with SO_REUSEPORT, a single shared one otherwise
+	private static ServerSocket[] listen() throws IOException {
+		boolean reusePort = reusePort();
+		ServerSocket[] serverSockets = new ServerSocket[reusePort ? ServerOptions.ACCEPTORS : 1];
+		for (int i = 0; i < serverSockets.length; ++i) {
+			serverSockets[i] = ServerOptions.TLS ? Tls.createServerSocket() : new ServerSocket();
+			if (reusePort) {
+				serverSockets[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			serverSockets[i].bind(new InetSocketAddress(PORT));
+			Shutdown.onShutdownClose(serverSockets[i]);
+		}
+
+		return serverSockets;
+	}
+
+	// Accepts connections and hands them to its own workers
+	private static class Acceptor implements Runnable {
+		private Acceptor(int index, ServerSocket serverSocket) {
+			m_index = index;
+			m_serverSocket = serverSocket;
+			int shares = ServerOptions.ACCEPTORS;
+			m_workers = WorkerPool.create(shares > 1 ? "worker-" + index : "worker",
+					Math.max(1, ServerOptions.WORKER_THREADS / shares), Math.max(1, ServerOptions.WORKER_QUEUE / shares));
 		}
 
+		@Override
 		public void run() {
 			try {
-				read();
-				process();
+				accept();
 			} catch (Throwable t) {
-				t.printStackTrace();
+				Log.error(t);
+			}
+		}
+
+		private void accept() throws Throwable {
+			while (true) {
+				Socket socket;
 				try {
-					writeResponse("500 ERROR", t.toString());
-				} catch (Throwable tt) {
-					tt.printStackTrace();
+					socket = m_serverSocket.accept();
+				} catch (SocketException e) {
+					if (Shutdown.isShuttingDown()) {
+						return;
+					}
+					throw e;
 				}
-			} finally {
-				try {
-					socket.close();
-				} catch (Throwable t) {
-					t.printStackTrace();
+				ServerStats.onConnectionAccepted(m_index);
+				if (!m_workers.tryExecute(new SocketProcessor(socket, m_index, m_workers))) {
+					reject(socket);
 				}
-				socket = null;
 			}
 		}
 
-		private void writeResponse(String status, String content) throws Throwable {
-			if (content == null) {
-				content = "EMPTY";
+		private final int m_index;
+		private final ServerSocket m_serverSocket;
+		private final WorkerPool m_workers;
+	}
+
+	// Answers a connection the saturated worker pool can't take. Runs on the accepting thread, so it must be quick.
+	private static void reject(Socket socket) {
+		try {
+			// A TLS connection can't be answered without a handshake, too slow for this thread
+			if (socket instanceof SSLSocket) {
+				return;
 			}
 
-			String response = "HTTP/1.1 " + status + "\r\n" + "Server: UTNotificationsDemoServer\r\n"
-					+ "Content-Type: text/html\r\n" + "Content-Length: " + content.length() + "\r\n"
-					+ "Connection: close\r\n\r\n";
-			String result = response + content;
-			os.write(result.getBytes());
+			OutputStream os = socket.getOutputStream();
+			os.write(RequestHandler.overloadedResponse().toBytes(false));
 			os.flush();
+			socket.shutdownOutput();
+		} catch (Throwable t) {
+		} finally {
+			try {
+				socket.close();
+			} catch (Throwable t) {
+			}
+		}
+	}
 
-			System.out.println("  >> " + result.replace("\n", "\n  >> "));
+	private static class SocketProcessor implements Runnable {
+		private SocketProcessor(Socket socket, int acceptor, WorkerPool workers) throws Throwable {
+			this.socket = socket;
+			this.acceptor = acceptor;
+			this.workers = workers;
+			this.is = socket.getInputStream();
+			this.os = new BufferedOutputStream(socket.getOutputStream());
+			this.parser = new HttpRequestParser(socket.getInetAddress());
 		}
 
-		private void read() throws Throwable {
-			BufferedReader br = new BufferedReader(new InputStreamReader(is));
+		public void run() {
+			try {
+				if (socket instanceof SSLSocket && !Tls.handshake((SSLSocket)socket)) {
+					return;
+				}
 
-			String requestString = br.readLine();
-			if (requestString == null || !requestString.contains(" ")) {
-				System.out.println("Unexpected request: " + requestString);
-				writeResponse("500 ERROR", "Unexpected request: " + requestString);
-				return;
-			}
+				int served = 0;
+				boolean keepAlive = true;
+				while (keepAlive) {
+					HttpRequest request;
+					try {
+						request = read(served == 0);
+					} catch (Throwable t) {
+						// The rest of the stream can't be trusted after a malformed request
+						ServerStats.onRequestRejected(t);
+						writeResponse(RequestHandler.errorResponse(t), false, true);
+						break;
+					}
 
-			request = requestString.split("\\ ")[1];
+					if (request == null) {
+						break;
+					}
 
-			int contentLength = 0;
-			boolean chunked = false;
+					ServerStats.onRequest(acceptor, served++ > 0);
+					keepAlive = request.keepAlive && ServerOptions.KEEP_ALIVE_TIMEOUT > 0 && !Shutdown.isShuttingDown();
+					if (keepAlive && served >= ServerOptions.KEEP_ALIVE_MAX_REQUESTS) {
+						ServerStats.onMaxRequestsReached();
+						keepAlive = false;
+					}
 
-			while (true) {
-				String s = br.readLine();
-
-				if (s == null || s.trim().length() == 0) {
-					break;
-				} else if (s.toLowerCase().startsWith("content-length:")) {
-					contentLength = Integer.parseInt(s.substring(15).trim());
-				} else if (s.toLowerCase().startsWith("transfer-encoding:")) {
-					chunked = (s.substring(18).trim().toLowerCase().equals("chunked"));
+					HttpResponse response = RequestHandler.handle(request);
+					if (response.subscription() != null) {
+						streamEvents(response);
+						break;
+					}
+
+					// Pipelined responses are flushed together once there are no more buffered requests
+					writeResponse(response, keepAlive, !keepAlive || (!buf.hasRemaining() && is.available() == 0));
+				}
+			} catch (Throwable t) {
+				Log.error(t);
+			} finally {
+				try {
+					socket.close();
+				} catch (Throwable t) {
+					Log.error(t);
 				}
+				socket = null;
 			}
+		}
 
-			if (chunked) {
-				// See https://en.wikipedia.org/wiki/Chunked_transfer_encoding. Important due to changes in Unity 2017.3+
-				StringBuilder contentBuilder = new StringBuilder();
-
-				int chunkLength = 0;
-				while (true) {
-					String s = br.readLine();
+		// Returns the next request of the connection or null if the client has closed it or left it idle.
+		// Waiting for the first request of a connection is limited by the read timeout, not the keep-alive one.
+		// An idle connection holds a platform worker only while no other connection is waiting for one: it's
+		// checked every IDLE_CHECK_INTERVAL ms, and the connection closed once the pool has queued work.
+		private HttpRequest read(boolean firstRequest) throws Throwable {
+			long started = 0;
+			long idleSince = 0;
+			while (true) {
+				// Bytes left after the previous request may already hold (a part of) a pipelined one
+				if (!buf.hasRemaining()) {
+					boolean idle = parser.isIdle() && !firstRequest;
+					if (idle && idleSince == 0) {
+						idleSince = System.currentTimeMillis();
+					}
 
-					if (s == null || s.trim().length() == 0) {
-						break;
-					} else {
-						if (chunkLength <= 0) {
-							String chunkLengthStr = s.trim();
-							final int indexOfSemicolon = s.indexOf(';');
-							if (indexOfSemicolon > 0) {
-								chunkLengthStr = chunkLengthStr.substring(0, indexOfSemicolon);
-							}
-							chunkLength = Integer.parseInt(chunkLengthStr, 16);
-							if (chunkLength == 0) {
-								break;
-							}
-						} else {
-							// Check for last line
-							if (s.length() == chunkLength + 2) {
-								if (s.charAt(chunkLength) != '\r' || s.charAt(chunkLength + 1) != '\n') {
-									throw new RuntimeException("Invalid chunk format");
-								}
-								s = s.substring(0, chunkLength);
-							}
-							contentBuilder.append(s);
-							chunkLength -= s.length();
-							
-							if (chunkLength < 0) {
-								throw new RuntimeException("Invalid chunk size");
-							}
+					int read;
+					try {
+						socket.setSoTimeout(idle ? idleTimeout(idleSince) : readTimeout(started));
+						read = is.read(buf.array(), 0, buf.capacity());
+					} catch (SocketTimeoutException e) {
+						if (!idle) {
+							throw timeout(started);
+						}
+						if (System.currentTimeMillis() - idleSince >= ServerOptions.KEEP_ALIVE_TIMEOUT) {
+							ServerStats.onIdleTimeout();
+							return null;
+						}
+						if (workers.hasQueued()) {
+							ServerStats.onIdleYielded();
+							return null;
 						}
+						continue;
 					}
-				}
 
-				content = contentBuilder.toString();
-			} else if (contentLength > 0) {
-				char[] buff = new char[contentLength];
-				int offset = 0;
-				while (contentLength > 0) {
-					int read = br.read(buff, offset, contentLength);
 					if (read < 0) {
-						break;
+						if (parser.isIdle()) {
+							return null;
+						}
+						throw new HttpException("400 Bad Request", "Unexpected end of request");
 					}
-
-					offset += read;
-					contentLength -= read;
+					buf.position(0);
+					buf.limit(read);
 				}
 
-				content = new String(buff);
-			}
-
-			if (request.contains("?")) {
-				String[] pair = request.split("\\?");
-				request = pair[0];
+				if (started == 0) {
+					started = System.currentTimeMillis();
+				}
 
-				if (pair[1] != null && !pair[1].isEmpty()) {
-					if (content != null) {
-						content += "&" + pair[1];
-					} else {
-						content = pair[1];
-					}
+				HttpRequest request = parser.parse(buf);
+				if (request != null) {
+					return request;
 				}
 			}
 		}
 
-		private void process() throws Throwable {
-			if (request == null) {
-				return;
+		// The socket timeout for the next request of a connection idle since idleSince, at most IDLE_CHECK_INTERVAL
+		// with a queue to yield to. Throws SocketTimeoutException once the keep-alive timeout has passed.
+		private int idleTimeout(long idleSince) throws SocketTimeoutException {
+			long left = idleSince + ServerOptions.KEEP_ALIVE_TIMEOUT - System.currentTimeMillis();
+			if (left <= 0) {
+				throw new SocketTimeoutException();
 			}
 
-			System.out.println("\n<< " + request + " " + content);
+			return !ServerOptions.virtualThreads() ? (int)Math.min(IDLE_CHECK_INTERVAL, left) : (int)left;
+		}
 
-			switch (request) {
-			case "/register": {
-				HashMap<String, String> argsMap = conentAsArgumentsMap();
-				
-				if (argsMap.get("uid") == null) {
-					throw new IllegalArgumentException("uid is not specified!");
-				}
-				
-				if (argsMap.get("provider") == null) {
-					throw new IllegalArgumentException("provider is not specified!");
-				}
-				
-				if (argsMap.get("id") == null) {
-					throw new IllegalArgumentException("id is not specified!");
-				}
-				
-				Registrator.register(argsMap.get("uid"), argsMap.get("provider"), argsMap.get("id"));
-				writeResponse("200 OK", "Registered!");
+		// The socket timeout for the next bytes of a request received since started (0 if nothing is yet)
+		private int readTimeout(long started) throws HttpException {
+			if (started == 0 || ServerOptions.REQUEST_TIMEOUT == 0) {
+				return ServerOptions.READ_TIMEOUT;
 			}
-				break;
-
-			case "/notify": {
-				HashMap<String, String> argsMap = conentAsArgumentsMap();
-				int id = -1;
-				if (argsMap.containsKey("id")) {
-					try {
-						id = Integer.parseInt(argsMap.get("id"));
-					} catch (Throwable e) {
-					}
-				}
 
-				String title = argsMap.get("title");
-				String text = argsMap.get("text");
-				String notificationProfile = argsMap.containsKey("notification_profile")
-						? argsMap.get("notification_profile")
-						: null;
+			long left = started + ServerOptions.REQUEST_TIMEOUT - System.currentTimeMillis();
+			if (left <= 0) {
+				throw timeout(started);
+			}
 
-				int badge = -1;
-				if (argsMap.containsKey("badge")) {
-					try {
-						badge = Integer.parseInt(argsMap.get("badge"));
-					} catch (Throwable e) {
-					}
-				}
+			return ServerOptions.READ_TIMEOUT > 0 ? (int)Math.min(ServerOptions.READ_TIMEOUT, left) : (int)left;
+		}
 
-				int count = PushNotificator.notifyAll(id, title, text,
-						new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()), notificationProfile, badge);
-				writeResponse("200 OK", "Notified " + count + " clients!" + (count > 0 ? ""
-						: "\nPlease make sure you initialized push notifications using UTNotifications.Manager.Instance.Initialize()?"));
+		private HttpException timeout(long started) {
+			if (started != 0 && ServerOptions.REQUEST_TIMEOUT > 0
+					&& System.currentTimeMillis() - started >= ServerOptions.REQUEST_TIMEOUT) {
+				ServerStats.onRequestTimeout();
+				return new HttpException("408 Request Timeout",
+						"Request not received in " + ServerOptions.REQUEST_TIMEOUT + " ms");
 			}
-				break;
 
-			default: {
-				String href = "/notify?id=1&title=Sample Title&text=Sample Text&badge=1";
-				writeResponse("200 OK", "Demo UTNotifications server.<br>Use <a href=\"" + href + "\">" + href
-						+ "</a> to send notifications for all registered clients");
-			}
-			}
+			ServerStats.onReadTimeout();
+			return new HttpException("408 Request Timeout", "No request data for " + ServerOptions.READ_TIMEOUT + " ms");
 		}
 
-		private HashMap<String, String> conentAsArgumentsMap() throws UnsupportedEncodingException {
-			HashMap<String, String> resultMap = new HashMap<String, String>();
-
-			if (content != null && content.contains("=")) {
-				String[] args = content.split("&");
-				for (String arg : args) {
-					String[] pair = arg.split("=");
-					resultMap.put(java.net.URLDecoder.decode(pair[0], "UTF-8"),
-							java.net.URLDecoder.decode(pair[1], "UTF-8"));
+		// Writes the head of an event stream, then its events until the client, DeliveryEvents (a client not reading)
+		// or the shutdown closes it. A write can't time out, so DeliveryEvents closes the socket of a stuck client.
+		private void streamEvents(HttpResponse response) throws Throwable {
+			DeliveryEvents.Subscription subscription = response.subscription();
+			subscription.attach(null, socket);
+			try {
+				writeResponse(response, false, true);
+
+				byte[] events;
+				while ((events = subscription.take()) != null) {
+					subscription.onWriteStarted();
+					os.write(events);
+					os.flush();
+					subscription.onWriteFinished();
 				}
+			} catch (IOException e) {
+				// Gone or dropped
+			} finally {
+				subscription.close();
 			}
+		}
 
-			return resultMap;
+		private void writeResponse(HttpResponse response, boolean keepAlive, boolean flush) throws Throwable {
+			os.write(response.toBytes(keepAlive));
+			if (flush) {
+				os.flush();
+			}
 		}
 
 		private Socket socket;
+		private final int acceptor;
+		private final WorkerPool workers;
 		private InputStream is;
 		private OutputStream os;
-		private String request;
-		private String content;
+		private final HttpRequestParser parser;
+		// Always in the "read" state: the bytes between the position and the limit are not parsed yet
+		private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE).limit(0);
 	}
-}
\ No newline at end of file
+
+	private static final int IDLE_CHECK_INTERVAL = 200;
+	private static final int BUFFER_SIZE = 8192;
+}
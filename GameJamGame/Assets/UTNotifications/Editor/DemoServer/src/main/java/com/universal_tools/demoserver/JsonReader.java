@@ -0,0 +1,537 @@
+package com.universal_tools.demoserver;
+
+import java.nio.charset.StandardCharsets;
+
+/// <summary>
+/// Pull parser of a JSON document held as UTF-8 bytes, reading it token by token without building a tree.
+/// </summary>
+/// <remarks>
+/// Only the strings actually asked for are created: a string without escapes is decoded straight from the bytes,
+/// one with escapes through a buffer kept for the whole document, and <c>skipValue</c> creates nothing at all.
+/// Literals are returned as constants. Numbers are validated and returned as text, the caller decides how to
+/// read them. Malformed documents and nesting above <c>MAX_DEPTH</c> are reported as <c>400</c>.
+/// </remarks>
+class JsonReader {
+// public
+	public enum Token {
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+	}
+
+	public JsonReader(byte[] bytes, int offset, int length) {
+		m_bytes = bytes;
+		m_start = offset;
+		m_pos = offset;
+		m_end = offset + length;
+		m_scopes[m_depth++] = EMPTY_DOCUMENT;
+	}
+
+	/// <summary>
+	/// The type of the next token, without consuming it.
+	/// </summary>
+	public Token peek() throws HttpException {
+		if (m_peeked != null) {
+			return m_peeked;
+		}
+
+		int top = m_depth - 1;
+		switch (m_scopes[top]) {
+		case EMPTY_DOCUMENT:
+			m_scopes[top] = NONEMPTY_DOCUMENT;
+			break;
+
+		case NONEMPTY_DOCUMENT:
+			if (current() >= 0) {
+				throw syntaxError("unexpected data after the end of the document");
+			}
+			return m_peeked = Token.END_DOCUMENT;
+
+		case EMPTY_ARRAY:
+			m_scopes[top] = NONEMPTY_ARRAY;
+			if (current() == ']') {
+				++m_pos;
+				return m_peeked = Token.END_ARRAY;
+			}
+			break;
+
+		case NONEMPTY_ARRAY: {
+			int c = next();
+			if (c == ']') {
+				return m_peeked = Token.END_ARRAY;
+			} else if (c != ',') {
+				throw syntaxError("',' or ']' expected");
+			}
+		}
+			break;
+
+		case EMPTY_OBJECT:
+		case NONEMPTY_OBJECT: {
+			if (m_scopes[top] == EMPTY_OBJECT) {
+				if (current() == '}') {
+					++m_pos;
+					return m_peeked = Token.END_OBJECT;
+				}
+			} else {
+				int c = next();
+				if (c == '}') {
+					return m_peeked = Token.END_OBJECT;
+				} else if (c != ',') {
+					throw syntaxError("',' or '}' expected");
+				}
+			}
+
+			if (current() != '"') {
+				throw syntaxError("name expected");
+			}
+			m_scopes[top] = DANGLING_NAME;
+			return m_peeked = Token.NAME;
+		}
+
+		case DANGLING_NAME:
+			if (next() != ':') {
+				throw syntaxError("':' expected");
+			}
+			m_scopes[top] = NONEMPTY_OBJECT;
+			break;
+		}
+
+		// A value
+		switch (current()) {
+		case '{':
+			return m_peeked = Token.BEGIN_OBJECT;
+
+		case '[':
+			return m_peeked = Token.BEGIN_ARRAY;
+
+		case '"':
+			return m_peeked = Token.STRING;
+
+		case 't':
+		case 'f':
+			return m_peeked = Token.BOOLEAN;
+
+		case 'n':
+			return m_peeked = Token.NULL;
+
+		case '-':
+		case '0':
+		case '1':
+		case '2':
+		case '3':
+		case '4':
+		case '5':
+		case '6':
+		case '7':
+		case '8':
+		case '9':
+			return m_peeked = Token.NUMBER;
+
+		case -1:
+			throw syntaxError("unexpected end of the document");
+
+		default:
+			throw syntaxError("value expected");
+		}
+	}
+
+	/// <summary>
+	/// Whether the current object or array has more members.
+	/// </summary>
+	public boolean hasNext() throws HttpException {
+		Token token = peek();
+		return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+	}
+
+	public void beginObject() throws HttpException {
+		expect(Token.BEGIN_OBJECT);
+		++m_pos;
+		push(EMPTY_OBJECT);
+	}
+
+	public void endObject() throws HttpException {
+		expect(Token.END_OBJECT);
+		--m_depth;
+	}
+
+	public void beginArray() throws HttpException {
+		expect(Token.BEGIN_ARRAY);
+		++m_pos;
+		push(EMPTY_ARRAY);
+	}
+
+	public void endArray() throws HttpException {
+		expect(Token.END_ARRAY);
+		--m_depth;
+	}
+
+	public String nextName() throws HttpException {
+		expect(Token.NAME);
+		return readString(true);
+	}
+
+	/// <summary>
+	/// Reads a scalar value as a string: a number as written, a boolean as <c>true</c> or <c>false</c>.
+	/// </summary>
+	/// <returns><c>null</c> for <c>null</c>.</returns>
+	public String nextString() throws HttpException {
+		switch (peek()) {
+		case STRING:
+			m_peeked = null;
+			return readString(true);
+
+		case NUMBER:
+			m_peeked = null;
+			return readNumber(true);
+
+		case BOOLEAN:
+			m_peeked = null;
+			return readLiteral(m_bytes[m_pos] == 't' ? TRUE_LITERAL : FALSE_LITERAL);
+
+		case NULL:
+			m_peeked = null;
+			readLiteral(NULL_LITERAL);
+			return null;
+
+		default:
+			throw syntaxError("string expected");
+		}
+	}
+
+	/// <summary>
+	/// Skips the next value, including everything nested in it.
+	/// </summary>
+	public void skipValue() throws HttpException {
+		int depth = 0;
+		do {
+			switch (peek()) {
+			case BEGIN_OBJECT:
+				beginObject();
+				++depth;
+				break;
+
+			case BEGIN_ARRAY:
+				beginArray();
+				++depth;
+				break;
+
+			case END_OBJECT:
+				endObject();
+				--depth;
+				break;
+
+			case END_ARRAY:
+				endArray();
+				--depth;
+				break;
+
+			case NAME:
+				if (depth == 0) {
+					throw syntaxError("value expected");
+				}
+				m_peeked = null;
+				readString(false);
+				break;
+
+			case STRING:
+				m_peeked = null;
+				readString(false);
+				break;
+
+			case NUMBER:
+				m_peeked = null;
+				readNumber(false);
+				break;
+
+			case BOOLEAN:
+				m_peeked = null;
+				readLiteral(m_bytes[m_pos] == 't' ? TRUE_LITERAL : FALSE_LITERAL);
+				break;
+
+			case NULL:
+				m_peeked = null;
+				readLiteral(NULL_LITERAL);
+				break;
+
+			case END_DOCUMENT:
+				throw syntaxError("unexpected end of the document");
+			}
+		} while (depth > 0);
+	}
+
+	/// <summary>
+	/// Checks that the document is complete and nothing but whitespace follows it.
+	/// </summary>
+	public void endDocument() throws HttpException {
+		expect(Token.END_DOCUMENT);
+	}
+
+	/// <summary>
+	/// Reports an error at the current position, f.e. a value of an unexpected type.
+	/// </summary>
+	public HttpException syntaxError(String message) {
+		return new HttpException("400 Bad Request", "Invalid JSON at byte " + (m_pos - m_start) + ": " + message);
+	}
+
+// private
+	private void expect(Token token) throws HttpException {
+		if (peek() != token) {
+			throw syntaxError(token.name().toLowerCase().replace('_', ' ') + " expected");
+		}
+		m_peeked = null;
+	}
+
+	private void push(int scope) throws HttpException {
+		if (m_depth == m_scopes.length) {
+			throw syntaxError("nested deeper than " + MAX_DEPTH + " levels");
+		}
+		m_scopes[m_depth++] = scope;
+	}
+
+	// The next byte after whitespace, without consuming it, or -1 at the end
+	private int current() {
+		while (m_pos < m_end) {
+			byte b = m_bytes[m_pos];
+			if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+				return b & 0xFF;
+			}
+			++m_pos;
+		}
+
+		return -1;
+	}
+
+	private int next() {
+		int c = current();
+		if (c >= 0) {
+			++m_pos;
+		}
+		return c;
+	}
+
+	// Reads the string starting at the opening quote. Escapes are decoded into m_buffer, the rest is copied as is.
+	private String readString(boolean decode) throws HttpException {
+		int from = ++m_pos;
+		int length = 0;
+		boolean escaped = false;
+		while (true) {
+			if (m_pos >= m_end) {
+				throw syntaxError("unterminated string");
+			}
+
+			byte b = m_bytes[m_pos];
+			if (b == '"') {
+				break;
+			} else if (b == '\\') {
+				if (!escaped) {
+					escaped = true;
+					length = append(0, from, m_pos - from);
+				}
+				length = readEscape(length);
+			} else if ((b & 0xFF) < 0x20) {
+				throw syntaxError("control character in a string");
+			} else {
+				if (escaped) {
+					length = append(length, m_pos, 1);
+				}
+				++m_pos;
+			}
+		}
+
+		++m_pos;
+		if (!decode) {
+			return null;
+		}
+
+		return escaped
+				? new String(m_buffer, 0, length, StandardCharsets.UTF_8)
+				: new String(m_bytes, from, m_pos - 1 - from, StandardCharsets.UTF_8);
+	}
+
+	// Decodes the escape sequence at m_pos to the end of m_buffer (of length bytes) as UTF-8
+	private int readEscape(int length) throws HttpException {
+		if (m_pos + 1 >= m_end) {
+			throw syntaxError("unterminated string");
+		}
+
+		byte b = m_bytes[m_pos + 1];
+		m_pos += 2;
+		switch (b) {
+		case '"':
+		case '\\':
+		case '/':
+			return appendByte(length, b);
+
+		case 'b':
+			return appendByte(length, '\b');
+
+		case 'f':
+			return appendByte(length, '\f');
+
+		case 'n':
+			return appendByte(length, '\n');
+
+		case 'r':
+			return appendByte(length, '\r');
+
+		case 't':
+			return appendByte(length, '\t');
+
+		case 'u': {
+			int codePoint = readHex4();
+			// A surrogate pair is two escapes in a row
+			if (Character.isHighSurrogate((char)codePoint) && m_pos + 1 < m_end && m_bytes[m_pos] == '\\'
+					&& m_bytes[m_pos + 1] == 'u') {
+				int pairStart = m_pos;
+				m_pos += 2;
+				int low = readHex4();
+				if (Character.isLowSurrogate((char)low)) {
+					codePoint = Character.toCodePoint((char)codePoint, (char)low);
+				} else {
+					m_pos = pairStart;
+				}
+			}
+			return appendCodePoint(length, codePoint);
+		}
+
+		default:
+			m_pos -= 2;
+			throw syntaxError("invalid escape sequence");
+		}
+	}
+
+	private int readHex4() throws HttpException {
+		if (m_pos + 4 > m_end) {
+			throw syntaxError("invalid \\u escape");
+		}
+
+		int result = 0;
+		for (int i = 0; i < 4; ++i) {
+			int digit = Character.digit(m_bytes[m_pos++], 16);
+			if (digit < 0) {
+				throw syntaxError("invalid \\u escape");
+			}
+			result = (result << 4) | digit;
+		}
+
+		return result;
+	}
+
+	private int appendCodePoint(int length, int codePoint) {
+		if (codePoint < 0x80) {
+			return appendByte(length, codePoint);
+		} else if (codePoint < 0x800) {
+			length = appendByte(length, 0xC0 | (codePoint >> 6));
+		} else if (codePoint < 0x10000) {
+			// A lone surrogate ends up as a replacement character once decoded
+			length = appendByte(length, 0xE0 | (codePoint >> 12));
+			length = appendByte(length, 0x80 | ((codePoint >> 6) & 0x3F));
+		} else {
+			length = appendByte(length, 0xF0 | (codePoint >> 18));
+			length = appendByte(length, 0x80 | ((codePoint >> 12) & 0x3F));
+			length = appendByte(length, 0x80 | ((codePoint >> 6) & 0x3F));
+		}
+		return appendByte(length, 0x80 | (codePoint & 0x3F));
+	}
+
+	private int appendByte(int length, int b) {
+		if (length == m_buffer.length) {
+			grow(length + 1);
+		}
+		m_buffer[length] = (byte)b;
+		return length + 1;
+	}
+
+	private int append(int length, int from, int count) {
+		if (length + count > m_buffer.length) {
+			grow(length + count);
+		}
+		System.arraycopy(m_bytes, from, m_buffer, length, count);
+		return length + count;
+	}
+
+	private void grow(int minLength) {
+		byte[] grown = new byte[Math.max(m_buffer.length * 2, minLength)];
+		System.arraycopy(m_buffer, 0, grown, 0, m_buffer.length);
+		m_buffer = grown;
+	}
+
+	// -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?
+	private String readNumber(boolean decode) throws HttpException {
+		int from = m_pos;
+		if (m_pos < m_end && m_bytes[m_pos] == '-') {
+			++m_pos;
+		}
+
+		if (m_pos < m_end && m_bytes[m_pos] == '0') {
+			++m_pos;
+		} else if (skipDigits() == 0) {
+			throw syntaxError("invalid number");
+		}
+
+		if (m_pos < m_end && m_bytes[m_pos] == '.') {
+			++m_pos;
+			if (skipDigits() == 0) {
+				throw syntaxError("invalid number");
+			}
+		}
+
+		if (m_pos < m_end && (m_bytes[m_pos] == 'e' || m_bytes[m_pos] == 'E')) {
+			++m_pos;
+			if (m_pos < m_end && (m_bytes[m_pos] == '+' || m_bytes[m_pos] == '-')) {
+				++m_pos;
+			}
+			if (skipDigits() == 0) {
+				throw syntaxError("invalid number");
+			}
+		}
+
+		return decode ? new String(m_bytes, from, m_pos - from, StandardCharsets.ISO_8859_1) : null;
+	}
+
+	private int skipDigits() {
+		int from = m_pos;
+		while (m_pos < m_end && m_bytes[m_pos] >= '0' && m_bytes[m_pos] <= '9') {
+			++m_pos;
+		}
+		return m_pos - from;
+	}
+
+	private String readLiteral(String literal) throws HttpException {
+		int length = literal.length();
+		if (m_pos + length > m_end) {
+			throw syntaxError("invalid literal");
+		}
+
+		for (int i = 0; i < length; ++i) {
+			if (m_bytes[m_pos + i] != literal.charAt(i)) {
+				throw syntaxError("invalid literal");
+			}
+		}
+
+		m_pos += length;
+		return literal;
+	}
+
+	private static final int MAX_DEPTH = 32;
+
+	private static final String TRUE_LITERAL = "true";
+	private static final String FALSE_LITERAL = "false";
+	private static final String NULL_LITERAL = "null";
+
+	// What is expected next in each of the nested scopes
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_ARRAY = 2;
+	private static final int NONEMPTY_ARRAY = 3;
+	private static final int EMPTY_OBJECT = 4;
+	private static final int DANGLING_NAME = 5;
+	private static final int NONEMPTY_OBJECT = 6;
+
+	private final byte[] m_bytes;
+	private final int m_start;
+	private final int m_end;
+	private int m_pos;
+	private final int[] m_scopes = new int[MAX_DEPTH + 1];
+	private int m_depth;
+	private Token m_peeked;
+	private byte[] m_buffer = new byte[64];
+}
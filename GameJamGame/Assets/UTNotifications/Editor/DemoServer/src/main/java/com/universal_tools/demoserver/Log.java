@@ -0,0 +1,297 @@
+package com.universal_tools.demoserver;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/// <summary>
+/// Asynchronous log of the demo server, including a compact one line per request access log.
+/// </summary>
+/// <remarks>
+/// Logging threads only put an entry to a fixed size ring buffer; a single background thread formats the entries
+/// and writes them to <c>ServerOptions.LOG_FILE</c>, rotated at <c>ServerOptions.LOG_MAX_SIZE</c>. When the writer
+/// can't keep up the ring buffer fills and new entries are dropped (and counted) rather than slowing requests down.
+/// Successful requests can also be sampled with <c>ServerOptions.ACCESS_LOG_SAMPLE</c>; failed ones are always logged.
+/// </remarks>
+class Log {
+// public
+	public enum Level {
+		ERROR, WARN, INFO, DEBUG
+	}
+
+	public static boolean isEnabled(Level level) {
+		return level.ordinal() <= ServerOptions.LOG_LEVEL.ordinal();
+	}
+
+	public static void error(String message, Throwable t) {
+		if (isEnabled(Level.ERROR)) {
+			add(Level.ERROR, message, t);
+		}
+	}
+
+	public static void error(Throwable t) {
+		error(t.toString(), t);
+	}
+
+	public static void warn(String message) {
+		if (isEnabled(Level.WARN)) {
+			add(Level.WARN, message, null);
+		}
+	}
+
+	public static void info(String message) {
+		if (isEnabled(Level.INFO)) {
+			add(Level.INFO, message, null);
+		}
+	}
+
+	/// <remarks>
+	/// Check <c>isEnabled(Level.DEBUG)</c> before building an expensive message.
+	/// </remarks>
+	public static void debug(String message) {
+		if (isEnabled(Level.DEBUG)) {
+			add(Level.DEBUG, message, null);
+		}
+	}
+
+	/// <summary>
+	/// Logs a handled request as <c>METHOD path status bytes duration</c>, and its content with <c>Level.DEBUG</c>.
+	/// </summary>
+	public static void access(HttpRequest request, HttpResponse response, long durationNanos) {
+		boolean failed = !response.status.startsWith("2");
+		if (!isEnabled(failed ? Level.WARN : Level.INFO)) {
+			return;
+		}
+
+		if (!failed && ServerOptions.ACCESS_LOG_SAMPLE > 1
+				&& ThreadLocalRandom.current().nextInt(ServerOptions.ACCESS_LOG_SAMPLE) != 0) {
+			return;
+		}
+
+		StringBuilder builder = new StringBuilder(96);
+		builder.append(request.method).append(' ').append(request.path).append(' ').append(response.status, 0, 3)
+				.append(' ').append(response.contentLength()).append("B ").append(durationNanos / 1000).append("us");
+		if (isEnabled(Level.DEBUG)) {
+			builder.append("\n  << ").append(request.content).append("\n  >> ").append(response.content);
+		}
+
+		add(failed ? Level.WARN : Level.INFO, builder.toString(), null);
+	}
+
+	/// <summary>
+	/// Waits (up to <c>timeoutMillis</c>) until the entries logged so far are written.
+	/// </summary>
+	public static void flush(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long target = m_claimed.get();
+		while (m_flushed < target && System.currentTimeMillis() < deadline) {
+			LockSupport.unpark(m_writerThread);
+			LockSupport.parkNanos(1000000);
+		}
+	}
+
+// private
+	private static class Entry {
+		private Entry(Level level, String message, Throwable t) {
+			this.time = System.currentTimeMillis();
+			this.thread = Thread.currentThread().getName();
+			this.level = level;
+			this.message = message;
+			this.throwable = t;
+		}
+
+		private final long time;
+		private final String thread;
+		private final Level level;
+		private final String message;
+		private final Throwable throwable;
+	}
+
+	// Multiple producers, single consumer: a producer claims a sequence number, then publishes its entry to the slot
+	private static void add(Level level, String message, Throwable t) {
+		Entry entry = new Entry(level, message, t);
+
+		long sequence;
+		do {
+			sequence = m_claimed.get();
+			if (sequence - m_consumed >= m_slots.length()) {
+				DROPPED.inc();
+				return;
+			}
+		} while (!m_claimed.compareAndSet(sequence, sequence + 1));
+
+		m_slots.set((int)(sequence & (m_slots.length() - 1)), entry);
+		if (m_writerParked) {
+			LockSupport.unpark(m_writerThread);
+		}
+	}
+
+	private static void writeEntries() {
+		SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		StringBuilder line = new StringBuilder(256);
+
+		while (true) {
+			int index = (int)(m_consumed & (m_slots.length() - 1));
+			Entry entry = m_slots.get(index);
+			if (entry == null) {
+				// Nothing more to write for now (or the next entry is claimed but not published yet)
+				flushWriter();
+				m_flushed = m_consumed;
+				m_writerParked = true;
+				if (m_slots.get(index) == null) {
+					LockSupport.parkNanos(WRITER_PARK_NANOS);
+				}
+				m_writerParked = false;
+				continue;
+			}
+
+			m_slots.set(index, null);
+			++m_consumed;
+
+			line.setLength(0);
+			line.append(timeFormat.format(new Date(entry.time))).append(' ').append(entry.level);
+			for (int i = entry.level.name().length(); i < 5; ++i) {
+				line.append(' ');
+			}
+			line.append(" [").append(entry.thread).append("] ").append(entry.message).append('\n');
+			if (entry.throwable != null) {
+				StringWriter trace = new StringWriter();
+				entry.throwable.printStackTrace(new PrintWriter(trace));
+				line.append(trace);
+			}
+
+			write(line);
+		}
+	}
+
+	private static void write(CharSequence line) {
+		try {
+			if (m_writer == null) {
+				open();
+			}
+
+			m_writer.append(line);
+			m_fileSize += utf8Length(line);
+			if (m_file != null && m_fileSize > ServerOptions.LOG_MAX_SIZE) {
+				rotate();
+			}
+		} catch (IOException e) {
+			// Nowhere to log it: fall back to the console
+			System.err.print(line);
+			m_writer = null;
+		}
+	}
+
+	// The bytes the writer encodes line to, without encoding it once more; a lone surrogate is written as '?'
+	private static int utf8Length(CharSequence line) {
+		int length = 0;
+		for (int i = 0; i < line.length(); ++i) {
+			char c = line.charAt(i);
+			if (c < 0x80) {
+				++length;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < line.length() && Character.isLowSurrogate(line.charAt(i + 1))) {
+				length += 4;
+				++i;
+			} else if (Character.isSurrogate(c)) {
+				++length;
+			} else {
+				length += 3;
+			}
+		}
+
+		return length;
+	}
+
+	private static void flushWriter() {
+		try {
+			if (m_writer != null) {
+				m_writer.flush();
+			}
+		} catch (IOException e) {
+			m_writer = null;
+		}
+	}
+
+	private static void open() throws IOException {
+		if ("-".equals(ServerOptions.LOG_FILE)) {
+			m_file = null;
+			m_writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), WRITER_BUFFER_SIZE);
+			return;
+		}
+
+		m_file = new File(ServerOptions.LOG_FILE);
+		m_fileSize = m_file.length();
+		m_writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(m_file, true), StandardCharsets.UTF_8),
+				WRITER_BUFFER_SIZE);
+	}
+
+	// demoserver.log -> demoserver.log.1 -> ... -> demoserver.log.<LOG_FILES - 1>, the oldest one is deleted
+	private static void rotate() throws IOException {
+		m_writer.close();
+		m_writer = null;
+
+		String name = m_file.getPath();
+		new File(name + "." + (ServerOptions.LOG_FILES - 1)).delete();
+		for (int i = ServerOptions.LOG_FILES - 2; i >= 1; --i) {
+			new File(name + "." + i).renameTo(new File(name + "." + (i + 1)));
+		}
+		if (ServerOptions.LOG_FILES > 1) {
+			m_file.renameTo(new File(name + ".1"));
+		} else {
+			m_file.delete();
+		}
+
+		open();
+	}
+
+	private static int powerOfTwo(int value) {
+		int result = 1;
+		while (result < value) {
+			result <<= 1;
+		}
+		return result;
+	}
+
+	private static final Metrics.Counter DROPPED = Metrics.counter("demoserver_log_dropped_total",
+			"Log entries dropped because the log writer couldn't keep up.", "");
+	private static final int WRITER_BUFFER_SIZE = 64 * 1024;
+	private static final long WRITER_PARK_NANOS = 100 * 1000 * 1000;
+
+	private static final AtomicReferenceArray<Entry> m_slots = new AtomicReferenceArray<Entry>(
+			powerOfTwo(ServerOptions.LOG_BUFFER));
+	private static final AtomicLong m_claimed = new AtomicLong();
+	// Only changed by the writer thread
+	private static volatile long m_consumed;
+	private static volatile long m_flushed;
+	private static volatile boolean m_writerParked;
+	private static Writer m_writer;
+	private static File m_file;
+	private static long m_fileSize;
+	private static final Thread m_writerThread;
+
+	static {
+		m_writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeEntries();
+			}
+		}, "log-writer");
+		m_writerThread.setDaemon(true);
+		m_writerThread.start();
+		// Flushed on exit by Shutdown, after its own last entries
+	}
+}
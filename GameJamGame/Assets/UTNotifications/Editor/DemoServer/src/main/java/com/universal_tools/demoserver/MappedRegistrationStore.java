@@ -0,0 +1,1130 @@
+package com.universal_tools.demoserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/// <summary>
+/// The registered devices in a memory-mapped file rather than on the heap, for <c>ServerOptions.REGISTRATION_STORE</c>
+/// <c>mapped</c>: millions of devices take no heap and no time of the GC, and opening the file reads nothing.
+/// </summary>
+/// <remarks>
+/// The file (<c>REGISTRATION_FILE.store.N</c>) is a header page, the index and the arena. The index is an open
+/// addressing hash table with linear probing: a slot is the offset of a record in the arena and 24 more bits of the
+/// hash of its uid, so that a lookup compares only the records of the matching uids. A record is the uid, provider
+/// and id of a device with their CRC32. Records are appended and never changed: a change appends a new record and
+/// switches the slot to it, an unregistration leaves a tombstone. A lookup or a change makes no heap objects but the
+/// UTF-8 bytes of its strings; <c>items</c> walks the index and makes the <c>Item</c> of a device only as it's walked.
+/// The changes are serialized by the lock of the store, while the reads take no lock: a slot is written after its
+/// record (with release semantics) and read before it (with acquire). Once the index is half full, or the replaced
+/// records take more room than the live ones, a background thread rebuilds the store into the next generation of the
+/// file, with the live records in the order of the index, while the changes go on in the current one: the uids they
+/// change are noted and copied over again at the end, the last few under the lock, and the store switches to the new
+/// generation then. The walks in progress go on over the old one. A change waits for the rebuild only if the index
+/// gets 15/16 full meanwhile. The header says whether the store was closed. One which wasn't may have slots of records
+/// which never reached the disk (after a crash of the OS), so they're checked when it's opened, keeping the newest
+/// record of a uid found twice, and the registration log replayed over it restores the changes lost.
+/// </remarks>
+class MappedRegistrationStore implements RegistrationStore {
+// public
+	/// <summary>
+	/// Opens the latest generation of the store saved as <c>fileName</c>, creating an empty store if there is none.
+	/// </summary>
+	public static MappedRegistrationStore open(String fileName) throws IOException {
+		File file = new File(fileName).getAbsoluteFile();
+
+		// The latest complete generation; the others are left by a rebuild, or a crash during one
+		Mapping mapping = null;
+		long generation = -1;
+		for (long candidate : generations(file)) {
+			File candidateFile = generationFile(file, candidate);
+			if (mapping == null && readSlots(candidateFile) > 0) {
+				mapping = Mapping.open(candidateFile);
+				generation = candidate;
+			} else if (!candidateFile.delete()) {
+				Log.warn("Can't delete " + candidateFile);
+			}
+			generation = Math.max(generation, candidate);
+		}
+
+		if (mapping == null) {
+			mapping = Mapping.create(generationFile(file, ++generation), INITIAL_SLOTS);
+			mapping.commit();
+		}
+
+		return new MappedRegistrationStore(file, generation, mapping);
+	}
+
+	/// <summary>
+	/// Whether there is a store saved as <c>fileName</c>.
+	/// </summary>
+	public static boolean exists(String fileName) {
+		File file = new File(fileName).getAbsoluteFile();
+		for (long generation : generations(file)) {
+			if (readSlots(generationFile(file, generation)) > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Registrator.Item get(String uid) {
+		byte[] uidBytes = uid.getBytes(StandardCharsets.UTF_8);
+		Mapping mapping = m_mapping;
+		long record = find(mapping, uidBytes, hash(uidBytes));
+		return record >= 0 ? mapping.item(record) : null;
+	}
+
+	@Override
+	public void put(String uid, Registrator.Item item) throws IOException {
+		byte[] uidBytes = uid.getBytes(StandardCharsets.UTF_8);
+		byte[] provider = item.provider.getBytes(StandardCharsets.UTF_8);
+		String id = item.getId();
+		byte[] idBytes = id != null ? id.getBytes(StandardCharsets.UTF_8) : null;
+		long hash = hash(uidBytes);
+
+		synchronized (this) {
+			Mapping mapping = writable(1);
+			int index = probe(mapping, uidBytes, hash);
+			if (index >= 0) {
+				long old = offset(mapping.slot(index));
+				// Registering again on every start of the app changes nothing
+				if (!mapping.sameDevice(old, provider, idBytes)) {
+					replace(mapping, index, old, append(mapping, uidBytes, provider, idBytes), hash);
+				}
+			} else {
+				index = -index - 1;
+				if (mapping.slot(index) == TOMBSTONE) {
+					--mapping.tombstones;
+				}
+				mapping.setSlot(index, slot(hash, append(mapping, uidBytes, provider, idBytes)));
+				++mapping.size;
+			}
+			changed(mapping, uidBytes);
+		}
+	}
+
+	// The device is still item if it still has its provider and id
+	@Override
+	public boolean update(String uid, Registrator.Item item, String id) throws IOException {
+		byte[] uidBytes = uid.getBytes(StandardCharsets.UTF_8);
+		byte[] provider = item.provider.getBytes(StandardCharsets.UTF_8);
+		String oldId = item.getId();
+		byte[] oldIdBytes = oldId != null ? oldId.getBytes(StandardCharsets.UTF_8) : null;
+		byte[] idBytes = id != null ? id.getBytes(StandardCharsets.UTF_8) : null;
+		long hash = hash(uidBytes);
+
+		synchronized (this) {
+			Mapping mapping = writable(0);
+			int index = probe(mapping, uidBytes, hash);
+			if (index < 0) {
+				return false;
+			}
+
+			long old = offset(mapping.slot(index));
+			if (!mapping.sameDevice(old, provider, oldIdBytes)) {
+				return false;
+			}
+
+			replace(mapping, index, old, append(mapping, uidBytes, provider, idBytes), hash);
+			changed(mapping, uidBytes);
+			return true;
+		}
+	}
+
+	@Override
+	public boolean remove(String uid) throws IOException {
+		byte[] uidBytes = uid.getBytes(StandardCharsets.UTF_8);
+		long hash = hash(uidBytes);
+
+		synchronized (this) {
+			Mapping mapping = writable(0);
+			int index = probe(mapping, uidBytes, hash);
+			if (index < 0) {
+				return false;
+			}
+
+			mapping.garbage += mapping.recordSize(offset(mapping.slot(index)));
+			mapping.setSlot(index, TOMBSTONE);
+			--mapping.size;
+			++mapping.tombstones;
+			changed(mapping, uidBytes);
+			return true;
+		}
+	}
+
+	/// <summary>
+	/// Unregisters all the devices.
+	/// </summary>
+	/// <param name="expectedSize">The devices to be registered next, f.e. from a snapshot: the index is sized for
+	/// them at once.</param>
+	public synchronized void clear(int expectedSize) throws IOException {
+		awaitRebuild();
+		if (m_closed) {
+			throw new IOException("The registration store " + m_file + " is closed");
+		}
+		int slots = INITIAL_SLOTS;
+		while (slots < MAX_SLOTS && slots < (long)expectedSize * 2) {
+			slots *= 2;
+		}
+		rebuild(slots, true);
+	}
+
+	/// <summary>
+	/// Waits for the rebuild in progress, if any, to switch to the next generation or fail.
+	/// </summary>
+	public synchronized void awaitRebuild() throws IOException {
+		while (m_rebuilding) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the registration store rebuild");
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		return m_mapping.size;
+	}
+
+	/// <summary>
+	/// Walking it sees every device registered before and not unregistered until the walk, and maybe some of the
+	/// changes made meanwhile; a device unregistered and registered again meanwhile may be seen twice. Every
+	/// <c>Item</c> is made as it's walked, for the registration of that moment.
+	/// </summary>
+	@Override
+	public Collection<Registrator.Item> items() {
+		return new AbstractCollection<Registrator.Item>() {
+			@Override
+			public Iterator<Registrator.Item> iterator() {
+				return new Walk(m_mapping);
+			}
+
+			@Override
+			public int size() {
+				return MappedRegistrationStore.this.size();
+			}
+		};
+	}
+
+	@Override
+	public boolean persistent() {
+		return true;
+	}
+
+	@Override
+	public Map<String, Registrator.Item> copy() {
+		HashMap<String, Registrator.Item> items = new HashMap<String, Registrator.Item>(size() * 2);
+		for (Registrator.Item item : items()) {
+			items.put(item.getUid(), item);
+		}
+		return items;
+	}
+
+	/// <summary>
+	/// Syncs the store to the disk, without blocking the changes meanwhile.
+	/// </summary>
+	@Override
+	public void sync() throws IOException {
+		Mapping mapping;
+		synchronized (this) {
+			if (m_closed) {
+				return;
+			}
+			mapping = m_mapping;
+		}
+
+		mapping.force();
+	}
+
+	/// <summary>
+	/// Syncs the store to the disk and marks it closed, so that the next start doesn't check it.
+	/// </summary>
+	@Override
+	public synchronized void close() throws IOException {
+		if (m_closed) {
+			return;
+		}
+
+		m_closed = true;
+		Mapping mapping = m_mapping;
+		mapping.force();
+		mapping.index.putInt(CLEAN, 1);
+		mapping.forceHeader();
+		mapping.close();
+	}
+
+	/// <summary>
+	/// Makes the file no store anymore and deletes it, f.e. once its devices are saved elsewhere.
+	/// </summary>
+	public synchronized void retire() throws IOException {
+		m_closed = true;
+		Mapping mapping = m_mapping;
+		mapping.index.putInt(MAGIC_OFFSET, 0);
+		mapping.forceHeader();
+		mapping.close();
+		// Not on Windows while it's mapped: it's deleted by the next open then
+		mapping.file.delete();
+	}
+
+// private
+	// A generation of the file, mapped. The fields but the mapped buffers and size are changed under the lock of
+	// the store only.
+	private static class Mapping {
+		static Mapping create(File file, int slots) throws IOException {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			Mapping mapping = new Mapping(file, channel, slots);
+			mapping.index.putInt(SLOTS, slots);
+			mapping.writeHeader();
+			mapping.clean = true;
+			return mapping;
+		}
+
+		static Mapping open(File file) throws IOException {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			int slots = readSlots(file);
+			Mapping mapping = new Mapping(file, channel, slots);
+			mapping.end = mapping.index.getLong(END);
+			mapping.size = (int)mapping.index.getLong(SIZE);
+			mapping.tombstones = mapping.index.getLong(TOMBSTONES);
+			mapping.garbage = mapping.index.getLong(GARBAGE);
+			mapping.clean = mapping.index.getInt(CLEAN) == 1;
+			return mapping;
+		}
+
+		Mapping(File file, FileChannel channel, int slots) throws IOException {
+			this.file = file;
+			this.channel = channel;
+			this.slots = slots;
+			arenaStart = align(HEADER_SIZE + (long)slots * SLOT_SIZE, PAGE_SIZE);
+			index = channel.map(FileChannel.MapMode.READ_WRITE, 0, arenaStart);
+
+			int chunkCount = (int)Math.max(1, (channel.size() - arenaStart + CHUNK_SIZE - 1) / CHUNK_SIZE);
+			MappedByteBuffer[] mapped = new MappedByteBuffer[chunkCount];
+			for (int i = 0; i < chunkCount; ++i) {
+				mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, arenaStart + (long)i * CHUNK_SIZE, CHUNK_SIZE);
+			}
+			chunks = mapped;
+		}
+
+		long slot(int i) {
+			return (long)SLOT.getAcquire(index, HEADER_SIZE + i * SLOT_SIZE);
+		}
+
+		void setSlot(int i, long value) {
+			SLOT.setRelease(index, HEADER_SIZE + i * SLOT_SIZE, value);
+		}
+
+		ByteBuffer chunk(long record) {
+			return chunks[(int)(record / CHUNK_SIZE)];
+		}
+
+		// Reserves length bytes of the arena, in a single chunk, mapping it if needed
+		long allocate(int length) throws IOException {
+			long record = end;
+			int position = position(record);
+			if (position + length > CHUNK_SIZE) {
+				record += CHUNK_SIZE - position;
+			}
+
+			int chunk = (int)(record / CHUNK_SIZE);
+			MappedByteBuffer[] mapped = chunks;
+			if (chunk >= mapped.length) {
+				if (arenaStart + record + CHUNK_SIZE > MAX_ARENA) {
+					throw new IOException("The registration store " + file + " is full");
+				}
+				mapped = Arrays.copyOf(mapped, chunk + 1);
+				mapped[chunk] = channel.map(FileChannel.MapMode.READ_WRITE, arenaStart + (long)chunk * CHUNK_SIZE,
+						CHUNK_SIZE);
+				chunks = mapped;
+			}
+
+			// The rest of the previous chunk is wasted
+			garbage += record - end;
+			end = record + align(length, RECORD_ALIGNMENT);
+			return record;
+		}
+
+		int recordSize(long record) {
+			return (int)align(chunk(record).getInt(position(record) + LENGTH), RECORD_ALIGNMENT);
+		}
+
+		boolean uidEquals(long record, byte[] uid) {
+			ByteBuffer chunk = chunk(record);
+			int position = position(record);
+			return chunk.getInt(position + UID_LENGTH) == uid.length && bytesEqual(chunk, position + DATA, uid);
+		}
+
+		boolean uidEquals(long record, long other) {
+			ByteBuffer chunk = chunk(record);
+			ByteBuffer otherChunk = chunk(other);
+			int position = position(record);
+			int otherPosition = position(other);
+			int length = chunk.getInt(position + UID_LENGTH);
+			if (otherChunk.getInt(otherPosition + UID_LENGTH) != length) {
+				return false;
+			}
+			for (int i = 0; i < length; ++i) {
+				if (chunk.get(position + DATA + i) != otherChunk.get(otherPosition + DATA + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean sameDevice(long record, byte[] provider, byte[] id) {
+			ByteBuffer chunk = chunk(record);
+			int position = position(record);
+			int uidLength = chunk.getInt(position + UID_LENGTH);
+			int providerLength = chunk.getInt(position + PROVIDER_LENGTH);
+			int idLength = chunk.getInt(position + ID_LENGTH);
+			if (providerLength != provider.length || idLength != (id != null ? id.length : -1)) {
+				return false;
+			}
+
+			int data = position + DATA + uidLength;
+			return bytesEqual(chunk, data, provider) && (id == null || bytesEqual(chunk, data + providerLength, id));
+		}
+
+		Registrator.Item item(long record) {
+			ByteBuffer chunk = chunk(record);
+			int position = position(record);
+			int uidLength = chunk.getInt(position + UID_LENGTH);
+			int providerLength = chunk.getInt(position + PROVIDER_LENGTH);
+			int idLength = chunk.getInt(position + ID_LENGTH);
+
+			int data = position + DATA;
+			String uid = string(chunk, data, uidLength);
+			String provider = provider(chunk, data + uidLength, providerLength);
+			String id = idLength >= 0 ? string(chunk, data + uidLength + providerLength, idLength) : null;
+			return new Registrator.Item(uid, provider, id);
+		}
+
+		long hash(long record) {
+			ByteBuffer chunk = chunk(record);
+			int position = position(record);
+			return MappedRegistrationStore.hash(chunk, position + DATA, chunk.getInt(position + UID_LENGTH));
+		}
+
+		// The length of a record which is whole, fits its chunk and matches its CRC and the tag of its slot, -1 otherwise
+		int checkedLength(long record, long slot, CRC32 crc) {
+			if (record < 0 || record / CHUNK_SIZE >= chunks.length) {
+				return -1;
+			}
+
+			ByteBuffer chunk = chunk(record);
+			int position = position(record);
+			if (position + DATA > CHUNK_SIZE) {
+				return -1;
+			}
+
+			int length = chunk.getInt(position + LENGTH);
+			int uidLength = chunk.getInt(position + UID_LENGTH);
+			int providerLength = chunk.getInt(position + PROVIDER_LENGTH);
+			int idLength = chunk.getInt(position + ID_LENGTH);
+			if (length < DATA || length > CHUNK_SIZE - position || uidLength < 0 || providerLength < 0 || idLength < -1
+					|| (long)DATA + uidLength + providerLength + Math.max(idLength, 0) != length) {
+				return -1;
+			}
+
+			crc.reset();
+			crc.update(chunk.slice(position + UID_LENGTH, length - UID_LENGTH));
+			if ((int)crc.getValue() != chunk.getInt(position + CRC)
+					|| MappedRegistrationStore.hash(chunk, position + DATA, uidLength) >>> TAG_SHIFT != slot >>> TAG_SHIFT) {
+				return -1;
+			}
+
+			return length;
+		}
+
+		void writeHeader() {
+			index.putLong(END, end);
+			index.putLong(SIZE, size);
+			index.putLong(TOMBSTONES, tombstones);
+			index.putLong(GARBAGE, garbage);
+		}
+
+		// Marks a new generation complete, once all of it is on the disk
+		void commit() throws IOException {
+			index.putInt(CLEAN, 0);
+			force();
+			index.putInt(MAGIC_OFFSET, MAGIC);
+			index.putInt(VERSION_OFFSET, VERSION);
+			forceHeader();
+		}
+
+		void force() {
+			index.force();
+			for (MappedByteBuffer chunk : chunks) {
+				chunk.force();
+			}
+		}
+
+		void forceHeader() {
+			index.force(0, HEADER_SIZE);
+		}
+
+		// The mapped buffers stay valid
+		void close() throws IOException {
+			channel.close();
+		}
+
+		final File file;
+		final FileChannel channel;
+		final int slots;
+		final long arenaStart;
+		// The header and the index
+		final MappedByteBuffer index;
+		volatile MappedByteBuffer[] chunks;
+		// The arena bytes taken
+		long end;
+		volatile int size;
+		long tombstones;
+		long garbage;
+		boolean clean;
+	}
+
+	// Walks the index of a mapping
+	private static class Walk implements Iterator<Registrator.Item> {
+		Walk(Mapping mapping) {
+			m_mapping = mapping;
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return m_index < m_mapping.slots;
+		}
+
+		@Override
+		public Registrator.Item next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			Registrator.Item item = m_mapping.item(m_record);
+			advance();
+			return item;
+		}
+
+		private void advance() {
+			while (++m_index < m_mapping.slots) {
+				long slot = m_mapping.slot(m_index);
+				if (slot != EMPTY && slot != TOMBSTONE) {
+					m_record = offset(slot);
+					return;
+				}
+			}
+		}
+
+		private final Mapping m_mapping;
+		private int m_index = -1;
+		private long m_record;
+	}
+
+	private MappedRegistrationStore(File file, long generation, Mapping mapping) throws IOException {
+		m_file = file;
+		m_generation = generation;
+		m_mapping = mapping;
+
+		if (!mapping.clean) {
+			recover(mapping);
+		}
+
+		// Until it's closed again
+		mapping.index.putInt(CLEAN, 0);
+		mapping.forceHeader();
+	}
+
+	// The mapping to change, rebuilt meanwhile if adding count devices would fill its index. Waits for the rebuild
+	// only once the index is almost full.
+	private Mapping writable(int count) throws IOException {
+		if (m_closed) {
+			throw new IOException("The registration store " + m_file + " is closed");
+		}
+
+		Mapping mapping = m_mapping;
+		while (isFull(mapping, count)) {
+			if (m_rebuilding) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the registration store rebuild");
+				}
+			} else {
+				// The background rebuild has failed, or the index can't grow
+				int slots = grownSlots(mapping, count);
+				if (slots > MAX_SLOTS) {
+					throw new IOException("The registration store " + m_file + " is full: " + mapping.size + " devices");
+				}
+				rebuild(slots, false);
+			}
+
+			if (m_closed) {
+				throw new IOException("The registration store " + m_file + " is closed");
+			}
+			mapping = m_mapping;
+		}
+
+		// Early, so that the changes meanwhile seldom fill the index before the rebuild is done
+		if ((mapping.size + mapping.tombstones + count) * 2 > mapping.slots) {
+			int slots = grownSlots(mapping, count);
+			if (slots <= MAX_SLOTS) {
+				startRebuild(slots);
+			}
+		}
+		return mapping;
+	}
+
+	// Twice as large unless it's mostly tombstones
+	private static int grownSlots(Mapping mapping, int count) {
+		return (mapping.size + count) * 8 > (long)mapping.slots * 3 ? mapping.slots * 2 : mapping.slots;
+	}
+
+	// Whether adding count devices would leave linear probing too few empty slots
+	private static boolean isFull(Mapping mapping, long count) {
+		return (mapping.size + mapping.tombstones + count) * 16 > (long)mapping.slots * 15;
+	}
+
+	// Ends a change of uid: notes it for the rebuild in progress, starts one if the records replaced take more room
+	// than the live ones
+	private void changed(Mapping mapping, byte[] uid) {
+		mapping.writeHeader();
+		if (m_rebuilding) {
+			m_rebuildChanges.add(uid);
+		} else if (mapping.garbage > CHUNK_SIZE && mapping.garbage > mapping.end - mapping.garbage) {
+			startRebuild(mapping.slots);
+		}
+	}
+
+	private long append(Mapping mapping, byte[] uid, byte[] provider, byte[] id) throws IOException {
+		long length = (long)DATA + uid.length + provider.length + (id != null ? id.length : 0);
+		if (length > CHUNK_SIZE) {
+			throw new IOException("A registration of " + length + " bytes doesn't fit the registration store");
+		}
+
+		long record = mapping.allocate((int)length);
+		ByteBuffer chunk = mapping.chunk(record);
+		int position = position(record);
+
+		CRC32 crc = m_crc;
+		crc.reset();
+		putInt(chunk, position + UID_LENGTH, uid.length, crc);
+		putInt(chunk, position + PROVIDER_LENGTH, provider.length, crc);
+		putInt(chunk, position + ID_LENGTH, id != null ? id.length : -1, crc);
+
+		int data = position + DATA;
+		chunk.put(data, uid);
+		chunk.put(data + uid.length, provider);
+		crc.update(uid);
+		crc.update(provider);
+		if (id != null) {
+			chunk.put(data + uid.length + provider.length, id);
+			crc.update(id);
+		}
+
+		chunk.putInt(position + CRC, (int)crc.getValue());
+		chunk.putInt(position + LENGTH, (int)length);
+		return record;
+	}
+
+	private static void replace(Mapping mapping, int index, long old, long record, long hash) {
+		mapping.setSlot(index, slot(hash, record));
+		mapping.garbage += mapping.recordSize(old);
+	}
+
+	// Rebuilds the store into the next generation on a thread of its own, unless one is running or has just failed
+	private void startRebuild(final int slots) {
+		if (m_rebuilding || System.nanoTime() - m_nextRebuild < 0) {
+			return;
+		}
+
+		m_rebuilding = true;
+		m_rebuildChanges = new ArrayList<byte[]>();
+		final Mapping old = m_mapping;
+		final long generation = m_generation + 1;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				rebuildInBackground(old, generation, slots);
+			}
+		}, "registration-store-rebuild");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// Copies the live records without the lock, then the devices changed meanwhile, the last of them under the lock
+	// together with the switch
+	private void rebuildInBackground(Mapping old, long generation, int slots) {
+		long started = System.nanoTime();
+		Mapping mapping = null;
+		try {
+			mapping = copyLive(old, generation, slots, false);
+			// The bulk of it, so that the commit under the lock has little left to sync
+			mapping.force();
+
+			for (int round = 1; ; ++round) {
+				List<byte[]> changes;
+				synchronized (this) {
+					if (m_closed) {
+						discard(mapping);
+						return;
+					}
+					changes = m_rebuildChanges;
+					m_rebuildChanges = new ArrayList<byte[]>();
+
+					if (changes.size() <= LOCKED_CATCH_UP || round == CATCH_UP_ROUNDS) {
+						catchUp(old, mapping, changes);
+						mapping.writeHeader();
+						mapping.commit();
+						switchTo(mapping, started);
+						return;
+					}
+				}
+				catchUp(old, mapping, changes);
+			}
+		} catch (IOException | RuntimeException e) {
+			Log.error("Failed to rebuild the registration store " + m_file + ", retrying later", e);
+			if (mapping != null) {
+				discard(mapping);
+			}
+		} finally {
+			synchronized (this) {
+				if (m_rebuilding && m_mapping == old) {
+					m_nextRebuild = System.nanoTime() + REBUILD_RETRY_INTERVAL;
+				}
+				m_rebuilding = false;
+				m_rebuildChanges = null;
+				notifyAll();
+			}
+		}
+	}
+
+	// Rebuilds the store at once into the next generation, with the live records of the current one unless empty
+	private void rebuild(int slots, boolean empty) throws IOException {
+		long started = System.nanoTime();
+		Mapping mapping = copyLive(m_mapping, m_generation + 1, slots, empty);
+		try {
+			mapping.writeHeader();
+			mapping.commit();
+		} catch (IOException | RuntimeException e) {
+			discard(mapping);
+			throw e;
+		}
+		switchTo(mapping, started);
+	}
+
+	// A new generation with the live records of old, unless empty. Takes no lock: the slots of old are read as the
+	// reads do, and a device changed meanwhile is copied once more by catchUp.
+	private Mapping copyLive(Mapping old, long generation, int slots, boolean empty) throws IOException {
+		Mapping mapping = Mapping.create(generationFile(m_file, generation), slots);
+		try {
+			for (int i = 0; i < old.slots && !empty; ++i) {
+				long slot = old.slot(i);
+				if (slot != EMPTY && slot != TOMBSTONE) {
+					insert(mapping, copyRecord(old, offset(slot), mapping));
+				}
+			}
+			return mapping;
+		} catch (IOException | RuntimeException e) {
+			discard(mapping);
+			throw e;
+		}
+	}
+
+	// Deletes a generation which isn't switched to
+	private static void discard(Mapping mapping) {
+		try {
+			mapping.close();
+		} catch (IOException e) {
+		}
+		mapping.file.delete();
+	}
+
+	// Copies the devices of uids, as they are in old now, to mapping
+	private static void catchUp(Mapping old, Mapping mapping, List<byte[]> uids) throws IOException {
+		for (byte[] uid : uids) {
+			long hash = hash(uid);
+			long record = find(old, uid, hash);
+			if (record >= 0) {
+				insert(mapping, copyRecord(old, record, mapping));
+				continue;
+			}
+
+			int index = probe(mapping, uid, hash);
+			if (index >= 0) {
+				mapping.garbage += mapping.recordSize(offset(mapping.slot(index)));
+				mapping.setSlot(index, TOMBSTONE);
+				--mapping.size;
+				++mapping.tombstones;
+			}
+		}
+	}
+
+	private static long copyRecord(Mapping from, long record, Mapping to) throws IOException {
+		int length = from.chunk(record).getInt(position(record) + LENGTH);
+		long copy = to.allocate(length);
+		to.chunk(copy).put(position(copy), from.chunk(record), position(record), length);
+		return copy;
+	}
+
+	// Adds the slot of a record of mapping, replacing the one of the same uid if any
+	private static void insert(Mapping mapping, long record) throws IOException {
+		long hash = mapping.hash(record);
+		int mask = mapping.slots - 1;
+		long tag = hash >>> TAG_SHIFT;
+		int free = -1;
+		for (int i = (int)hash & mask; ; i = (i + 1) & mask) {
+			long slot = mapping.slot(i);
+			if (slot == EMPTY) {
+				if (isFull(mapping, 1)) {
+					throw new IOException("The next generation of the registration store " + mapping.file + " is full");
+				}
+				if (free >= 0) {
+					i = free;
+					--mapping.tombstones;
+				}
+				mapping.setSlot(i, slot(hash, record));
+				++mapping.size;
+				return;
+			}
+			if (slot == TOMBSTONE) {
+				if (free < 0) {
+					free = i;
+				}
+			} else if (slot >>> TAG_SHIFT == tag && mapping.uidEquals(offset(slot), record)) {
+				replace(mapping, i, offset(slot), record, hash);
+				return;
+			}
+		}
+	}
+
+	// Makes mapping the current generation, under the lock
+	private void switchTo(Mapping mapping, long started) throws IOException {
+		Mapping old = m_mapping;
+		m_mapping = mapping;
+		++m_generation;
+		old.close();
+		if (!old.file.delete()) {
+			Log.warn("Can't delete " + old.file + " yet");
+		}
+
+		REBUILDS.inc();
+		Log.info("Rebuilt the registration store " + mapping.file + ": " + mapping.size + " devices, " + mapping.slots
+				+ " slots, " + (System.nanoTime() - started) / 1000000 + " ms");
+	}
+
+	// Drops the slots of the records which aren't whole and the older slot of a uid found twice, and counts the rest
+	private static void recover(Mapping mapping) {
+		long started = System.nanoTime();
+		CRC32 crc = new CRC32();
+		int dropped = 0;
+		long live = 0;
+		long end = Math.max(mapping.end, 0);
+
+		for (int i = 0; i < mapping.slots; ++i) {
+			long slot = mapping.slot(i);
+			if (slot == EMPTY || slot == TOMBSTONE) {
+				continue;
+			}
+
+			long record = offset(slot);
+			int length = mapping.checkedLength(record, slot, crc);
+			if (length < 0) {
+				mapping.setSlot(i, TOMBSTONE);
+				++dropped;
+			} else {
+				end = Math.max(end, record + align(length, RECORD_ALIGNMENT));
+			}
+		}
+
+		// A slot written after an older state of the one before it (on another page) may be behind an empty slot
+		for (int i = 0; i < mapping.slots; ++i) {
+			long slot = mapping.slot(i);
+			if (slot == EMPTY || slot == TOMBSTONE) {
+				continue;
+			}
+
+			long record = offset(slot);
+			ByteBuffer chunk = mapping.chunk(record);
+			byte[] uid = new byte[chunk.getInt(position(record) + UID_LENGTH)];
+			chunk.get(position(record) + DATA, uid);
+			int index = probe(mapping, uid, hash(uid));
+			if (index == i) {
+				continue;
+			}
+
+			if (index >= 0) {
+				// Records are appended: the one further in the arena is the latest change of the device
+				if (record > offset(mapping.slot(index))) {
+					mapping.setSlot(index, slot);
+				}
+				++dropped;
+			} else {
+				mapping.setSlot(-index - 1, slot);
+			}
+			mapping.setSlot(i, TOMBSTONE);
+		}
+
+		int size = 0;
+		long tombstones = 0;
+		for (int i = 0; i < mapping.slots; ++i) {
+			long slot = mapping.slot(i);
+			if (slot == TOMBSTONE) {
+				++tombstones;
+			} else if (slot != EMPTY) {
+				++size;
+				live += mapping.recordSize(offset(slot));
+			}
+		}
+
+		mapping.end = end;
+		mapping.size = size;
+		mapping.tombstones = tombstones;
+		mapping.garbage = end - live;
+		mapping.writeHeader();
+		mapping.force();
+
+		Log.warn("The registration store " + mapping.file + " wasn't closed: checked " + size + " devices, dropped "
+				+ dropped + " broken records in " + (System.nanoTime() - started) / 1000000 + " ms");
+	}
+
+	// The slot of uid, or -(the first free slot on its way) - 1 if it isn't there
+	private static int probe(Mapping mapping, byte[] uid, long hash) {
+		int mask = mapping.slots - 1;
+		long tag = hash >>> TAG_SHIFT;
+		int free = -1;
+		for (int i = (int)hash & mask; ; i = (i + 1) & mask) {
+			long slot = mapping.slot(i);
+			if (slot == EMPTY) {
+				return -(free >= 0 ? free : i) - 1;
+			}
+			if (slot == TOMBSTONE) {
+				if (free < 0) {
+					free = i;
+				}
+			} else if (slot >>> TAG_SHIFT == tag && mapping.uidEquals(offset(slot), uid)) {
+				return i;
+			}
+		}
+	}
+
+	// The record of uid, -1 if none: doesn't lock, so the slot is read once
+	private static long find(Mapping mapping, byte[] uid, long hash) {
+		int mask = mapping.slots - 1;
+		long tag = hash >>> TAG_SHIFT;
+		for (int i = (int)hash & mask; ; i = (i + 1) & mask) {
+			long slot = mapping.slot(i);
+			if (slot == EMPTY) {
+				return -1;
+			}
+			if (slot != TOMBSTONE && slot >>> TAG_SHIFT == tag && mapping.uidEquals(offset(slot), uid)) {
+				return offset(slot);
+			}
+		}
+	}
+
+	// The record offset in units of RECORD_ALIGNMENT, plus one so that a slot is never EMPTY
+	private static long slot(long hash, long record) {
+		return (hash >>> TAG_SHIFT << TAG_SHIFT) | (record / RECORD_ALIGNMENT + 1);
+	}
+
+	private static long offset(long slot) {
+		return ((slot & ~(-1L << TAG_SHIFT)) - 1) * RECORD_ALIGNMENT;
+	}
+
+	private static int position(long record) {
+		return (int)(record % CHUNK_SIZE);
+	}
+
+	// FNV-1a of the UTF-8 bytes, mixed (MurmurHash3's finalizer) so that both its low bits (the slot) and its high
+	// ones (the tag) vary
+	private static long hash(byte[] bytes) {
+		long hash = FNV_OFFSET;
+		for (byte b : bytes) {
+			hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+		}
+		return mix(hash);
+	}
+
+	private static long hash(ByteBuffer buffer, int position, int length) {
+		long hash = FNV_OFFSET;
+		for (int i = 0; i < length; ++i) {
+			hash = (hash ^ (buffer.get(position + i) & 0xFF)) * FNV_PRIME;
+		}
+		return mix(hash);
+	}
+
+	private static long mix(long hash) {
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return hash ^ (hash >>> 33);
+	}
+
+	private static boolean bytesEqual(ByteBuffer buffer, int position, byte[] bytes) {
+		for (int i = 0; i < bytes.length; ++i) {
+			if (buffer.get(position + i) != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String string(ByteBuffer buffer, int position, int length) {
+		byte[] bytes = new byte[length];
+		buffer.get(position, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// The same instance for every device of a known provider
+	private static String provider(ByteBuffer buffer, int position, int length) {
+		for (int i = 0; i < PROVIDERS.length; ++i) {
+			if (PROVIDER_BYTES[i].length == length && bytesEqual(buffer, position, PROVIDER_BYTES[i])) {
+				return PROVIDERS[i];
+			}
+		}
+		return string(buffer, position, length);
+	}
+
+	private static void putInt(ByteBuffer buffer, int position, int value, CRC32 crc) {
+		buffer.putInt(position, value);
+		crc.update(value >>> 24);
+		crc.update(value >>> 16);
+		crc.update(value >>> 8);
+		crc.update(value);
+	}
+
+	private static long align(long value, int alignment) {
+		return (value + alignment - 1) / alignment * alignment;
+	}
+
+	// The slots of a complete store, -1 if it isn't one
+	private static int readSlots(File file) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(SLOTS + 4);
+			while (header.hasRemaining() && channel.read(header) >= 0) {
+			}
+
+			int slots = header.getInt(SLOTS);
+			boolean valid = !header.hasRemaining() && header.getInt(MAGIC_OFFSET) == MAGIC
+					&& header.getInt(VERSION_OFFSET) == VERSION && slots >= INITIAL_SLOTS && slots <= MAX_SLOTS
+					&& Integer.bitCount(slots) == 1;
+			return valid ? slots : -1;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	// Newest first
+	private static List<Long> generations(File file) {
+		List<Long> generations = new ArrayList<Long>();
+		File[] files = file.getParentFile().listFiles();
+		String prefix = file.getName() + ".";
+		for (File candidate : files != null ? files : new File[0]) {
+			String name = candidate.getName();
+			if (name.startsWith(prefix)) {
+				try {
+					generations.add(Long.parseLong(name.substring(prefix.length())));
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		Collections.sort(generations, Collections.reverseOrder());
+		return generations;
+	}
+
+	private static File generationFile(File file, long generation) {
+		return new File(file.getPath() + "." + generation);
+	}
+
+	// The header
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int SLOTS = 8;
+	private static final int CLEAN = 12;
+	private static final int END = 16;
+	private static final int SIZE = 24;
+	private static final int TOMBSTONES = 32;
+	private static final int GARBAGE = 40;
+	private static final int HEADER_SIZE = 4096;
+	private static final int MAGIC = 0x55544E53; // UTNS
+	private static final int VERSION = 1;
+
+	// A record: its length and the CRC32 of the rest, the lengths of the uid, provider and id (-1 for null), the
+	// UTF-8 bytes of all three
+	private static final int LENGTH = 0;
+	private static final int CRC = 4;
+	private static final int UID_LENGTH = 8;
+	private static final int PROVIDER_LENGTH = 12;
+	private static final int ID_LENGTH = 16;
+	private static final int DATA = 20;
+	private static final int RECORD_ALIGNMENT = 8;
+
+	private static final int SLOT_SIZE = 8;
+	private static final long EMPTY = 0;
+	private static final long TOMBSTONE = -1;
+	private static final int TAG_SHIFT = 40;
+	private static final int INITIAL_SLOTS = 4096;
+	// An index of 1 GB: 100 million devices
+	private static final int MAX_SLOTS = 1 << 27;
+	private static final int PAGE_SIZE = 4096;
+	// The arena is mapped by chunks, as a mapped buffer can't be larger than 2 GB
+	private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+	// The largest offset a slot can take
+	private static final long MAX_ARENA = (1L << TAG_SHIFT) * RECORD_ALIGNMENT / 2;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static final VarHandle SLOT = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	private static final String[] PROVIDERS = { "FCM", "GooglePlay", "ADM", "Amazon", "APNS", "iOS", "WNS", "Windows" };
+	private static final byte[][] PROVIDER_BYTES = new byte[PROVIDERS.length][];
+	static {
+		for (int i = 0; i < PROVIDERS.length; ++i) {
+			PROVIDER_BYTES[i] = PROVIDERS[i].getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	// Changes noted during a rebuild copied at the switch, under the lock, rather than in another round without it
+	private static final int LOCKED_CATCH_UP = 1024;
+	private static final int CATCH_UP_ROUNDS = 8;
+	private static final long REBUILD_RETRY_INTERVAL = 1000000000L;
+
+	private static final Metrics.Counter REBUILDS = Metrics.counter("demoserver_registrator_store_rebuilds_total",
+			"Rebuilds of the mapped registration store, to grow its index or drop the replaced records.", "");
+
+	private final File m_file;
+	private long m_generation;
+	private volatile Mapping m_mapping;
+	private boolean m_closed;
+	private final CRC32 m_crc = new CRC32();
+	// Guarded by this: whether a background rebuild is running and the uids changed since it has started
+	private boolean m_rebuilding;
+	private List<byte[]> m_rebuildChanges;
+	private long m_nextRebuild = System.nanoTime();
+}
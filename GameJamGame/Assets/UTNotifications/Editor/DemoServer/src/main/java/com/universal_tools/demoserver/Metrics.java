@@ -0,0 +1,192 @@
+package com.universal_tools.demoserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/// <summary>
+/// Counters, gauges and histograms reported by the <c>/metrics</c> request in the Prometheus text format.
+/// </summary>
+/// <remarks>
+/// Recording is meant for the hot path: a counter is a <c>LongAdder</c>, which threads update without contending,
+/// and a histogram has fixed buckets, each a <c>LongAdder</c> as well. Callers look their metrics up once and keep
+/// them; only reporting walks the registry.
+/// </remarks>
+class Metrics {
+// public
+	public static class Counter {
+		public void inc() {
+			m_value.increment();
+		}
+
+		public void add(long value) {
+			m_value.add(value);
+		}
+
+	// private
+		private final LongAdder m_value = new LongAdder();
+	}
+
+	/// <summary>
+	/// Durations in buckets from 0.5 ms to 10 s.
+	/// </summary>
+	public static class Histogram {
+		public void observeNanos(long nanos) {
+			int i = 0;
+			while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i]) {
+				++i;
+			}
+
+			// The last counter is the +Inf bucket
+			m_buckets[i].increment();
+			m_sumNanos.add(nanos);
+		}
+
+		/// <summary>
+		/// Records the time passed since <c>startedNanos</c> (a <c>System.nanoTime()</c> value).
+		/// </summary>
+		public void observeSince(long startedNanos) {
+			observeNanos(System.nanoTime() - startedNanos);
+		}
+
+	// private
+		private Histogram() {
+			for (int i = 0; i < m_buckets.length; ++i) {
+				m_buckets[i] = new LongAdder();
+			}
+		}
+
+		private final LongAdder[] m_buckets = new LongAdder[BUCKETS.length + 1];
+		private final LongAdder m_sumNanos = new LongAdder();
+	}
+
+	public interface Gauge {
+		double value();
+	}
+
+	/// <param name="labels">Prometheus labels without braces, f.e. <c>route="/notify",status="200"</c>, or an empty string.</param>
+	public static Counter counter(String name, String help, String labels) {
+		return (Counter)family(name, help, "counter").metric(labels);
+	}
+
+	public static Histogram histogram(String name, String help, String labels) {
+		return (Histogram)family(name, help, "histogram").metric(labels);
+	}
+
+	public static void gauge(String name, String help, String labels, Gauge gauge) {
+		family(name, help, "gauge").m_metrics.put(labels, gauge);
+	}
+
+	/// <summary>
+	/// Escapes a label value, f.e. a request path.
+	/// </summary>
+	public static String label(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	public static String report() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, Family> entry : m_families.entrySet()) {
+			entry.getValue().report(entry.getKey(), builder);
+		}
+
+		return builder.toString();
+	}
+
+// private
+	private static class Family {
+		private Family(String help, String type) {
+			m_help = help;
+			m_type = type;
+		}
+
+		private Object metric(String labels) {
+			Object metric = m_metrics.get(labels);
+			if (metric == null) {
+				Object created = "counter".equals(m_type) ? new Counter() : new Histogram();
+				metric = m_metrics.putIfAbsent(labels, created);
+				if (metric == null) {
+					metric = created;
+				}
+			}
+
+			return metric;
+		}
+
+		private void report(String name, StringBuilder builder) {
+			builder.append("# HELP ").append(name).append(' ').append(m_help).append('\n');
+			builder.append("# TYPE ").append(name).append(' ').append(m_type).append('\n');
+
+			for (Map.Entry<String, Object> entry : m_metrics.entrySet()) {
+				String labels = entry.getKey();
+				Object metric = entry.getValue();
+				if (metric instanceof Counter) {
+					sample(builder, name, labels, null, ((Counter)metric).m_value.sum());
+				} else if (metric instanceof Gauge) {
+					sample(builder, name, labels, null, ((Gauge)metric).value());
+				} else {
+					Histogram histogram = (Histogram)metric;
+					long count = 0;
+					for (int i = 0; i < histogram.m_buckets.length; ++i) {
+						count += histogram.m_buckets[i].sum();
+						String le = i < BUCKETS.length ? BUCKETS[i] : "+Inf";
+						sample(builder, name + "_bucket", labels, "le=\"" + le + "\"", count);
+					}
+					sample(builder, name + "_sum", labels, null, histogram.m_sumNanos.sum() / 1e9);
+					sample(builder, name + "_count", labels, null, count);
+				}
+			}
+		}
+
+		private static void sample(StringBuilder builder, String name, String labels, String extraLabel, double value) {
+			builder.append(name);
+			if (!labels.isEmpty() || extraLabel != null) {
+				builder.append('{').append(labels);
+				if (extraLabel != null) {
+					builder.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+				}
+				builder.append('}');
+			}
+
+			builder.append(' ');
+			if (value == (long)value) {
+				builder.append((long)value);
+			} else {
+				builder.append(value);
+			}
+			builder.append('\n');
+		}
+
+		private final String m_help;
+		private final String m_type;
+		private final ConcurrentSkipListMap<String, Object> m_metrics = new ConcurrentSkipListMap<String, Object>();
+	}
+
+	private static Family family(String name, String help, String type) {
+		Family family = m_families.get(name);
+		if (family == null) {
+			Family created = new Family(help, type);
+			family = m_families.putIfAbsent(name, created);
+			if (family == null) {
+				family = created;
+			}
+		}
+
+		if (!family.m_type.equals(type)) {
+			throw new IllegalArgumentException(name + " is a " + family.m_type + ", not a " + type);
+		}
+
+		return family;
+	}
+
+	private static final String[] BUCKETS = { "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1",
+			"0.25", "0.5", "1", "2.5", "5", "10" };
+	private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+	static {
+		for (int i = 0; i < BUCKETS.length; ++i) {
+			BUCKET_NANOS[i] = (long)(Double.parseDouble(BUCKETS[i]) * 1e9);
+		}
+	}
+
+	private static final ConcurrentSkipListMap<String, Family> m_families = new ConcurrentSkipListMap<String, Family>();
+}
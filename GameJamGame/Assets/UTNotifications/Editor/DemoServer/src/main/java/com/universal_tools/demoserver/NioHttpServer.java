@@ -0,0 +1,491 @@
+package com.universal_tools.demoserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/// <summary>
+/// Non-blocking alternative to the thread per connection mode of <c>HttpServer</c>.
+/// </summary>
+/// <remarks>
+/// One selector loop per core accepts connections, reads, parses and writes, so an idle or slow connection
+/// costs a buffer instead of a thread. The loops are split between <c>ServerOptions.ACCEPTORS</c> acceptors, the
+/// first loop of each accepting the connections for all of its loops. Only complete requests reach the small handler pool, which runs
+/// <c>RequestHandler</c> exactly as the blocking mode does. An <c>/events</c> stream stays on its loop: new events
+/// wake the loop up and are written only once the previous ones are, so a slow subscriber falls behind in
+/// <c>DeliveryEvents</c> instead of buffering here.
+/// </remarks>
+class NioHttpServer {
+// public
+	public NioHttpServer(int port, int eventLoops, int handlerThreads) throws IOException {
+		m_handlers = WorkerPool.create("nio-handler", handlerThreads, ServerOptions.WORKER_QUEUE);
+
+		int acceptors = ServerOptions.ACCEPTORS;
+		m_loops = new EventLoop[eventLoops];
+		for (int i = 0; i < eventLoops; ++i) {
+			m_loops[i] = new EventLoop(i % acceptors);
+		}
+
+		// The first loop of every acceptor also accepts connections and spreads them over the loops of the
+		// acceptor: i, i + acceptors, i + 2 * acceptors...
+		boolean reusePort = HttpServer.reusePort();
+		ServerSocketChannel serverChannel = null;
+		for (int i = 0; i < acceptors; ++i) {
+			if (serverChannel == null || reusePort) {
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.configureBlocking(false);
+				serverChannel.socket().setReuseAddress(true);
+				if (reusePort) {
+					serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				serverChannel.bind(new InetSocketAddress(port));
+				Shutdown.onShutdownClose(serverChannel);
+			}
+
+			m_loops[i].m_serverChannel = serverChannel;
+			serverChannel.register(m_loops[i].m_selector, SelectionKey.OP_ACCEPT);
+		}
+		m_reusePort = reusePort;
+	}
+
+	/// <summary>
+	/// Runs the event loops. The calling thread becomes the first (accepting) loop and never returns.
+	/// </summary>
+	public void run() {
+		for (int i = 1; i < m_loops.length; ++i) {
+			Thread thread = new Thread(m_loops[i], "nio-loop-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		Thread.currentThread().setName("nio-loop-0");
+		m_loops[0].run();
+	}
+
+	/// <summary>
+	/// Describes how connections are accepted, f.e. <c>2 acceptors, SO_REUSEPORT</c>.
+	/// </summary>
+	public String acceptors() {
+		int acceptors = ServerOptions.ACCEPTORS;
+		return acceptors + (acceptors > 1 ? " acceptors, " + (m_reusePort ? "SO_REUSEPORT" : "shared socket") : " acceptor");
+	}
+
+// private
+	private class EventLoop implements Runnable {
+		private EventLoop(int acceptor) throws IOException {
+			m_acceptor = acceptor;
+			m_nextLoop = acceptor;
+			m_selector = Selector.open();
+		}
+
+		// Runs the task on the loop thread
+		private void execute(Runnable task) {
+			m_tasks.add(task);
+			m_selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					m_selector.select(SELECT_TIMEOUT);
+
+					Runnable task;
+					while ((task = m_tasks.poll()) != null) {
+						task.run();
+					}
+
+					Iterator<SelectionKey> it = m_selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+
+						if (!key.isValid()) {
+							continue;
+						}
+
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							Connection connection = (Connection)key.attachment();
+							try {
+								if (key.isReadable()) {
+									connection.onReadable();
+								}
+								if (key.isValid() && key.isWritable()) {
+									connection.onWritable();
+								}
+							} catch (IOException e) {
+								connection.close();
+							}
+						}
+					}
+
+					closeSlowConnections();
+				} catch (Throwable t) {
+					Log.error(t);
+				}
+			}
+		}
+
+		// Closes the connections idle for longer than the keep-alive timeout, answers the ones too slow to send
+		// their request with 408 and closes the ones whose response isn't read
+		private void closeSlowConnections() {
+			long now = System.currentTimeMillis();
+			if (now - m_lastIdleCheck < SELECT_TIMEOUT) {
+				return;
+			}
+			m_lastIdleCheck = now;
+
+			for (SelectionKey key : m_selector.keys()) {
+				Object attachment = key.attachment();
+				if (attachment instanceof Connection) {
+					Connection connection = (Connection)attachment;
+					if (connection.m_subscription != null) {
+						connection.checkEvents(now);
+					} else if (!connection.m_busy) {
+						connection.checkTimeouts(now);
+					} else {
+						connection.checkWriteTimeout(now);
+					}
+				}
+			}
+		}
+
+		// A shared socket wakes the accepting loops of all the acceptors up, only one of them gets the connection
+		private void accept() throws IOException {
+			SocketChannel channel;
+			while ((channel = m_serverChannel.accept()) != null) {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				ServerStats.onConnectionAccepted(m_acceptor);
+
+				final SocketChannel acceptedChannel = channel;
+				final EventLoop loop = m_loops[m_nextLoop];
+				m_nextLoop += ServerOptions.ACCEPTORS;
+				if (m_nextLoop >= m_loops.length) {
+					m_nextLoop = m_acceptor;
+				}
+
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							SelectionKey key = acceptedChannel.register(loop.m_selector, SelectionKey.OP_READ);
+							key.attach(new Connection(loop, acceptedChannel, key));
+						} catch (IOException e) {
+							closeQuietly(acceptedChannel);
+						}
+					}
+				});
+			}
+		}
+
+		// The acceptor the loop belongs to; the accepting loops have its socket as well
+		private final int m_acceptor;
+		private ServerSocketChannel m_serverChannel;
+		private final Selector m_selector;
+		private final ConcurrentLinkedQueue<Runnable> m_tasks = new ConcurrentLinkedQueue<Runnable>();
+		private int m_nextLoop;
+		private long m_lastIdleCheck;
+	}
+
+	private class Connection {
+		private Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+			m_loop = loop;
+			m_channel = channel;
+			m_key = key;
+			m_parser = new HttpRequestParser(channel.socket().getInetAddress());
+			m_lastActivity = System.currentTimeMillis();
+		}
+
+		private void onReadable() throws IOException {
+			m_lastActivity = System.currentTimeMillis();
+
+			m_in.compact();
+			int read = m_channel.read(m_in);
+			m_in.flip();
+
+			if (m_subscription != null) {
+				// An event stream is only read to notice that the client has gone, anything it sends is ignored
+				m_in.position(m_in.limit());
+				if (read < 0) {
+					close();
+				}
+				return;
+			}
+
+			if (read < 0) {
+				// The client won't send anything else
+				m_inputClosed = true;
+				if (m_parser.isIdle()) {
+					close();
+				} else {
+					respond(RequestHandler.errorResponse(
+							new HttpException("400 Bad Request", "Unexpected end of request")), false);
+				}
+				return;
+			}
+
+			parseNextRequest();
+		}
+
+		private void checkTimeouts(long now) {
+			long silent = now - m_lastActivity;
+			if (m_parser.isIdle() && m_served > 0) {
+				if (ServerOptions.KEEP_ALIVE_TIMEOUT > 0 && silent > ServerOptions.KEEP_ALIVE_TIMEOUT) {
+					ServerStats.onIdleTimeout();
+					close();
+				}
+			} else if (ServerOptions.REQUEST_TIMEOUT > 0 && !m_parser.isIdle()
+					&& now - m_requestStarted > ServerOptions.REQUEST_TIMEOUT) {
+				ServerStats.onRequestTimeout();
+				respond(RequestHandler.errorResponse(new HttpException("408 Request Timeout",
+						"Request not received in " + ServerOptions.REQUEST_TIMEOUT + " ms")), false);
+			} else if (ServerOptions.READ_TIMEOUT > 0 && silent > ServerOptions.READ_TIMEOUT) {
+				// Also a new connection which hasn't sent anything yet
+				ServerStats.onReadTimeout();
+				respond(RequestHandler.errorResponse(new HttpException("408 Request Timeout",
+						"No request data for " + ServerOptions.READ_TIMEOUT + " ms")), false);
+			}
+		}
+
+		// A busy connection is only checked while its response is being written, not while it's handled
+		private void checkWriteTimeout(long now) {
+			if (ServerOptions.WRITE_TIMEOUT > 0 && m_out != null && now - m_writeStarted > ServerOptions.WRITE_TIMEOUT) {
+				ServerStats.onWriteTimeout();
+				close();
+			}
+		}
+
+		private void onWritable() throws IOException {
+			m_channel.write(m_out);
+			if (m_out.hasRemaining()) {
+				return;
+			}
+
+			m_out = null;
+			if (m_subscription != null) {
+				m_subscription.onWriteFinished();
+				writeEvents();
+				return;
+			}
+
+			if (!m_keepAlive) {
+				close();
+				return;
+			}
+
+			m_busy = false;
+			m_lastActivity = System.currentTimeMillis();
+			m_key.interestOps(SelectionKey.OP_READ);
+
+			// A pipelined request may already be waiting in the buffer
+			parseNextRequest();
+		}
+
+		private void parseNextRequest() {
+			if (m_parser.isIdle() && m_in.hasRemaining()) {
+				m_requestStarted = System.currentTimeMillis();
+			}
+
+			HttpRequest request;
+			try {
+				request = m_parser.parse(m_in);
+			} catch (HttpException e) {
+				// The rest of the stream can't be trusted after a malformed request
+				ServerStats.onRequestRejected(e);
+				respond(RequestHandler.errorResponse(e), false);
+				return;
+			}
+
+			if (request != null) {
+				dispatch(request);
+			}
+		}
+
+		// Requests of the connection are handled one by one, so the responses keep the order of pipelined requests
+		private void dispatch(final HttpRequest request) {
+			m_busy = true;
+			m_key.interestOps(0);
+
+			ServerStats.onRequest(m_loop.m_acceptor, m_served++ > 0);
+			boolean keepAlive = request.keepAlive && ServerOptions.KEEP_ALIVE_TIMEOUT > 0 && !m_inputClosed
+					&& !Shutdown.isShuttingDown();
+			if (keepAlive && m_served >= ServerOptions.KEEP_ALIVE_MAX_REQUESTS) {
+				ServerStats.onMaxRequestsReached();
+				keepAlive = false;
+			}
+
+			final boolean keepConnection = keepAlive;
+			boolean accepted = m_handlers.tryExecute(new Runnable() {
+				@Override
+				public void run() {
+					final HttpResponse response = RequestHandler.handle(request);
+
+					final byte[] responseBytes = response.toBytes(keepConnection);
+					m_loop.execute(new Runnable() {
+						@Override
+						public void run() {
+							if (response.subscription() != null) {
+								streamEvents(response.subscription(), responseBytes);
+							} else {
+								send(responseBytes, keepConnection);
+							}
+						}
+					});
+				}
+			});
+
+			if (!accepted) {
+				respond(RequestHandler.overloadedResponse(), false);
+			}
+		}
+
+		// Writes a response prepared on the loop thread itself
+		private void respond(HttpResponse response, boolean keepAlive) {
+			m_busy = true;
+			send(response.toBytes(keepAlive), keepAlive);
+		}
+
+		private void send(byte[] data, boolean keepAlive) {
+			if (!m_key.isValid()) {
+				return;
+			}
+
+			m_out = ByteBuffer.wrap(data);
+			m_writeStarted = System.currentTimeMillis();
+			m_keepAlive = keepAlive;
+			m_key.interestOps(SelectionKey.OP_WRITE);
+			try {
+				onWritable();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		// Writes the head of an event stream, then keeps the connection for its events
+		private void streamEvents(DeliveryEvents.Subscription subscription, byte[] head) {
+			m_subscription = subscription;
+			if (!m_key.isValid()) {
+				subscription.close();
+				return;
+			}
+
+			final Runnable write = new Runnable() {
+				@Override
+				public void run() {
+					writeEvents();
+				}
+			};
+			subscription.attach(new Runnable() {
+				@Override
+				public void run() {
+					m_loop.execute(write);
+				}
+			}, new Closeable() {
+				@Override
+				public void close() {
+					m_loop.execute(new Runnable() {
+						@Override
+						public void run() {
+							Connection.this.close();
+						}
+					});
+				}
+			});
+
+			m_out = ByteBuffer.wrap(head);
+			subscription.onWriteStarted();
+			m_key.interestOps(SelectionKey.OP_WRITE);
+			try {
+				onWritable();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		// Writes the events published since the last write. Nothing is queued while a write is in progress: the
+		// subscription keeps the position and the events since are written once it's complete.
+		private void writeEvents() {
+			if (m_out != null || !m_key.isValid()) {
+				return;
+			}
+
+			byte[] events = m_subscription.poll();
+			if (events == null) {
+				if (m_subscription.isClosed()) {
+					close();
+				} else {
+					m_key.interestOps(SelectionKey.OP_READ);
+				}
+				return;
+			}
+
+			m_out = ByteBuffer.wrap(events);
+			m_subscription.onWriteStarted();
+			m_key.interestOps(SelectionKey.OP_WRITE);
+			try {
+				onWritable();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		// Heartbeats of an idle event stream, the end of a closed one and dropping a stuck one
+		private void checkEvents(long now) {
+			m_subscription.dropIfStuck(now);
+			writeEvents();
+		}
+
+		private void close() {
+			m_key.cancel();
+			closeQuietly(m_channel);
+			if (m_subscription != null) {
+				m_subscription.close();
+			}
+		}
+
+		private final EventLoop m_loop;
+		private final SocketChannel m_channel;
+		private final SelectionKey m_key;
+		private final HttpRequestParser m_parser;
+		// Always in the "read" state: the bytes between the position and the limit are not parsed yet
+		private final ByteBuffer m_in = ByteBuffer.allocate(BUFFER_SIZE).limit(0);
+		private ByteBuffer m_out;
+		private boolean m_keepAlive;
+		private boolean m_inputClosed;
+		private int m_served;
+		// Set while a request is being handled or its response written; such connections are never idle
+		private boolean m_busy;
+		private long m_lastActivity;
+		// When the first bytes of the request being received arrived
+		private long m_requestStarted;
+		// When the response being written was queued
+		private long m_writeStarted;
+		// Set once the connection streams /events
+		private DeliveryEvents.Subscription m_subscription;
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final long SELECT_TIMEOUT = 1000;
+
+	private final WorkerPool m_handlers;
+	private final EventLoop[] m_loops;
+	private final boolean m_reusePort;
+}
@@ -0,0 +1,628 @@
+package com.universal_tools.demoserver;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// <summary>
+/// A notification fan-out to all the registered devices, run in the background after <c>/notify</c> has
+/// already been answered. Its progress is reported by <c>/jobs/{id}</c>.
+/// </summary>
+/// <remarks>
+/// Jobs run on their own <c>WorkerPool</c> (<c>ServerOptions.NOTIFY_JOB_THREADS</c>), so a long fan-out doesn't
+/// hold a request thread. Finished jobs are kept for polling, the last <c>ServerOptions.JOB_HISTORY</c> of them.
+/// On shutdown the running jobs get some time to finish, then stop after the sends in progress; what is left of
+/// them, and the jobs still queued, is checkpointed to <c>CHECKPOINT_FILE</c> and resumed on the next start, so a
+/// restart neither loses a fan-out nor sends it all over again.
+/// </remarks>
+@SuppressWarnings("unchecked")
+class NotifyJob implements Runnable {
+// public
+	/// <summary>
+	/// Counters of a single provider. <c>pending</c> is what is neither sent, failed nor skipped yet.
+	/// </summary>
+	/// <remarks>
+	/// The changes are also published to <c>DeliveryEvents</c> as <c>delivery</c> events, one per
+	/// <c>EVENT_BATCH_SIZE</c> devices or <c>EVENT_BATCH_INTERVAL</c> ms, whichever comes first, and one per
+	/// <c>flushEvents</c>.
+	/// </remarks>
+	public static class Progress {
+		public Progress(long jobId, String provider) {
+			m_jobId = jobId;
+			this.provider = provider;
+			m_sentTotal = sendsCounter(provider, "sent");
+			m_failedTotal = sendsCounter(provider, "failed");
+			m_skippedTotal = sendsCounter(provider, "skipped");
+		}
+
+		/// <summary>
+		/// Adds to the count of devices the provider is going to notify, as the fan-out finds them.
+		/// </summary>
+		public void addRecipients(int recipients) {
+			m_recipients.addAndGet(recipients);
+		}
+
+		public void onSent(int count) {
+			m_sent.addAndGet(count);
+			m_sentTotal.add(count);
+			batch(count, 0, 0, 0, null);
+		}
+
+		public void onFailed(int count) {
+			onFailed(count, null);
+		}
+
+		/// <param name="error">The error reported by the provider, f.e. <c>NotRegistered</c>, or <c>null</c>.</param>
+		public void onFailed(int count, String error) {
+			m_failed.addAndGet(count);
+			m_failedTotal.add(count);
+			batch(0, count, 0, 0, error);
+		}
+
+		/// <summary>
+		/// Devices which won't be notified at all, f.e. because the provider isn't configured.
+		/// </summary>
+		public void onSkipped(int count) {
+			m_skipped.addAndGet(count);
+			m_skippedTotal.add(count);
+			batch(0, 0, count, 0, null);
+		}
+
+		/// <summary>
+		/// A device notified under a new registration id the provider has given (a canonical id).
+		/// </summary>
+		public void onIdUpdated() {
+			m_idsUpdated.incrementAndGet();
+			batch(0, 0, 0, 1, null);
+		}
+
+		/// <summary>
+		/// Counts the results of a single request for many devices, published as a single <c>delivery</c> event.
+		/// </summary>
+		/// <param name="errors">Failed devices by the error reported by the provider.</param>
+		public void onResults(int sent, Map<String, Integer> errors, int idsUpdated) {
+			int failed = 0;
+			for (int count : errors.values()) {
+				failed += count;
+			}
+
+			m_sent.addAndGet(sent);
+			m_sentTotal.add(sent);
+			m_failed.addAndGet(failed);
+			m_failedTotal.add(failed);
+			m_idsUpdated.addAndGet(idsUpdated);
+			synchronized (this) {
+				add(sent, 0, 0, idsUpdated, null);
+				for (Map.Entry<String, Integer> entry : errors.entrySet()) {
+					add(0, entry.getValue(), 0, 0, entry.getKey());
+				}
+				flushEvents();
+			}
+		}
+
+		/// <summary>
+		/// Devices left for the next start of the server because the job was stopped before notifying them.
+		/// </summary>
+		public void onCheckpointed(Collection<Registrator.Item> items) {
+			synchronized (m_checkpointed) {
+				m_checkpointed.addAll(items);
+			}
+		}
+
+		/// <summary>
+		/// Publishes the changes since the last <c>delivery</c> event, if any, f.e. at the end of an FCM request.
+		/// </summary>
+		public synchronized void flushEvents() {
+			if (m_batchSent + m_batchFailed + m_batchSkipped + m_batchIdsUpdated == 0) {
+				return;
+			}
+
+			LinkedHashMap<String, Object> event = new LinkedHashMap<String, Object>();
+			event.put("job", m_jobId);
+			event.put("provider", provider);
+			event.put("sent", m_batchSent);
+			event.put("failed", m_batchFailed);
+			event.put("skipped", m_batchSkipped);
+			event.put("canonical_ids", m_batchIdsUpdated);
+			if (!m_batchErrors.isEmpty()) {
+				event.put("errors", m_batchErrors);
+				m_batchErrors = new TreeMap<String, Integer>();
+			}
+			DeliveryEvents.publish("delivery", event);
+
+			m_batchSent = 0;
+			m_batchFailed = 0;
+			m_batchSkipped = 0;
+			m_batchIdsUpdated = 0;
+		}
+
+		public final String provider;
+
+	// private
+		private void report(StringBuilder builder) {
+			int recipients = m_recipients.get();
+			int sent = m_sent.get();
+			int failed = m_failed.get();
+			int skipped = m_skipped.get();
+			int checkpointed;
+			synchronized (m_checkpointed) {
+				checkpointed = m_checkpointed.size();
+			}
+			append(builder, provider + "_recipients", recipients);
+			append(builder, provider + "_sent", sent);
+			append(builder, provider + "_failed", failed);
+			append(builder, provider + "_skipped", skipped);
+			append(builder, provider + "_checkpointed", checkpointed);
+			append(builder, provider + "_canonical_ids", m_idsUpdated.get());
+			append(builder, provider + "_pending", Math.max(0, recipients - sent - failed - skipped - checkpointed));
+		}
+
+		private synchronized void batch(int sent, int failed, int skipped, int idsUpdated, String error) {
+			add(sent, failed, skipped, idsUpdated, error);
+			if (m_batchSent + m_batchFailed + m_batchSkipped >= EVENT_BATCH_SIZE
+					|| System.currentTimeMillis() - m_batchStarted >= EVENT_BATCH_INTERVAL) {
+				flushEvents();
+			}
+		}
+
+		// Adds to the next delivery event, guarded by this
+		private void add(int sent, int failed, int skipped, int idsUpdated, String error) {
+			if (m_batchSent + m_batchFailed + m_batchSkipped + m_batchIdsUpdated == 0) {
+				m_batchStarted = System.currentTimeMillis();
+			}
+
+			m_batchSent += sent;
+			m_batchFailed += failed;
+			m_batchSkipped += skipped;
+			m_batchIdsUpdated += idsUpdated;
+			if (failed > 0) {
+				String key = error != null ? error : "error";
+				Integer count = m_batchErrors.get(key);
+				m_batchErrors.put(key, count == null ? failed : count + failed);
+			}
+		}
+
+		private static Metrics.Counter sendsCounter(String provider, String result) {
+			return Metrics.counter("demoserver_provider_sends_total", "Devices notified by all the jobs, by provider and result.",
+					"provider=\"" + provider + "\",result=\"" + result + "\"");
+		}
+
+		private static final int EVENT_BATCH_SIZE = 100;
+		private static final long EVENT_BATCH_INTERVAL = 1000;
+
+		private final long m_jobId;
+		private final AtomicInteger m_recipients = new AtomicInteger();
+		private final AtomicInteger m_sent = new AtomicInteger();
+		private final AtomicInteger m_failed = new AtomicInteger();
+		private final AtomicInteger m_skipped = new AtomicInteger();
+		private final AtomicInteger m_idsUpdated = new AtomicInteger();
+		private final List<Registrator.Item> m_checkpointed = new ArrayList<Registrator.Item>();
+		private final Metrics.Counter m_sentTotal;
+		private final Metrics.Counter m_failedTotal;
+		private final Metrics.Counter m_skippedTotal;
+		// Not published yet, guarded by this
+		private int m_batchSent;
+		private int m_batchFailed;
+		private int m_batchSkipped;
+		private int m_batchIdsUpdated;
+		private TreeMap<String, Integer> m_batchErrors = new TreeMap<String, Integer>();
+		private long m_batchStarted;
+	}
+
+	public NotifyJob(PushMessage message) {
+		this(message, null);
+	}
+
+	/// <param name="items">The devices to notify, <c>null</c> for all the registered ones at the time the job starts.</param>
+	public NotifyJob(PushMessage message, List<Registrator.Item> items) {
+		this.id = m_nextId.incrementAndGet();
+		this.message = message;
+		m_items = items;
+		m_created = System.currentTimeMillis();
+		fcm = new Progress(id, "fcm");
+		adm = new Progress(id, "adm");
+		apns = new Progress(id, "apns");
+		wns = new Progress(id, "wns");
+	}
+
+	/// <summary>
+	/// Queues a new job for <c>message</c>.
+	/// </summary>
+	/// <returns>The job or <c>null</c> if the job pool is saturated.</returns>
+	public static NotifyJob submit(PushMessage message) {
+		return submit(new NotifyJob(message));
+	}
+
+	/// <returns><c>job</c> or <c>null</c> if the job pool is saturated or the server is shutting down.</returns>
+	public static NotifyJob submit(NotifyJob job) {
+		if (m_shuttingDown) {
+			return null;
+		}
+
+		m_active.put(job.id, job);
+		if (!pool().tryExecute(job)) {
+			m_active.remove(job.id);
+			return null;
+		}
+
+		return job;
+	}
+
+	/// <returns>The queued, running or recently finished job or <c>null</c> if there is no such job.</returns>
+	public static NotifyJob find(long id) {
+		NotifyJob job = m_active.get(id);
+		if (job != null) {
+			return job;
+		}
+
+		synchronized (m_history) {
+			job = m_history.get(id);
+		}
+
+		// A job is added to the history before being removed from the active ones
+		return job != null ? job : m_active.get(id);
+	}
+
+	/// <summary>
+	/// Whether the running jobs should stop after the sends in progress, checkpointing the devices left.
+	/// </summary>
+	public static boolean isStopping() {
+		return m_stopping;
+	}
+
+	/// <summary>
+	/// Submits the jobs checkpointed by the previous shutdown, if any.
+	/// </summary>
+	public static void resumeCheckpointed() {
+		File file = new File(CHECKPOINT_FILE);
+		if (!file.exists()) {
+			return;
+		}
+
+		List<Checkpoint> checkpoints;
+		try (ObjectInputStream stream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			checkpoints = (List<Checkpoint>)stream.readObject();
+		} catch (Throwable t) {
+			// The file stays: the jobs aren't lost by a start which can't read them
+			Log.error("Failed to read the checkpointed notify jobs from " + CHECKPOINT_FILE, t);
+			return;
+		}
+
+		ArrayList<Checkpoint> left = new ArrayList<Checkpoint>();
+		for (Checkpoint checkpoint : checkpoints) {
+			List<Registrator.Item> items = checkpoint.items();
+			NotifyJob job = submit(new NotifyJob(checkpoint.message, items));
+			if (job != null) {
+				Log.info("Resumed notify job " + job.id + " for "
+						+ (items != null ? items.size() + " devices" : "all the devices"));
+			} else {
+				left.add(checkpoint);
+			}
+		}
+
+		if (left.isEmpty()) {
+			file.delete();
+			return;
+		}
+
+		// Kept for the next start: the file has just them from now on, and the next shutdown checkpoints them again
+		Log.warn("Can't resume " + left.size() + " checkpointed notify jobs: the job pool is saturated");
+		synchronized (m_stopped) {
+			m_stopped.addAll(left);
+		}
+		writeCheckpoints(left);
+	}
+
+	/// <summary>
+	/// Stops the jobs for the server shutdown: no new job starts, the running ones may finish until 3/4 of the time
+	/// left before <c>deadline</c> (a <c>System.currentTimeMillis()</c> value) and are stopped then. The jobs not
+	/// finished are checkpointed.
+	/// </summary>
+	/// <returns>The count of checkpointed jobs.</returns>
+	public static int shutdown(long deadline) {
+		m_shuttingDown = true;
+
+		long now = System.currentTimeMillis();
+		waitForRunningJobs(now + (deadline - now) * 3 / 4);
+		m_stopping = true;
+		waitForRunningJobs(deadline);
+
+		// The unfinished jobs first: one finishing meanwhile adds itself to m_stopped unless it's checkpointed here
+		List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+		for (NotifyJob job : m_active.values()) {
+			Checkpoint checkpoint = job.checkpointUnfinished();
+			if (checkpoint != null) {
+				checkpoints.add(checkpoint);
+			}
+		}
+		synchronized (m_stopped) {
+			checkpoints.addAll(m_stopped);
+		}
+
+		if (checkpoints.isEmpty()) {
+			return 0;
+		}
+
+		Collections.sort(checkpoints, new Comparator<Checkpoint>() {
+			@Override
+			public int compare(Checkpoint a, Checkpoint b) {
+				return Long.compare(a.jobId, b.jobId);
+			}
+		});
+
+		writeCheckpoints(new ArrayList<Checkpoint>(checkpoints));
+		return checkpoints.size();
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			// Not started anymore once the server is shutting down: the whole job is checkpointed instead
+			if (m_shuttingDown) {
+				return;
+			}
+
+			m_started = System.currentTimeMillis();
+			m_state = "running";
+		}
+		publishState();
+
+		try {
+			if (m_items == null) {
+				m_items = Registrator.items();
+			}
+			PushNotificator.notifyItems(message, m_items, this);
+
+			Checkpoint checkpoint = checkpointStopped();
+			synchronized (this) {
+				// Unless shutdown() has already given up waiting and checkpointed the whole job
+				if (!"checkpointed".equals(m_state)) {
+					if (checkpoint != null) {
+						synchronized (m_stopped) {
+							m_stopped.add(checkpoint);
+						}
+						m_state = "checkpointed";
+					} else {
+						m_state = "done";
+					}
+				}
+			}
+		} catch (Throwable t) {
+			Log.error(t);
+			m_error = t.toString();
+			m_state = "failed";
+		} finally {
+			m_finished = System.currentTimeMillis();
+
+			synchronized (m_history) {
+				m_history.put(id, this);
+			}
+			m_active.remove(id);
+
+			for (Progress progress : progresses()) {
+				progress.flushEvents();
+			}
+			publishState();
+		}
+	}
+
+	/// <summary>
+	/// The state and counters of the job as <c>name value</c> lines.
+	/// </summary>
+	public String report() {
+		long started = m_started;
+		long finished = m_finished;
+		long now = System.currentTimeMillis();
+
+		StringBuilder builder = new StringBuilder();
+		append(builder, "id", id);
+		builder.append("state ").append(m_state).append('\n');
+		builder.append("queued_seconds ").append(seconds((started > 0 ? started : now) - m_created)).append('\n');
+		builder.append("elapsed_seconds ").append(seconds(started > 0 ? (finished > 0 ? finished : now) - started : 0))
+				.append('\n');
+		for (Progress progress : progresses()) {
+			progress.report(builder);
+		}
+		if (m_error != null) {
+			builder.append("error ").append(m_error).append('\n');
+		}
+
+		return builder.toString();
+	}
+
+	public final long id;
+	public final PushMessage message;
+	public final Progress fcm;
+	public final Progress adm;
+	public final Progress apns;
+	public final Progress wns;
+
+// private
+	// A job to resume on the next start: the uids of the devices left, null for all the registered ones
+	private static class Checkpoint implements Serializable {
+		private Checkpoint(long jobId, PushMessage message, Collection<Registrator.Item> items) {
+			this.jobId = jobId;
+			this.message = message;
+			if (items != null) {
+				uids = new ArrayList<String>(items.size());
+				for (Registrator.Item item : items) {
+					uids.add(item.getUid());
+				}
+			} else {
+				uids = null;
+			}
+		}
+
+		// The devices registered with the uids: looked up again, as a deserialized item wouldn't save its id changes
+		private List<Registrator.Item> items() {
+			if (uids == null) {
+				return null;
+			}
+
+			List<Registrator.Item> items = new ArrayList<Registrator.Item>(uids.size());
+			for (String uid : uids) {
+				Registrator.Item item = uid != null ? Registrator.item(uid) : null;
+				// Unless unregistered since
+				if (item != null) {
+					items.add(item);
+				}
+			}
+			return items;
+		}
+
+		// Resumed jobs keep their original order
+		private final long jobId;
+		private final PushMessage message;
+		private final ArrayList<String> uids;
+
+		private static final long serialVersionUID = 2L;
+	}
+
+	private static void writeCheckpoints(final ArrayList<Checkpoint> checkpoints) {
+		try {
+			DurableFile.write(CHECKPOINT_FILE, true, new DurableFile.Content() {
+				@Override
+				public void write(OutputStream out) throws IOException {
+					ObjectOutputStream stream = new ObjectOutputStream(out);
+					stream.writeObject(checkpoints);
+					stream.flush();
+				}
+			});
+		} catch (Throwable t) {
+			Log.error("Failed to checkpoint the notify jobs", t);
+		}
+	}
+
+	// The devices a stopped job has left, null if it has finished them all
+	private Checkpoint checkpointStopped() {
+		ArrayList<Registrator.Item> items = new ArrayList<Registrator.Item>();
+		for (Progress progress : progresses()) {
+			synchronized (progress.m_checkpointed) {
+				items.addAll(progress.m_checkpointed);
+			}
+		}
+
+		return items.isEmpty() ? null : new Checkpoint(id, message, items);
+	}
+
+	// Checkpoints a job which is still queued or, past the deadline, still running
+	private synchronized Checkpoint checkpointUnfinished() {
+		if ("queued".equals(m_state)) {
+			m_state = "checkpointed";
+			return new Checkpoint(id, message, m_items);
+		}
+
+		if ("running".equals(m_state)) {
+			// Stuck in a provider call: it isn't known which devices are notified, so all of them will be once more
+			m_state = "checkpointed";
+			Log.warn("Notify job " + id + " hasn't stopped in time, it will be sent to all its devices once more");
+			return new Checkpoint(id, message, m_items);
+		}
+
+		return null;
+	}
+
+	// A "job" event: the state, the time spent in it so far once finished and the error of a failed job
+	private void publishState() {
+		LinkedHashMap<String, Object> event = new LinkedHashMap<String, Object>();
+		event.put("job", id);
+		event.put("state", m_state);
+		if (m_finished > 0) {
+			event.put("elapsed_seconds", (m_finished - m_started) / 1000.0);
+		}
+		if (m_error != null) {
+			event.put("error", m_error);
+		}
+		DeliveryEvents.publish("job", event);
+	}
+
+	private static void waitForRunningJobs(long until) {
+		while (System.currentTimeMillis() < until) {
+			boolean running = false;
+			for (NotifyJob job : m_active.values()) {
+				if (job.m_started > 0) {
+					running = true;
+					break;
+				}
+			}
+
+			if (!running) {
+				return;
+			}
+
+			try {
+				Thread.sleep(WAIT_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private List<Progress> progresses() {
+		List<Progress> result = new ArrayList<Progress>(4);
+		result.add(fcm);
+		result.add(adm);
+		result.add(apns);
+		result.add(wns);
+		return result;
+	}
+
+	private static synchronized WorkerPool pool() {
+		if (m_pool == null) {
+			m_pool = WorkerPool.create("notify-job", ServerOptions.NOTIFY_JOB_THREADS, ServerOptions.NOTIFY_JOB_QUEUE);
+		}
+		return m_pool;
+	}
+
+	private static String seconds(long millis) {
+		return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+	}
+
+	private static void append(StringBuilder builder, String name, long value) {
+		builder.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static final String CHECKPOINT_FILE = "utnotifications_jobs.db";
+	private static final long WAIT_INTERVAL = 50;
+
+	private static final AtomicLong m_nextId = new AtomicLong();
+	private static final ConcurrentHashMap<Long, NotifyJob> m_active = new ConcurrentHashMap<Long, NotifyJob>();
+	private static final LinkedHashMap<Long, NotifyJob> m_history = new LinkedHashMap<Long, NotifyJob>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, NotifyJob> eldest) {
+			return size() > ServerOptions.JOB_HISTORY;
+		}
+
+		private static final long serialVersionUID = 1L;
+	};
+	private static WorkerPool m_pool;
+	private static volatile boolean m_shuttingDown;
+	private static volatile boolean m_stopping;
+	// Jobs which have stopped leaving devices for the checkpoint
+	private static final List<Checkpoint> m_stopped = new ArrayList<Checkpoint>();
+
+	// A live view of the registration for a job of all the devices
+	private volatile Collection<Registrator.Item> m_items;
+	private final long m_created;
+	private volatile long m_started;
+	private volatile long m_finished;
+	private volatile String m_state = "queued";
+	private volatile String m_error;
+}
@@ -0,0 +1,79 @@
+package com.universal_tools.demoserver;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/// <summary>
+/// The content of a push notification, the same for all the providers.
+/// </summary>
+public class PushMessage implements Serializable {
+// public
+	/// <summary>
+	/// A custom notification button (Android only, ignored on the rest platforms), like <c>UTNotifications.Button</c>.
+	/// </summary>
+	public static class Button implements Serializable {
+		public Button(String title, Map<String, String> userData) {
+			this.title = title;
+			this.userData = userData != null ? new LinkedHashMap<String, String>(userData)
+					: new LinkedHashMap<String, String>();
+		}
+
+		public final String title;
+		/// <summary>
+		/// Passed to the app when the button is clicked. A copy, of a serializable type as the button is checkpointed.
+		/// </summary>
+		public final LinkedHashMap<String, String> userData;
+
+	// private
+		private static final long serialVersionUID = 1L;
+	}
+
+	/// <param name="id">Notification id or <c>-1</c> if not specified.</param>
+	/// <param name="badge">Badge number or <c>-1</c> if not specified.</param>
+	/// <param name="userData">Custom user data of the notification or <c>null</c>. Copied.</param>
+	/// <param name="buttons">Custom buttons or <c>null</c>. Copied.</param>
+	public PushMessage(int id, String title, String text, String serverMessage, String notificationProfile, int badge,
+			Map<String, String> userData, List<Button> buttons) {
+		this.id = id;
+		this.title = title;
+		this.text = text;
+		this.serverMessage = serverMessage;
+		this.notificationProfile = notificationProfile;
+		this.badge = badge;
+		// Copied into serializable types: the message is checkpointed with the jobs left on shutdown
+		m_userData = userData != null ? new LinkedHashMap<String, String>(userData) : null;
+		m_buttons = buttons != null ? new ArrayList<Button>(buttons) : null;
+	}
+
+	/// <summary>
+	/// Custom user data, never <c>null</c>.
+	/// </summary>
+	public Map<String, String> userData() {
+		// null as well in the messages checkpointed by the versions without user data
+		return m_userData != null ? m_userData : Collections.<String, String>emptyMap();
+	}
+
+	/// <summary>
+	/// Custom buttons, never <c>null</c>.
+	/// </summary>
+	public List<Button> buttons() {
+		return m_buttons != null ? m_buttons : Collections.<Button>emptyList();
+	}
+
+	public final int id;
+	public final String title;
+	public final String text;
+	public final String serverMessage;
+	public final String notificationProfile;
+	public final int badge;
+
+// private
+	private static final long serialVersionUID = 1L;
+
+	private final LinkedHashMap<String, String> m_userData;
+	private final ArrayList<Button> m_buttons;
+}
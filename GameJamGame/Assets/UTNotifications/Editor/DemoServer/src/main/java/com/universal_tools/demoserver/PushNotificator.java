@@ -5,10 +5,25 @@ import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -40,38 +55,56 @@ public class PushNotificator {
 	/// <summary>
 	/// Sends a push notification to every registered device.
 	/// </summary>
-	public static int notifyAll(int id, String title, String text, String serverMessage, String notificationProfile, int badge) throws Throwable {
-		return notifyItems(id, Registrator.items(), title, text, serverMessage, notificationProfile, badge);
+	/// <remarks>
+	/// Blocks until all the providers are done, which takes long for a large audience: <c>/notify</c> runs it as
+	/// a <c>NotifyJob</c> instead.
+	/// </remarks>
+	public static int notifyAll(PushMessage message) throws Throwable {
+		return notifyItems(message, Registrator.items(), new NotifyJob(message));
 	}
 
 	/// <summary>
-	/// Sends a push notification to every device in <c>items</c> list.
+	/// Sends a push notification to every device in <c>items</c>, reporting the progress to <c>job</c>.
 	/// </summary>
-	public static int notifyItems(int id, List<Registrator.Item> items, String title, String text, String serverMessage, String notificationProfile, int badge) throws Throwable {
-		int notified = 0;
-
-		LinkedList<Registrator.Item> fcmItems = new LinkedList<Registrator.Item>();
-		LinkedList<Registrator.Item> admItems = new LinkedList<Registrator.Item>();
-		LinkedList<Registrator.Item> apnsItems = new LinkedList<Registrator.Item>();
-		LinkedList<Registrator.Item> wnsItems = new LinkedList<Registrator.Item>();
-
-		for (Registrator.Item item : items) {
-			if ("FCM".equals(item.provider) || "GooglePlay".equals(item.provider)) {
-				fcmItems.add(item);
-			} else if ("ADM".equals(item.provider) || "Amazon".equals(item.provider)) {
-				admItems.add(item);
-			} else if ("APNS".equals(item.provider) || "iOS".equals(item.provider)) {
-				apnsItems.add(item);
-			} else if ("WNS".equals(item.provider) || "Windows".equals(item.provider)) {
-				wnsItems.add(item);
+	/// <remarks>
+	/// <c>items</c> is walked once, so it can be the live view of <c>Registrator.items()</c>, and isn't copied: each
+	/// provider is sent its devices in chunks of <c>FCM_MAX_REGISTRATION_IDS</c> as the walk fills them. With virtual
+	/// threads every provider sends on its own thread, up to <c>FANOUT_CHUNKS_QUEUED</c> chunks behind the walk,
+	/// so a slow provider holds the others back only once its queue is full. A provider failing doesn't stop the
+	/// others: its failure is thrown once they are done. Once <c>NotifyJob.isStopping()</c> the providers stop
+	/// after the sends in progress and checkpoint the rest.
+	/// </remarks>
+	public static int notifyItems(PushMessage message, Collection<Registrator.Item> items, NotifyJob job) throws Throwable {
+		Fanout fcm = fcmFanout(message, job.fcm);
+		Fanout adm = admFanout(message, job.adm);
+		Fanout apns = apnsFanout(message, job.apns);
+		Fanout wns = wnsFanout(message, job.wns);
+		Fanout[] fanouts = { fcm, adm, apns, wns };
+
+		if (!ServerOptions.virtualThreads()) {
+			walk(items, fanouts, fcm, adm, apns, wns);
+		} else {
+			try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+				for (Fanout fanout : fanouts) {
+					fanout.start(executor);
+				}
+				walk(items, fanouts, fcm, adm, apns, wns);
 			}
 		}
 
-		notified += notifyFCM(id, fcmItems, title, text, serverMessage, notificationProfile, badge);
-		notified += notifyADM(id, admItems, title, text, serverMessage, notificationProfile, badge);
-		notified += notifyAPNS(id, apnsItems, title, text, serverMessage, notificationProfile, badge);
-		notified += notifyWNS(id, wnsItems, title, text, serverMessage, notificationProfile, badge);
+		// All the providers are done at this point: report the first failure only after the others have finished
+		int notified = 0;
+		Throwable failure = null;
+		for (Fanout fanout : fanouts) {
+			notified += fanout.m_notified;
+			if (failure == null) {
+				failure = fanout.m_failure;
+			}
+		}
 
+		if (failure != null) {
+			throw failure;
+		}
 		return notified;
 	}
 
@@ -79,68 +112,14 @@ public class PushNotificator {
 	/// Sends a push notification to Google Play featured Android devices.
 	/// </summary>
 	/// <remarks>
+	/// A single request accepts up to <c>FCM_MAX_REGISTRATION_IDS</c> devices, so larger lists are sent in parts.
+	/// A failed part doesn't stop the others. The results of every device are read from the response: the errors
+	/// count as failed and the canonical ids replace the registration ids.
 	/// See also:
 	/// https://firebase.google.com/docs/cloud-messaging/http-server-ref#downstream
 	/// </remarks>
-	public static int notifyFCM(int id, List<Registrator.Item> items, String title, String text, String serverMessage, String notificationProfile, int badge) throws Throwable {
-		if (items == null || items.size() == 0 || FIREBASE_SERVER_KEY == null) {
-			return 0;
-		}
-
-		// Request data json by default should look like:
-		/*
-		 * { "registration_ids":["<id1>", ...], <or "to":"id1",> "data": {
-		 * "title":"<Title>", "text":"<Text>", "id":<int id>, "badge_number":<int
-		 * badge>, "buttons": "[ { \"title\":\"<Button title>\",
-		 * \"<Button user data key 1>\":\"<Button user data value 1>\", ... }, ... ]",
-		 * "<User data key 1>":"<User data value 1>", ... } }
-		 */
-		JSONObject requestData = new JSONObject();
-
-		// Multiple ids are sent in "registration_ids" array, single one in "to" string
-		// field
-		if (items.size() > 1) {
-			JSONArray registrationIds = new JSONArray();
-			for (Registrator.Item it : items) {
-				registrationIds.put(it.getId());
-			}
-			requestData.put("registration_ids", registrationIds);
-		} else {
-			requestData.put("to", items.get(0).getId());
-		}
-
-		requestData.put("data", prepareData(id, title, text, serverMessage, notificationProfile, badge));
-
-		byte[] requestDataBytes = requestData.toString().getBytes("UTF-8");
-
-		String httpsURL = "https://fcm.googleapis.com/fcm/send";
-
-		URL url = new URL(httpsURL);
-		HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
-		connection.setRequestMethod("POST");
-		connection.setRequestProperty("Content-length", String.valueOf(requestDataBytes.length));
-		connection.setRequestProperty("Content-Type", "application/json");
-		connection.setRequestProperty("Charset", "UTF-8");
-		connection.setRequestProperty("Authorization", "key=" + FIREBASE_SERVER_KEY);
-		connection.setDoOutput(true);
-		connection.setDoInput(true);
-
-		DataOutputStream output = new DataOutputStream(connection.getOutputStream());
-		output.write(requestDataBytes);
-		output.close();
-
-		int responseCode = connection.getResponseCode();
-		if (responseCode != 200) {
-			String errorContent = readResponse(connection.getErrorStream());
-			throw new RuntimeException(
-					String.format("ERROR: The request failed with a %d response code, with the following message: %s",
-							responseCode, errorContent));
-		} else {
-			System.out.println("    FCM response:");
-			System.out.println("    " + readResponse(connection.getInputStream()));
-		}
-
-		return items.size();
+	public static int notifyFCM(PushMessage message, List<Registrator.Item> items, NotifyJob.Progress progress) throws Throwable {
+		return fcmFanout(message, progress).sendAll(items);
 	}
 
 	/// <summary>
@@ -150,40 +129,8 @@ public class PushNotificator {
 	/// See also:
 	/// https://developer.amazon.com/public/apis/engage/device-messaging/tech-docs/06-sending-a-message
 	/// </remarks>
-	public static int notifyADM(int id, List<Registrator.Item> items, String title, String text, String serverMessage, String notificationProfile, int badge) throws Throwable {
-		if (items == null || items.size() == 0 || AMAZON_CLIENT_ID == null || AMAZON_CLIENT_SECRET == null) {
-			return 0;
-		}
-
-		String token = oauth2GetAuthToken("Amazon", "https://api.amazon.com/auth/O2/token", "messaging:push",
-				AMAZON_CLIENT_ID, AMAZON_CLIENT_SECRET, false);
-
-		boolean tokenUpdated = false;
-		int notifiedCount = 0;
-		for (Registrator.Item it : items) {
-			try {
-				String regId = amazonSendMessageToDevice(it.getId(), token, id, title, text, serverMessage,
-						notificationProfile, badge);
-
-				if (!tokenUpdated && TOKEN_EXPIRED.equals(regId)) {
-					token = oauth2GetAuthToken("Amazon", "https://api.amazon.com/auth/O2/token", "messaging:push",
-							AMAZON_CLIENT_ID, AMAZON_CLIENT_SECRET, true);
-					tokenUpdated = true;
-
-					regId = amazonSendMessageToDevice(it.getId(), token, id, title, text, serverMessage,
-							notificationProfile, badge);
-				}
-
-				++notifiedCount;
-				if (regId != null) {
-					it.setId(regId);
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
-
-		return notifiedCount;
+	public static int notifyADM(PushMessage message, List<Registrator.Item> items, NotifyJob.Progress progress) throws Throwable {
+		return admFanout(message, progress).sendAll(items);
 	}
 
 	/* APNS implementation uses https://github.com/CleverTap/apns-http2
@@ -228,54 +175,8 @@ public class PushNotificator {
 	/// See also:
 	/// https://developer.apple.com/library/content/documentation/NetworkingInternet/Conceptual/RemoteNotificationsPG/CommunicatingwithAPNs.html.
 	/// </remarks>
-	public static int notifyAPNS(int id, List<Registrator.Item> items, String title, String text, String serverMessage, String notificationProfile, int badge) throws Throwable {
-		if (items == null || items.size() == 0 || APNS_AUTH_KEY == null || APNS_TEAM_ID == null || APNS_KEY_ID == null || APNS_BUNDLE_ID == null) {
-			return 0;
-		}
-
-		if (apnsClient == null) {
-			apnsClient = new ApnsClientBuilder()
-					.inSynchronousMode()
-					.withProductionGateway(!APNS_DEVELOPMENT)
-					.withApnsAuthKey(APNS_AUTH_KEY)
-					.withTeamID(APNS_TEAM_ID)
-					.withKeyID(APNS_KEY_ID)
-					.withDefaultTopic(APNS_BUNDLE_ID)
-					.build();
-		}
-		
-		int notifiedCount = 0;
-		for (Registrator.Item item : items) {
-			String sound;
-			if (notificationProfile != null && !notificationProfile.isEmpty()) {
-				sound = "Data/Raw/" + notificationProfile;
-			} else {
-				sound = "default";
-			}
-			
-			Notification.Builder builder = new Notification.Builder(item.getId())
-					.alertTitle(title)
-					.alertBody(text)
-					.sound(sound)
-					.customField("server_message", serverMessage);
-			
-			if (id >= 0) {
-				builder.customField("id", new Integer(id).toString());
-			}
-			
-			if (badge >= 0) {
-				builder.badge(badge);
-			}
-			
-			NotificationResponse result = apnsClient.push(builder.build());
-			if (result.getHttpStatusCode() != 200) {
-				System.err.println("Error pushing to APNS: " + result);
-			} else {
-				++notifiedCount;
-			}
-		}
-		
-		return notifiedCount;
+	public static int notifyAPNS(PushMessage message, List<Registrator.Item> items, NotifyJob.Progress progress) throws Throwable {
+		return apnsFanout(message, progress).sendAll(items);
 	}
 
 	/// <summary>
@@ -287,54 +188,578 @@ public class PushNotificator {
 	/// See also:
 	/// https://msdn.microsoft.com/en-us/library/windows/apps/hh465435.aspx
 	/// </remarks>
-	public static int notifyWNS(int id, List<Registrator.Item> items, String title, String text, String serverMessage, String notificationProfile, int badge) throws Throwable {
-		if (items == null || items.size() == 0) {
-			return 0;
+	public static int notifyWNS(PushMessage message, List<Registrator.Item> items, NotifyJob.Progress progress) throws Throwable {
+		return wnsFanout(message, progress).sendAll(items);
+	}
+
+// private
+	// The devices of a single provider in a fan-out, sent in chunks of up to FCM_MAX_REGISTRATION_IDS as the walk
+	// fills them: on the walking thread or, once started, on a thread of its own taking them from a bounded queue.
+	// What the provider needs for the whole fan-out, f.e. an OAuth2 token, is set up by open() before the first chunk.
+	private static abstract class Fanout {
+		public Fanout(NotifyJob.Progress progress) {
+			this.progress = progress;
+		}
+
+		// Whether the provider is configured: the devices are skipped otherwise
+		public abstract boolean configured();
+
+		public void open() throws Throwable {
+		}
+
+		// Sends a chunk, checkpointing what is left of it once NotifyJob.isStopping(). Returns the count of notified items.
+		public abstract int send(List<Registrator.Item> chunk) throws Throwable;
+
+		// Sends a whole list at once, on the calling thread
+		public int sendAll(List<Registrator.Item> items) throws Throwable {
+			if (items == null || items.size() == 0) {
+				return 0;
+			}
+
+			progress.addRecipients(items.size());
+			return dispatch(items);
+		}
+
+		// Sends the chunks on a thread of executor from now on
+		public void start(ExecutorService executor) {
+			m_queue = new ArrayBlockingQueue<List<Registrator.Item>>(FANOUT_CHUNKS_QUEUED);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (List<Registrator.Item> chunk = m_queue.take(); chunk != END; chunk = m_queue.take()) {
+							consume(chunk);
+						}
+					} catch (InterruptedException e) {
+						m_failure = e;
+					}
+				}
+			});
 		}
 
-		String token = oauth2GetAuthToken("Windows", "https://login.live.com/accesstoken.srf", "notify.windows.com",
-				WINDOWS_PACKAGE_SID, WINDOWS_CLIENT_SECRET, false);
+		public void add(Registrator.Item item) throws InterruptedException {
+			m_chunk.add(item);
+			if (m_chunk.size() >= FCM_MAX_REGISTRATION_IDS) {
+				flush();
+			}
+		}
+
+		// Sends or queues the chunk filled so far
+		public void flush() throws InterruptedException {
+			if (m_chunk.isEmpty()) {
+				return;
+			}
+
+			progress.addRecipients(m_chunk.size());
+			if (m_queue == null) {
+				consume(m_chunk);
+				m_chunk.clear();
+			} else {
+				m_queue.put(m_chunk);
+				m_chunk = new ArrayList<Registrator.Item>(FCM_MAX_REGISTRATION_IDS);
+			}
+		}
+
+		// No more chunks: lets the thread of the provider finish, if started
+		public void end() throws InterruptedException {
+			if (m_queue != null) {
+				m_queue.put(END);
+			}
+		}
+
+		public final NotifyJob.Progress progress;
+
+		// Once the provider has failed its chunks are dropped, the failure is thrown at the end of the fan-out
+		private void consume(List<Registrator.Item> chunk) {
+			if (m_failure != null) {
+				return;
+			}
 
-		boolean tokenUpdated = false;
-		int notifiedCount = 0;
-		for (Registrator.Item it : items) {
 			try {
-				String regId = notifyWindows(token, it.getId(), id, title, text, serverMessage, notificationProfile,
-						badge);
+				m_notified += dispatch(chunk);
+			} catch (Throwable t) {
+				m_failure = t;
+			}
+		}
+
+		private int dispatch(List<Registrator.Item> chunk) throws Throwable {
+			if (!configured()) {
+				progress.onSkipped(chunk.size());
+				return 0;
+			}
+
+			if (!m_opened) {
+				open();
+				m_opened = true;
+			}
+			return send(chunk);
+		}
+
+		private static final List<Registrator.Item> END = Collections.emptyList();
+
+		private ArrayList<Registrator.Item> m_chunk = new ArrayList<Registrator.Item>();
+		private ArrayBlockingQueue<List<Registrator.Item>> m_queue;
+		// Used by the sending thread, read once it has finished
+		private boolean m_opened;
+		private int m_notified;
+		private Throwable m_failure;
+	}
+
+	private interface ItemCall {
+		// Returns true if the item was notified
+		boolean send(Registrator.Item item) throws Throwable;
+	}
+
+	// Latency and response codes of the requests to a provider
+	private static class ProviderMetrics {
+		public ProviderMetrics(String provider) {
+			m_provider = provider;
+			m_duration = Metrics.histogram("demoserver_provider_request_duration_seconds",
+					"Time of a request to a push notifications provider.", "provider=\"" + provider + "\"");
+		}
+
+		public void onResponse(int code, long startedNanos) {
+			m_duration.observeSince(startedNanos);
+
+			m_responses.computeIfAbsent(code, m_newCounter).inc();
+		}
+
+		private final String m_provider;
+		private final Metrics.Histogram m_duration;
+		private final ConcurrentHashMap<Integer, Metrics.Counter> m_responses = new ConcurrentHashMap<Integer, Metrics.Counter>();
+		// Called once per code, so that the series is registered once
+		private final Function<Integer, Metrics.Counter> m_newCounter = new Function<Integer, Metrics.Counter>() {
+			@Override
+			public Metrics.Counter apply(Integer code) {
+				return Metrics.counter("demoserver_provider_responses_total",
+						"Responses of push notifications providers, by HTTP status code.",
+						"provider=\"" + m_provider + "\",code=\"" + code + "\"");
+			}
+		};
+	}
+
+	// OAuth2 token shared by the calls of a single fan-out. An expired token is updated at most once per fan-out.
+	private static class OAuth2Session {
+		public OAuth2Session(String provider, String url, String scope, String clientId, String clientSecret) throws Exception {
+			m_provider = provider;
+			m_url = url;
+			m_scope = scope;
+			m_clientId = clientId;
+			m_clientSecret = clientSecret;
+			m_token = oauth2GetAuthToken(provider, url, scope, clientId, clientSecret, false);
+		}
+
+		public synchronized String token() {
+			return m_token;
+		}
+
+		// Returns the token to retry with after expiredToken was rejected or null if it shouldn't be retried
+		public synchronized String update(String expiredToken) throws Exception {
+			if (!m_token.equals(expiredToken)) {
+				// Another call has already updated it
+				return m_token;
+			} else if (m_updated) {
+				return null;
+			}
+
+			m_token = oauth2GetAuthToken(m_provider, m_url, m_scope, m_clientId, m_clientSecret, true);
+			m_updated = true;
+			return m_token;
+		}
+
+		private final String m_provider;
+		private final String m_url;
+		private final String m_scope;
+		private final String m_clientId;
+		private final String m_clientSecret;
+		private String m_token;
+		private boolean m_updated;
+	}
+
+	// Routes every item to the fan-out of its provider, then sends what is left in the last chunks
+	private static void walk(Collection<Registrator.Item> items, Fanout[] fanouts, Fanout fcm, Fanout adm, Fanout apns,
+			Fanout wns) throws InterruptedException {
+		try {
+			for (Registrator.Item item : items) {
+				if ("FCM".equals(item.provider) || "GooglePlay".equals(item.provider)) {
+					fcm.add(item);
+				} else if ("ADM".equals(item.provider) || "Amazon".equals(item.provider)) {
+					adm.add(item);
+				} else if ("APNS".equals(item.provider) || "iOS".equals(item.provider)) {
+					apns.add(item);
+				} else if ("WNS".equals(item.provider) || "Windows".equals(item.provider)) {
+					wns.add(item);
+				}
+			}
+
+			for (Fanout fanout : fanouts) {
+				fanout.flush();
+			}
+		} finally {
+			// Even if the walk has failed: the threads of the providers would wait for more chunks otherwise
+			for (Fanout fanout : fanouts) {
+				fanout.end();
+			}
+		}
+	}
+
+	private static Fanout fcmFanout(final PushMessage message, NotifyJob.Progress progress) {
+		return new Fanout(progress) {
+			@Override
+			public boolean configured() {
+				return FIREBASE_SERVER_KEY != null;
+			}
+
+			@Override
+			public int send(List<Registrator.Item> chunk) throws Throwable {
+				int notified = 0;
+				for (int from = 0; from < chunk.size(); from += FCM_MAX_REGISTRATION_IDS) {
+					if (NotifyJob.isStopping()) {
+						progress.onCheckpointed(chunk.subList(from, chunk.size()));
+						break;
+					}
+
+					List<Registrator.Item> part = chunk.subList(from, Math.min(chunk.size(), from + FCM_MAX_REGISTRATION_IDS));
+					try {
+						notified += sendFCM(message, part, progress);
+					} catch (Throwable t) {
+						Log.error("FCM request failed", t);
+						progress.onFailed(part.size(), "request_failed");
+						progress.flushEvents();
+					}
+				}
+
+				return notified;
+			}
+		};
+	}
+
+	private static Fanout admFanout(final PushMessage message, NotifyJob.Progress progress) {
+		return new Fanout(progress) {
+			@Override
+			public boolean configured() {
+				return AMAZON_CLIENT_ID != null && AMAZON_CLIENT_SECRET != null;
+			}
+
+			@Override
+			public void open() throws Throwable {
+				m_session = new OAuth2Session("Amazon", "https://api.amazon.com/auth/O2/token", "messaging:push",
+						AMAZON_CLIENT_ID, AMAZON_CLIENT_SECRET);
+			}
+
+			@Override
+			public int send(List<Registrator.Item> chunk) throws Throwable {
+				return sendToEach(chunk, new ItemCall() {
+					@Override
+					public boolean send(Registrator.Item it) throws Throwable {
+						String token = m_session.token();
+						String regId = amazonSendMessageToDevice(it.getId(), token, message);
+
+						if (TOKEN_EXPIRED.equals(regId)) {
+							String updatedToken = m_session.update(token);
+							if (updatedToken != null) {
+								regId = amazonSendMessageToDevice(it.getId(), updatedToken, message);
+							}
+						}
+
+						if (regId != null && !TOKEN_EXPIRED.equals(regId) && !regId.equals(it.getId())) {
+							it.setId(regId);
+							progress.onIdUpdated();
+						}
+						return true;
+					}
+				}, progress);
+			}
+
+			private OAuth2Session m_session;
+		};
+	}
+
+	private static Fanout apnsFanout(final PushMessage message, NotifyJob.Progress progress) {
+		return new Fanout(progress) {
+			@Override
+			public boolean configured() {
+				return APNS_AUTH_KEY != null && APNS_TEAM_ID != null && APNS_KEY_ID != null && APNS_BUNDLE_ID != null;
+			}
+
+			@Override
+			public void open() throws Throwable {
+				m_client = apnsClient();
+			}
+
+			@Override
+			public int send(List<Registrator.Item> chunk) throws Throwable {
+				return sendToEach(chunk, new ItemCall() {
+					@Override
+					public boolean send(Registrator.Item item) throws Throwable {
+						String sound;
+						if (message.notificationProfile != null && !message.notificationProfile.isEmpty()) {
+							sound = "Data/Raw/" + message.notificationProfile;
+						} else {
+							sound = "default";
+						}
+						
+						Notification.Builder builder = new Notification.Builder(item.getId())
+								.alertTitle(message.title)
+								.alertBody(message.text)
+								.sound(sound)
+								.customField("server_message", message.serverMessage);
+						
+						if (message.id >= 0) {
+							builder.customField("id", Integer.toString(message.id));
+						}
+
+						// "aps" is the standard part of the payload
+						for (Map.Entry<String, String> entry : message.userData().entrySet()) {
+							if (!"aps".equals(entry.getKey()) && !"id".equals(entry.getKey())
+									&& !"server_message".equals(entry.getKey())) {
+								builder.customField(entry.getKey(), entry.getValue());
+							}
+						}
+						
+						if (message.badge >= 0) {
+							builder.badge(message.badge);
+						}
+						
+						long started = System.nanoTime();
+						NotificationResponse result = m_client.push(builder.build());
+						APNS_METRICS.onResponse(result.getHttpStatusCode(), started);
+						if (result.getHttpStatusCode() != 200) {
+							Log.warn("Error pushing to APNS: " + result);
+							return false;
+						} else {
+							return true;
+						}
+					}
+				}, progress);
+			}
+
+			private ApnsClient m_client;
+		};
+	}
+
+	private static Fanout wnsFanout(final PushMessage message, NotifyJob.Progress progress) {
+		return new Fanout(progress) {
+			@Override
+			public boolean configured() {
+				return WINDOWS_PACKAGE_SID != null && WINDOWS_CLIENT_SECRET != null;
+			}
+
+			@Override
+			public void open() throws Throwable {
+				m_session = new OAuth2Session("Windows", "https://login.live.com/accesstoken.srf", "notify.windows.com",
+						WINDOWS_PACKAGE_SID, WINDOWS_CLIENT_SECRET);
+			}
 
-				if (!tokenUpdated && TOKEN_EXPIRED.equals(regId)) {
-					token = oauth2GetAuthToken("Windows", "https://login.live.com/accesstoken.srf",
-							"notify.windows.com", WINDOWS_PACKAGE_SID, WINDOWS_CLIENT_SECRET, true);
-					tokenUpdated = true;
+			@Override
+			public int send(List<Registrator.Item> chunk) throws Throwable {
+				return sendToEach(chunk, new ItemCall() {
+					@Override
+					public boolean send(Registrator.Item it) throws Throwable {
+						String token = m_session.token();
+						String regId = notifyWindows(token, it.getId(), message);
+
+						if (TOKEN_EXPIRED.equals(regId)) {
+							String updatedToken = m_session.update(token);
+							if (updatedToken != null) {
+								regId = notifyWindows(updatedToken, it.getId(), message);
+							}
+						}
+
+						if (regId != null && !TOKEN_EXPIRED.equals(regId) && !regId.equals(it.getId())) {
+							it.setId(regId);
+							progress.onIdUpdated();
+						}
+						return true;
+					}
+				}, progress);
+			}
+
+			private OAuth2Session m_session;
+		};
+	}
 
-					regId = notifyWindows(token, it.getId(), id, title, text, serverMessage, notificationProfile,
-							badge);
+	// Calls a provider for every item one by one or, with virtual threads, each one on its own virtual thread but
+	// no more than ServerOptions.PROVIDER_CONCURRENCY at once. Returns the count of notified items.
+	private static int sendToEach(List<Registrator.Item> items, final ItemCall call, final NotifyJob.Progress progress) throws InterruptedException {
+		if (!ServerOptions.virtualThreads()) {
+			int notified = 0;
+			for (Iterator<Registrator.Item> it = items.iterator(); it.hasNext();) {
+				if (NotifyJob.isStopping()) {
+					checkpointRest(it, progress);
+					break;
 				}
+				if (send(call, it.next(), progress)) {
+					++notified;
+				}
+			}
+			return notified;
+		}
 
-				++notifiedCount;
-				if (regId != null) {
-					it.setId(regId);
+		final AtomicInteger notified = new AtomicInteger();
+		final Semaphore permits = new Semaphore(ServerOptions.PROVIDER_CONCURRENCY);
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (Iterator<Registrator.Item> it = items.iterator(); it.hasNext();) {
+				permits.acquire();
+				if (NotifyJob.isStopping()) {
+					permits.release();
+					checkpointRest(it, progress);
+					break;
 				}
-			} catch (Exception e) {
-				e.printStackTrace();
+
+				final Registrator.Item item = it.next();
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if (send(call, item, progress)) {
+								notified.incrementAndGet();
+							}
+						} finally {
+							permits.release();
+						}
+					}
+				});
 			}
 		}
 
-		return notifiedCount;
+		return notified.get();
+	}
+
+	private static void checkpointRest(Iterator<Registrator.Item> it, NotifyJob.Progress progress) {
+		List<Registrator.Item> rest = new ArrayList<Registrator.Item>();
+		while (it.hasNext()) {
+			rest.add(it.next());
+		}
+		progress.onCheckpointed(rest);
+	}
+
+	private static boolean send(ItemCall call, Registrator.Item item, NotifyJob.Progress progress) {
+		try {
+			if (call.send(item)) {
+				progress.onSent(1);
+				return true;
+			}
+		} catch (Throwable e) {
+			Log.error(progress.provider + " request failed", e);
+		}
+
+		progress.onFailed(1);
+		return false;
+	}
+
+	// Sends a single FCM request for up to FCM_MAX_REGISTRATION_IDS items. Returns the count of notified items.
+	private static int sendFCM(PushMessage message, List<Registrator.Item> items, NotifyJob.Progress progress) throws Throwable {
+		// Request data json by default should look like:
+		/*
+		 * { "registration_ids":["<id1>", ...], <or "to":"id1",> "data": {
+		 * "title":"<Title>", "text":"<Text>", "id":<int id>, "badge_number":<int
+		 * badge>, "buttons": "[ { \"title\":\"<Button title>\",
+		 * \"<Button user data key 1>\":\"<Button user data value 1>\", ... }, ... ]",
+		 * "<User data key 1>":"<User data value 1>", ... } }
+		 */
+		byte[] requestDataBytes = fcmRequest(message, items);
+
+		String httpsURL = "https://fcm.googleapis.com/fcm/send";
+
+		URL url = URI.create(httpsURL).toURL();
+		long started = System.nanoTime();
+		HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-length", String.valueOf(requestDataBytes.length));
+		connection.setRequestProperty("Content-Type", "application/json");
+		connection.setRequestProperty("Charset", "UTF-8");
+		connection.setRequestProperty("Authorization", "key=" + FIREBASE_SERVER_KEY);
+		connection.setDoOutput(true);
+		connection.setDoInput(true);
+
+		DataOutputStream output = new DataOutputStream(connection.getOutputStream());
+		output.write(requestDataBytes);
+		output.close();
+
+		int responseCode = connection.getResponseCode();
+		FCM_METRICS.onResponse(responseCode, started);
+		if (responseCode != 200) {
+			String errorContent = readResponse(connection.getErrorStream());
+			throw new RuntimeException(
+					String.format("ERROR: The request failed with a %d response code, with the following message: %s",
+							responseCode, errorContent));
+		} else {
+			String responseContent = readResponse(connection.getInputStream());
+			Log.debug("FCM response: " + responseContent);
+			return onFCMResults(responseContent, items, progress);
+		}
+	}
+
+	// The body of an FCM request. Package-private for the benchmarks.
+	static byte[] fcmRequest(PushMessage message, List<Registrator.Item> items) throws JSONException, UnsupportedEncodingException {
+		JSONObject requestData = new JSONObject();
+
+		// Multiple ids are sent in "registration_ids" array, single one in "to" string
+		// field
+		if (items.size() > 1) {
+			JSONArray registrationIds = new JSONArray();
+			for (Registrator.Item it : items) {
+				registrationIds.put(it.getId());
+			}
+			requestData.put("registration_ids", registrationIds);
+		} else {
+			requestData.put("to", items.get(0).getId());
+		}
+
+		requestData.put("data", prepareData(message));
+
+		return requestData.toString().getBytes("UTF-8");
+	}
+
+	// Reads the results of the items from an FCM response, in the order of its "registration_ids", f.e.
+	// {"success":1,"failure":1,"canonical_ids":1,"results":[{"message_id":"1","registration_id":"<new id>"},
+	// {"error":"NotRegistered"}]}. Returns the count of notified items.
+	private static int onFCMResults(String responseContent, List<Registrator.Item> items, NotifyJob.Progress progress) throws JSONException {
+		JSONArray results = new JSONObject(responseContent).optJSONArray("results");
+		if (results == null || results.length() != items.size()) {
+			// Nothing to tell the items apart
+			progress.onResults(items.size(), Collections.<String, Integer>emptyMap(), 0);
+			return items.size();
+		}
+
+		int sent = 0;
+		TreeMap<String, Integer> errors = new TreeMap<String, Integer>();
+		LinkedHashMap<Registrator.Item, String> canonicalIds = new LinkedHashMap<Registrator.Item, String>();
+		for (int i = 0; i < items.size(); ++i) {
+			JSONObject result = results.optJSONObject(i);
+			String error = result != null ? result.optString("error", null) : null;
+			if (error != null) {
+				Integer count = errors.get(error);
+				errors.put(error, count == null ? 1 : count + 1);
+				continue;
+			}
+
+			++sent;
+			String canonicalId = result != null ? result.optString("registration_id", null) : null;
+			if (canonicalId != null && !canonicalId.equals(items.get(i).getId())) {
+				canonicalIds.put(items.get(i), canonicalId);
+			}
+		}
+
+		if (!canonicalIds.isEmpty()) {
+			Registrator.setIds(canonicalIds);
+		}
+		progress.onResults(sent, errors, canonicalIds.size());
+		return sent;
 	}
 
-// private
 	// Returns updated registrationId if changed, TOKEN_EXPIRED if expired and null otherwise
-	private static String amazonSendMessageToDevice(String registrationId, String accessToken, int id, String title, String text, String serverMessage, String notificationProfile, int badge) throws Exception {
+	private static String amazonSendMessageToDevice(String registrationId, String accessToken, PushMessage message) throws Exception {
 		// JSON payload representation of the message.
 		JSONObject payload = new JSONObject();
 
 		// Define the key/value pairs for your message content and add them to the
 		// message payload.
-		payload.put("data", prepareData(id, title, text, serverMessage, notificationProfile, badge));
+		payload.put("data", prepareData(message));
 
 		// Convert the message from a JSON object to a string.
-		System.out.println(payload.toString());
+		Log.debug("ADM request: " + payload);
 		byte[] payloadBytes = payload.toString().getBytes("UTF-8");
 
 		// Establish the base URL, including the section to be replaced by the
@@ -343,11 +768,12 @@ public class PushNotificator {
 		// the URL, the %1$s characters specify the section to be replaced.
 		String admUrlTemplate = "https://api.amazon.com/messaging/registrations/%1$s/messages";
 
-		URL admUrl = new URL(String.format(admUrlTemplate, registrationId));
+		URL admUrl = URI.create(String.format(admUrlTemplate, registrationId)).toURL();
 
 		// Generate the HTTPS connection for the POST request. You cannot make a
 		// connection
 		// over HTTP.
+		long started = System.nanoTime();
 		HttpsURLConnection connection = (HttpsURLConnection) admUrl.openConnection();
 		connection.setRequestMethod("POST");
 		connection.setDoOutput(true);
@@ -372,6 +798,7 @@ public class PushNotificator {
 
 		// Obtain the response code from the connection.
 		int responseCode = connection.getResponseCode();
+		ADM_METRICS.onResponse(responseCode, started);
 
 		// Check if we received a failure response, and if so, get the reason for the
 		// failure.
@@ -394,8 +821,7 @@ public class PushNotificator {
 
 			String responseContent = readResponse(connection.getInputStream());
 
-			System.out.println("    ADM response:");
-			System.out.println("    " + responseContent);
+			Log.debug("ADM response: " + responseContent);
 
 			JSONObject parsedObject = new JSONObject(responseContent);
 
@@ -415,16 +841,16 @@ public class PushNotificator {
 
 	// Returns updated registrationId if changed (never happens in the current
 	// version of WNS though), TOKEN_EXPIRED if expired and null otherwise
-	private static String notifyWindows(String accessToken, String registrationId, int id, String title, String text, String serverMessage, String notificationProfile, int badge) throws Throwable {
-		URL url = new URL(registrationId);
+	private static String notifyWindows(String accessToken, String registrationId, PushMessage message) throws Throwable {
+		URL url = URI.create(registrationId).toURL();
 
 		if (!url.getHost().endsWith(".notify.windows.com")) {
 			throw new SecurityException("Unexpected WNS channel URI: " + registrationId);
 		}
 
-		byte[] requestDataBytes = prepareData(id, title, text, serverMessage, notificationProfile, badge).toString()
-				.getBytes("UTF-8");
+		byte[] requestDataBytes = prepareData(message).toString().getBytes("UTF-8");
 
+		long started = System.nanoTime();
 		HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
 		connection.setRequestMethod("POST");
 		connection.setRequestProperty("Content-Type", "application/octet-stream");
@@ -441,6 +867,7 @@ public class PushNotificator {
 		output.close();
 
 		int responseCode = connection.getResponseCode();
+		WNS_METRICS.onResponse(responseCode, started);
 		if (responseCode != 200) {
 			if (responseCode == 401 || responseCode == 410) {
 				// If a 401 response code was received, the access token has expired. The token
@@ -463,14 +890,15 @@ public class PushNotificator {
 		} else {
 			// Success! Current version of WNS never sends the changed registrationId, so no
 			// need to check a response content.
-			System.out.println("    WNS response:");
-			System.out.println("    " + readResponse(connection.getInputStream()));
+			String responseContent = readResponse(connection.getInputStream());
+			Log.debug("WNS response: " + responseContent);
 
 			return null;
 		}
 	}
 
-	private static JSONObject prepareData(int id, String title, String text, String serverMessage, String notificationProfile, int badge) throws JSONException {
+	// Package-private for the benchmarks
+	static JSONObject prepareData(PushMessage message) throws JSONException {
 		/*
 		 * "data": { "title":"<Title>", "text":"<Text>", "id":<int id>,
 		 * "badge_number":<int badge>, "buttons": "[ { \"title\":\"<Button title>\",
@@ -479,28 +907,38 @@ public class PushNotificator {
 		 */
 
 		JSONObject data = new JSONObject();
-		if (id >= 0) {
-			data.put("id", new Integer(id).toString());
+		if (message.id >= 0) {
+			data.put("id", Integer.toString(message.id));
 		}
-		data.put("title", title);
-		data.put("text", text);
-		data.put("server_message", serverMessage);
-		if (notificationProfile != null && !notificationProfile.isEmpty()) {
-			data.put("notification_profile", notificationProfile);
+		data.put("title", message.title);
+		data.put("text", message.text);
+		data.put("server_message", message.serverMessage);
+		if (message.notificationProfile != null && !message.notificationProfile.isEmpty()) {
+			data.put("notification_profile", message.notificationProfile);
 		}
-		if (badge >= 0) {
-			data.put("badge_number", new Integer(badge).toString());
+		if (message.badge >= 0) {
+			data.put("badge_number", Integer.toString(message.badge));
 		}
 
-		// Buttons example
-		JSONArray buttons = new JSONArray();
-		for (int i = 0; i < 2; ++i) {
-			JSONObject button = new JSONObject();
-			button.put("title", "Demo Button " + i);
-			button.put("example_button_userdata_value", "" + i);
-			buttons.put(button);
+		if (!message.buttons().isEmpty()) {
+			JSONArray buttons = new JSONArray();
+			for (PushMessage.Button it : message.buttons()) {
+				JSONObject button = new JSONObject();
+				for (Map.Entry<String, String> entry : it.userData.entrySet()) {
+					button.put(entry.getKey(), entry.getValue());
+				}
+				button.put("title", it.title);
+				buttons.put(button);
+			}
+			data.put("buttons", buttons.toString());
+		}
+
+		// User data can't replace the fields above
+		for (Map.Entry<String, String> entry : message.userData().entrySet()) {
+			if (!data.has(entry.getKey())) {
+				data.put(entry.getKey(), entry.getValue());
+			}
 		}
-		data.put("buttons", buttons.toString());
 
 		return data;
 	}
@@ -521,7 +959,7 @@ public class PushNotificator {
 				+ java.net.URLEncoder.encode(clientSecret, "UTF-8");
 
 		// Create a new URL object with the base URL for the access token request.
-		URL authUrl = new URL(url);
+		URL authUrl = URI.create(url).toURL();
 
 		// Generate the HTTPS connection. You cannot make a connection over HTTP.
 		HttpsURLConnection con = (HttpsURLConnection) authUrl.openConnection();
@@ -572,6 +1010,30 @@ public class PushNotificator {
 		return sb.toString();
 	}
 
+	// Built by the first fan-out calling APNS: the fan-outs and, with virtual threads, the providers run at once
+	private static synchronized ApnsClient apnsClient() throws Exception {
+		if (apnsClient == null) {
+			apnsClient = new ApnsClientBuilder()
+					.inSynchronousMode()
+					.withProductionGateway(!APNS_DEVELOPMENT)
+					.withApnsAuthKey(APNS_AUTH_KEY)
+					.withTeamID(APNS_TEAM_ID)
+					.withKeyID(APNS_KEY_ID)
+					.withDefaultTopic(APNS_BUNDLE_ID)
+					.build();
+		}
+		return apnsClient;
+	}
+
 	private static final String TOKEN_EXPIRED = "TOKEN_EXPIRED";
+	private static final ProviderMetrics FCM_METRICS = new ProviderMetrics("fcm");
+	private static final ProviderMetrics ADM_METRICS = new ProviderMetrics("adm");
+	private static final ProviderMetrics APNS_METRICS = new ProviderMetrics("apns");
+	private static final ProviderMetrics WNS_METRICS = new ProviderMetrics("wns");
+	// FCM legacy HTTP API limit of "registration_ids", also the size of the chunks of a fan-out
+	private static final int FCM_MAX_REGISTRATION_IDS = 1000;
+	// Chunks a provider may be behind the walk of a fan-out, with virtual threads
+	private static final int FANOUT_CHUNKS_QUEUED = 4;
+	// Guarded by the class
 	private static ApnsClient apnsClient;
 }
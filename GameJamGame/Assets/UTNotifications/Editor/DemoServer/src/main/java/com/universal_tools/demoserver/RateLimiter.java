@@ -0,0 +1,143 @@
+package com.universal_tools.demoserver;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/// <summary>
+/// Per-client token buckets limiting how often a client may request a route, f.e. <c>/register</c> by a client
+/// build re-registering in a loop.
+/// </summary>
+/// <remarks>
+/// The buckets live in a fixed size, direct-mapped table of slots: a key maps to a single slot and evicts the bucket
+/// of whatever other key held it. The requests of the clients share <c>CLIENTS</c>, of
+/// <c>ServerOptions.RATE_LIMIT_TABLE</c> slots; a source of many keys at once, like a bulk import, has a table of its
+/// own so as not to evict theirs. The memory stays bounded however many
+/// clients there are, at the cost of an evicted client starting over with a full bucket. A bucket is an immutable
+/// object replaced by compare-and-set, so checking a limit takes no lock; a lost race is simply retried.
+/// A bucket only keeps the time it will be full again, which is all a token bucket needs: every request moves it
+/// one token interval later, and a request which would move it more than <c>burst</c> intervals past now is refused.
+/// </remarks>
+class RateLimiter {
+// public
+	/// <summary>
+	/// <c>rate</c> requests per second on average, up to <c>burst</c> of them at once. A zero rate is no limit.
+	/// </summary>
+	public static class Limit {
+		public Limit(double rate, int burst) {
+			if (rate < 0 || (rate > 0 && burst <= 0)) {
+				throw new IllegalArgumentException("Invalid rate limit: " + rate + "/" + burst);
+			}
+
+			this.rate = rate;
+			this.burst = burst;
+			m_intervalNanos = rate > 0 ? (long)(1e9 / rate) : 0;
+			m_capacityNanos = m_intervalNanos * burst;
+		}
+
+		/// <summary>
+		/// Parses <c>rate[/burst]</c>, f.e. <c>0.5/10</c>. The burst is the rate rounded up by default.
+		/// </summary>
+		public static Limit parse(String value) {
+			int slash = value.indexOf('/');
+			double rate = Double.parseDouble(slash >= 0 ? value.substring(0, slash) : value);
+			int burst = slash >= 0 ? Integer.parseInt(value.substring(slash + 1)) : (int)Math.max(1, Math.ceil(rate));
+			return new Limit(rate, burst);
+		}
+
+		@Override
+		public String toString() {
+			return rate > 0 ? rate + "/" + burst : "0";
+		}
+
+		public final double rate;
+		public final int burst;
+
+	// private
+		private final long m_intervalNanos;
+		private final long m_capacityNanos;
+	}
+
+	/// <summary>
+	/// The buckets of the requests of the clients, by IP address or uid.
+	/// </summary>
+	public static final RateLimiter CLIENTS = new RateLimiter("clients", ServerOptions.RATE_LIMIT_TABLE);
+
+	/// <summary>
+	/// A table of <c>slots</c> buckets (rounded up to a power of two), its evictions counted with the
+	/// <c>table</c> label <c>name</c>.
+	/// </summary>
+	public RateLimiter(String name, int slots) {
+		m_slotBits = bits(slots);
+		m_slots = new AtomicReferenceArray<Bucket>(1 << m_slotBits);
+		m_evictions = Metrics.counter("demoserver_rate_limit_evictions_total",
+				"Rate limit buckets evicted by the bucket of another key, by table.",
+				"table=\"" + Metrics.label(name) + "\"");
+	}
+
+	/// <summary>
+	/// Takes a token from the bucket of <c>key</c> under <c>limit</c>. Buckets of different limits are separate,
+	/// even for the same key.
+	/// </summary>
+	/// <returns>0 if the request is allowed, otherwise the nanoseconds until it would be.</returns>
+	public long acquire(Limit limit, String key) {
+		return acquire(limit, key, System.nanoTime());
+	}
+
+// private
+	// Package-private for the tests, which give now rather than wait
+	long acquire(Limit limit, String key, long now) {
+		if (limit.rate <= 0) {
+			return 0;
+		}
+
+		int index = slot(limit, key);
+		while (true) {
+			Bucket bucket = m_slots.get(index);
+			boolean own = bucket != null && bucket.limit == limit && bucket.key.equals(key);
+
+			// A new (or evicted) client starts with a full bucket
+			long fullAt = own && bucket.fullAt - now > 0 ? bucket.fullAt : now;
+			long next = fullAt + limit.m_intervalNanos;
+			if (next - now > limit.m_capacityNanos) {
+				return next - now - limit.m_capacityNanos;
+			}
+
+			if (m_slots.compareAndSet(index, bucket, new Bucket(limit, key, next))) {
+				if (bucket != null && !own) {
+					m_evictions.inc();
+				}
+				return 0;
+			}
+		}
+	}
+
+	private static class Bucket {
+		private Bucket(Limit limit, String key, long fullAt) {
+			this.limit = limit;
+			this.key = key;
+			this.fullAt = fullAt;
+		}
+
+		private final Limit limit;
+		private final String key;
+		// System.nanoTime() at which the bucket is full again
+		private final long fullAt;
+	}
+
+	private int slot(Limit limit, String key) {
+		int hash = key.hashCode() * 31 + System.identityHashCode(limit);
+		// Fibonacci hashing: the high bits of the product are well mixed even for similar keys like IP addresses
+		return (hash * 0x9E3779B9) >>> (32 - m_slotBits);
+	}
+
+	private static int bits(int value) {
+		int bits = 1;
+		while ((1 << bits) < value && bits < 30) {
+			++bits;
+		}
+		return bits;
+	}
+
+	private final int m_slotBits;
+	private final AtomicReferenceArray<Bucket> m_slots;
+	private final Metrics.Counter m_evictions;
+}
@@ -0,0 +1,174 @@
+package com.universal_tools.demoserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+import org.json.JSONObject;
+
+/// <summary>
+/// The body of a <c>/register/batch</c> request: newline delimited JSON records like
+/// <c>{"uid":"...","provider":"FCM","id":"..."}</c>, applied while the body is still being received.
+/// </summary>
+/// <remarks>
+/// Records are parsed line by line as the bytes arrive and registered <c>ServerOptions.REGISTER_BATCH_SIZE</c>
+/// at a time, with a single <c>Registrator</c> call per batch, so the body size isn't limited by
+/// <c>ServerOptions.MAX_BODY_SIZE</c>. A malformed line is reported and skipped, it doesn't fail the whole
+/// request. The request takes a token of the client's <c>/register</c> IP bucket before its body is read, and every
+/// record one of its uid's bucket, in a table of its own: a throttled record is reported like a malformed one.
+/// Batches are applied on the thread reading the request: in the nio mode that is an event loop, which doesn't serve
+/// its other connections meanwhile; with <c>ServerOptions.REGISTRATION_FSYNC</c> <c>always</c> that includes waiting
+/// for the disk.
+/// </remarks>
+class RegistrationBatch implements BodySink {
+// public
+	@Override
+	public void write(ByteBuffer buf, int count) throws HttpException {
+		int end = buf.position() + count;
+		while (buf.position() < end) {
+			byte b = buf.get();
+			if (b == '\n') {
+				endLine();
+			} else if (m_lineLength < m_line.length) {
+				m_line[m_lineLength++] = b;
+			} else {
+				m_lineTooLong = true;
+			}
+		}
+	}
+
+	@Override
+	public long capacity() {
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public void end() {
+		// The rest is done by finish() on the handler thread
+	}
+
+	/// <summary>
+	/// Registers the records left once the whole body has been received.
+	/// </summary>
+	/// <returns>Counters of the request and the errors of its lines, as <c>text/plain</c>.</returns>
+	public String finish() {
+		if (m_lineLength > 0 || m_lineTooLong) {
+			// The last line doesn't have to end with a line feed
+			endLine();
+		}
+		applyBatch();
+
+		double seconds = (System.nanoTime() - m_started) / 1e9;
+		StringBuilder builder = new StringBuilder();
+		builder.append("lines ").append(m_lines).append('\n');
+		builder.append("registered ").append(m_registered).append('\n');
+		builder.append("failed ").append(m_failed).append('\n');
+		builder.append("batches ").append(m_batches).append('\n');
+		builder.append("seconds ").append(String.format(Locale.ROOT, "%.3f", seconds)).append('\n');
+		builder.append("records_per_second ").append(seconds > 0 ? (long)(m_registered / seconds) : 0).append('\n');
+		for (String error : m_errors) {
+			builder.append(error).append('\n');
+		}
+		if (m_failed > m_errors.size()) {
+			builder.append("... ").append(m_failed - m_errors.size()).append(" more errors\n");
+		}
+
+		return builder.toString();
+	}
+
+// private
+	private void endLine() {
+		++m_lines;
+
+		// Windows line ends are fine as well
+		int length = m_lineLength;
+		if (length > 0 && m_line[length - 1] == '\r') {
+			--length;
+		}
+
+		if (m_lineTooLong) {
+			fail("longer than " + MAX_LINE_LENGTH + " bytes");
+		} else if (length > 0) {
+			parseRecord(new String(m_line, 0, length, StandardCharsets.UTF_8));
+		}
+
+		m_lineLength = 0;
+		m_lineTooLong = false;
+	}
+
+	private void parseRecord(String line) {
+		String uid, provider, id;
+		try {
+			JSONObject record = new JSONObject(line);
+			uid = record.optString("uid", null);
+			provider = record.optString("provider", null);
+			id = record.optString("id", null);
+		} catch (Throwable t) {
+			fail(t.getMessage());
+			return;
+		}
+
+		if (uid == null || uid.isEmpty()) {
+			fail("uid is not specified!");
+		} else if (provider == null || provider.isEmpty()) {
+			fail("provider is not specified!");
+		} else if (id == null || id.isEmpty()) {
+			fail("id is not specified!");
+		} else if (RECORDS.acquire(ServerOptions.RATE_LIMIT_REGISTER_UID, uid) > 0) {
+			ServerStats.onRegisterThrottled(true);
+			fail("too many registrations of the uid, please retry later");
+		} else {
+			// A later record of the same uid replaces an earlier one, as with separate /register requests
+			m_batch.put(uid, new Registrator.Item(provider, id));
+			if (m_batch.size() >= ServerOptions.REGISTER_BATCH_SIZE) {
+				applyBatch();
+			}
+		}
+	}
+
+	private void fail(String message) {
+		++m_failed;
+		ServerStats.onBatchRecordFailed();
+		if (m_errors.size() < MAX_REPORTED_ERRORS) {
+			m_errors.add("line " + m_lines + ": " + message);
+		}
+	}
+
+	private void applyBatch() {
+		if (m_batch.isEmpty()) {
+			return;
+		}
+
+		// Applied while the body is read, before RequestHandler.handle counts the request: the shutdown waits for it
+		Shutdown.onRequestStarted();
+		try {
+			Registrator.register(m_batch);
+		} finally {
+			Shutdown.onRequestFinished();
+		}
+		m_registered += m_batch.size();
+		++m_batches;
+		ServerStats.onBatchApplied(m_batch.size());
+		m_batch.clear();
+	}
+
+	// The uid limit of /register, in a table of its own: the uids of a bulk import don't evict the buckets of the
+	// clients
+	private static final RateLimiter RECORDS = new RateLimiter("register_batch", ServerOptions.RATE_LIMIT_TABLE);
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+	private static final int MAX_REPORTED_ERRORS = 100;
+
+	private final byte[] m_line = new byte[MAX_LINE_LENGTH];
+	private int m_lineLength;
+	private boolean m_lineTooLong;
+	private final LinkedHashMap<String, Registrator.Item> m_batch = new LinkedHashMap<String, Registrator.Item>();
+	private final List<String> m_errors = new ArrayList<String>();
+	private final long m_started = System.nanoTime();
+	private long m_lines;
+	private long m_registered;
+	private long m_failed;
+	private long m_batches;
+}
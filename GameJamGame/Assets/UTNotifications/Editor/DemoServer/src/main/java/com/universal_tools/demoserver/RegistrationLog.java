@@ -0,0 +1,574 @@
+package com.universal_tools.demoserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/// <summary>
+/// The append-only log of the changes of <c>Registrator</c> since its last snapshot.
+/// </summary>
+/// <remarks>
+/// Every record is <c>length</c>, <c>CRC32</c> and the payload: the record type followed by its strings. Appending
+/// a record only encodes it into memory; a background thread writes the records in batches (group commit), so the
+/// threads changing the registration never wait for the disk, unless they wait for <c>awaitDurable</c>. A batch is
+/// taken <c>ServerOptions.REGISTRATION_COMMIT_WINDOW</c> ms after its first record or once it reaches
+/// <c>ServerOptions.REGISTRATION_COMMIT_SIZE</c> bytes, written with a single write and synced to the disk as
+/// <c>ServerOptions.REGISTRATION_FSYNC</c> says. Killing the process loses the records not written yet, a crash of
+/// the OS the ones not synced yet. A failed write is retried with the next batch, after truncating the log back to
+/// the end of the last batch written, so that a part of a record left by the failure doesn't end the replay there.
+/// A record cut short or not matching its CRC ends the log when it's replayed: the records from it on (a torn tail)
+/// are dropped and the file is truncated. Replaying is idempotent: the records are puts and removes by uid, so
+/// replaying records already in the snapshot doesn't change the result.
+/// </remarks>
+class RegistrationLog {
+// public
+	/// <summary>
+	/// Receives the records being replayed.
+	/// </summary>
+	public interface Replay {
+		void register(String uid, String provider, String id) throws IOException;
+		void update(String uid, String id) throws IOException;
+		void unregister(String uid) throws IOException;
+		void token(String provider, String token, Date tokenExpires) throws IOException;
+	}
+
+	/// <summary>
+	/// Replays all the complete records of <c>file</c>, if it exists, and truncates a torn tail.
+	/// </summary>
+	/// <returns>The count of the records replayed.</returns>
+	public static long replay(File file, Replay replay) throws IOException {
+		long records = 0;
+		long valid = 0;
+		String torn = null;
+
+		DataInputStream stream;
+		try {
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		} catch (FileNotFoundException e) {
+			return 0;
+		}
+
+		try {
+			CRC32 crc = new CRC32();
+			byte[] payload = new byte[256];
+			while (true) {
+				int length;
+				try {
+					length = stream.readInt();
+				} catch (EOFException e) {
+					// A clean end, unless the length itself is cut short
+					if (file.length() > valid) {
+						torn = "a record length is cut short";
+					}
+					break;
+				}
+
+				if (length <= 0 || length > MAX_RECORD_SIZE) {
+					torn = "invalid record length " + length;
+					break;
+				}
+
+				if (payload.length < length) {
+					payload = new byte[Math.max(length, payload.length * 2)];
+				}
+
+				int expectedCrc;
+				try {
+					expectedCrc = stream.readInt();
+					stream.readFully(payload, 0, length);
+				} catch (EOFException e) {
+					torn = "a record is cut short";
+					break;
+				}
+
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int)crc.getValue() != expectedCrc) {
+					torn = "a record doesn't match its CRC";
+					break;
+				}
+
+				apply(new DataInputStream(new ByteArrayInputStream(payload, 0, length)), replay);
+				valid += HEADER_SIZE + length;
+				++records;
+			}
+		} finally {
+			stream.close();
+		}
+
+		if (torn != null) {
+			long dropped = file.length() - valid;
+			Log.warn("The registration log " + file + " has a torn tail (" + torn + "), dropping its last " + dropped
+					+ " bytes after " + records + " records");
+			TORN_BYTES.add(dropped);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				channel.truncate(valid);
+			}
+		}
+
+		return records;
+	}
+
+	/// <summary>
+	/// Opens <c>file</c> for appending, creating it if needed, and starts the thread writing to it.
+	/// </summary>
+	public RegistrationLog(File file) throws IOException {
+		m_file = file;
+		m_channel = open(file);
+		m_size = m_channel.size();
+		m_goodSize = m_size;
+
+		m_writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeBatches();
+			}
+		}, "registration-log");
+		m_writer.setDaemon(true);
+		m_writer.start();
+	}
+
+	public synchronized void register(String uid, String provider, String id) throws IOException {
+		DataOutputStream record = start(REGISTER);
+		writeString(record, uid);
+		writeString(record, provider);
+		writeString(record, id);
+		finish();
+	}
+
+	public synchronized void update(String uid, String id) throws IOException {
+		DataOutputStream record = start(UPDATE);
+		writeString(record, uid);
+		writeString(record, id);
+		finish();
+	}
+
+	public synchronized void unregister(String uid) throws IOException {
+		DataOutputStream record = start(UNREGISTER);
+		writeString(record, uid);
+		finish();
+	}
+
+	public synchronized void token(String provider, String token, Date tokenExpires) throws IOException {
+		DataOutputStream record = start(TOKEN);
+		writeString(record, provider);
+		writeString(record, token);
+		record.writeLong(tokenExpires != null ? tokenExpires.getTime() : Long.MIN_VALUE);
+		finish();
+	}
+
+	/// <summary>
+	/// Waits until all the records appended so far are synced to the disk, whatever the sync policy, with the batch
+	/// they are written with.
+	/// </summary>
+	/// <exception cref="IOException">If a write fails meanwhile. The records are retried later anyway.</exception>
+	public synchronized void awaitDurable() throws IOException, InterruptedException {
+		long target = m_appended;
+		long failures = m_failures;
+		if (m_syncRequested < target) {
+			m_syncRequested = target;
+			notifyAll();
+		}
+
+		while (m_durable < target) {
+			if (m_failures != failures || m_closed) {
+				throw new IOException("Can't write the registration log " + m_file
+						+ (m_error != null ? ": " + m_error.getMessage() : ""), m_error);
+			}
+			wait();
+		}
+	}
+
+	/// <summary>
+	/// The size of the log (bytes), including the records not written yet.
+	/// </summary>
+	public synchronized long size() {
+		return m_size;
+	}
+
+	/// <summary>
+	/// Continues with a new, empty log, once the records appended so far are written to this one and it's renamed to
+	/// <c>target</c>. Used to compact the log: those records are in the snapshot being written, so <c>target</c> is
+	/// only needed until it's done. <c>awaitRotated</c> waits for the rename.
+	/// </summary>
+	public synchronized void rotate(File target) throws IOException {
+		if (m_rotateTo != null) {
+			throw new IOException("The registration log " + m_file + " is being renamed already");
+		}
+
+		m_sealed = m_pending;
+		m_pending = new RecordBytes();
+		m_rotateTo = target;
+		m_rotated = false;
+		m_size = 0;
+		notifyAll();
+	}
+
+	/// <returns>Whether the log has been renamed by the last <c>rotate</c>.</returns>
+	public synchronized boolean awaitRotated() throws InterruptedException {
+		while (m_rotateTo != null && !m_closed) {
+			wait();
+		}
+		return m_rotated;
+	}
+
+	/// <summary>
+	/// Writes the records left without waiting for the window, syncs them and stops the writing thread. Records
+	/// appended from then on are refused.
+	/// </summary>
+	/// <exception cref="IOException">If the records can't be written.</exception>
+	public void close() throws IOException, InterruptedException {
+		long target;
+		synchronized (this) {
+			target = m_appended;
+			m_closing = true;
+			notifyAll();
+		}
+
+		m_writer.join();
+		if (m_durable < target) {
+			throw new IOException("Can't write the registration log " + m_file
+					+ (m_error != null ? ": " + m_error.getMessage() : ""), m_error);
+		}
+	}
+
+// private
+	private static FileChannel open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		return channel;
+	}
+
+	private DataOutputStream start(byte type) throws IOException {
+		if (m_closing) {
+			throw new IOException("The registration log " + m_file + " is closed");
+		}
+
+		m_recordBytes.reset();
+		m_record.writeByte(type);
+		return m_record;
+	}
+
+	private void finish() throws IOException {
+		int length = m_recordBytes.size();
+		if (length > MAX_RECORD_SIZE) {
+			throw new IOException("A registration record is too large: " + length + " bytes");
+		}
+
+		m_crc.reset();
+		m_crc.update(m_recordBytes.buffer(), 0, length);
+
+		boolean first = m_pending.size() == 0;
+		writeInt(m_pending, length);
+		writeInt(m_pending, (int)m_crc.getValue());
+		m_pending.write(m_recordBytes.buffer(), 0, length);
+		m_size += HEADER_SIZE + length;
+		m_appended += HEADER_SIZE + length;
+
+		if (first) {
+			m_pendingSince = System.nanoTime();
+			notifyAll();
+		} else if (m_pending.size() >= ServerOptions.REGISTRATION_COMMIT_SIZE) {
+			notifyAll();
+		}
+	}
+
+	private static void writeInt(RecordBytes bytes, int value) {
+		bytes.write(value >>> 24);
+		bytes.write(value >>> 16);
+		bytes.write(value >>> 8);
+		bytes.write(value);
+	}
+
+	// The writing thread
+	private void writeBatches() {
+		boolean periodic = "periodic".equals(ServerOptions.REGISTRATION_FSYNC);
+		long syncInterval = TimeUnit.MILLISECONDS.toNanos(ServerOptions.REGISTRATION_FSYNC_INTERVAL);
+		long window = TimeUnit.MILLISECONDS.toNanos(ServerOptions.REGISTRATION_COMMIT_WINDOW);
+		long lastSync = System.nanoTime();
+
+		while (true) {
+			RecordBytes batch;
+			RecordBytes sealed;
+			File rotateTo;
+			long end;
+			boolean sync;
+			boolean closing;
+			try {
+				synchronized (this) {
+					while (!m_closing && m_rotateTo == null) {
+						long now = System.nanoTime();
+						long waitNanos;
+						if (m_pending.size() > 0) {
+							waitNanos = m_pending.size() >= ServerOptions.REGISTRATION_COMMIT_SIZE ? 0
+									: m_pendingSince + window - now;
+						} else if (m_syncRequested > m_durable) {
+							// Written already, but not synced
+							waitNanos = 0;
+						} else if (periodic && m_durable < m_written) {
+							waitNanos = lastSync + syncInterval - now;
+						} else {
+							waitNanos = Long.MAX_VALUE;
+						}
+
+						if (waitNanos <= 0) {
+							break;
+						}
+						if (waitNanos == Long.MAX_VALUE) {
+							wait();
+						} else {
+							// Rounded up, so that the window isn't cut short
+							wait(Math.max(1, (waitNanos + 999999) / 1000000));
+						}
+					}
+
+					batch = m_pending;
+					m_pending = m_spare;
+					sealed = m_sealed;
+					rotateTo = m_rotateTo;
+					end = m_appended;
+					closing = m_closing;
+					sync = !periodic || closing || m_syncRequested > m_durable
+							|| System.nanoTime() - lastSync >= syncInterval;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long started = System.nanoTime();
+			IOException error = null;
+			try {
+				if (!m_channel.isOpen()) {
+					// Reopening has failed after a rename
+					m_channel = open(m_file);
+					m_goodSize = m_channel.size();
+				} else if (m_channel.size() != m_goodSize || m_channel.position() != m_goodSize) {
+					// A failed write may have left a part of a record, which would end the replay
+					m_channel.truncate(m_goodSize);
+					m_channel.position(m_goodSize);
+				}
+
+				if (sealed != null) {
+					write(sealed);
+					m_channel.force(false);
+					m_channel.close();
+					boolean rotated = m_file.renameTo(rotateTo);
+					if (!rotated) {
+						Log.warn("Can't rename the registration log " + m_file + " to " + rotateTo + ", it keeps growing");
+					}
+					// Done with the sealed records whatever follows: writing them again to the new log and renaming it
+					// would replace the whole old one
+					synchronized (this) {
+						m_sealed = null;
+						m_rotateTo = null;
+						m_rotated = rotated;
+						notifyAll();
+					}
+					sealed = null;
+					m_channel = open(m_file);
+					m_goodSize = m_channel.size();
+				}
+
+				write(batch);
+				if (sync) {
+					m_channel.force(false);
+					lastSync = System.nanoTime();
+					SYNCS.inc();
+				}
+				m_goodSize = m_channel.position();
+				COMMIT_DURATION.observeSince(started);
+			} catch (IOException e) {
+				error = e;
+				Log.error("Failed to write the registration log " + m_file + ", retrying", e);
+				WRITE_ERRORS.inc();
+			}
+
+			synchronized (this) {
+				if (error == null) {
+					m_written = end;
+					if (sync) {
+						m_durable = end;
+					}
+					m_error = null;
+					m_spare = reuse(batch);
+				} else {
+					// Retried in front of the records appended meanwhile
+					batch.write(m_pending.buffer(), 0, m_pending.size());
+					m_spare = reuse(m_pending);
+					m_pending = batch;
+					m_error = error;
+					++m_failures;
+				}
+
+				if (closing) {
+					m_closed = true;
+				}
+				notifyAll();
+			}
+
+			if (closing) {
+				break;
+			}
+			if (error != null) {
+				try {
+					Thread.sleep(RETRY_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		try {
+			m_channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	// Writes a batch at the end of the log; what has been written of it if that fails is truncated before the retry
+	private void write(RecordBytes batch) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(batch.buffer(), 0, batch.size());
+		while (buf.hasRemaining()) {
+			m_channel.write(buf);
+		}
+	}
+
+	// An empty buffer for the next batch, not keeping the memory of an exceptionally large one
+	private static RecordBytes reuse(RecordBytes bytes) {
+		if (bytes.capacity() > 4 * ServerOptions.REGISTRATION_COMMIT_SIZE) {
+			return new RecordBytes();
+		}
+		bytes.reset();
+		return bytes;
+	}
+
+	private static void apply(DataInputStream record, Replay replay) throws IOException {
+		byte type = record.readByte();
+		switch (type) {
+		case REGISTER:
+			replay.register(readString(record), readString(record), readString(record));
+			break;
+
+		case UPDATE:
+			replay.update(readString(record), readString(record));
+			break;
+
+		case UNREGISTER:
+			replay.unregister(readString(record));
+			break;
+
+		case TOKEN: {
+			String provider = readString(record);
+			String token = readString(record);
+			long expires = record.readLong();
+			replay.token(provider, token, expires != Long.MIN_VALUE ? new Date(expires) : null);
+			break;
+		}
+
+		default:
+			throw new IOException("Unknown registration record type " + type);
+		}
+	}
+
+	// UTF-8 with an int length, -1 for null: writeUTF can't take more than 64 KB
+	private static void writeString(DataOutputStream stream, String value) throws IOException {
+		if (value == null) {
+			stream.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		stream.writeInt(bytes.length);
+		stream.write(bytes);
+	}
+
+	private static String readString(DataInputStream stream) throws IOException {
+		int length = stream.readInt();
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		stream.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// Records, exposing the buffer to skip a copy
+	private static class RecordBytes extends ByteArrayOutputStream {
+		private RecordBytes() {
+			super(4096);
+		}
+
+		private byte[] buffer() {
+			return buf;
+		}
+
+		private int capacity() {
+			return buf.length;
+		}
+	}
+
+	private static final byte REGISTER = 1;
+	private static final byte UPDATE = 2;
+	private static final byte UNREGISTER = 3;
+	private static final byte TOKEN = 4;
+
+	// The length and the CRC
+	private static final int HEADER_SIZE = 8;
+	// Far above any real record, so a corrupted length isn't taken for one
+	private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long RETRY_INTERVAL = 1000;
+
+	private static final Metrics.Counter TORN_BYTES = Metrics.counter("demoserver_registrator_log_torn_bytes_total",
+			"Bytes of torn registration log tails dropped on recovery.", "");
+	private static final Metrics.Histogram COMMIT_DURATION = Metrics.histogram("demoserver_registrator_commit_duration_seconds",
+			"Writes of a batch of registration log records, with the sync if any.", "");
+	private static final Metrics.Counter SYNCS = Metrics.counter("demoserver_registrator_log_syncs_total",
+			"Syncs of the registration log to the disk.", "");
+	private static final Metrics.Counter WRITE_ERRORS = Metrics.counter("demoserver_registrator_log_write_errors_total",
+			"Failed writes of the registration log, retried with the next batch.", "");
+
+	private final File m_file;
+	private final Thread m_writer;
+	// Used by the writing thread only: the log and the end of the last batch written to it
+	private FileChannel m_channel;
+	private long m_goodSize;
+
+	// Guarded by this: the records not taken by the writing thread yet and the position (bytes since the start) of
+	// the last one appended, written and synced
+	private RecordBytes m_pending = new RecordBytes();
+	private RecordBytes m_spare = new RecordBytes();
+	private long m_pendingSince;
+	private long m_appended;
+	private long m_written;
+	private long m_durable;
+	private long m_syncRequested;
+	private long m_size;
+	// The records to write before renaming the log to m_rotateTo
+	private RecordBytes m_sealed;
+	private File m_rotateTo;
+	private boolean m_rotated;
+	private IOException m_error;
+	private long m_failures;
+	private boolean m_closing;
+	private boolean m_closed;
+
+	// The record being appended
+	private final RecordBytes m_recordBytes = new RecordBytes();
+	private final DataOutputStream m_record = new DataOutputStream(m_recordBytes);
+	private final CRC32 m_crc = new CRC32();
+}
@@ -0,0 +1,263 @@
+package com.universal_tools.demoserver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/// <summary>
+/// The snapshot of the registration (<c>ServerOptions.REGISTRATION_FILE</c>) in a versioned binary format.
+/// </summary>
+/// <remarks>
+/// The file is the magic <c>UTNR</c>, the format version, the counts of the devices and the OAuth2 tokens (so that
+/// the maps are created with their final size), the table of the providers, the devices (uid, provider index and
+/// registration id), the tokens and the CRC32 of all that. Strings are UTF-8 with a varint length, so a device
+/// takes little more than its uid and id, and loading is a single sequential read without reflection. Older
+/// versions of the server saved the maps with Java serialization: such a file is still read (version 0), and
+/// <c>Registrator</c> migrates it once.
+/// </remarks>
+class RegistrationSnapshot {
+// public
+	/// <summary>
+	/// Receives the content of the snapshot being read.
+	/// </summary>
+	public interface Loader {
+		/// <summary>
+		/// Called first, with the counts of what follows.
+		/// </summary>
+		void sizes(int devices, int tokens) throws IOException;
+		void device(String uid, Registrator.Item item) throws IOException;
+		void token(String provider, Registrator.OAuth2Token token);
+	}
+
+	/// <summary>
+	/// The version of the format written by <c>write</c>.
+	/// </summary>
+	public static final int VERSION = 1;
+	/// <summary>
+	/// The version of the files of Java serialized maps.
+	/// </summary>
+	public static final int JAVA_SERIALIZATION = 0;
+
+	/// <summary>
+	/// Reads the snapshot in either format.
+	/// </summary>
+	/// <returns>The version of the format read, <c>-1</c> if there is no such file.</returns>
+	public static int read(File file, Loader loader) throws IOException {
+		InputStream fileStream;
+		try {
+			fileStream = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			return -1;
+		}
+
+		try (InputStream stream = new BufferedInputStream(fileStream, BUFFER_SIZE)) {
+			stream.mark(MAGIC.length);
+			byte[] magic = new byte[MAGIC.length];
+			int read = stream.readNBytes(magic, 0, magic.length);
+			stream.reset();
+
+			if (read == MAGIC.length && Arrays.equals(magic, MAGIC)) {
+				return readBinary(stream, loader);
+			}
+
+			readJavaSerialization(stream, loader);
+			return JAVA_SERIALIZATION;
+		}
+	}
+
+	/// <summary>
+	/// Replaces the snapshot, with <c>DurableFile</c>.
+	/// </summary>
+	/// <param name="registration">Shouldn't change while being written.</param>
+	public static void write(String fileName, boolean sync, final Map<String, Registrator.Item> registration,
+			final Map<String, Registrator.OAuth2Token> tokens) throws IOException {
+		DurableFile.write(fileName, sync, new DurableFile.Content() {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				CRC32 crc = new CRC32();
+				DataOutputStream stream = new DataOutputStream(new CheckedOutputStream(out, crc));
+				stream.write(MAGIC);
+				stream.writeInt(VERSION);
+				stream.writeInt(registration.size());
+				stream.writeInt(tokens.size());
+
+				// Just a few distinct providers, so the devices refer to them by index
+				HashMap<String, Integer> providerIndexes = new HashMap<String, Integer>();
+				List<String> providers = new ArrayList<String>();
+				for (Registrator.Item item : registration.values()) {
+					if (!providerIndexes.containsKey(item.provider)) {
+						providerIndexes.put(item.provider, providers.size());
+						providers.add(item.provider);
+					}
+				}
+				writeVarint(stream, providers.size());
+				for (String provider : providers) {
+					writeString(stream, provider);
+				}
+
+				int written = 0;
+				for (Map.Entry<String, Registrator.Item> entry : registration.entrySet()) {
+					Registrator.Item item = entry.getValue();
+					writeString(stream, entry.getKey());
+					writeVarint(stream, providerIndexes.get(item.provider));
+					writeString(stream, item.getId());
+					++written;
+				}
+				if (written != registration.size()) {
+					throw new IOException("The registration has changed while being saved");
+				}
+
+				for (Map.Entry<String, Registrator.OAuth2Token> entry : tokens.entrySet()) {
+					Registrator.OAuth2Token token = entry.getValue();
+					writeString(stream, entry.getKey());
+					writeString(stream, token.token);
+					stream.writeLong(token.tokenExpires != null ? token.tokenExpires.getTime() : Long.MIN_VALUE);
+				}
+
+				stream.flush();
+				// Not a part of the checksum itself
+				new DataOutputStream(out).writeInt((int)crc.getValue());
+			}
+		});
+	}
+
+// private
+	private static int readBinary(InputStream in, Loader loader) throws IOException {
+		CRC32 crc = new CRC32();
+		DataInputStream stream = new DataInputStream(new CheckedInputStream(in, crc));
+		stream.readFully(new byte[MAGIC.length]);
+		int version = stream.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported registration database version " + version + ", expected " + VERSION);
+		}
+
+		int devices = stream.readInt();
+		int tokens = stream.readInt();
+		if (devices < 0 || tokens < 0) {
+			throw new IOException("Corrupted registration database: " + devices + " devices, " + tokens + " tokens");
+		}
+		loader.sizes(devices, tokens);
+
+		byte[][] scratch = { new byte[256] };
+		String[] providers = new String[readVarint(stream)];
+		for (int i = 0; i < providers.length; ++i) {
+			providers[i] = readString(stream, scratch);
+		}
+
+		for (int i = 0; i < devices; ++i) {
+			String uid = readString(stream, scratch);
+			int provider = readVarint(stream);
+			if (provider >= providers.length) {
+				throw new IOException("Corrupted registration database: provider index " + provider);
+			}
+			loader.device(uid, new Registrator.Item(providers[provider], readString(stream, scratch)));
+		}
+
+		for (int i = 0; i < tokens; ++i) {
+			String provider = readString(stream, scratch);
+			String token = readString(stream, scratch);
+			long expires = stream.readLong();
+			loader.token(provider, new Registrator.OAuth2Token(token, expires != Long.MIN_VALUE ? new Date(expires) : null));
+		}
+
+		int expectedCrc = (int)crc.getValue();
+		if (new DataInputStream(in).readInt() != expectedCrc) {
+			throw new IOException("Corrupted registration database: CRC mismatch");
+		}
+
+		return version;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void readJavaSerialization(InputStream in, Loader loader) throws IOException {
+		HashMap<String, Registrator.Item> registration;
+		HashMap<String, Registrator.OAuth2Token> tokens;
+		try {
+			ObjectInputStream stream = new ObjectInputStream(in);
+			registration = (HashMap<String, Registrator.Item>)stream.readObject();
+			tokens = (HashMap<String, Registrator.OAuth2Token>)stream.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException("Unknown registration database format: " + e, e);
+		}
+
+		loader.sizes(registration.size(), tokens.size());
+		for (Map.Entry<String, Registrator.Item> entry : registration.entrySet()) {
+			loader.device(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, Registrator.OAuth2Token> entry : tokens.entrySet()) {
+			loader.token(entry.getKey(), entry.getValue());
+		}
+	}
+
+	// Unsigned LEB128: 7 bits a byte, lowest first
+	private static void writeVarint(DataOutputStream stream, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			stream.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		stream.writeByte(value);
+	}
+
+	private static int readVarint(DataInputStream stream) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = stream.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Corrupted registration database: a varint is too long");
+	}
+
+	// The length is written plus one, 0 for null
+	private static void writeString(DataOutputStream stream, String value) throws IOException {
+		if (value == null) {
+			writeVarint(stream, 0);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(stream, bytes.length + 1);
+		stream.write(bytes);
+	}
+
+	// Decodes from scratch[0], which is replaced by a larger array if needed and kept for the next strings
+	private static String readString(DataInputStream stream, byte[][] scratch) throws IOException {
+		int length = readVarint(stream) - 1;
+		if (length < 0) {
+			return null;
+		}
+		if (length > MAX_STRING_SIZE) {
+			throw new IOException("Corrupted registration database: a string of " + length + " bytes");
+		}
+
+		if (length > scratch[0].length) {
+			scratch[0] = new byte[length];
+		}
+		stream.readFully(scratch[0], 0, length);
+		return new String(scratch[0], 0, length, StandardCharsets.UTF_8);
+	}
+
+	private static final byte[] MAGIC = { 'U', 'T', 'N', 'R' };
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	// Far above any real uid or token, so a corrupted length isn't taken for one
+	private static final int MAX_STRING_SIZE = 16 * 1024 * 1024;
+}
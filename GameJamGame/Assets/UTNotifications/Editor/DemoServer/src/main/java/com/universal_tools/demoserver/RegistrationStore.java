@@ -0,0 +1,57 @@
+package com.universal_tools.demoserver;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/// <summary>
+/// Where <c>Registrator</c> keeps the registered devices by uid: <c>HeapRegistrationStore</c> or
+/// <c>MappedRegistrationStore</c>, as <c>ServerOptions.REGISTRATION_STORE</c> says.
+/// </summary>
+/// <remarks>
+/// The changes of a uid are made under its stripe lock of <c>Registrator</c> and logged by it, so a store only has to
+/// keep the changes of different uids apart. The reads don't lock.
+/// </remarks>
+interface RegistrationStore {
+	/// <returns>The device registered with <c>uid</c>, <c>null</c> if none.</returns>
+	Registrator.Item get(String uid);
+
+	/// <summary>
+	/// Registers <c>item</c>, replacing the device registered with <c>uid</c> if any.
+	/// </summary>
+	void put(String uid, Registrator.Item item) throws IOException;
+
+	/// <summary>
+	/// Replaces the id of the device registered with <c>uid</c> if it's still <c>item</c>. Doesn't change
+	/// <c>item</c> itself: that's up to the caller.
+	/// </summary>
+	/// <returns><c>false</c> if <c>item</c> isn't registered (anymore).</returns>
+	boolean update(String uid, Registrator.Item item, String id) throws IOException;
+
+	/// <returns><c>false</c> if <c>uid</c> isn't registered.</returns>
+	boolean remove(String uid) throws IOException;
+
+	int size();
+
+	/// <summary>
+	/// A live, weakly consistent view of the registered devices, as <c>Registrator.items()</c> returns it.
+	/// </summary>
+	Collection<Registrator.Item> items();
+
+	/// <summary>
+	/// Whether the store saves the devices itself: the snapshot of the registration has only the OAuth2 tokens then.
+	/// </summary>
+	boolean persistent();
+
+	/// <summary>
+	/// A copy of the registered devices by uid, f.e. to save them in the snapshot.
+	/// </summary>
+	Map<String, Registrator.Item> copy();
+
+	/// <summary>
+	/// Syncs the devices registered so far to the disk, if the store is <c>persistent</c>.
+	/// </summary>
+	void sync() throws IOException;
+
+	void close() throws IOException;
+}
@@ -1,23 +1,39 @@
 package com.universal_tools.demoserver;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Map;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /// <summary>
 /// Very simple registration of devices on a server side (storing pairs of push notifications system provider & registrationId).
 /// </summary>
 /// <remarks>
 /// You should use some database instead in production.
+/// Every change is appended to <c>RegistrationLog</c> (<c>REGISTRATION_FILE.log</c>), which costs the same however
+/// many devices are registered and is written to the disk by a background thread: a change returns without waiting
+/// for the disk unless <c>ServerOptions.REGISTRATION_FSYNC</c> is <c>always</c>, <c>awaitDurable</c> waits for the
+/// changes made so far otherwise. Once the log is larger than both <c>ServerOptions.REGISTRATION_LOG_SIZE</c> and the
+/// last snapshot, it's compacted: the changes go to a new log, while a background thread saves the whole
+/// registration as the new <c>RegistrationSnapshot</c>, syncs it to the disk and then deletes the old log
+/// (<c>.log.prev</c>). On start the snapshot is read and the logs are replayed over it; the log is synced to the disk
+/// on shutdown. A snapshot which can't be read is moved aside as <c>REGISTRATION_FILE.corrupt-{time}</c> rather than
+/// overwritten.
+/// The devices are kept in a <c>RegistrationStore</c>, on the heap or in a mapped file as
+/// <c>ServerOptions.REGISTRATION_STORE</c> says: reads take no lock and <c>items</c> is a live view rather than a copy,
+/// so walking a million devices for <c>/notify</c> doesn't stop the registrations. A mapped store saves the devices
+/// itself: the snapshot has just the OAuth2 tokens then, the store is synced instead on compaction, and the start
+/// doesn't read the devices at all. A change locks just one of <c>STRIPES</c> locks, by uid, so that the changes of a
+/// device reach the store and the log in the same order.
 /// </remarks>
-@SuppressWarnings("unchecked")
 public class Registrator {
 //public
 	public static class Item implements Serializable
@@ -32,99 +48,521 @@ public class Registrator {
 			return m_id;
 		}
 		
+		/// <returns>The uid the item is registered with, <c>null</c> if it isn't registered.</returns>
+		String getUid() {
+			return m_uid;
+		}
+		
 		public void setId(String id) {
-			m_id = id;
-			
-			save();
+			try {
+				update(this, id);
+				written();
+			} catch (IOException e) {
+				onWriteError(e);
+			}
+			committed();
 		}
 		
 		public final String provider;
 		
 	//private
-		private String		m_id;
+		// Read from a store: registered already
+		Item(String uid, String provider, String id) {
+			this(provider, id);
+			m_uid = uid;
+		}
+		
+		private volatile String	m_id;
+		// Set once registered: an item isn't saved without it
+		private transient String m_uid;
 		
 		private static final long serialVersionUID = 1L;
 	}
 	
 	public static void register(String uid, String provider, String id) {
-		synchronized (m_registration) {
-			m_registration.put(uid, new Item(provider, id));
-			save();
+		try {
+			register(uid, new Item(provider, id));
+			written();
+		} catch (IOException e) {
+			onWriteError(e);
+		}
+		committed();
+	}
+	
+	/// <summary>
+	/// Registers all the <c>items</c> (by uid) with a single write.
+	/// </summary>
+	public static void register(Map<String, Item> items) {
+		try {
+			for (Map.Entry<String, Item> entry : items.entrySet()) {
+				register(entry.getKey(), entry.getValue());
+			}
+			written();
+		} catch (IOException e) {
+			onWriteError(e);
 		}
+		committed();
 	}
 	
-	public static List<Item> items()
+	/// <returns><c>false</c> if <c>uid</c> isn't registered.</returns>
+	public static boolean unregister(String uid) {
+		try {
+			synchronized (stripe(uid)) {
+				if (!m_store.remove(uid)) {
+					return false;
+				}
+				m_log.unregister(uid);
+			}
+			written();
+		} catch (IOException e) {
+			onWriteError(e);
+		}
+		committed();
+		return true;
+	}
+	
+	/// <summary>
+	/// Updates the ids of many items with a single write, f.e. the canonical ids of an FCM response.
+	/// </summary>
+	public static void setIds(Map<Item, String> ids) {
+		try {
+			for (Map.Entry<Item, String> entry : ids.entrySet()) {
+				update(entry.getKey(), entry.getValue());
+			}
+			written();
+		} catch (IOException e) {
+			onWriteError(e);
+		}
+		committed();
+	}
+	
+	/// <summary>
+	/// The registered devices: a live, weakly consistent view, which neither copies them nor blocks the changes.
+	/// </summary>
+	/// <remarks>
+	/// Walking it sees every device registered before and not unregistered until the walk, and maybe some of the
+	/// changes made meanwhile (see <c>RegistrationStore.items</c> of the store in use).
+	/// </remarks>
+	public static Collection<Item> items()
 	{
-		synchronized (m_registration) {
-			return new ArrayList<Item>(m_registration.values());
+		return m_store.items();
+	}
+	
+	/// <returns>The device registered with <c>uid</c>, <c>null</c> if there is none.</returns>
+	public static Item item(String uid) {
+		return m_store.get(uid);
+	}
+	
+	/// <summary>
+	/// Waits until the changes made so far are synced to the disk, f.e. before confirming them to a client, whatever
+	/// <c>ServerOptions.REGISTRATION_FSYNC</c> is.
+	/// </summary>
+	/// <exception cref="IOException">If the log can't be written.</exception>
+	public static void awaitDurable() throws IOException, InterruptedException {
+		m_log.awaitDurable();
+	}
+	
+	/// <summary>
+	/// Waits for a compaction in progress, writes the rest of the log without waiting for the commit window, syncs it
+	/// to the disk and stops writing. Called on shutdown.
+	/// </summary>
+	/// <remarks>
+	/// A change made afterwards, f.e. by a notify job stuck in a provider call past the shutdown deadline, fails
+	/// with an error logged and counted rather than being lost silently: the log and the mapped store refuse it.
+	/// </remarks>
+	public static void flush() {
+		try {
+			// Not to exit with the snapshot half-written, nor to have it replace the final one below
+			Thread compaction = m_compaction;
+			if (compaction != null) {
+				compaction.join();
+			}
+			m_log.close();
+			// The store and the snapshot take all the changes then, so that the next start has no log to replay
+			if (m_store.persistent() && saveSnapshot(true)) {
+				new File(DB_FILE_NAME + ".log").delete();
+				previousLogFile().delete();
+			}
+			m_store.close();
+		} catch (IOException e) {
+			onWriteError(e);
+		} catch (InterruptedException e) {
+			Log.warn("Interrupted while writing the registration log");
 		}
 	}
 	
 	public static String getOAuth2Token(String provider) {
-		if (m_oath2Tokens.containsKey(provider)) {
-			return m_oath2Tokens.get(provider).getToken();
-		} else {
-			return null;
-		}
+		OAuth2Token token = m_oath2Tokens.get(provider);
+		return token != null ? token.getToken() : null;
 	}
 	
 	public static void setOAuth2Token(String provider, String token, Date tokenExpires) {
-		m_oath2Tokens.put(provider, new OAuth2Token(token, tokenExpires));
-		save();
+		try {
+			synchronized (stripe(provider)) {
+				m_oath2Tokens.put(provider, new OAuth2Token(token, tokenExpires));
+				m_log.token(provider, token, tokenExpires);
+			}
+			written();
+		} catch (IOException e) {
+			onWriteError(e);
+		}
+		committed();
 	}
 	
 //private
+	// Before the static block, which may save a snapshot
+	private static final Metrics.Histogram SAVE_DURATION = Metrics.histogram("demoserver_registrator_save_duration_seconds",
+			"Time to save a snapshot of the whole registration database.", "");
+	private static final Metrics.Counter SAVE_ERRORS = Metrics.counter("demoserver_registrator_save_errors_total",
+			"Failed writes of the registration log and snapshots.", "");
+	private static final Metrics.Counter COMPACTIONS = Metrics.counter("demoserver_registrator_compactions_total",
+			"Compactions of the registration log into a snapshot.", "");
+	
 	static {
-		ObjectInputStream stream = null;
-		HashMap<String, Item> registration = null;
-		HashMap<String, Registrator.OAuth2Token> oath2Tokens = null;
+		DB_FILE_NAME = ServerOptions.REGISTRATION_FILE;
+		
+		loadSnapshot();
+		openLog();
+		
+		Metrics.gauge("demoserver_registrations", "Registered devices.", "", new Metrics.Gauge() {
+			@Override
+			public double value() {
+				return m_store.size();
+			}
+		});
+		Metrics.gauge("demoserver_registrator_log_bytes", "Size of the registration log since the last compaction.", "",
+				new Metrics.Gauge() {
+			@Override
+			public double value() {
+				return m_log.size();
+			}
+		});
+	}
+	
+	// Reads the snapshot, in the format of any version of the server, and opens the store
+	private static void loadSnapshot() {
+		final boolean mapped = "mapped".equals(ServerOptions.REGISTRATION_STORE);
+		if (mapped) {
+			try {
+				m_store = MappedRegistrationStore.open(storeFileName());
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't open the registration store " + storeFileName() + ": " + e.getMessage(), e);
+			}
+		}
 		
+		long started = System.nanoTime();
+		final int[] snapshotDevices = { 0 };
+		int version = -1;
 		try {
-			FileInputStream fileStream = new FileInputStream(DB_FILE_NAME = "utnotifications_reg.db");
-			stream = new ObjectInputStream(fileStream);
-			
-			registration = (HashMap<String, Item>)stream.readObject();
-			oath2Tokens = (HashMap<String, Registrator.OAuth2Token>)stream.readObject();
-		} catch (FileNotFoundException e) {
-			//It's OK!
+			version = RegistrationSnapshot.read(new File(DB_FILE_NAME), new RegistrationSnapshot.Loader() {
+				@Override
+				public void sizes(int devices, int tokens) throws IOException {
+					if (!mapped) {
+						m_store = new HeapRegistrationStore(devices);
+					} else if (devices > 0) {
+						// Saved with the devices by the heap store, after the mapped one was last used
+						((MappedRegistrationStore)m_store).clear(devices);
+					}
+					m_oath2Tokens = new ConcurrentHashMap<String, OAuth2Token>(tokens);
+					snapshotDevices[0] = devices;
+				}
+				
+				@Override
+				public void device(String uid, Item item) throws IOException {
+					put(uid, item);
+				}
+				
+				@Override
+				public void token(String provider, OAuth2Token token) {
+					m_oath2Tokens.put(provider, token);
+				}
+			});
 		} catch (Throwable t) {
-			t.printStackTrace();
-		} finally {
-			m_registration = registration != null ? registration : new HashMap<String, Item>();
-			m_oath2Tokens = oath2Tokens != null ? oath2Tokens : new HashMap<String, OAuth2Token>();
+			moveAsideCorrupt(t);
+			if (!mapped) {
+				m_store = null;
+			}
+			m_oath2Tokens = null;
+		}
+		
+		if (m_store == null) {
+			m_store = new HeapRegistrationStore(16);
+		}
+		if (m_oath2Tokens == null) {
+			m_oath2Tokens = new ConcurrentHashMap<String, OAuth2Token>();
+		}
+		if (version >= 0 || m_store.size() > 0) {
+			Log.info("Loaded " + m_store.size() + " devices from " + (mapped ? storeFileName() : DB_FILE_NAME) + " in "
+					+ (System.nanoTime() - started) / 1000000 + " ms");
+		}
+		
+		if (!mapped && MappedRegistrationStore.exists(storeFileName())) {
+			importMappedStore();
+		} else if (version == RegistrationSnapshot.JAVA_SERIALIZATION || (mapped && snapshotDevices[0] > 0)) {
+			migrateSnapshot(version == RegistrationSnapshot.JAVA_SERIALIZATION);
+		}
+	}
+	
+	// Renames a snapshot which can't be read (f.e. a CRC mismatch), so that the next one saved doesn't replace it with
+	// the devices of the log alone; it's kept for a manual restore
+	private static void moveAsideCorrupt(Throwable error) {
+		File corrupt = new File(DB_FILE_NAME + ".corrupt-" + System.currentTimeMillis());
+		try {
+			Files.move(new File(DB_FILE_NAME).toPath(), corrupt.toPath());
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't read the registration database " + DB_FILE_NAME + " (" + error
+					+ ") nor move it aside: " + e.getMessage(), e);
+		}
+		Log.error("Can't read the registration database " + DB_FILE_NAME + ", moved it to " + corrupt
+				+ " and starting without it", error);
+	}
+	
+	// Replays the changes since the snapshot, the log of a compaction which hasn't finished first
+	private static void openLog() {
+		RegistrationLog.Replay replay = new RegistrationLog.Replay() {
+			@Override
+			public void register(String uid, String provider, String id) throws IOException {
+				put(uid, new Item(provider, id));
+			}
+			
+			@Override
+			public void update(String uid, String id) throws IOException {
+				Item item = m_store.get(uid);
+				if (item != null) {
+					m_store.update(uid, item, id);
+					item.m_id = id;
+				}
+			}
+			
+			@Override
+			public void unregister(String uid) throws IOException {
+				m_store.remove(uid);
+			}
 			
-			if (stream != null) {
+			@Override
+			public void token(String provider, String token, Date tokenExpires) {
+				m_oath2Tokens.put(provider, new OAuth2Token(token, tokenExpires));
+			}
+		};
+		
+		File logFile = new File(DB_FILE_NAME + ".log");
+		long records = replayLog(previousLogFile(), replay) + replayLog(logFile, replay);
+		if (records > 0) {
+			Log.info("Replayed " + records + " registration log records, " + m_store.size() + " devices registered");
+		}
+		
+		try {
+			m_log = new RegistrationLog(logFile);
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't open the registration log " + logFile + ": " + e.getMessage(), e);
+		}
+		m_compactAt = compactionThreshold();
+	}
+	
+	// A log which can't be replayed stops the start: running on would append to it and the next compaction would save
+	// a snapshot without its changes and delete it
+	private static long replayLog(File file, RegistrationLog.Replay replay) {
+		try {
+			return RegistrationLog.replay(file, replay);
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't replay the registration log " + file + ": " + e.getMessage(), e);
+		}
+	}
+	
+	// The lock of the changes of a uid (or a provider, for its OAuth2 token)
+	private static Object stripe(String key) {
+		int hash = key.hashCode();
+		return m_stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+	}
+	
+	private static Object[] stripes() {
+		Object[] stripes = new Object[STRIPES];
+		for (int i = 0; i < STRIPES; ++i) {
+			stripes[i] = new Object();
+		}
+		return stripes;
+	}
+	
+	private static void register(String uid, Item item) throws IOException {
+		synchronized (stripe(uid)) {
+			put(uid, item);
+			m_log.register(uid, item.provider, item.m_id);
+		}
+	}
+	
+	private static void put(String uid, Item item) throws IOException {
+		item.m_uid = uid;
+		m_store.put(uid, item);
+	}
+	
+	private static void update(Item item, String id) throws IOException {
+		String uid = item.m_uid;
+		if (uid == null) {
+			item.m_id = id;
+			return;
+		}
+		
+		synchronized (stripe(uid)) {
+			boolean registered = m_store.update(uid, item, id);
+			item.m_id = id;
+			// Not logged for an item which isn't registered (anymore): replaying would update the registered one
+			if (registered) {
+				m_log.update(uid, id);
+			}
+		}
+	}
+	
+	// Ends a change: compacts the log if it's due
+	private static void written() throws IOException {
+		if (m_log.size() < m_compactAt || !m_compacting.compareAndSet(false, true)) {
+			return;
+		}
+		
+		final File previous = previousLogFile();
+		final boolean rotating = !previous.exists();
+		try {
+			// The log left by a failed compaction stays: the new snapshot covers it as well
+			if (rotating) {
+				m_log.rotate(previous);
+			}
+		} catch (IOException e) {
+			m_compactAt = m_log.size() + compactionThreshold();
+			m_compacting.set(false);
+			throw e;
+		}
+		
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				// Synced before the old log is deleted: its records may have been confirmed as durable already
+				boolean saved = saveSnapshot(true);
+				boolean renamed = false;
 				try {
-					stream.close();
-				} catch (Throwable t) {
-					t.printStackTrace();
+					// The old log is renamed by the writing thread, once it has written all of it
+					renamed = rotating && m_log.awaitRotated();
+				} catch (InterruptedException e) {
 				}
+				// Only once renamed: until then the records of a rotation are still written to the old log
+				if (saved && (renamed || !rotating)) {
+					previous.delete();
+					COMPACTIONS.inc();
+				}
+				
+				// After a failure not before the log has grown by a threshold once more
+				m_compactAt = saved && renamed ? compactionThreshold() : m_log.size() + compactionThreshold();
+				m_compacting.set(false);
 			}
+		}, "registration-compaction");
+		thread.setDaemon(true);
+		m_compaction = thread;
+		thread.start();
+	}
+	
+	// Waits for the disk after a change with REGISTRATION_FSYNC=always, out of the locks so that the changes of other
+	// threads join the same batch
+	private static void committed() {
+		if (!"always".equals(ServerOptions.REGISTRATION_FSYNC)) {
+			return;
 		}
+		
+		try {
+			m_log.awaitDurable();
+		} catch (IOException e) {
+			onWriteError(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private static void onWriteError(IOException e) {
+		Log.error(e);
+		SAVE_ERRORS.inc();
 	}
 	
-	private static void save() {
-		ObjectOutputStream stream = null;
+	// Saves the snapshot, with the devices unless the store saves them itself. Copied while being changed: a change
+	// the copy misses is in the new log, replayed over the snapshot.
+	private static boolean saveSnapshot(boolean sync) {
+		long started = System.nanoTime();
 		try {
-			FileOutputStream fileStream = new FileOutputStream(DB_FILE_NAME);
-			stream = new ObjectOutputStream(fileStream);
+			Map<String, Item> registration;
+			if (m_store.persistent()) {
+				m_store.sync();
+				registration = Collections.<String, Item>emptyMap();
+			} else {
+				registration = m_store.copy();
+			}
 			
-			stream.writeObject(m_registration);
-			stream.writeObject(m_oath2Tokens);
+			RegistrationSnapshot.write(DB_FILE_NAME, sync, registration, new HashMap<String, OAuth2Token>(m_oath2Tokens));
+			return true;
 		} catch (Throwable t) {
-			t.printStackTrace();
+			Log.error(t);
+			SAVE_ERRORS.inc();
+			return false;
 		} finally {
-			if (stream != null) {
-				try {
-					stream.close();
-				} catch (Throwable t) {
-					t.printStackTrace();
+			SAVE_DURATION.observeSince(started);
+		}
+	}
+	
+	// Rewrites the snapshot once when it's Java serialized by an older version of the server, keeping it as
+	// REGISTRATION_FILE.bak, or when its devices have moved to the mapped store
+	private static void migrateSnapshot(boolean javaSerialization) {
+		File backup = new File(DB_FILE_NAME + ".bak");
+		try {
+			if (javaSerialization) {
+				Files.copy(new File(DB_FILE_NAME).toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (!saveSnapshot(true)) {
+				// Read again next time
+				return;
+			}
+			
+			if (javaSerialization) {
+				Log.info("Migrated " + DB_FILE_NAME + " to the registration database version " + RegistrationSnapshot.VERSION
+						+ ", the old one is kept as " + backup);
+			} else {
+				Log.info("Moved " + m_store.size() + " devices from " + DB_FILE_NAME + " to " + storeFileName());
+			}
+		} catch (Throwable t) {
+			Log.error(t);
+		}
+	}
+	
+	// Moves the devices of the mapped store, last used before REGISTRATION_STORE was changed to heap, to the snapshot
+	private static void importMappedStore() {
+		try {
+			MappedRegistrationStore store = MappedRegistrationStore.open(storeFileName());
+			try {
+				for (Item item : store.items()) {
+					put(item.m_uid, item);
 				}
+				
+				if (saveSnapshot(true)) {
+					store.retire();
+					Log.info("Moved " + m_store.size() + " devices from " + storeFileName() + " to " + DB_FILE_NAME);
+				}
+			} finally {
+				// Nothing once retired
+				store.close();
 			}
+		} catch (Throwable t) {
+			Log.error(t);
 		}
 	}
 	
-	private static class OAuth2Token implements Serializable {
+	private static String storeFileName() {
+		return DB_FILE_NAME + ".store";
+	}
+	
+	// So that the compactions cost (amortized) a constant time per change, however many devices there are
+	private static long compactionThreshold() {
+		return Math.max(ServerOptions.REGISTRATION_LOG_SIZE, new File(DB_FILE_NAME).length());
+	}
+	
+	private static File previousLogFile() {
+		return new File(DB_FILE_NAME + ".log.prev");
+	}
+	
+	static class OAuth2Token implements Serializable {
 		public final String token;
 		public final Date tokenExpires;
 		
@@ -144,7 +582,18 @@ public class Registrator {
 		private static final long serialVersionUID = 1L;
 	}
 	
+	// A power of two, plenty for the threads changing the registration at once
+	private static final int STRIPES = 64;
+	
 	private static String DB_FILE_NAME;
-	private static HashMap<String, Item> m_registration;
-	private static HashMap<String, OAuth2Token> m_oath2Tokens;
+	private static RegistrationStore m_store;
+	private static ConcurrentHashMap<String, OAuth2Token> m_oath2Tokens;
+	private static RegistrationLog m_log;
+	private static final Object[] m_stripes = stripes();
+	// The log size starting the next compaction
+	private static volatile long m_compactAt;
+	private static final AtomicBoolean m_compacting = new AtomicBoolean();
+	// The last compaction thread, which the shutdown waits for
+	private static volatile Thread m_compaction;
+
 }
@@ -0,0 +1,407 @@
+package com.universal_tools.demoserver;
+
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/// <summary>
+/// Routes parsed requests to <c>Registrator</c> and <c>PushNotificator</c>.
+/// </summary>
+/// <remarks>
+/// Shared by all the server modes, so <c>/register</c> and <c>/notify</c> behave the same way whichever
+/// of them is used. <c>/unregister</c> takes just the <c>uid</c>; <c>/register</c> with <c>durable=true</c> answers
+/// only once the registration is synced to the disk. All of them take their arguments either form-encoded or as a
+/// JSON object (<c>Content-Type: application/json</c>) with the same names, f.e.
+/// <c>{"uid":"...","provider":"FCM","id":"..."}</c>. Only JSON can carry the user data and buttons of
+/// <c>/notify</c>: <c>"user_data":{"key":"value"}</c>, <c>"buttons":[{"title":"...","user_data":{...}}]</c>.
+/// </remarks>
+class RequestHandler {
+// public
+	/// <summary>
+	/// Produces the response to <c>request</c>, an error response if it fails.
+	/// </summary>
+	public static HttpResponse handle(HttpRequest request) {
+		long started = System.nanoTime();
+
+		HttpResponse response;
+		Shutdown.onRequestStarted();
+		try {
+			response = route(request).compress(request.acceptsGzip);
+		} catch (Throwable t) {
+			response = errorResponse(t);
+		} finally {
+			Shutdown.onRequestFinished();
+		}
+
+		long duration = System.nanoTime() - started;
+		RouteMetrics metrics = routeMetrics(request.path);
+		metrics.m_duration.observeNanos(duration);
+		metrics.responses(response.status).inc();
+		Log.access(request, response, duration);
+
+		return response;
+	}
+
+	/// <summary>
+	/// Provides the sink of a request which body is processed while being received rather than once complete.
+	/// Called once the headers are read, so a request refused here (f.e. <c>429</c>) doesn't get its body read.
+	/// </summary>
+	/// <returns><c>null</c> for the requests which body is just buffered.</returns>
+	public static BodySink bodySink(String path, String clientAddress) throws HttpException {
+		if ("/register/batch".equals(path)) {
+			long retryAfter = RateLimiter.CLIENTS.acquire(ServerOptions.RATE_LIMIT_REGISTER_IP, clientAddress);
+			if (retryAfter > 0) {
+				ServerStats.onRegisterThrottled(false);
+				throw new HttpException("429 Too Many Requests", "Too many requests, please retry later",
+						retryAfterSeconds(retryAfter));
+			}
+
+			return new RegistrationBatch();
+		}
+
+		return null;
+	}
+
+	/// <summary>
+	/// The response for the work a saturated <c>WorkerPool</c> has refused.
+	/// </summary>
+	public static HttpResponse overloadedResponse() {
+		return new HttpResponse("503 Service Unavailable", "The server is overloaded, please retry later")
+				.header("Retry-After", String.valueOf(ServerOptions.RETRY_AFTER));
+	}
+
+	public static HttpResponse errorResponse(Throwable t) {
+		if (t instanceof HttpException) {
+			HttpException e = (HttpException)t;
+			Log.warn(e.status + ": " + e.getMessage());
+			HttpResponse response = new HttpResponse(e.status, e.getMessage());
+			if (e.retryAfter > 0) {
+				response.header("Retry-After", String.valueOf(e.retryAfter));
+			}
+			return response;
+		}
+
+		Log.error(t);
+		return new HttpResponse("500 ERROR", t.toString());
+	}
+
+// private
+	// Request count and duration of a route, by response status
+	private static class RouteMetrics {
+		private RouteMetrics(String route) {
+			m_route = route;
+			m_duration = Metrics.histogram("demoserver_request_duration_seconds",
+					"Time to handle a request, by route.", "route=\"" + route + "\"");
+		}
+
+		private Metrics.Counter responses(String status) {
+			// "200 OK" -> "200"
+			int space = status.indexOf(' ');
+			String code = space > 0 ? status.substring(0, space) : status;
+
+			return m_responses.computeIfAbsent(code, m_newCounter);
+		}
+
+		private final String m_route;
+		private final Metrics.Histogram m_duration;
+		private final ConcurrentHashMap<String, Metrics.Counter> m_responses = new ConcurrentHashMap<String, Metrics.Counter>();
+		// Called once per status, so that the series is registered once
+		private final Function<String, Metrics.Counter> m_newCounter = new Function<String, Metrics.Counter>() {
+			@Override
+			public Metrics.Counter apply(String code) {
+				return Metrics.counter("demoserver_requests_total", "Handled requests, by route and response status.",
+						"route=\"" + m_route + "\",status=\"" + Metrics.label(code) + "\"");
+			}
+		};
+	}
+
+	private static RouteMetrics routeMetrics(String path) {
+		RouteMetrics metrics = m_routeMetrics.get(path.startsWith(JOBS_PATH) ? JOBS_PATH + "{id}" : path);
+		// Unknown paths share a single series, so that scanners can't grow the metrics without limit
+		return metrics != null ? metrics : m_otherRouteMetrics;
+	}
+
+	private static HashMap<String, RouteMetrics> routeMetricsMap(String... routes) {
+		HashMap<String, RouteMetrics> result = new HashMap<String, RouteMetrics>();
+		for (String route : routes) {
+			result.put(route, new RouteMetrics(route));
+		}
+		return result;
+	}
+
+	private static HttpResponse route(HttpRequest request) throws Throwable {
+		switch (request.path) {
+		case "/register": {
+			long retryAfter = RateLimiter.CLIENTS.acquire(ServerOptions.RATE_LIMIT_REGISTER_IP, request.clientAddress);
+			if (retryAfter > 0) {
+				ServerStats.onRegisterThrottled(false);
+				return throttledResponse(retryAfter);
+			}
+
+			HashMap<String, String> argsMap = arguments(request, null, null);
+
+			if (argsMap.get("uid") == null) {
+				throw new IllegalArgumentException("uid is not specified!");
+			}
+
+			if (argsMap.get("provider") == null) {
+				throw new IllegalArgumentException("provider is not specified!");
+			}
+
+			if (argsMap.get("id") == null) {
+				throw new IllegalArgumentException("id is not specified!");
+			}
+
+			retryAfter = RateLimiter.CLIENTS.acquire(ServerOptions.RATE_LIMIT_REGISTER_UID, argsMap.get("uid"));
+			if (retryAfter > 0) {
+				ServerStats.onRegisterThrottled(true);
+				return throttledResponse(retryAfter);
+			}
+
+			Registrator.register(argsMap.get("uid"), argsMap.get("provider"), argsMap.get("id"));
+			if ("true".equals(argsMap.get("durable"))) {
+				Registrator.awaitDurable();
+			}
+			return new HttpResponse("200 OK", "Registered!");
+		}
+
+		case "/register/batch":
+			return new HttpResponse("200 OK", "text/plain", ((RegistrationBatch)request.stream).finish());
+
+		case "/unregister": {
+			long retryAfter = RateLimiter.CLIENTS.acquire(ServerOptions.RATE_LIMIT_REGISTER_IP, request.clientAddress);
+			if (retryAfter > 0) {
+				ServerStats.onRegisterThrottled(false);
+				return throttledResponse(retryAfter);
+			}
+
+			String uid = arguments(request, null, null).get("uid");
+			if (uid == null) {
+				throw new IllegalArgumentException("uid is not specified!");
+			}
+
+			if (!Registrator.unregister(uid)) {
+				throw new HttpException("404 Not Found", "Not registered: " + uid);
+			}
+			return new HttpResponse("200 OK", "Unregistered!");
+		}
+
+		case "/notify": {
+			long retryAfter = RateLimiter.CLIENTS.acquire(ServerOptions.RATE_LIMIT_NOTIFY_IP, request.clientAddress);
+			if (retryAfter > 0) {
+				ServerStats.onNotifyThrottled();
+				return throttledResponse(retryAfter);
+			}
+
+			LinkedHashMap<String, String> userData = new LinkedHashMap<String, String>();
+			ArrayList<PushMessage.Button> buttons = new ArrayList<PushMessage.Button>();
+			HashMap<String, String> argsMap = arguments(request, userData, buttons);
+			int id = -1;
+			if (argsMap.containsKey("id")) {
+				try {
+					id = Integer.parseInt(argsMap.get("id"));
+				} catch (Throwable e) {
+				}
+			}
+
+			String title = argsMap.get("title");
+			String text = argsMap.get("text");
+			String notificationProfile = argsMap.containsKey("notification_profile")
+					? argsMap.get("notification_profile")
+					: null;
+
+			int badge = -1;
+			if (argsMap.containsKey("badge")) {
+				try {
+					badge = Integer.parseInt(argsMap.get("badge"));
+				} catch (Throwable e) {
+				}
+			}
+
+			NotifyJob job = NotifyJob.submit(new PushMessage(id, title, text,
+					new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()), notificationProfile, badge,
+					userData, buttons));
+			if (job == null) {
+				return overloadedResponse();
+			}
+
+			String href = "/jobs/" + job.id;
+			return new HttpResponse("202 Accepted", "Notification job " + job.id + " is queued, see <a href=\"" + href
+					+ "\">" + href + "</a> for its progress").header("Location", href);
+		}
+
+		case "/events":
+			// The server streams the events once the head is written
+			return HttpResponse.eventStream(DeliveryEvents.subscribe());
+
+		case "/stats":
+			return new HttpResponse("200 OK", "text/plain", ServerStats.report());
+
+		case "/metrics":
+			return new HttpResponse("200 OK", "text/plain; version=0.0.4", Metrics.report());
+
+		default: {
+			if (request.path.startsWith(JOBS_PATH)) {
+				return jobResponse(request.path.substring(JOBS_PATH.length()));
+			}
+
+			String href = "/notify?id=1&title=Sample Title&text=Sample Text&badge=1";
+			return new HttpResponse("200 OK", "Demo UTNotifications server.<br>Use <a href=\"" + href + "\">" + href
+					+ "</a> to send notifications for all registered clients");
+		}
+		}
+	}
+
+	private static HttpResponse throttledResponse(long retryAfterNanos) {
+		return new HttpResponse("429 Too Many Requests", "Too many requests, please retry later")
+				.header("Retry-After", String.valueOf(retryAfterSeconds(retryAfterNanos)));
+	}
+
+	// Whole seconds, rounded up
+	private static long retryAfterSeconds(long retryAfterNanos) {
+		return Math.max(1, (retryAfterNanos + 999999999L) / 1000000000L);
+	}
+
+	private static HttpResponse jobResponse(String jobId) throws HttpException {
+		NotifyJob job = null;
+		try {
+			job = NotifyJob.find(Long.parseLong(jobId));
+		} catch (NumberFormatException e) {
+		}
+
+		if (job == null) {
+			throw new HttpException("404 Not Found", "Unknown job: " + jobId);
+		}
+
+		return new HttpResponse("200 OK", "text/plain", job.report());
+	}
+
+	// The arguments of a request by name, from its JSON body and query or its form-encoded body and query. Of the
+	// JSON members that aren't strings, numbers or booleans, "user_data" and "buttons" are read to userData and
+	// buttons if given, the rest is skipped. Package-private for the tests.
+	static HashMap<String, String> arguments(HttpRequest request, Map<String, String> userData,
+			List<PushMessage.Button> buttons) throws HttpException, UnsupportedEncodingException {
+		if (request.json == null) {
+			return conentAsArgumentsMap(request.content);
+		}
+
+		HashMap<String, String> argsMap = new HashMap<String, String>();
+		JsonReader reader = new JsonReader(request.json, 0, request.json.length);
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (userData != null && "user_data".equals(name)) {
+				readUserData(reader, userData);
+			} else if (buttons != null && "buttons".equals(name)) {
+				readButtons(reader, buttons);
+			} else if (isScalar(reader.peek())) {
+				String value = reader.nextString();
+				if (value != null) {
+					argsMap.put(name, value);
+				}
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		reader.endDocument();
+
+		// The query arguments take precedence, as they do over a form-encoded body
+		argsMap.putAll(conentAsArgumentsMap(request.content));
+		return argsMap;
+	}
+
+	// {"key":"value", ...}, values are strings as the apps receive them
+	private static void readUserData(JsonReader reader, Map<String, String> userData) throws HttpException {
+		if (reader.peek() == JsonReader.Token.NULL) {
+			reader.skipValue();
+			return;
+		}
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (!isScalar(reader.peek())) {
+				throw reader.syntaxError("user data value of \"" + name + "\" is not a string");
+			}
+
+			String value = reader.nextString();
+			if (value != null) {
+				userData.put(name, value);
+			}
+		}
+		reader.endObject();
+	}
+
+	// [{"title":"...","user_data":{...}}, ...]
+	private static void readButtons(JsonReader reader, List<PushMessage.Button> buttons) throws HttpException {
+		if (reader.peek() == JsonReader.Token.NULL) {
+			reader.skipValue();
+			return;
+		}
+
+		reader.beginArray();
+		while (reader.hasNext()) {
+			String title = null;
+			LinkedHashMap<String, String> userData = new LinkedHashMap<String, String>();
+
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("title".equals(name)) {
+					title = reader.nextString();
+				} else if ("user_data".equals(name)) {
+					readUserData(reader, userData);
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+
+			if (title == null) {
+				throw new HttpException("400 Bad Request", "title of button " + buttons.size() + " is not specified!");
+			}
+			buttons.add(new PushMessage.Button(title, userData));
+		}
+		reader.endArray();
+	}
+
+	private static boolean isScalar(JsonReader.Token token) {
+		return token == JsonReader.Token.STRING || token == JsonReader.Token.NUMBER
+				|| token == JsonReader.Token.BOOLEAN || token == JsonReader.Token.NULL;
+	}
+
+	// Package-private for the benchmarks
+	static HashMap<String, String> conentAsArgumentsMap(String content) throws UnsupportedEncodingException {
+		HashMap<String, String> resultMap = new HashMap<String, String>();
+
+		if (content != null && !content.isEmpty()) {
+			String[] args = content.split("&");
+			for (String arg : args) {
+				if (arg.isEmpty()) {
+					continue;
+				}
+
+				// Only the first '=' separates the name: the value may contain more, f.e. base64 padding
+				int indexOfEquals = arg.indexOf('=');
+				String name = indexOfEquals >= 0 ? arg.substring(0, indexOfEquals) : arg;
+				String value = indexOfEquals >= 0 ? arg.substring(indexOfEquals + 1) : "";
+				resultMap.put(java.net.URLDecoder.decode(name, "UTF-8"), java.net.URLDecoder.decode(value, "UTF-8"));
+			}
+		}
+
+		return resultMap;
+	}
+
+	private static final String JOBS_PATH = "/jobs/";
+	private static final HashMap<String, RouteMetrics> m_routeMetrics = routeMetricsMap("/", "/register",
+			"/register/batch", "/unregister", "/notify", JOBS_PATH + "{id}", "/events", "/stats", "/metrics");
+	private static final RouteMetrics m_otherRouteMetrics = new RouteMetrics("other");
+}
@@ -0,0 +1,466 @@
+package com.universal_tools.demoserver;
+
+/// <summary>
+/// Command line options of the demo server, f.e. <c>--mode=nio --event-loops=4</c>.
+/// </summary>
+public class ServerOptions {
+// public
+	/// <summary>
+	/// <c>blocking</c>: a thread per connection; <c>nio</c>: selector based event loops and a small handler pool.
+	/// </summary>
+	public static String MODE = "blocking";
+	public static int EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+	public static int HANDLER_THREADS = 4;
+	/// <summary>
+	/// Connections are accepted by <c>ACCEPTORS</c> threads, each with its own workers (blocking mode; the worker
+	/// threads and queue are split between them) or event loops (nio mode). With <c>REUSE_PORT</c> every acceptor
+	/// has its own listening socket bound with <c>SO_REUSEPORT</c>, so the kernel spreads the new connections
+	/// between them; without it, or where <c>SO_REUSEPORT</c> isn't supported, they share a single socket.
+	/// </summary>
+	public static int ACCEPTORS = 1;
+	public static boolean REUSE_PORT = true;
+	/// <summary>
+	/// Serve HTTPS instead of HTTP (blocking mode only) with the certificate of the <c>TLS_KEYSTORE</c> PKCS12 file,
+	/// generated (self-signed) if there is none.
+	/// </summary>
+	public static boolean TLS = false;
+	public static String TLS_KEYSTORE = "demoserver.p12";
+	public static String TLS_KEYSTORE_PASSWORD = "changeit";
+	/// <summary>
+	/// TLS sessions kept for resumption by session id and for how long (seconds, also the lifetime of the session
+	/// tickets). With <c>TLS_TICKETS</c> the clients keep the session state in stateless tickets instead.
+	/// </summary>
+	public static int TLS_SESSION_CACHE = 20480;
+	public static int TLS_SESSION_TIMEOUT = 86400;
+	public static boolean TLS_TICKETS = true;
+	/// <summary>
+	/// <c>platform</c> or <c>virtual</c>. With <c>virtual</c> every connection (blocking mode), every request
+	/// (nio mode) and every outbound provider call runs on its own virtual thread.
+	/// </summary>
+	public static String THREADS = "platform";
+	/// <summary>
+	/// The maximum of concurrent virtual threads per pool; work above it is shed like with a full queue.
+	/// </summary>
+	public static int VIRTUAL_THREADS_LIMIT = 100000;
+	/// <summary>
+	/// The maximum of concurrent provider calls of a single fan-out with virtual threads.
+	/// </summary>
+	public static int PROVIDER_CONCURRENCY = 256;
+	/// <summary>
+	/// Threads serving connections in the blocking mode.
+	/// </summary>
+	public static int WORKER_THREADS = 200;
+	/// <summary>
+	/// Work waiting for a free worker (blocking mode) or handler (nio mode) thread. When full, new work is
+	/// answered with <c>503</c> and <c>Retry-After: RETRY_AFTER</c> (seconds).
+	/// </summary>
+	public static int WORKER_QUEUE = 1000;
+	public static int RETRY_AFTER = 1;
+	/// <summary>
+	/// How long (ms) an idle persistent connection is kept open. 0 disables persistent connections.
+	/// </summary>
+	/// <remarks>
+	/// In the blocking mode with platform threads an idle connection holds its worker while it waits for the next
+	/// request, so no more than <c>WORKER_THREADS</c> connections are served at once, idle or not, and the rest
+	/// wait in the <c>WORKER_QUEUE</c>. An idle connection gives its worker up as soon as a connection is queued
+	/// (within 200 ms, counted as <c>keep_alive_idle_yielded</c>) rather than at the end of the timeout; a client
+	/// keeping a connection busy still holds its worker for up to <c>KEEP_ALIVE_MAX_REQUESTS</c> requests. With
+	/// virtual threads an idle connection holds just its virtual thread, up to <c>VIRTUAL_THREADS_LIMIT</c>.
+	/// </remarks>
+	public static int KEEP_ALIVE_TIMEOUT = 15000;
+	public static int KEEP_ALIVE_MAX_REQUESTS = 100;
+	/// <summary>
+	/// Slow clients: a request (or the first one of a connection) whose next bytes take more than
+	/// <c>READ_TIMEOUT</c> ms to arrive, or which isn't received in <c>REQUEST_TIMEOUT</c> ms in total (headers and
+	/// body), is answered with <c>408</c> and its connection closed. 0 disables a timeout.
+	/// </summary>
+	public static int READ_TIMEOUT = 10000;
+	public static int REQUEST_TIMEOUT = 30000;
+	/// <summary>
+	/// A response not written in <c>WRITE_TIMEOUT</c> ms, f.e. to a client which doesn't read it, has its connection
+	/// closed (the nio mode). 0 disables the timeout.
+	/// </summary>
+	public static int WRITE_TIMEOUT = 30000;
+	/// <summary>
+	/// The maximum size (bytes) of the request line and headers together. Larger ones are answered with <c>431</c>.
+	/// </summary>
+	public static int MAX_HEADER_SIZE = 16 * 1024;
+	/// <summary>
+	/// The maximum size (bytes) of a request body, whether chunked or not.
+	/// </summary>
+	public static long MAX_BODY_SIZE = 16 * 1024 * 1024;
+	/// <summary>
+	/// Where the registered devices are saved: the snapshot, with the changes since it in <c>REGISTRATION_FILE.log</c>.
+	/// </summary>
+	public static String REGISTRATION_FILE = "utnotifications_reg.db";
+	/// <summary>
+	/// Where the registered devices are kept: <c>heap</c> (in the memory, saved with the snapshot) or <c>mapped</c>
+	/// (in the memory-mapped <c>REGISTRATION_FILE.store.N</c>, off the heap, with only the OAuth2 tokens in the
+	/// snapshot). Changing it moves the devices on the next start.
+	/// </summary>
+	public static String REGISTRATION_STORE = "heap";
+	/// <summary>
+	/// The size (bytes) of the registration log compacted into a new snapshot, unless the last snapshot is larger.
+	/// </summary>
+	public static int REGISTRATION_LOG_SIZE = 64 * 1024 * 1024;
+	/// <summary>
+	/// The changes of the registration are written to its log by a background thread, in batches: the changes made
+	/// within <c>REGISTRATION_COMMIT_WINDOW</c> ms of the first one, or earlier once they take
+	/// <c>REGISTRATION_COMMIT_SIZE</c> bytes. A longer window makes fewer and larger writes.
+	/// </summary>
+	public static int REGISTRATION_COMMIT_WINDOW = 5;
+	public static int REGISTRATION_COMMIT_SIZE = 1024 * 1024;
+	/// <summary>
+	/// When the registration log is synced to the disk: <c>always</c> before a change returns (the caller waits for
+	/// the batch), <c>batch</c> after every batch or <c>periodic</c> every <c>REGISTRATION_FSYNC_INTERVAL</c> ms.
+	/// Without a sync a crash of the OS may lose the changes.
+	/// </summary>
+	public static String REGISTRATION_FSYNC = "batch";
+	public static int REGISTRATION_FSYNC_INTERVAL = 1000;
+	/// <summary>
+	/// Records of a <c>/register/batch</c> request registered (and saved) at once.
+	/// </summary>
+	public static int REGISTER_BATCH_SIZE = 10000;
+	/// <summary>
+	/// <c>/notify</c> jobs running at once and waiting to be run. When both are taken <c>/notify</c> is answered
+	/// with <c>503</c>.
+	/// </summary>
+	public static int NOTIFY_JOB_THREADS = 2;
+	public static int NOTIFY_JOB_QUEUE = 100;
+	/// <summary>
+	/// Finished <c>/notify</c> jobs kept for <c>/jobs/{id}</c>.
+	/// </summary>
+	public static int JOB_HISTORY = 100;
+	/// <summary>
+	/// How long (ms) the server waits on shutdown for the requests and notification jobs in progress; jobs still
+	/// running are checkpointed and resumed on the next start.
+	/// </summary>
+	public static int SHUTDOWN_TIMEOUT = 30000;
+	/// <summary>
+	/// <c>/events</c>: the last <c>EVENTS_BUFFER</c> events are kept for the subscribers which fall behind, at most
+	/// <c>EVENTS_MAX_SUBSCRIBERS</c> subscribers are served at once and one not reading for
+	/// <c>EVENTS_WRITE_TIMEOUT</c> ms is disconnected.
+	/// </summary>
+	public static int EVENTS_BUFFER = 1024;
+	public static int EVENTS_MAX_SUBSCRIBERS = 16;
+	public static int EVENTS_WRITE_TIMEOUT = 10000;
+	/// <summary>
+	/// Requests allowed per client, as <c>rate[/burst]</c>: requests per second on average and at once. 0 (the
+	/// default) is no limit. Requests above it are answered with <c>429</c> and <c>Retry-After</c>.
+	/// </summary>
+	public static RateLimiter.Limit RATE_LIMIT_REGISTER_IP = new RateLimiter.Limit(0, 0);
+	public static RateLimiter.Limit RATE_LIMIT_REGISTER_UID = new RateLimiter.Limit(0, 0);
+	public static RateLimiter.Limit RATE_LIMIT_NOTIFY_IP = new RateLimiter.Limit(0, 0);
+	/// <summary>
+	/// Rate limit buckets kept at once (rounded up to a power of two); more clients evict each other's buckets.
+	/// </summary>
+	public static int RATE_LIMIT_TABLE = 65536;
+	/// <summary>
+	/// Responses of at least <c>GZIP_MIN_SIZE</c> bytes are gzip compressed (with <c>GZIP_LEVEL</c>, 1-9) for
+	/// the clients that accept it. <c>GZIP_LEVEL</c> 0 disables the compression.
+	/// </summary>
+	public static int GZIP_MIN_SIZE = 1024;
+	public static int GZIP_LEVEL = 6;
+	/// <summary>
+	/// <c>error</c>, <c>warn</c>, <c>info</c> (one line per request) or <c>debug</c> (request and response content,
+	/// provider responses).
+	/// </summary>
+	public static Log.Level LOG_LEVEL = Log.Level.INFO;
+	/// <summary>
+	/// The log file or <c>-</c> for the console. It's rotated at <c>LOG_MAX_SIZE</c> bytes, keeping <c>LOG_FILES</c>
+	/// files in total.
+	/// </summary>
+	public static String LOG_FILE = "demoserver.log";
+	public static long LOG_MAX_SIZE = 10 * 1024 * 1024;
+	public static int LOG_FILES = 5;
+	/// <summary>
+	/// Log entries waiting to be written. Entries above it are dropped.
+	/// </summary>
+	public static int LOG_BUFFER = 8192;
+	/// <summary>
+	/// Log one of every <c>ACCESS_LOG_SAMPLE</c> successful requests; failed ones are always logged.
+	/// </summary>
+	public static int ACCESS_LOG_SAMPLE = 1;
+
+	public static void parse(String[] args) {
+		for (String arg : args) {
+			if (!arg.startsWith("--") || !arg.contains("=")) {
+				throw new IllegalArgumentException("Unexpected argument: " + arg + ". Expected --name=value");
+			}
+
+			final int indexOfEquals = arg.indexOf('=');
+			String name = arg.substring(2, indexOfEquals);
+			String value = arg.substring(indexOfEquals + 1);
+
+			switch (name) {
+			case "port":
+				HttpServer.PORT = Integer.parseInt(value);
+				break;
+
+			case "mode":
+				if (!"blocking".equals(value) && !"nio".equals(value)) {
+					throw new IllegalArgumentException("Unknown mode: " + value);
+				}
+				MODE = value;
+				break;
+
+			case "event-loops":
+				EVENT_LOOPS = positive(name, value);
+				break;
+
+			case "handler-threads":
+				HANDLER_THREADS = positive(name, value);
+				break;
+
+			case "acceptors":
+				ACCEPTORS = positive(name, value);
+				break;
+
+			case "reuse-port":
+				REUSE_PORT = bool(name, value);
+				break;
+
+			case "tls":
+				TLS = bool(name, value);
+				break;
+
+			case "tls-keystore":
+				TLS_KEYSTORE = value;
+				break;
+
+			case "tls-keystore-password":
+				TLS_KEYSTORE_PASSWORD = value;
+				break;
+
+			case "tls-session-cache":
+				TLS_SESSION_CACHE = positive(name, value);
+				break;
+
+			case "tls-session-timeout":
+				TLS_SESSION_TIMEOUT = positive(name, value);
+				break;
+
+			case "tls-tickets":
+				TLS_TICKETS = bool(name, value);
+				break;
+
+			case "threads":
+				if (!"platform".equals(value) && !"virtual".equals(value)) {
+					throw new IllegalArgumentException("Unknown threads kind: " + value);
+				}
+				THREADS = value;
+				break;
+
+			case "virtual-threads-limit":
+				VIRTUAL_THREADS_LIMIT = positive(name, value);
+				break;
+
+			case "provider-concurrency":
+				PROVIDER_CONCURRENCY = positive(name, value);
+				break;
+
+			case "worker-threads":
+				WORKER_THREADS = positive(name, value);
+				break;
+
+			case "worker-queue":
+				WORKER_QUEUE = positive(name, value);
+				break;
+
+			case "retry-after":
+				RETRY_AFTER = nonNegative(name, value);
+				break;
+
+			case "read-timeout":
+				READ_TIMEOUT = nonNegative(name, value);
+				break;
+
+			case "request-timeout":
+				REQUEST_TIMEOUT = nonNegative(name, value);
+				break;
+
+			case "write-timeout":
+				WRITE_TIMEOUT = nonNegative(name, value);
+				break;
+
+			case "max-header-size":
+				MAX_HEADER_SIZE = positive(name, value);
+				break;
+
+			case "max-body-size":
+				MAX_BODY_SIZE = positive(name, value);
+				break;
+
+			case "registration-file":
+				REGISTRATION_FILE = value;
+				break;
+
+			case "registration-store":
+				if (!"heap".equals(value) && !"mapped".equals(value)) {
+					throw new IllegalArgumentException("Unknown registration store: " + value);
+				}
+				REGISTRATION_STORE = value;
+				break;
+
+			case "registration-log-size":
+				REGISTRATION_LOG_SIZE = positive(name, value);
+				break;
+
+			case "registration-commit-window":
+				REGISTRATION_COMMIT_WINDOW = nonNegative(name, value);
+				break;
+
+			case "registration-commit-size":
+				REGISTRATION_COMMIT_SIZE = positive(name, value);
+				break;
+
+			case "registration-fsync":
+				if (!"always".equals(value) && !"batch".equals(value) && !"periodic".equals(value)) {
+					throw new IllegalArgumentException("Unknown registration fsync policy: " + value);
+				}
+				REGISTRATION_FSYNC = value;
+				break;
+
+			case "registration-fsync-interval":
+				REGISTRATION_FSYNC_INTERVAL = positive(name, value);
+				break;
+
+			case "register-batch-size":
+				REGISTER_BATCH_SIZE = positive(name, value);
+				break;
+
+			case "notify-job-threads":
+				NOTIFY_JOB_THREADS = positive(name, value);
+				break;
+
+			case "notify-job-queue":
+				NOTIFY_JOB_QUEUE = positive(name, value);
+				break;
+
+			case "job-history":
+				JOB_HISTORY = positive(name, value);
+				break;
+
+			case "shutdown-timeout":
+				SHUTDOWN_TIMEOUT = nonNegative(name, value);
+				break;
+
+			case "events-buffer":
+				EVENTS_BUFFER = positive(name, value);
+				break;
+
+			case "events-max-subscribers":
+				EVENTS_MAX_SUBSCRIBERS = positive(name, value);
+				break;
+
+			case "events-write-timeout":
+				EVENTS_WRITE_TIMEOUT = positive(name, value);
+				break;
+
+			case "rate-limit-register-ip":
+				RATE_LIMIT_REGISTER_IP = RateLimiter.Limit.parse(value);
+				break;
+
+			case "rate-limit-register-uid":
+				RATE_LIMIT_REGISTER_UID = RateLimiter.Limit.parse(value);
+				break;
+
+			case "rate-limit-notify-ip":
+				RATE_LIMIT_NOTIFY_IP = RateLimiter.Limit.parse(value);
+				break;
+
+			case "rate-limit-table":
+				RATE_LIMIT_TABLE = positive(name, value);
+				break;
+
+			case "gzip-min-size":
+				GZIP_MIN_SIZE = nonNegative(name, value);
+				break;
+
+			case "gzip-level":
+				GZIP_LEVEL = nonNegative(name, value);
+				if (GZIP_LEVEL > 9) {
+					throw new IllegalArgumentException(name + " should be 0-9: " + value);
+				}
+				break;
+
+			case "log-level":
+				try {
+					LOG_LEVEL = Log.Level.valueOf(value.toUpperCase());
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("Unknown log level: " + value);
+				}
+				break;
+
+			case "log-file":
+				LOG_FILE = value;
+				break;
+
+			case "log-max-size":
+				LOG_MAX_SIZE = positive(name, value);
+				break;
+
+			case "log-files":
+				LOG_FILES = positive(name, value);
+				break;
+
+			case "log-buffer":
+				LOG_BUFFER = positive(name, value);
+				break;
+
+			case "access-log-sample":
+				ACCESS_LOG_SAMPLE = positive(name, value);
+				break;
+
+			case "keep-alive-timeout":
+				KEEP_ALIVE_TIMEOUT = nonNegative(name, value);
+				break;
+
+			case "keep-alive-max-requests":
+				KEEP_ALIVE_MAX_REQUESTS = positive(name, value);
+				break;
+
+			default:
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+
+		if ("nio".equals(MODE) && ACCEPTORS > EVENT_LOOPS) {
+			throw new IllegalArgumentException("acceptors should not exceed event-loops in nio mode: " + ACCEPTORS);
+		}
+		if ("nio".equals(MODE) && TLS) {
+			throw new IllegalArgumentException("tls is supported in the blocking mode only");
+		}
+	}
+
+	public static boolean virtualThreads() {
+		return "virtual".equals(THREADS);
+	}
+
+// private
+	private static int positive(String name, String value) {
+		int result = Integer.parseInt(value);
+		if (result <= 0) {
+			throw new IllegalArgumentException(name + " should be positive: " + value);
+		}
+
+		return result;
+	}
+
+	private static boolean bool(String name, String value) {
+		if (!"true".equals(value) && !"false".equals(value)) {
+			throw new IllegalArgumentException(name + " should be true or false: " + value);
+		}
+
+		return Boolean.parseBoolean(value);
+	}
+
+	private static int nonNegative(String name, String value) {
+		int result = Integer.parseInt(value);
+		if (result < 0) {
+			throw new IllegalArgumentException(name + " should not be negative: " + value);
+		}
+
+		return result;
+	}
+}
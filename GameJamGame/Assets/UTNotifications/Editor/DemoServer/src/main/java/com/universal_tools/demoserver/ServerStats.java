@@ -0,0 +1,169 @@
+package com.universal_tools.demoserver;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/// <summary>
+/// Connection and worker pool counters of the demo server, reported by the <c>/stats</c> request.
+/// </summary>
+/// <remarks>
+/// With several acceptors (<c>ServerOptions.ACCEPTORS</c>) the connections and requests are also counted per
+/// acceptor, and the accepted connections are exported to <c>/metrics</c> by acceptor, to see whether the load is
+/// spread evenly and the accept rate grows with them.
+/// </remarks>
+class ServerStats {
+// public
+	/// <param name="acceptor">The index of the acceptor, <c>0</c> if there is just one.</param>
+	public static void onConnectionAccepted(int acceptor) {
+		m_connectionsAccepted.incrementAndGet();
+		m_acceptorConnections.incrementAndGet(acceptor);
+		ACCEPTED[acceptor].inc();
+	}
+
+	/// <param name="acceptor">The index of the acceptor which has accepted the connection.</param>
+	public static void onRequest(int acceptor, boolean reusedConnection) {
+		m_requests.incrementAndGet();
+		m_acceptorRequests.incrementAndGet(acceptor);
+		if (reusedConnection) {
+			m_requestsOnReusedConnections.incrementAndGet();
+		}
+	}
+
+	public static void onIdleTimeout() {
+		m_idleTimeouts.incrementAndGet();
+	}
+
+	/// <summary>
+	/// Counts an idle persistent connection closed to give its worker thread to the connections waiting for one.
+	/// </summary>
+	public static void onIdleYielded() {
+		m_idleYielded.incrementAndGet();
+	}
+
+	public static void onReadTimeout() {
+		m_readTimeouts.incrementAndGet();
+	}
+
+	public static void onRequestTimeout() {
+		m_requestTimeouts.incrementAndGet();
+	}
+
+	public static void onWriteTimeout() {
+		m_writeTimeouts.incrementAndGet();
+	}
+
+	/// <summary>
+	/// Counts a request refused before it was complete, f.e. for its size.
+	/// </summary>
+	public static void onRequestRejected(Throwable t) {
+		if (!(t instanceof HttpException)) {
+			return;
+		}
+
+		String status = ((HttpException)t).status;
+		if (status.startsWith("413")) {
+			m_bodiesTooLarge.incrementAndGet();
+		} else if (status.startsWith("431")) {
+			m_headersTooLarge.incrementAndGet();
+		}
+	}
+
+	public static void onMaxRequestsReached() {
+		m_maxRequestsReached.incrementAndGet();
+	}
+
+	public static void onBatchApplied(int records) {
+		m_batchesApplied.incrementAndGet();
+		m_batchRecordsRegistered.addAndGet(records);
+	}
+
+	public static void onBatchRecordFailed() {
+		m_batchRecordsFailed.incrementAndGet();
+	}
+
+	public static void onRegisterThrottled(boolean byUid) {
+		(byUid ? m_registerThrottledByUid : m_registerThrottledByIp).incrementAndGet();
+	}
+
+	public static void onNotifyThrottled() {
+		m_notifyThrottledByIp.incrementAndGet();
+	}
+
+	public static void register(WorkerPool pool) {
+		m_pools.add(pool);
+	}
+
+	public static String report() {
+		long connections = m_connectionsAccepted.get();
+		long requests = m_requests.get();
+
+		StringBuilder builder = new StringBuilder();
+		append(builder, "connections_accepted", connections);
+		append(builder, "requests", requests);
+		append(builder, "requests_on_reused_connections", m_requestsOnReusedConnections.get());
+		builder.append("requests_per_connection ")
+				.append(String.format("%.2f", connections > 0 ? (double)requests / connections : 0.0)).append('\n');
+		append(builder, "keep_alive_idle_timeouts", m_idleTimeouts.get());
+		append(builder, "keep_alive_idle_yielded", m_idleYielded.get());
+		append(builder, "keep_alive_max_requests_reached", m_maxRequestsReached.get());
+		append(builder, "read_timeouts", m_readTimeouts.get());
+		append(builder, "request_timeouts", m_requestTimeouts.get());
+		append(builder, "write_timeouts", m_writeTimeouts.get());
+		append(builder, "request_headers_too_large", m_headersTooLarge.get());
+		append(builder, "request_bodies_too_large", m_bodiesTooLarge.get());
+		append(builder, "register_batches_applied", m_batchesApplied.get());
+		append(builder, "register_batch_records_registered", m_batchRecordsRegistered.get());
+		append(builder, "register_batch_records_failed", m_batchRecordsFailed.get());
+		append(builder, "register_throttled_by_ip", m_registerThrottledByIp.get());
+		append(builder, "register_throttled_by_uid", m_registerThrottledByUid.get());
+		append(builder, "notify_throttled_by_ip", m_notifyThrottledByIp.get());
+		if (m_acceptorConnections.length() > 1) {
+			for (int i = 0; i < m_acceptorConnections.length(); ++i) {
+				append(builder, "acceptor_" + i + "_connections_accepted", m_acceptorConnections.get(i));
+				append(builder, "acceptor_" + i + "_requests", m_acceptorRequests.get(i));
+			}
+		}
+		Tls.report(builder);
+		for (WorkerPool pool : m_pools) {
+			pool.report(builder);
+		}
+
+		return builder.toString();
+	}
+
+// private
+	private static void append(StringBuilder builder, String name, long value) {
+		builder.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static final AtomicLong m_connectionsAccepted = new AtomicLong();
+	private static final AtomicLong m_requests = new AtomicLong();
+	private static final AtomicLong m_requestsOnReusedConnections = new AtomicLong();
+	private static final AtomicLong m_idleTimeouts = new AtomicLong();
+	private static final AtomicLong m_idleYielded = new AtomicLong();
+	private static final AtomicLong m_maxRequestsReached = new AtomicLong();
+	private static final AtomicLong m_readTimeouts = new AtomicLong();
+	private static final AtomicLong m_requestTimeouts = new AtomicLong();
+	private static final AtomicLong m_writeTimeouts = new AtomicLong();
+	private static final AtomicLong m_headersTooLarge = new AtomicLong();
+	private static final AtomicLong m_bodiesTooLarge = new AtomicLong();
+	private static final AtomicLong m_batchesApplied = new AtomicLong();
+	private static final AtomicLong m_batchRecordsRegistered = new AtomicLong();
+	private static final AtomicLong m_batchRecordsFailed = new AtomicLong();
+	private static final AtomicLong m_registerThrottledByIp = new AtomicLong();
+	private static final AtomicLong m_registerThrottledByUid = new AtomicLong();
+	private static final AtomicLong m_notifyThrottledByIp = new AtomicLong();
+	private static final AtomicLongArray m_acceptorConnections = new AtomicLongArray(ServerOptions.ACCEPTORS);
+	private static final AtomicLongArray m_acceptorRequests = new AtomicLongArray(ServerOptions.ACCEPTORS);
+	private static final CopyOnWriteArrayList<WorkerPool> m_pools = new CopyOnWriteArrayList<WorkerPool>();
+
+	private static final Metrics.Counter[] ACCEPTED = new Metrics.Counter[ServerOptions.ACCEPTORS];
+
+	static {
+		for (int i = 0; i < ACCEPTED.length; ++i) {
+			ACCEPTED[i] = Metrics.counter("demoserver_connections_accepted_total", "Accepted connections, by acceptor.",
+					"acceptor=\"" + i + "\"");
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.universal_tools.demoserver;
+
+import java.io.Closeable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// <summary>
+/// Graceful shutdown of the demo server when it's stopped (SIGTERM, Ctrl+C), within
+/// <c>ServerOptions.SHUTDOWN_TIMEOUT</c>.
+/// </summary>
+/// <remarks>
+/// The listening sockets are closed first, so no new connection is accepted, and the responses sent from then on
+/// close their connections. The requests being handled are waited for, then <c>NotifyJob.shutdown</c> finishes or
+/// checkpoints the notification fan-outs in progress, the <c>/events</c> streams are ended and the registration is
+/// saved one last time.
+/// </remarks>
+class Shutdown {
+// public
+	public static void install() {
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		}, "shutdown"));
+	}
+
+	/// <summary>
+	/// Registers a listening socket to close on shutdown.
+	/// </summary>
+	public static void onShutdownClose(Closeable listener) {
+		m_listeners.add(listener);
+	}
+
+	public static boolean isShuttingDown() {
+		return m_shuttingDown;
+	}
+
+	public static void onRequestStarted() {
+		m_requestsInProgress.incrementAndGet();
+	}
+
+	public static void onRequestFinished() {
+		m_requestsInProgress.decrementAndGet();
+	}
+
+// private
+	private static void shutdown() {
+		long started = System.currentTimeMillis();
+		long deadline = started + ServerOptions.SHUTDOWN_TIMEOUT;
+		Log.info("Shutting down, waiting up to " + ServerOptions.SHUTDOWN_TIMEOUT + " ms for the work in progress");
+
+		m_shuttingDown = true;
+		for (Closeable listener : m_listeners) {
+			try {
+				listener.close();
+			} catch (Throwable t) {
+				Log.error(t);
+			}
+		}
+
+		while (m_requestsInProgress.get() > 0 && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(WAIT_INTERVAL);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		int checkpointed = NotifyJob.shutdown(deadline);
+		DeliveryEvents.closeAll();
+		Registrator.flush();
+
+		Log.info("Shut down in " + (System.currentTimeMillis() - started) + " ms"
+				+ (checkpointed > 0 ? ", " + checkpointed + " notify jobs checkpointed" : ""));
+		Log.flush(LOG_FLUSH_TIMEOUT);
+	}
+
+	private static final long WAIT_INTERVAL = 20;
+	private static final long LOG_FLUSH_TIMEOUT = 1000;
+
+	private static final CopyOnWriteArrayList<Closeable> m_listeners = new CopyOnWriteArrayList<Closeable>();
+	private static final AtomicInteger m_requestsInProgress = new AtomicInteger();
+	private static volatile boolean m_shuttingDown;
+}
@@ -0,0 +1,160 @@
+package com.universal_tools.demoserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/// <summary>
+/// TLS of the listening sockets (<c>ServerOptions.TLS</c>, blocking mode only), so that the devices can send their
+/// registration ids over HTTPS without a proxy in front of the demo server.
+/// </summary>
+/// <remarks>
+/// The certificate is read from the <c>ServerOptions.TLS_KEYSTORE</c> PKCS12 file. If there is no such file, a
+/// self-signed certificate for <c>localhost</c> is generated into it with the JDK's <c>keytool</c>; a production
+/// server would use a certificate signed by a CA instead. A full handshake costs the server a signature and a key
+/// exchange, so returning clients resume their previous sessions instead: by session id from the server session
+/// cache (TLS 1.2) or by a session ticket (TLS 1.2 and 1.3). With <c>ServerOptions.TLS_TICKETS</c> the tickets are
+/// stateless, i.e. encrypted session state kept by the clients, so resumption doesn't depend on the cache size.
+/// The handshake of a connection is done by its worker before the first request is read, with the read timeout.
+/// </remarks>
+class Tls {
+// public
+	/// <summary>
+	/// Creates a listening socket, not bound yet.
+	/// </summary>
+	public static ServerSocket createServerSocket() throws IOException {
+		return context().getServerSocketFactory().createServerSocket();
+	}
+
+	/// <summary>
+	/// Completes the handshake of an accepted connection and counts it as full or resumed.
+	/// </summary>
+	/// <returns><c>false</c> if the handshake has failed (f.e. a plain HTTP client) and the connection should be
+	/// closed.</returns>
+	public static boolean handshake(SSLSocket socket) {
+		long started = System.nanoTime();
+		long startedMillis = System.currentTimeMillis();
+		try {
+			socket.setSoTimeout(ServerOptions.READ_TIMEOUT);
+			socket.startHandshake();
+		} catch (IOException e) {
+			// Not TLS, timed out or reset
+			m_failed.incrementAndGet();
+			FAILED.inc();
+			Log.debug("TLS handshake with " + socket.getInetAddress().getHostAddress() + " failed: " + e.getMessage());
+			return false;
+		}
+
+		// A resumed session keeps the creation time of the session it resumes
+		SSLSession session = socket.getSession();
+		if (session.getCreationTime() < startedMillis) {
+			m_resumed.incrementAndGet();
+			RESUMED_DURATION.observeSince(started);
+		} else {
+			m_full.incrementAndGet();
+			FULL_DURATION.observeSince(started);
+		}
+
+		return true;
+	}
+
+	public static void report(StringBuilder builder) {
+		if (!ServerOptions.TLS) {
+			return;
+		}
+
+		builder.append("tls_handshakes_full ").append(m_full.get()).append('\n');
+		builder.append("tls_handshakes_resumed ").append(m_resumed.get()).append('\n');
+		builder.append("tls_handshake_failures ").append(m_failed.get()).append('\n');
+	}
+
+// private
+	private static synchronized SSLContext context() throws IOException {
+		if (m_context != null) {
+			return m_context;
+		}
+
+		// Read once by the JDK, so it has to be set before the first SSLContext
+		System.setProperty("jdk.tls.server.enableSessionTicketExtension", Boolean.toString(ServerOptions.TLS_TICKETS));
+
+		File keystoreFile = new File(ServerOptions.TLS_KEYSTORE);
+		if (!keystoreFile.exists()) {
+			generateKeystore(keystoreFile);
+		}
+
+		try {
+			char[] password = ServerOptions.TLS_KEYSTORE_PASSWORD.toCharArray();
+			KeyStore keystore = KeyStore.getInstance("PKCS12");
+			try (InputStream stream = new FileInputStream(keystoreFile)) {
+				keystore.load(stream, password);
+			}
+
+			KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagers.init(keystore, password);
+
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keyManagers.getKeyManagers(), null, null);
+
+			SSLSessionContext sessions = context.getServerSessionContext();
+			sessions.setSessionCacheSize(ServerOptions.TLS_SESSION_CACHE);
+			sessions.setSessionTimeout(ServerOptions.TLS_SESSION_TIMEOUT);
+
+			m_context = context;
+			return context;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Can't use the TLS keystore " + keystoreFile + ": " + e.getMessage(), e);
+		}
+	}
+
+	// A self-signed EC certificate: its handshakes are much cheaper for the server than RSA ones
+	private static void generateKeystore(File keystoreFile) throws IOException {
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "demoserver",
+				"-keyalg", "EC", "-groupname", "secp256r1", "-validity", "365",
+				"-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+				"-storetype", "PKCS12", "-keystore", keystoreFile.getPath(),
+				"-storepass", ServerOptions.TLS_KEYSTORE_PASSWORD).redirectErrorStream(true).start();
+
+		String output;
+		try (InputStream stream = process.getInputStream()) {
+			output = new String(stream.readAllBytes()).trim();
+		}
+
+		try {
+			if (!process.waitFor(KEYTOOL_TIMEOUT, TimeUnit.MILLISECONDS) || process.exitValue() != 0) {
+				process.destroy();
+				throw new IOException("Can't generate the TLS keystore " + keystoreFile + ": " + output);
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while generating the TLS keystore " + keystoreFile);
+		}
+
+		Log.info("Generated a self-signed certificate for localhost in " + keystoreFile);
+	}
+
+	private static final long KEYTOOL_TIMEOUT = 60000;
+
+	private static final Metrics.Counter FAILED = Metrics.counter("demoserver_tls_handshake_failures_total",
+			"Failed TLS handshakes.", "");
+	private static final Metrics.Histogram FULL_DURATION = Metrics.histogram("demoserver_tls_handshake_duration_seconds",
+			"TLS handshakes, by kind.", "kind=\"full\"");
+	private static final Metrics.Histogram RESUMED_DURATION = Metrics.histogram("demoserver_tls_handshake_duration_seconds",
+			"TLS handshakes, by kind.", "kind=\"resumed\"");
+
+	private static SSLContext m_context;
+	private static final AtomicLong m_full = new AtomicLong();
+	private static final AtomicLong m_resumed = new AtomicLong();
+	private static final AtomicLong m_failed = new AtomicLong();
+}
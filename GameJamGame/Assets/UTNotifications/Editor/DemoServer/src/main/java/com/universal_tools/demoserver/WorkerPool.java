@@ -0,0 +1,141 @@
+package com.universal_tools.demoserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// <summary>
+/// A fixed number of threads with a bounded admission queue. When both are busy new work is refused
+/// instead of being queued without limit, so that the caller can shed it with a quick <c>503</c>.
+/// </summary>
+/// <remarks>
+/// A pool of virtual threads starts a new virtual thread for every task instead. It has no queue, but still
+/// refuses work above <c>virtualThreadsLimit</c> concurrent tasks.
+/// </remarks>
+class WorkerPool {
+// public
+	public WorkerPool(final String name, int threads, int queueCapacity) {
+		this.name = name;
+		m_queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+		m_executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, m_queue, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + m_threadIndex.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+			private final AtomicInteger m_threadIndex = new AtomicInteger();
+		});
+		m_virtualThreadsLimit = 0;
+		m_virtualThreadPermits = null;
+
+		ServerStats.register(this);
+	}
+
+	public WorkerPool(String name, int virtualThreadsLimit) {
+		this.name = name;
+		m_queue = null;
+		m_executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+		m_virtualThreadsLimit = virtualThreadsLimit;
+		m_virtualThreadPermits = new Semaphore(virtualThreadsLimit);
+
+		ServerStats.register(this);
+	}
+
+	/// <summary>
+	/// Creates a pool of platform or virtual threads depending on <c>ServerOptions.THREADS</c>.
+	/// </summary>
+	public static WorkerPool create(String name, int threads, int queueCapacity) {
+		if (ServerOptions.virtualThreads()) {
+			return new WorkerPool(name, ServerOptions.VIRTUAL_THREADS_LIMIT);
+		} else {
+			return new WorkerPool(name, threads, queueCapacity);
+		}
+	}
+
+	/// <returns><c>false</c> if the pool is saturated and <c>task</c> was rejected.</returns>
+	public boolean tryExecute(final Runnable task) {
+		if (m_virtualThreadPermits != null) {
+			if (!m_virtualThreadPermits.tryAcquire()) {
+				m_rejected.incrementAndGet();
+				return false;
+			}
+
+			m_executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						m_virtualThreadPermits.release();
+						m_completed.incrementAndGet();
+					}
+				}
+			});
+			return true;
+		}
+
+		try {
+			m_executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			m_rejected.incrementAndGet();
+			return false;
+		}
+
+		int depth = m_queue.size();
+		int peak;
+		while (depth > (peak = m_queuePeak.get()) && !m_queuePeak.compareAndSet(peak, depth)) {
+		}
+
+		return true;
+	}
+
+	/// <summary>
+	/// Whether there is work waiting for a free thread. Never with virtual threads.
+	/// </summary>
+	public boolean hasQueued() {
+		return m_queue != null && !m_queue.isEmpty();
+	}
+
+	public void report(StringBuilder builder) {
+		if (m_virtualThreadPermits != null) {
+			append(builder, "virtual_threads_limit", m_virtualThreadsLimit);
+			append(builder, "active_threads", m_virtualThreadsLimit - m_virtualThreadPermits.availablePermits());
+			append(builder, "completed", m_completed.get());
+			append(builder, "rejected", m_rejected.get());
+			return;
+		}
+
+		ThreadPoolExecutor executor = (ThreadPoolExecutor)m_executor;
+		append(builder, "threads", executor.getMaximumPoolSize());
+		append(builder, "active_threads", executor.getActiveCount());
+		append(builder, "queue_depth", m_queue.size());
+		append(builder, "queue_peak", m_queuePeak.get());
+		append(builder, "queue_capacity", m_queue.size() + m_queue.remainingCapacity());
+		append(builder, "completed", executor.getCompletedTaskCount());
+		append(builder, "rejected", m_rejected.get());
+	}
+
+	public final String name;
+
+// private
+	private void append(StringBuilder builder, String metric, long value) {
+		builder.append(name.replace('-', '_')).append('_').append(metric).append(' ').append(value).append('\n');
+	}
+
+	private final ArrayBlockingQueue<Runnable> m_queue;
+	private final ExecutorService m_executor;
+	private final int m_virtualThreadsLimit;
+	private final Semaphore m_virtualThreadPermits;
+	private final AtomicLong m_completed = new AtomicLong();
+	private final AtomicInteger m_queuePeak = new AtomicInteger();
+	private final AtomicLong m_rejected = new AtomicLong();
+}
@@ -0,0 +1,272 @@
+package com.universal_tools.demoserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/// <summary>
+/// <c>ChunkedDecoder</c> fed with random and hostile encodings, split at random points as the reads of a connection
+/// split them, and its throughput.
+/// </summary>
+class ChunkedDecoderTest {
+// public
+	@Test
+	void decodesAnySplitOfTheSameBody() throws HttpException {
+		Random random = new Random(SEED);
+		for (int round = 0; round < ROUNDS; ++round) {
+			byte[] body = randomBody(random, random.nextInt(4096));
+			byte[] encoded = encode(body, random, random.nextBoolean());
+			// A pipelined request follows the body: it must be left alone
+			byte[] next = ascii("GET / HTTP/1.1\r\n");
+			byte[] input = concat(encoded, next);
+
+			ChunkedDecoder decoder = new ChunkedDecoder();
+			BodyBuffer buffer = new BodyBuffer(Long.MAX_VALUE);
+			ByteBuffer buf = ByteBuffer.wrap(input);
+			boolean done = false;
+			while (!done) {
+				int end = Math.min(input.length, buf.position() + 1 + random.nextInt(64));
+				buf.limit(end);
+				done = decoder.decode(buf, buffer);
+				if (!done) {
+					assertFalse(buf.hasRemaining(), "A partial body must consume all the bytes given");
+					assertTrue(end < encoded.length, "Not done at the end of the body, round " + round);
+				}
+			}
+
+			assertEquals(encoded.length, buf.position(), "Round " + round);
+			assertArrayEquals(body, buffer.toByteArray(), "Round " + round);
+		}
+	}
+
+	@Test
+	void keepsCrLfInsideChunkData() throws HttpException {
+		// Data looking like chunk sizes, a last chunk and the end of the body
+		String data = "\r\n0\r\n\r\n5\r\nabc\r\n\n\r";
+		byte[] encoded = ascii(Integer.toHexString(data.length()) + "\r\n" + data + "\r\n" + "0\r\n\r\n");
+
+		assertEquals(data, decodeByteByByte(encoded, Long.MAX_VALUE));
+		assertEquals(data, decodeAll(encoded, Long.MAX_VALUE).toString());
+	}
+
+	@Test
+	void acceptsBareLineFeeds() throws HttpException {
+		assertEquals("hello world", decodeAll(ascii("5\nhello\n6\n world\n0\n\n"), Long.MAX_VALUE).toString());
+	}
+
+	@Test
+	void refusesBadSizes() {
+		String[] sizes = { "", "g", "-1", " 5", "5x", "0x5", "5 x", "+5", "1234567890abcdef", "ffffffffffffffff0" };
+		for (String size : sizes) {
+			assertStatus("400", size + "\r\nhello\r\n0\r\n\r\n", Long.MAX_VALUE);
+		}
+
+		// A size line without end is cut at the line limit rather than buffered
+		char[] digits = new char[8192];
+		Arrays.fill(digits, '0');
+		assertStatus("400", new String(digits), Long.MAX_VALUE);
+	}
+
+	@Test
+	void refusesDataLongerThanItsSize() {
+		assertStatus("400", "3\r\nhello\r\n0\r\n\r\n", Long.MAX_VALUE);
+	}
+
+	@Test
+	void skipsExtensionsAndKeepsTrailers() throws HttpException {
+		ChunkedDecoder decoder = new ChunkedDecoder();
+		BodyBuffer buffer = new BodyBuffer(Long.MAX_VALUE);
+		String encoded = "5;name=value;flag\r\nhello\r\n6 ; quoted=\"a;b\"\r\n world\r\n0;last\r\n"
+				+ "X-Checksum: abc\r\nX-Other:  d \r\n\r\n";
+
+		assertTrue(decoder.decode(ByteBuffer.wrap(ascii(encoded)), buffer));
+		assertEquals("hello world", buffer.toString());
+
+		Map<String, String> expected = new LinkedHashMap<String, String>();
+		expected.put("x-checksum", "abc");
+		expected.put("x-other", "d");
+		assertEquals(expected, decoder.trailers());
+
+		// The next body of the connection has trailers of its own
+		decoder.reset();
+		buffer.reset();
+		assertTrue(decoder.decode(ByteBuffer.wrap(ascii("2\r\nok\r\n0\r\n\r\n")), buffer));
+		assertEquals("ok", buffer.toString());
+		assertTrue(decoder.trailers().isEmpty());
+	}
+
+	@Test
+	void refusesBadTrailers() {
+		assertStatus("400", "0\r\nno colon\r\n\r\n", Long.MAX_VALUE);
+		assertStatus("400", "0\r\n: no name\r\n\r\n", Long.MAX_VALUE);
+
+		StringBuilder many = new StringBuilder("0\r\n");
+		for (int i = 0; i <= 32; ++i) {
+			many.append("X-Trailer-").append(i).append(": ").append(i).append("\r\n");
+		}
+		assertStatus("400", many.append("\r\n").toString(), Long.MAX_VALUE);
+	}
+
+	@Test
+	void enforcesTheBodySizeLimit() throws HttpException {
+		// Exactly at the limit
+		assertEquals("0123456789", decodeAll(ascii("a\r\n0123456789\r\n0\r\n\r\n"), 10).toString());
+
+		// A single chunk above the limit is refused by its size, before its data arrives
+		assertStatus("413", "b\r\n", 10);
+		// Chunks within the limit adding up above it
+		assertStatus("413", "6\r\n012345\r\n6\r\n012345\r\n0\r\n\r\n", 10);
+		// A size far above any limit
+		assertStatus("413", "fffffffffffffff\r\n", ServerOptions.MAX_BODY_SIZE);
+	}
+
+	@Test
+	void decodesLargeBodiesQuickly() throws HttpException {
+		byte[] body = randomBody(new Random(SEED), THROUGHPUT_BODY_SIZE);
+		for (int chunkSize : new int[] { 16, 8192 }) {
+			byte[] encoded = encode(body, chunkSize);
+			// Warm-up, then the measured rounds
+			decodeInReads(encoded, body.length);
+			long started = System.nanoTime();
+			for (int i = 0; i < THROUGHPUT_ROUNDS; ++i) {
+				assertEquals(body.length, decodeInReads(encoded, body.length));
+			}
+			double seconds = (System.nanoTime() - started) / 1e9;
+
+			double megabytesPerSecond = (double)encoded.length * THROUGHPUT_ROUNDS / (1024 * 1024) / seconds;
+			System.out.println(String.format("ChunkedDecoder, %d byte chunks: %.0f MB/s", chunkSize, megabytesPerSecond));
+			// Far below what it does, but far above decoding a line at a time into strings
+			assertTrue(megabytesPerSecond > MIN_MEGABYTES_PER_SECOND,
+					"Decoding " + chunkSize + " byte chunks at " + megabytesPerSecond + " MB/s");
+		}
+	}
+
+// private
+	private static void assertStatus(String status, String encoded, long maxBodySize) {
+		try {
+			decodeAll(ascii(encoded), maxBodySize);
+			fail("Accepted " + encoded);
+		} catch (HttpException e) {
+			assertTrue(e.status.startsWith(status), e.status + " for " + encoded);
+		}
+
+		try {
+			decodeByteByByte(ascii(encoded), maxBodySize);
+			fail("Accepted " + encoded + " byte by byte");
+		} catch (HttpException e) {
+			assertTrue(e.status.startsWith(status), e.status + " for " + encoded + " byte by byte");
+		}
+	}
+
+	private static BodyBuffer decodeAll(byte[] encoded, long maxBodySize) throws HttpException {
+		BodyBuffer buffer = new BodyBuffer(maxBodySize);
+		if (!new ChunkedDecoder().decode(ByteBuffer.wrap(encoded), buffer)) {
+			throw new HttpException("incomplete", "The body isn't complete");
+		}
+		return buffer;
+	}
+
+	private static String decodeByteByByte(byte[] encoded, long maxBodySize) throws HttpException {
+		ChunkedDecoder decoder = new ChunkedDecoder();
+		BodyBuffer buffer = new BodyBuffer(maxBodySize);
+		for (byte b : encoded) {
+			if (decoder.decode(ByteBuffer.wrap(new byte[] { b }), buffer)) {
+				return buffer.toString();
+			}
+		}
+		throw new HttpException("incomplete", "The body isn't complete");
+	}
+
+	// As the connection reads it; returns the decoded length
+	private static int decodeInReads(byte[] encoded, int maxBodySize) throws HttpException {
+		ChunkedDecoder decoder = new ChunkedDecoder();
+		BodyBuffer buffer = new BodyBuffer(maxBodySize);
+		ByteBuffer buf = ByteBuffer.wrap(encoded);
+		while (buf.position() < encoded.length) {
+			buf.limit(Math.min(encoded.length, buf.position() + READ_SIZE));
+			decoder.decode(buf, buffer);
+		}
+		return buffer.length();
+	}
+
+	// Bytes of any value, with plenty of CR and LF
+	private static byte[] randomBody(Random random, int length) {
+		byte[] body = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			int pick = random.nextInt(8);
+			body[i] = pick == 0 ? (byte)'\r' : pick == 1 ? (byte)'\n' : (byte)random.nextInt(256);
+		}
+		return body;
+	}
+
+	// Random chunk sizes, upper or lower case hex with leading zeros, extensions, trailers and line ends
+	private static byte[] encode(byte[] body, Random random, boolean bareLineFeeds) {
+		String eol = bareLineFeeds ? "\n" : "\r\n";
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int position = 0;
+		while (position < body.length) {
+			int size = Math.min(body.length - position, 1 + random.nextInt(random.nextBoolean() ? 8 : 1024));
+			String hex = Integer.toHexString(size);
+			hex = random.nextBoolean() ? hex.toUpperCase() : hex;
+			if (random.nextInt(4) == 0) {
+				hex = "00" + hex;
+			}
+			if (random.nextInt(4) == 0) {
+				hex += ";ext=" + random.nextInt(100);
+			}
+
+			out.writeBytes(ascii(hex + eol));
+			out.write(body, position, size);
+			out.writeBytes(ascii(eol));
+			position += size;
+		}
+
+		out.writeBytes(ascii("0" + eol));
+		if (random.nextBoolean()) {
+			out.writeBytes(ascii("X-Trailer: " + random.nextInt() + eol));
+		}
+		out.writeBytes(ascii(eol));
+		return out.toByteArray();
+	}
+
+	private static byte[] encode(byte[] body, int chunkSize) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + body.length / chunkSize * 8 + 16);
+		for (int position = 0; position < body.length; position += chunkSize) {
+			int size = Math.min(chunkSize, body.length - position);
+			out.writeBytes(ascii(Integer.toHexString(size) + "\r\n"));
+			out.write(body, position, size);
+			out.writeBytes(ascii("\r\n"));
+		}
+		out.writeBytes(ascii("0\r\n\r\n"));
+		return out.toByteArray();
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static final long SEED = 20180518;
+	private static final int ROUNDS = 2000;
+	private static final int READ_SIZE = 16 * 1024;
+	private static final int THROUGHPUT_BODY_SIZE = 4 * 1024 * 1024;
+	private static final int THROUGHPUT_ROUNDS = 20;
+	private static final double MIN_MEGABYTES_PER_SECOND = 20;
+}
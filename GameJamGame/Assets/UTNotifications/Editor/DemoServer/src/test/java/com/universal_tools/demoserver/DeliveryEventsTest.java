@@ -0,0 +1,213 @@
+package com.universal_tools.demoserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/// <summary>
+/// <c>DeliveryEvents</c> subscribers reading, falling behind the ring and getting stuck.
+/// </summary>
+class DeliveryEventsTest {
+// public
+	@AfterEach
+	void unsubscribe() {
+		DeliveryEvents.closeAll();
+	}
+
+	@Test
+	void encodesEventsInTheOrderOfTheirFields() throws HttpException {
+		DeliveryEvents.Subscription subscription = subscribe();
+		// Nothing published, the heartbeat not due yet
+		assertNull(subscription.poll());
+
+		Map<String, Object> ids = new LinkedHashMap<String, Object>();
+		ids.put("old\"id", "new\nid");
+		Map<String, Object> data = new LinkedHashMap<String, Object>();
+		data.put("job", 7L);
+		data.put("provider", "FCM");
+		data.put("sent", 100);
+		data.put("rate", 0.5);
+		data.put("nan", Double.NaN);
+		data.put("done", false);
+		data.put("error", null);
+		data.put("ids", ids);
+		DeliveryEvents.publish("delivery", data);
+
+		List<String> events = events(subscription.poll());
+		assertEquals(1, events.size());
+		assertEquals("event: delivery\ndata: {\"job\":7,\"provider\":\"FCM\",\"sent\":100,\"rate\":0.5,\"nan\":null,"
+				+ "\"done\":false,\"error\":null,\"ids\":{\"old\\\"id\":\"new\\nid\"}}\n\n", withoutId(events.get(0)));
+		assertNull(subscription.poll());
+	}
+
+	@Test
+	void reportsTheEventsLostByASubscriberBehind() throws HttpException {
+		DeliveryEvents.Subscription subscription = subscribe();
+		int published = ServerOptions.EVENTS_BUFFER + 10;
+		for (int i = 0; i < published; ++i) {
+			DeliveryEvents.publish("job", event(i));
+		}
+
+		// The 10 oldest events are overwritten: a lost event, then the rest from the oldest one left
+		List<String> events = new ArrayList<String>();
+		byte[] bytes;
+		while ((bytes = subscription.poll()) != null) {
+			events.addAll(events(bytes));
+		}
+		assertEquals(1 + ServerOptions.EVENTS_BUFFER, events.size());
+		assertEquals("event: lost\ndata: {\"events\":10}\n\n", events.get(0));
+		for (int i = 1; i < events.size(); ++i) {
+			assertEquals("event: job\ndata: {\"i\":" + (9 + i) + "}\n\n", withoutId(events.get(i)));
+		}
+
+		// Ids go on without a gap
+		long first = id(events.get(1));
+		assertEquals(first + ServerOptions.EVENTS_BUFFER - 1, id(events.get(events.size() - 1)));
+	}
+
+	@Test
+	void signalsNewEventsOnceUntilPolled() throws HttpException {
+		DeliveryEvents.Subscription subscription = DeliveryEvents.subscribe();
+		final AtomicInteger signals = new AtomicInteger();
+		subscription.attach(new Runnable() {
+			@Override
+			public void run() {
+				signals.incrementAndGet();
+			}
+		}, new TestConnection());
+
+		DeliveryEvents.publish("job", event(1));
+		DeliveryEvents.publish("job", event(2));
+		assertEquals(1, signals.get());
+		assertEquals(2, events(subscription.poll()).size());
+
+		DeliveryEvents.publish("job", event(3));
+		assertEquals(2, signals.get());
+	}
+
+	@Test
+	void dropsASubscriberNotReading() throws Exception {
+		DeliveryEvents.Subscription subscription = DeliveryEvents.subscribe();
+		TestConnection connection = new TestConnection();
+		subscription.attach(null, connection);
+
+		long now = System.currentTimeMillis();
+		long late = now + ServerOptions.EVENTS_WRITE_TIMEOUT + 1;
+		// Not writing: never stuck
+		subscription.dropIfStuck(late);
+		assertEquals(0, connection.closed);
+
+		subscription.onWriteStarted();
+		subscription.dropIfStuck(now + ServerOptions.EVENTS_WRITE_TIMEOUT);
+		assertEquals(0, connection.closed);
+		subscription.onWriteFinished();
+		subscription.dropIfStuck(late);
+		assertEquals(0, connection.closed);
+
+		subscription.onWriteStarted();
+		subscription.dropIfStuck(late);
+		assertEquals(1, connection.closed);
+		// Closed once: the server unsubscribes it as the connection ends
+		subscription.dropIfStuck(late);
+		assertEquals(1, connection.closed);
+
+		// Publishing checks the subscribers too
+		int writeTimeout = ServerOptions.EVENTS_WRITE_TIMEOUT;
+		try {
+			ServerOptions.EVENTS_WRITE_TIMEOUT = 1;
+			DeliveryEvents.Subscription stuck = DeliveryEvents.subscribe();
+			TestConnection stuckConnection = new TestConnection();
+			stuck.attach(null, stuckConnection);
+			stuck.onWriteStarted();
+			Thread.sleep(10);
+			DeliveryEvents.publish("job", event(1));
+			assertEquals(1, stuckConnection.closed);
+		} finally {
+			ServerOptions.EVENTS_WRITE_TIMEOUT = writeTimeout;
+		}
+	}
+
+	@Test
+	void limitsTheSubscribers() throws Exception {
+		List<DeliveryEvents.Subscription> subscriptions = new ArrayList<DeliveryEvents.Subscription>();
+		for (int i = 0; i < ServerOptions.EVENTS_MAX_SUBSCRIBERS; ++i) {
+			subscriptions.add(DeliveryEvents.subscribe());
+		}
+		try {
+			DeliveryEvents.subscribe();
+			fail("Subscribed above the limit");
+		} catch (HttpException e) {
+			assertTrue(e.status.startsWith("503"), e.status);
+		}
+
+		// A closed subscription frees its place and gets nothing more
+		DeliveryEvents.Subscription closed = subscriptions.get(0);
+		closed.close();
+		assertTrue(closed.isClosed());
+		assertNull(closed.take());
+		DeliveryEvents.subscribe();
+		DeliveryEvents.publish("job", event(1));
+		assertNull(closed.poll());
+		assertFalse(subscriptions.get(1).isClosed());
+	}
+
+// private
+	private static DeliveryEvents.Subscription subscribe() throws HttpException {
+		DeliveryEvents.Subscription subscription = DeliveryEvents.subscribe();
+		subscription.attach(null, new TestConnection());
+		return subscription;
+	}
+
+	private static class TestConnection implements Closeable {
+		@Override
+		public void close() {
+			++closed;
+		}
+
+		private int closed;
+	}
+
+	private static Map<String, Object> event(int i) {
+		Map<String, Object> data = new LinkedHashMap<String, Object>();
+		data.put("i", i);
+		return data;
+	}
+
+	// The events of the bytes written at once, each with its blank line
+	private static List<String> events(byte[] bytes) {
+		List<String> events = new ArrayList<String>();
+		for (String event : new String(bytes, StandardCharsets.UTF_8).split("(?<=\n\n)")) {
+			events.add(event);
+		}
+		return events;
+	}
+
+	private static long id(String event) {
+		Matcher matcher = ID.matcher(event);
+		assertTrue(matcher.lookingAt(), event);
+		return Long.parseLong(matcher.group(1));
+	}
+
+	private static String withoutId(String event) {
+		Matcher matcher = ID.matcher(event);
+		assertTrue(matcher.lookingAt(), event);
+		return event.substring(matcher.end());
+	}
+
+	private static final Pattern ID = Pattern.compile("id: (\\d+)\n");
+}
@@ -0,0 +1,219 @@
+package com.universal_tools.demoserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+/// <summary>
+/// <c>GzipDecoder</c> fed with gzip bodies split at random points, corrupted ones and ones above the size limits.
+/// </summary>
+class GzipDecoderTest {
+// public
+	@Test
+	void decodesAnySplitOfTheSameBody() throws Exception {
+		Random random = new Random(SEED);
+		for (int round = 0; round < ROUNDS; ++round) {
+			byte[] body = randomBody(random, random.nextInt(64 * 1024));
+			byte[] encoded = random.nextBoolean() ? gzip(body) : gzipWithOptionalFields(body);
+
+			GzipDecoder decoder = new GzipDecoder();
+			BodyBuffer buffer = new BodyBuffer(Long.MAX_VALUE);
+			decoder.reset(buffer);
+			ByteBuffer buf = ByteBuffer.wrap(encoded);
+			while (buf.hasRemaining()) {
+				int count = Math.min(buf.remaining(), 1 + random.nextInt(random.nextBoolean() ? 16 : 4096));
+				decoder.write(buf, count);
+			}
+			decoder.end();
+
+			assertArrayEquals(body, buffer.toByteArray(), "Round " + round);
+		}
+	}
+
+	@Test
+	void decodesConcatenatedMembers() throws Exception {
+		byte[] encoded = concat(gzip(ascii("hello ")), gzipWithOptionalFields(ascii("gzip ")), gzip(ascii("world")));
+
+		assertEquals("hello gzip world", decodeByteByByte(encoded, Long.MAX_VALUE));
+	}
+
+	@Test
+	void acceptsAnEmptyBody() throws HttpException {
+		GzipDecoder decoder = new GzipDecoder();
+		BodyBuffer buffer = new BodyBuffer(Long.MAX_VALUE);
+		decoder.reset(buffer);
+		decoder.end();
+
+		assertEquals(0, buffer.length());
+	}
+
+	@Test
+	void refusesCorruptedBodies() throws Exception {
+		byte[] valid = gzip(ascii("hello world"));
+
+		byte[] badMagic = valid.clone();
+		badMagic[1] = 0;
+		assertStatus("400", badMagic, Long.MAX_VALUE);
+
+		byte[] badCrc = valid.clone();
+		badCrc[valid.length - 8] ^= 1;
+		assertStatus("400", badCrc, Long.MAX_VALUE);
+
+		byte[] badSize = valid.clone();
+		badSize[valid.length - 4] ^= 1;
+		assertStatus("400", badSize, Long.MAX_VALUE);
+
+		byte[] badData = valid.clone();
+		Arrays.fill(badData, 10, valid.length - 8, (byte)0xFF);
+		assertStatus("400", badData, Long.MAX_VALUE);
+
+		// Truncated in the data and in the trailer: refused once the body ends
+		assertStatus("400", Arrays.copyOf(valid, valid.length / 2), Long.MAX_VALUE);
+		assertStatus("400", Arrays.copyOf(valid, valid.length - 1), Long.MAX_VALUE);
+	}
+
+	@Test
+	void limitsTheDecompressedSize() throws Exception {
+		// 1 MB of zeros compresses to about 1 KB
+		byte[] bomb = gzip(new byte[1024 * 1024]);
+		assertTrue(bomb.length < 16 * 1024);
+
+		assertStatus("413", bomb, 64 * 1024);
+		assertEquals(1024 * 1024, decodeByteByByte(bomb, 1024 * 1024).length());
+	}
+
+	@Test
+	void limitsTheCompressedSize() throws Exception {
+		long maxBodySize = ServerOptions.MAX_BODY_SIZE;
+		try {
+			ServerOptions.MAX_BODY_SIZE = 4096;
+
+			// Random bytes don't compress: the compressed body exceeds the limit before the decompressed one does
+			byte[] body = new byte[4096];
+			new Random(SEED).nextBytes(body);
+			byte[] encoded = gzip(body);
+			assertTrue(encoded.length > 4096);
+			assertStatus("413", encoded, Long.MAX_VALUE);
+
+			// The capacity a Content-Length or chunk size is checked against is the smaller of the two limits
+			GzipDecoder decoder = new GzipDecoder();
+			BodyBuffer buffer = new BodyBuffer(Long.MAX_VALUE);
+			decoder.reset(buffer);
+			assertEquals(4096, decoder.capacity());
+			decoder.write(ByteBuffer.wrap(encoded), 1000);
+			assertEquals(3096, decoder.capacity());
+			decoder.reset(new BodyBuffer(100));
+			assertEquals(100, decoder.capacity());
+		} finally {
+			ServerOptions.MAX_BODY_SIZE = maxBodySize;
+		}
+	}
+
+// private
+	private static void assertStatus(String status, byte[] encoded, long maxBodySize) {
+		try {
+			decodeByteByByte(encoded, maxBodySize);
+			fail("Accepted " + encoded.length + " bytes");
+		} catch (HttpException e) {
+			assertTrue(e.status.startsWith(status), e.status + ": " + e.getMessage());
+		}
+	}
+
+	private static String decodeByteByByte(byte[] encoded, long maxBodySize) throws HttpException {
+		GzipDecoder decoder = new GzipDecoder();
+		BodyBuffer buffer = new BodyBuffer(maxBodySize);
+		decoder.reset(buffer);
+		ByteBuffer buf = ByteBuffer.wrap(encoded);
+		while (buf.hasRemaining()) {
+			decoder.write(buf, 1);
+		}
+		decoder.end();
+
+		return buffer.toString();
+	}
+
+	private static byte[] gzip(byte[] body) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(body);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	// A gzip member with FEXTRA, FNAME, FCOMMENT and FHCRC, which GZIPOutputStream never writes
+	private static byte[] gzipWithOptionalFields(byte[] body) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(0x1F);
+		out.write(0x8B);
+		out.write(Deflater.DEFLATED);
+		out.write(2 | 4 | 8 | 16);
+		// MTIME, XFL, OS
+		out.write(new byte[6], 0, 6);
+		// XLEN and the extra field
+		out.write(5);
+		out.write(0);
+		out.write(ascii("extra"), 0, 5);
+		out.write(ascii("name.txt\0comment\0"), 0, 17);
+		// The header CRC16 isn't checked
+		out.write(0);
+		out.write(0);
+
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(body);
+		deflater.finish();
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished()) {
+			out.write(buffer, 0, deflater.deflate(buffer));
+		}
+		deflater.end();
+
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		writeLittleEndianInt(out, crc.getValue());
+		writeLittleEndianInt(out, body.length);
+		return out.toByteArray();
+	}
+
+	private static void writeLittleEndianInt(ByteArrayOutputStream out, long value) {
+		for (int i = 0; i < 4; ++i) {
+			out.write((int)(value >> (8 * i)));
+		}
+	}
+
+	// Compressible text mixed with random bytes
+	private static byte[] randomBody(Random random, int length) {
+		byte[] body = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			body[i] = random.nextInt(4) == 0 ? (byte)random.nextInt(256) : (byte)('a' + i % 7);
+		}
+		return body;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts) {
+			out.write(part, 0, part.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static final long SEED = 20261018;
+	private static final int ROUNDS = 200;
+}
@@ -0,0 +1,252 @@
+package com.universal_tools.demoserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+/// <summary>
+/// <c>HttpRequestParser</c> fed whole, byte by byte and with several requests in one read.
+/// </summary>
+class HttpRequestParserTest {
+// public
+	@Test
+	void countsContentLengthInBytes() throws HttpException {
+		// 6 code points, 12 bytes: 2-, 3- and 4-byte UTF-8 sequences
+		String body = "a=\u00e9\u20ac\ud83d\ude00b";
+		byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+		byte[] input = concat(ascii("POST /register HTTP/1.1\r\nContent-Length: " + bodyBytes.length + "\r\n\r\n"),
+				bodyBytes, ascii("GET /stats HTTP/1.1\r\n\r\n"));
+
+		List<HttpRequest> whole = parseAll(newParser(), input, input.length);
+		assertEquals(2, whole.size());
+		assertEquals(body, whole.get(0).content);
+		assertEquals("/stats", whole.get(1).path);
+
+		// The multi-byte characters are split between reads: decoded once the body is complete
+		List<HttpRequest> split = parseAll(newParser(), input, 1);
+		assertEquals(2, split.size());
+		assertEquals(body, split.get(0).content);
+		assertEquals("/stats", split.get(1).path);
+	}
+
+	@Test
+	void leavesPipelinedRequestsInTheBuffer() throws HttpException {
+		byte[] input = ascii("POST /notify HTTP/1.1\r\nContent-Length: 5\r\n\r\nid=10"
+				+ "GET /stats?x=1 HTTP/1.1\r\nConnection: close\r\n\r\n"
+				+ "\r\nPOST /register HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nuid\r\n2\r\n=7\r\n0\r\n\r\n"
+				+ "GET /");
+
+		HttpRequestParser parser = newParser();
+		ByteBuffer buf = ByteBuffer.wrap(input);
+
+		HttpRequest first = parser.parse(buf);
+		assertEquals("POST", first.method);
+		assertEquals("/notify", first.path);
+		assertEquals("id=10", first.content);
+		assertTrue(first.keepAlive);
+		assertTrue(buf.hasRemaining(), "The next request must be left in the buffer");
+		assertTrue(parser.isIdle());
+
+		HttpRequest second = parser.parse(buf);
+		assertEquals("GET", second.method);
+		assertEquals("/stats", second.path);
+		assertEquals("x=1", second.content);
+		assertFalse(second.keepAlive);
+
+		// An empty line before a request is skipped
+		HttpRequest third = parser.parse(buf);
+		assertEquals("/register", third.path);
+		assertEquals("uid=7", third.content);
+		assertTrue(third.keepAlive);
+
+		// The start of a fourth request is consumed and kept for the next read
+		assertNull(parser.parse(buf));
+		assertFalse(buf.hasRemaining());
+		assertFalse(parser.isIdle());
+		HttpRequest fourth = parser.parse(ByteBuffer.wrap(ascii("stats HTTP/1.0\r\n\r\n")));
+		assertEquals("/stats", fourth.path);
+		assertNull(fourth.content);
+		assertFalse(fourth.keepAlive);
+	}
+
+	@Test
+	void parsesHeadersCaseInsensitively() throws HttpException {
+		byte[] input = ascii("POST / HTTP/1.0\r\nCONTENT-length:  2 \r\nconnection:\tKeep-Alive\r\n\r\nokGET / HTTP/1.1\n\n");
+
+		List<HttpRequest> requests = parseAll(newParser(), input, input.length);
+		assertEquals(2, requests.size());
+		assertEquals("ok", requests.get(0).content);
+		assertTrue(requests.get(0).keepAlive);
+		assertTrue(requests.get(1).keepAlive);
+	}
+
+	@Test
+	void matchesGzipInAcceptEncoding() throws HttpException {
+		assertTrue(acceptsGzip("gzip"));
+		assertTrue(acceptsGzip("deflate, GZIP;q=0.5, br"));
+		assertTrue(acceptsGzip("br , x-gzip ; level=1 ; Q=1.0"));
+		assertTrue(acceptsGzip("deflate;q=1.0, *;q=0.5"));
+		assertFalse(acceptsGzip("deflate, br"));
+		assertFalse(acceptsGzip("gzipx, xgzip, gzip-like"));
+		assertFalse(acceptsGzip("gzip;q=0"));
+		assertFalse(acceptsGzip("gzip; q=0.000"));
+		assertFalse(acceptsGzip("gzip;q=abc"));
+		assertFalse(acceptsGzip("*;q=0"));
+		// gzip itself tells, wherever "*" is
+		assertFalse(acceptsGzip("*, gzip;q=0"));
+		assertFalse(acceptsGzip("gzip;q=0, *"));
+		assertTrue(acceptsGzip("*;q=0, gzip"));
+
+		HttpRequest request = newParser().parse(ByteBuffer.wrap(ascii("GET / HTTP/1.1\r\n\r\n")));
+		assertFalse(request.acceptsGzip);
+	}
+
+	@Test
+	void decompressesGzipBodies() throws Exception {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+		gzip.write("uid=1&id=abc".getBytes(StandardCharsets.UTF_8));
+		gzip.close();
+		byte[] body = compressed.toByteArray();
+
+		byte[] input = concat(ascii("POST /register HTTP/1.1\r\nContent-Encoding: gzip\r\nContent-Length: " + body.length
+				+ "\r\n\r\n"), body, ascii("POST /register HTTP/1.1\r\nContent-Encoding: x-gzip\r\n"
+				+ "Transfer-Encoding: chunked\r\n\r\n" + Integer.toHexString(body.length) + "\r\n"), body, ascii("\r\n0\r\n\r\n"));
+
+		List<HttpRequest> requests = parseAll(newParser(), input, 1);
+		assertEquals(2, requests.size());
+		assertEquals("uid=1&id=abc", requests.get(0).content);
+		assertEquals("uid=1&id=abc", requests.get(1).content);
+
+		assertStatus("415", "POST / HTTP/1.1\r\nContent-Encoding: br\r\nContent-Length: 1\r\n\r\nx");
+	}
+
+	@Test
+	void refusesMalformedRequests() {
+		assertStatus("400", "GET\r\n\r\n");
+		assertStatus("400", "GET / HTTP/1.1\r\nNo colon\r\n\r\n");
+		assertStatus("400", "POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+		assertStatus("400", "POST / HTTP/1.1\r\nContent-Length: 1x\r\n\r\n");
+		assertStatus("413", "POST / HTTP/1.1\r\nContent-Length: 99999999999\r\n\r\n");
+	}
+
+	@Test
+	void capsTheHeadersOfEachRequest() throws HttpException {
+		int maxHeaderSize = ServerOptions.MAX_HEADER_SIZE;
+		try {
+			ServerOptions.MAX_HEADER_SIZE = 64;
+			// 64 bytes with the line ends, the body not counted
+			String fits = "POST / HTTP/1.1\r\nContent-Length: 40\r\nX-Padding: 123456789012\r\n\r\n";
+			assertEquals(64, fits.length());
+			String body = "0123456789012345678901234567890123456789";
+
+			// The cap applies to every request of a connection on its own
+			byte[] input = ascii(fits + body + fits + body);
+			assertEquals(2, parseAll(newParser(), input, input.length).size());
+			assertEquals(2, parseAll(newParser(), input, 1).size());
+
+			assertStatus("431", fits.replace("12345678", "123456789") + body);
+			// A line without an end is refused once it's over the cap, not when it ends
+			try {
+				newParser().parse(ByteBuffer.wrap(new byte[65]));
+				fail("Accepted 65 bytes of a request line");
+			} catch (HttpException e) {
+				assertTrue(e.status.startsWith("431"), e.status);
+			}
+		} finally {
+			ServerOptions.MAX_HEADER_SIZE = maxHeaderSize;
+		}
+	}
+
+	@Test
+	void throttlesBatchesBeforeTheirBody() throws HttpException {
+		RateLimiter.Limit limit = ServerOptions.RATE_LIMIT_REGISTER_IP;
+		try {
+			ServerOptions.RATE_LIMIT_REGISTER_IP = new RateLimiter.Limit(0.1, 1);
+			String headers = "POST /register/batch HTTP/1.1\r\nContent-Length: 100\r\n\r\n";
+
+			// The first batch takes the token and gets its body read
+			ByteBuffer first = ByteBuffer.wrap(ascii(headers));
+			assertNull(newParser().parse(first));
+			assertFalse(first.hasRemaining());
+
+			// The second one is refused once its headers are read, the body left unread
+			ByteBuffer second = ByteBuffer.wrap(ascii(headers + "uid=1&id=abc"));
+			try {
+				newParser().parse(second);
+				fail("Accepted a second batch");
+			} catch (HttpException e) {
+				assertTrue(e.status.startsWith("429"), e.status);
+				assertTrue(e.retryAfter >= 1 && e.retryAfter <= 10, "Retry-After " + e.retryAfter);
+			}
+			assertEquals("uid=1&id=abc".length(), second.remaining());
+		} finally {
+			ServerOptions.RATE_LIMIT_REGISTER_IP = limit;
+		}
+	}
+
+// private
+	private static HttpRequestParser newParser() {
+		return new HttpRequestParser(null);
+	}
+
+	private static boolean acceptsGzip(String acceptEncoding) throws HttpException {
+		byte[] input = ascii("GET / HTTP/1.1\r\nAccept-Encoding: " + acceptEncoding + "\r\n\r\n");
+		return parseAll(newParser(), input, input.length).get(0).acceptsGzip;
+	}
+
+	private static void assertStatus(String status, String input) {
+		try {
+			parseAll(newParser(), ascii(input), 1);
+			fail("Accepted " + input);
+		} catch (HttpException e) {
+			assertTrue(e.status.startsWith(status), e.status + " for " + input);
+		}
+	}
+
+	// Feeds the input in reads of at most readSize bytes, as a connection would
+	private static List<HttpRequest> parseAll(HttpRequestParser parser, byte[] input, int readSize) throws HttpException {
+		List<HttpRequest> requests = new ArrayList<HttpRequest>();
+		for (int from = 0; from < input.length; from += readSize) {
+			ByteBuffer buf = ByteBuffer.wrap(input, from, Math.min(readSize, input.length - from));
+			HttpRequest request;
+			while ((request = parser.parse(buf)) != null) {
+				requests.add(request);
+			}
+			assertFalse(buf.hasRemaining());
+		}
+
+		assertTrue(parser.isIdle(), "A request is left incomplete");
+		return requests;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+
+		byte[] result = new byte[length];
+		int offset = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, result, offset, part.length);
+			offset += part.length;
+		}
+		return result;
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,171 @@
+package com.universal_tools.demoserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/// <summary>
+/// <c>JsonReader</c> on escaped strings, nested and skipped values, and malformed or truncated documents.
+/// </summary>
+class JsonReaderTest {
+// public
+	@Test
+	void decodesEscapesAndSurrogatePairs() throws HttpException {
+		JsonReader reader = reader("[\"plain\", \"\\\"\\\\\\/\\b\\f\\n\\r\\t\", \"a\\u00e9\\u20AC\", \"\\ud83d\\ude00!\","
+				+ " \"\u00e9\u20ac\ud83d\ude00\", \"\\ud83d\", \"\\ud83dx\\ude00\", \"\\ud83d\\u0041\"]");
+		reader.beginArray();
+		assertEquals("plain", reader.nextString());
+		assertEquals("\"\\/\b\f\n\r\t", reader.nextString());
+		assertEquals("a\u00e9\u20ac", reader.nextString());
+		assertEquals("\ud83d\ude00!", reader.nextString());
+		// Not escaped: the UTF-8 bytes as they are
+		assertEquals("\u00e9\u20ac\ud83d\ude00", reader.nextString());
+		// Lone surrogates can't be encoded as UTF-8: each is replaced, the escape after a high one read on its own
+		assertEquals("\ufffd", reader.nextString());
+		assertEquals("\ufffdx\ufffd", reader.nextString());
+		assertEquals("\ufffdA", reader.nextString());
+		reader.endArray();
+		reader.endDocument();
+	}
+
+	@Test
+	void readsScalarsAsText() throws HttpException {
+		JsonReader reader = reader(" {\"n\" : -0.5e+3, \"i\":0, \"t\":true, \"f\":false, \"z\":null, \"\\u0041\":\"\"} ");
+		reader.beginObject();
+		assertEquals("n", reader.nextName());
+		assertEquals(JsonReader.Token.NUMBER, reader.peek());
+		assertEquals("-0.5e+3", reader.nextString());
+		assertEquals("i", reader.nextName());
+		assertEquals("0", reader.nextString());
+		assertEquals("t", reader.nextName());
+		assertEquals("true", reader.nextString());
+		assertEquals("f", reader.nextName());
+		assertEquals("false", reader.nextString());
+		assertEquals("z", reader.nextName());
+		assertNull(reader.nextString());
+		assertEquals("A", reader.nextName());
+		assertEquals("", reader.nextString());
+		assertFalse(reader.hasNext());
+		reader.endObject();
+		reader.endDocument();
+	}
+
+	@Test
+	void skipsNestedValues() throws HttpException {
+		JsonReader reader = reader("{\"skip\":{\"a\":[1,{\"b\":[[],{}]},\"]}\"],\"c\":null},\"empty\":[],\"keep\":\"x\","
+				+ "\"last\":[{}]}");
+		reader.beginObject();
+		assertEquals("skip", reader.nextName());
+		reader.skipValue();
+		assertEquals("empty", reader.nextName());
+		reader.skipValue();
+		assertEquals("keep", reader.nextName());
+		assertEquals("x", reader.nextString());
+		assertEquals("last", reader.nextName());
+		reader.beginArray();
+		assertTrue(reader.hasNext());
+		reader.skipValue();
+		assertFalse(reader.hasNext());
+		reader.endArray();
+		reader.endObject();
+		reader.endDocument();
+	}
+
+	@Test
+	void limitsTheNesting() throws HttpException {
+		// The document is a level of its own
+		skipWhole(repeat("[", 32) + repeat("]", 32));
+		assertInvalid(repeat("[", 33) + repeat("]", 33), "nested deeper");
+		assertInvalid(repeat("{\"a\":", 40) + "1" + repeat("}", 40), "nested deeper");
+	}
+
+	@Test
+	void refusesTruncatedDocuments() {
+		String document = "{\"a\":[1,-2.5e3,true,null,\"s\\u00e9\\n\"],\"b\":{}}";
+		for (int length = 0; length < document.length(); ++length) {
+			try {
+				skipWhole(document.substring(0, length));
+				fail("Accepted " + document.substring(0, length));
+			} catch (HttpException e) {
+				assertTrue(e.status.startsWith("400"), e.status);
+			}
+		}
+	}
+
+	@Test
+	void refusesMalformedDocuments() {
+		assertInvalid("", "unexpected end");
+		assertInvalid("{} {}", "after the end");
+		assertInvalid("{\"a\" 1}", "':' expected");
+		assertInvalid("{\"a\":1 \"b\":2}", "',' or '}' expected");
+		assertInvalid("[1 2]", "',' or ']' expected");
+		assertInvalid("{a:1}", "name expected");
+		assertInvalid("{\"a\":1,}", "name expected");
+		assertInvalid("[1,]", "value expected");
+		assertInvalid("[01]", "',' or ']' expected");
+		assertInvalid("[-]", "invalid number");
+		assertInvalid("[1.]", "invalid number");
+		assertInvalid("[1e]", "invalid number");
+		assertInvalid("[tru]", "invalid literal");
+		assertInvalid("[nul1]", "invalid literal");
+		assertInvalid("[\"a\\x\"]", "invalid escape");
+		assertInvalid("[\"\\u12G4\"]", "invalid \\u escape");
+		assertInvalid("[\"\\u12\"]", "invalid \\u escape");
+		assertInvalid("[\"a\tb\"]", "control character");
+		assertInvalid("[\"abc]", "unterminated string");
+	}
+
+	@Test
+	void reportsTheOffsetInTheGivenRange() throws HttpException {
+		byte[] bytes = ascii("xx[1,]yy");
+		JsonReader reader = new JsonReader(bytes, 2, 4);
+		reader.beginArray();
+		assertEquals("1", reader.nextString());
+		try {
+			reader.nextString();
+			fail("Accepted [1,]");
+		} catch (HttpException e) {
+			assertTrue(e.getMessage().startsWith("Invalid JSON at byte 3:"), e.getMessage());
+		}
+	}
+
+// private
+	private static JsonReader reader(String document) {
+		byte[] bytes = document.getBytes(StandardCharsets.UTF_8);
+		return new JsonReader(bytes, 0, bytes.length);
+	}
+
+	private static void skipWhole(String document) throws HttpException {
+		JsonReader reader = reader(document);
+		reader.skipValue();
+		reader.endDocument();
+	}
+
+	private static void assertInvalid(String document, String message) {
+		try {
+			skipWhole(document);
+			fail("Accepted " + document);
+		} catch (HttpException e) {
+			assertTrue(e.status.startsWith("400"), e.status);
+			assertTrue(e.getMessage().contains(message), e.getMessage() + " for " + document);
+		}
+	}
+
+	private static String repeat(String value, int count) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < count; ++i) {
+			builder.append(value);
+		}
+		return builder.toString();
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+}
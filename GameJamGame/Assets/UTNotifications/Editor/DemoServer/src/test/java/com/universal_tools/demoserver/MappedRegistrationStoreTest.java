@@ -0,0 +1,258 @@
+package com.universal_tools.demoserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/// <summary>
+/// <c>MappedRegistrationStore</c> reopened after a clean close and after a crash (a store not closed, with broken
+/// records and a uid in two slots), and rebuilt into new generations while it's being changed.
+/// </summary>
+class MappedRegistrationStoreTest {
+// public
+	@BeforeAll
+	static void logToConsole() {
+		ServerOptions.LOG_FILE = "-";
+	}
+
+	@Test
+	void keepsTheDevicesWhenReopened() throws IOException {
+		String name = storeName();
+		MappedRegistrationStore store = MappedRegistrationStore.open(name);
+		store.put("uid1", new Registrator.Item("FCM", "id1"));
+		store.put("uid2", new Registrator.Item("APNS", null));
+		store.put("uid3", new Registrator.Item("a provider of its own", "id été 中"));
+		assertTrue(store.update("uid1", new Registrator.Item("FCM", "id1"), "id1b"));
+		assertFalse(store.update("uid1", new Registrator.Item("FCM", "id1"), "id1c"), "Not the registered device");
+		assertTrue(store.remove("uid2"));
+		assertFalse(store.remove("uid2"));
+		store.close();
+
+		store = MappedRegistrationStore.open(name);
+		assertEquals(2, store.size());
+		assertEquals("id1b", store.get("uid1").getId());
+		assertNull(store.get("uid2"));
+		assertEquals("a provider of its own", store.get("uid3").provider);
+		assertEquals("id été 中", store.get("uid3").getId());
+		assertEquals("uid3", store.get("uid3").getUid());
+		store.close();
+	}
+
+	@Test
+	void dropsTheRecordsNotWholeAfterACrash() throws IOException {
+		String name = storeName();
+		MappedRegistrationStore store = MappedRegistrationStore.open(name);
+		store.put("uid1", new Registrator.Item("FCM", "id1"));
+		store.put("uid2", new Registrator.Item("FCM", "id2"));
+		// Not closed: the next open checks the records
+		store.sync();
+
+		// A byte of the uid of the first record
+		try (RandomAccessFile file = new RandomAccessFile(generationFile(), "rw")) {
+			long position = arenaStart(file) + RECORD_DATA;
+			file.seek(position);
+			int b = file.read();
+			file.seek(position);
+			file.write(b ^ 0x01);
+		}
+
+		MappedRegistrationStore reopened = MappedRegistrationStore.open(name);
+		assertEquals(1, reopened.size());
+		assertNull(reopened.get("uid1"));
+		assertEquals("id2", reopened.get("uid2").getId());
+		assertEquals(1, count(reopened));
+		reopened.close();
+	}
+
+	@Test
+	void keepsTheNewestRecordOfAUidInTwoSlots() throws IOException {
+		// The newer record first on the way of the uid, then the older one
+		assertNewestKept(false);
+		assertNewestKept(true);
+	}
+
+	@Test
+	void rebuildsWhileBeingChanged() throws IOException {
+		String name = storeName();
+		MappedRegistrationStore store = MappedRegistrationStore.open(name);
+		Map<String, String> expected = new HashMap<String, String>();
+		Random random = new Random(SEED);
+		// Far above the initial index: several generations, each started while the changes go on
+		for (int i = 0; i < CHANGES; ++i) {
+			String uid = "uid" + random.nextInt(DEVICES);
+			if (random.nextInt(8) == 0) {
+				assertEquals(expected.remove(uid) != null, store.remove(uid), uid);
+			} else {
+				String id = "id" + random.nextInt();
+				store.put(uid, new Registrator.Item("FCM", id));
+				expected.put(uid, id);
+			}
+		}
+		store.awaitRebuild();
+		assertDevices(expected, store);
+		store.close();
+
+		assertEquals(1, generationFiles().length, "The old generations must be deleted");
+		store = MappedRegistrationStore.open(name);
+		assertDevices(expected, store);
+
+		// Mostly unregistered: rebuilt to drop the tombstones and the replaced records rather than grown
+		for (String uid : new HashSet<String>(expected.keySet())) {
+			if (random.nextInt(16) != 0) {
+				store.remove(uid);
+				expected.remove(uid);
+			}
+		}
+		for (int i = 0; i < CHANGES; ++i) {
+			String uid = "other" + i % 100;
+			String id = "id" + i;
+			store.put(uid, new Registrator.Item("FCM", id));
+			expected.put(uid, id);
+		}
+		store.awaitRebuild();
+		assertDevices(expected, store);
+		store.close();
+	}
+
+	@Test
+	void opensTheLatestCompleteGeneration() throws IOException {
+		String name = storeName();
+		MappedRegistrationStore store = MappedRegistrationStore.open(name);
+		store.put("uid1", new Registrator.Item("FCM", "id1"));
+		store.close();
+
+		// Left by a crash during a rebuild, before the new generation was complete
+		File current = generationFile();
+		long generation = Long.parseLong(current.getName().substring(current.getName().lastIndexOf('.') + 1));
+		File incomplete = new File(current.getParentFile(), new File(name).getName() + "." + (generation + 1));
+		Files.write(incomplete.toPath(), new byte[8192]);
+
+		store = MappedRegistrationStore.open(name);
+		assertEquals("id1", store.get("uid1").getId());
+		assertFalse(incomplete.exists());
+		store.close();
+	}
+
+// private
+	// Writes the slot of the older record of a uid to the slot next to its newer one, as a crash may leave it
+	private void assertNewestKept(boolean olderFirst) throws IOException {
+		File dir = new File(m_dir, olderFirst ? "older first" : "newer first");
+		assertTrue(dir.mkdir());
+		String name = new File(dir, "reg.store").getPath();
+
+		MappedRegistrationStore store = MappedRegistrationStore.open(name);
+		store.put("uid1", new Registrator.Item("FCM", "old"));
+		store.put("uid1", new Registrator.Item("FCM", "new"));
+		store.sync();
+
+		File file = generationFiles(dir)[0];
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(SLOTS);
+			int slots = raf.readInt();
+			int index = -1;
+			long newer = 0;
+			for (int i = 0; i < slots; ++i) {
+				raf.seek(HEADER_SIZE + (long)i * SLOT_SIZE);
+				long slot = raf.readLong();
+				if (slot != 0) {
+					index = i;
+					newer = slot;
+				}
+			}
+			assertTrue(index >= 0);
+
+			// The same tag, the first record of the arena
+			long older = (newer & (-1L << TAG_SHIFT)) | 1;
+			raf.seek(HEADER_SIZE + (long)index * SLOT_SIZE);
+			raf.writeLong(olderFirst ? older : newer);
+			raf.seek(HEADER_SIZE + (long)((index + 1) & (slots - 1)) * SLOT_SIZE);
+			raf.writeLong(olderFirst ? newer : older);
+		}
+
+		MappedRegistrationStore reopened = MappedRegistrationStore.open(name);
+		assertEquals(1, reopened.size());
+		assertEquals("new", reopened.get("uid1").getId(), olderFirst ? "Older first" : "Newer first");
+		assertEquals(1, count(reopened));
+		reopened.close();
+	}
+
+	private static void assertDevices(Map<String, String> expected, MappedRegistrationStore store) {
+		assertEquals(expected.size(), store.size());
+		for (Map.Entry<String, String> entry : expected.entrySet()) {
+			Registrator.Item item = store.get(entry.getKey());
+			assertNotNull(item, entry.getKey());
+			assertEquals(entry.getValue(), item.getId(), entry.getKey());
+		}
+
+		Set<String> walked = new HashSet<String>();
+		for (Registrator.Item item : store.items()) {
+			assertTrue(walked.add(item.getUid()), "Walked twice: " + item.getUid());
+			assertEquals(expected.get(item.getUid()), item.getId(), item.getUid());
+		}
+		assertEquals(expected.size(), walked.size());
+	}
+
+	private static int count(MappedRegistrationStore store) {
+		int count = 0;
+		for (Registrator.Item item : store.items()) {
+			assertNotNull(item.getUid());
+			++count;
+		}
+		return count;
+	}
+
+	private static long arenaStart(RandomAccessFile file) throws IOException {
+		file.seek(SLOTS);
+		long indexEnd = HEADER_SIZE + (long)file.readInt() * SLOT_SIZE;
+		return (indexEnd + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+	}
+
+	private String storeName() {
+		return new File(m_dir, "reg.store").getPath();
+	}
+
+	private File generationFile() {
+		File[] files = generationFiles();
+		assertEquals(1, files.length);
+		return files[0];
+	}
+
+	private File[] generationFiles() {
+		return generationFiles(m_dir);
+	}
+
+	private static File[] generationFiles(File dir) {
+		return dir.listFiles((parent, name) -> name.matches("reg\\.store\\.[0-9]+"));
+	}
+
+	// The layout of MappedRegistrationStore
+	private static final int SLOTS = 8;
+	private static final int HEADER_SIZE = 4096;
+	private static final int SLOT_SIZE = 8;
+	private static final int TAG_SHIFT = 40;
+	private static final int PAGE_SIZE = 4096;
+	private static final int RECORD_DATA = 20;
+
+	private static final long SEED = 20180518;
+	private static final int DEVICES = 20000;
+	private static final int CHANGES = 50000;
+
+	@TempDir
+	File m_dir;
+}
@@ -0,0 +1,88 @@
+package com.universal_tools.demoserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/// <summary>
+/// <c>RateLimiter</c> buckets driven by a given clock rather than the real one.
+/// </summary>
+class RateLimiterTest {
+// public
+	@Test
+	void allowsABurstThenRefills() {
+		RateLimiter limiter = new RateLimiter("test", 16);
+		RateLimiter.Limit limit = new RateLimiter.Limit(10, 3);
+		// Close to the overflow: only differences of System.nanoTime() are meaningful
+		long now = Long.MAX_VALUE - MILLIS * 50;
+
+		for (int i = 0; i < 3; ++i) {
+			assertEquals(0, limiter.acquire(limit, "a", now), "Request " + i);
+		}
+		// The 4th request waits for the first token back, 100 ms later
+		assertEquals(100 * MILLIS, limiter.acquire(limit, "a", now));
+		assertEquals(40 * MILLIS, limiter.acquire(limit, "a", now + 60 * MILLIS));
+
+		// One token back per 100 ms
+		now += 100 * MILLIS;
+		assertEquals(0, limiter.acquire(limit, "a", now));
+		assertEquals(100 * MILLIS, limiter.acquire(limit, "a", now));
+
+		// A bucket left alone fills up to the burst, no more
+		now += 10000 * MILLIS;
+		for (int i = 0; i < 3; ++i) {
+			assertEquals(0, limiter.acquire(limit, "a", now), "Request " + i);
+		}
+		assertTrue(limiter.acquire(limit, "a", now) > 0);
+	}
+
+	@Test
+	void keepsKeysAndLimitsApart() {
+		RateLimiter limiter = new RateLimiter("test", 1024);
+		RateLimiter.Limit limit = new RateLimiter.Limit(1, 1);
+		RateLimiter.Limit other = new RateLimiter.Limit(1, 1);
+
+		assertEquals(0, limiter.acquire(limit, "a", 0));
+		assertTrue(limiter.acquire(limit, "a", 0) > 0);
+		assertEquals(0, limiter.acquire(limit, "b", 0));
+		assertEquals(0, limiter.acquire(other, "a", 0));
+		assertEquals(0, new RateLimiter("other", 1024).acquire(limit, "a", 0));
+	}
+
+	@Test
+	void zeroRateIsNoLimit() {
+		RateLimiter limiter = new RateLimiter("test", 16);
+		RateLimiter.Limit limit = RateLimiter.Limit.parse("0");
+		for (int i = 0; i < 1000; ++i) {
+			assertEquals(0, limiter.acquire(limit, "a", 0));
+		}
+		assertEquals("0", limit.toString());
+		assertEquals("0.5/1", RateLimiter.Limit.parse("0.5").toString());
+		assertEquals("2.0/10", RateLimiter.Limit.parse("2/10").toString());
+	}
+
+	@Test
+	void evictedKeysStartOverWithAFullBucket() {
+		// 2 slots: the keys below evict "a" from its slot
+		RateLimiter limiter = new RateLimiter("test", 2);
+		RateLimiter.Limit limit = new RateLimiter.Limit(1, 1);
+
+		assertEquals(0, limiter.acquire(limit, "a", 0));
+		assertTrue(limiter.acquire(limit, "a", 0) > 0);
+		for (int i = 0; i < 100; ++i) {
+			limiter.acquire(limit, "key" + i, 0);
+		}
+		assertEquals(0, limiter.acquire(limit, "a", 0));
+
+		// Keys of another table don't evict it
+		RateLimiter other = new RateLimiter("other", 2);
+		for (int i = 0; i < 100; ++i) {
+			other.acquire(limit, "key" + i, 0);
+		}
+		assertTrue(limiter.acquire(limit, "a", 0) > 0);
+	}
+
+// private
+	private static final long MILLIS = 1000000;
+}
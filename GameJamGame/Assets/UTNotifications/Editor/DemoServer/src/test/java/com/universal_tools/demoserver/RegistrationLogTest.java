@@ -0,0 +1,242 @@
+package com.universal_tools.demoserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/// <summary>
+/// <c>RegistrationLog</c> written and replayed, with the tails a crash or a failed write leaves and records it doesn't
+/// know.
+/// </summary>
+class RegistrationLogTest {
+// public
+	@BeforeAll
+	static void logToConsole() {
+		ServerOptions.LOG_FILE = "-";
+	}
+
+	@Test
+	void replaysTheRecordsInOrder() throws Exception {
+		File file = new File(m_dir, "reg.log");
+		RegistrationLog log = new RegistrationLog(file);
+		log.register("uid1", "FCM", "id1");
+		log.register("uid2", "APNS", null);
+		log.update("uid1", "id1b");
+		log.token("FCM", "token", new Date(1234567890000L));
+		log.token("ADM", null, null);
+		log.unregister("uid2");
+		log.register("uid3", "WNS", "été 中");
+		log.close();
+
+		Recording replay = new Recording();
+		assertEquals(7, RegistrationLog.replay(file, replay));
+		assertEquals(Arrays.asList("register uid1 FCM id1", "register uid2 APNS null", "update uid1 id1b",
+				"token FCM token 1234567890000", "token ADM null null", "unregister uid2",
+				"register uid3 WNS été 中"), replay.records);
+	}
+
+	@Test
+	void replaysNothingWithoutAFile() throws IOException {
+		Recording replay = new Recording();
+		assertEquals(0, RegistrationLog.replay(new File(m_dir, "missing.log"), replay));
+		assertTrue(replay.records.isEmpty());
+	}
+
+	@Test
+	void dropsATornTailAndAppendsAfterTheRest() throws Exception {
+		File file = new File(m_dir, "reg.log");
+		RegistrationLog log = new RegistrationLog(file);
+		log.register("uid1", "FCM", "id1");
+		log.register("uid2", "FCM", "id2");
+		log.close();
+		long complete = file.length();
+
+		// Every cut of a record being written when the process died
+		byte[] record = record(REGISTER, "uid3", "FCM", "id3");
+		for (int cut = 1; cut < record.length; ++cut) {
+			Files.write(file.toPath(), Arrays.copyOf(record, cut), StandardOpenOption.APPEND);
+
+			Recording replay = new Recording();
+			assertEquals(2, RegistrationLog.replay(file, replay), "Cut at " + cut);
+			assertEquals(complete, file.length(), "Cut at " + cut);
+		}
+
+		// The log goes on after the last complete record
+		log = new RegistrationLog(file);
+		log.unregister("uid1");
+		log.close();
+
+		Recording replay = new Recording();
+		assertEquals(3, RegistrationLog.replay(file, replay));
+		assertEquals(Arrays.asList("register uid1 FCM id1", "register uid2 FCM id2", "unregister uid1"), replay.records);
+	}
+
+	@Test
+	void endsAtARecordNotMatchingItsCrc() throws Exception {
+		File file = new File(m_dir, "reg.log");
+		RegistrationLog log = new RegistrationLog(file);
+		log.register("uid1", "FCM", "id1");
+		log.close();
+		long first = file.length();
+		log = new RegistrationLog(file);
+		log.register("uid2", "FCM", "id2");
+		log.register("uid3", "FCM", "id3");
+		log.close();
+
+		// A byte of the id of the second record
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(first + HEADER_SIZE + 20);
+			int b = raf.read();
+			raf.seek(first + HEADER_SIZE + 20);
+			raf.write(b ^ 0x01);
+		}
+
+		Recording replay = new Recording();
+		assertEquals(1, RegistrationLog.replay(file, replay));
+		assertEquals(Arrays.asList("register uid1 FCM id1"), replay.records);
+		assertEquals(first, file.length());
+	}
+
+	@Test
+	void refusesAnUnknownRecordType() throws Exception {
+		File file = new File(m_dir, "reg.log");
+		RegistrationLog log = new RegistrationLog(file);
+		log.register("uid1", "FCM", "id1");
+		log.close();
+		long length = file.length();
+
+		// Whole and matching its CRC, written by a later version: not a torn tail to drop
+		Files.write(file.toPath(), record((byte)42, "uid2"), StandardOpenOption.APPEND);
+		Files.write(file.toPath(), record(REGISTER, "uid3", "FCM", "id3"), StandardOpenOption.APPEND);
+		long written = file.length();
+
+		Recording replay = new Recording();
+		IOException error = assertThrows(IOException.class, () -> RegistrationLog.replay(file, replay));
+		assertTrue(error.getMessage().contains("42"), error.getMessage());
+		assertEquals(Arrays.asList("register uid1 FCM id1"), replay.records);
+		assertTrue(written > length);
+		assertEquals(written, file.length(), "The log must be kept as it is");
+	}
+
+	@Test
+	void truncatesWhatAFailedWriteLeftBeforeTheNext() throws Exception {
+		File file = new File(m_dir, "reg.log");
+		RegistrationLog log = new RegistrationLog(file);
+		log.register("uid1", "FCM", "id1");
+		log.awaitDurable();
+
+		// The part of a record a write failing part-way leaves
+		Files.write(file.toPath(), Arrays.copyOf(record(REGISTER, "uid2", "FCM", "id2"), 10), StandardOpenOption.APPEND);
+		log.register("uid2", "FCM", "id2");
+		log.close();
+
+		Recording replay = new Recording();
+		assertEquals(2, RegistrationLog.replay(file, replay));
+		assertEquals(Arrays.asList("register uid1 FCM id1", "register uid2 FCM id2"), replay.records);
+	}
+
+	@Test
+	void awaitsDurableRecordsAndRefusesThemOnceClosed() throws Exception {
+		File file = new File(m_dir, "reg.log");
+		RegistrationLog log = new RegistrationLog(file);
+		for (int i = 0; i < 1000; ++i) {
+			log.register("uid" + i, "FCM", "id" + i);
+		}
+		log.awaitDurable();
+		assertEquals(log.size(), file.length());
+
+		log.close();
+		assertThrows(IOException.class, () -> log.register("late", "FCM", "id"));
+		assertEquals(1000, RegistrationLog.replay(file, new Recording()));
+	}
+
+	@Test
+	void rotatesToTheTargetAndGoesOnInANewLog() throws Exception {
+		File file = new File(m_dir, "reg.log");
+		File previous = new File(m_dir, "reg.log.prev");
+		RegistrationLog log = new RegistrationLog(file);
+		log.register("uid1", "FCM", "id1");
+		log.rotate(previous);
+		log.register("uid2", "FCM", "id2");
+		assertTrue(log.awaitRotated());
+		log.close();
+
+		Recording before = new Recording();
+		assertEquals(1, RegistrationLog.replay(previous, before));
+		assertEquals(Arrays.asList("register uid1 FCM id1"), before.records);
+		Recording after = new Recording();
+		assertEquals(1, RegistrationLog.replay(file, after));
+		assertEquals(Arrays.asList("register uid2 FCM id2"), after.records);
+	}
+
+// private
+	// The records replayed, as text
+	private static class Recording implements RegistrationLog.Replay {
+		@Override
+		public void register(String uid, String provider, String id) {
+			records.add("register " + uid + " " + provider + " " + id);
+		}
+
+		@Override
+		public void update(String uid, String id) {
+			records.add("update " + uid + " " + id);
+		}
+
+		@Override
+		public void unregister(String uid) {
+			records.add("unregister " + uid);
+		}
+
+		@Override
+		public void token(String provider, String token, Date tokenExpires) {
+			records.add("token " + provider + " " + token + " " + (tokenExpires != null ? tokenExpires.getTime() : null));
+		}
+
+		final List<String> records = new ArrayList<String>();
+	}
+
+	// A record as RegistrationLog writes it
+	private static byte[] record(byte type, String... strings) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream stream = new DataOutputStream(payload);
+		stream.writeByte(type);
+		for (String value : strings) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			stream.writeInt(bytes.length);
+			stream.write(bytes);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(payload.toByteArray());
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(record);
+		out.writeInt(payload.size());
+		out.writeInt((int)crc.getValue());
+		out.write(payload.toByteArray());
+		return record.toByteArray();
+	}
+
+	private static final byte REGISTER = 1;
+	private static final int HEADER_SIZE = 8;
+
+	@TempDir
+	File m_dir;
+}
@@ -0,0 +1,192 @@
+package com.universal_tools.demoserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/// <summary>
+/// <c>RegistrationSnapshot</c> written and read back, read from the Java serialized files of older versions and
+/// refused when corrupted.
+/// </summary>
+class RegistrationSnapshotTest {
+// public
+	@Test
+	void readsBackWhatIsWritten() throws IOException {
+		Map<String, Registrator.Item> devices = new LinkedHashMap<String, Registrator.Item>();
+		for (int i = 0; i < 1000; ++i) {
+			devices.put("uid" + i, new Registrator.Item(PROVIDERS[i % PROVIDERS.length], "id" + i));
+		}
+		devices.put("no id", new Registrator.Item("APNS", null));
+		devices.put("été 中", new Registrator.Item("a provider of its own", "id été 中"));
+		devices.put("long", new Registrator.Item("FCM", "x".repeat(100000)));
+
+		Map<String, Registrator.OAuth2Token> tokens = new HashMap<String, Registrator.OAuth2Token>();
+		tokens.put("ADM", new Registrator.OAuth2Token("adm token", new Date(1234567890000L)));
+		tokens.put("WNS", new Registrator.OAuth2Token(null, null));
+
+		File file = new File(m_dir, "reg.db");
+		RegistrationSnapshot.write(file.getPath(), true, devices, tokens);
+
+		Loaded loaded = new Loaded();
+		assertEquals(RegistrationSnapshot.VERSION, RegistrationSnapshot.read(file, loaded));
+		assertEquals(devices.size(), loaded.devicesSize);
+		assertEquals(tokens.size(), loaded.tokensSize);
+		assertDevices(devices, loaded.devices);
+
+		assertEquals("adm token", loaded.tokens.get("ADM").token);
+		assertEquals(1234567890000L, loaded.tokens.get("ADM").tokenExpires.getTime());
+		assertNull(loaded.tokens.get("WNS").token);
+		assertNull(loaded.tokens.get("WNS").tokenExpires);
+		assertFalse(new File(m_dir, "reg.db.tmp").exists(), "The temporary file must be renamed");
+	}
+
+	@Test
+	void readsAnEmptySnapshotAndNoneAtAll() throws IOException {
+		File file = new File(m_dir, "reg.db");
+		assertEquals(-1, RegistrationSnapshot.read(file, new Loaded()));
+
+		RegistrationSnapshot.write(file.getPath(), false, new HashMap<String, Registrator.Item>(),
+				new HashMap<String, Registrator.OAuth2Token>());
+		Loaded loaded = new Loaded();
+		assertEquals(RegistrationSnapshot.VERSION, RegistrationSnapshot.read(file, loaded));
+		assertTrue(loaded.devices.isEmpty());
+		assertTrue(loaded.tokens.isEmpty());
+	}
+
+	@Test
+	void readsTheJavaSerializationOfOlderVersions() throws IOException {
+		HashMap<String, Registrator.Item> devices = new HashMap<String, Registrator.Item>();
+		devices.put("uid1", new Registrator.Item("FCM", "id1"));
+		devices.put("uid2", new Registrator.Item("APNS", null));
+		HashMap<String, Registrator.OAuth2Token> tokens = new HashMap<String, Registrator.OAuth2Token>();
+		tokens.put("ADM", new Registrator.OAuth2Token("adm token", new Date(1234567890000L)));
+
+		// As Registrator saved them before the binary format
+		File file = new File(m_dir, "reg.db");
+		try (ObjectOutputStream stream = new ObjectOutputStream(new FileOutputStream(file))) {
+			stream.writeObject(devices);
+			stream.writeObject(tokens);
+		}
+
+		Loaded loaded = new Loaded();
+		assertEquals(RegistrationSnapshot.JAVA_SERIALIZATION, RegistrationSnapshot.read(file, loaded));
+		assertDevices(devices, loaded.devices);
+		assertEquals("adm token", loaded.tokens.get("ADM").token);
+
+		// Migrated, the way Registrator does it
+		RegistrationSnapshot.write(file.getPath(), true, loaded.devices, loaded.tokens);
+		Loaded migrated = new Loaded();
+		assertEquals(RegistrationSnapshot.VERSION, RegistrationSnapshot.read(file, migrated));
+		assertDevices(devices, migrated.devices);
+	}
+
+	@Test
+	void refusesACorruptedSnapshot() throws IOException {
+		Map<String, Registrator.Item> devices = new LinkedHashMap<String, Registrator.Item>();
+		for (int i = 0; i < 100; ++i) {
+			devices.put("uid" + i, new Registrator.Item("FCM", "id" + i));
+		}
+		File file = new File(m_dir, "reg.db");
+		RegistrationSnapshot.write(file.getPath(), false, devices, new HashMap<String, Registrator.OAuth2Token>());
+		long length = file.length();
+
+		// The last byte of a uid (uid50 becomes uid51), then a byte of the CRC itself
+		byte[] content = Files.readAllBytes(file.toPath());
+		long uid = indexOf(content, "uid50".getBytes(StandardCharsets.UTF_8)) + 4;
+		for (long position : new long[] { uid, length - 1 }) {
+			flip(file, position);
+			IOException error = assertThrows(IOException.class, () -> RegistrationSnapshot.read(file, new Loaded()));
+			assertTrue(error.getMessage().contains("CRC"), error.getMessage());
+			flip(file, position);
+		}
+
+		// Cut short
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(length - 10);
+		}
+		assertThrows(IOException.class, () -> RegistrationSnapshot.read(file, new Loaded()));
+	}
+
+	@Test
+	void refusesAnUnknownFile() throws IOException {
+		File file = new File(m_dir, "reg.db");
+		try (FileOutputStream stream = new FileOutputStream(file)) {
+			stream.write("neither format".getBytes(StandardCharsets.US_ASCII));
+		}
+		assertThrows(IOException.class, () -> RegistrationSnapshot.read(file, new Loaded()));
+	}
+
+// private
+	private static class Loaded implements RegistrationSnapshot.Loader {
+		@Override
+		public void sizes(int devices, int tokens) {
+			devicesSize = devices;
+			tokensSize = tokens;
+		}
+
+		@Override
+		public void device(String uid, Registrator.Item item) {
+			devices.put(uid, item);
+		}
+
+		@Override
+		public void token(String provider, Registrator.OAuth2Token token) {
+			tokens.put(provider, token);
+		}
+
+		int devicesSize = -1;
+		int tokensSize = -1;
+		final Map<String, Registrator.Item> devices = new HashMap<String, Registrator.Item>();
+		final Map<String, Registrator.OAuth2Token> tokens = new HashMap<String, Registrator.OAuth2Token>();
+	}
+
+	private static void assertDevices(Map<String, Registrator.Item> expected, Map<String, Registrator.Item> actual) {
+		assertEquals(expected.keySet(), actual.keySet());
+		for (Map.Entry<String, Registrator.Item> entry : expected.entrySet()) {
+			Registrator.Item item = actual.get(entry.getKey());
+			assertEquals(entry.getValue().provider, item.provider, entry.getKey());
+			assertEquals(entry.getValue().getId(), item.getId(), entry.getKey());
+		}
+	}
+
+	private static void flip(File file, long position) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(position);
+			int b = raf.read();
+			raf.seek(position);
+			raf.write(b ^ 0x01);
+		}
+	}
+
+	private static int indexOf(byte[] bytes, byte[] part) {
+		for (int i = 0; i + part.length <= bytes.length; ++i) {
+			if (Arrays.equals(bytes, i, i + part.length, part, 0, part.length)) {
+				return i;
+			}
+		}
+		throw new AssertionError("Not found");
+	}
+
+	private static final String[] PROVIDERS = { "FCM", "ADM", "APNS", "WNS" };
+
+	@TempDir
+	File m_dir;
+}
@@ -0,0 +1,124 @@
+package com.universal_tools.demoserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/// <summary>
+/// The arguments <c>RequestHandler</c> reads from JSON and form-encoded requests.
+/// </summary>
+class RequestHandlerTest {
+// public
+	@Test
+	void mapsUserDataAndButtons() throws Exception {
+		LinkedHashMap<String, String> userData = new LinkedHashMap<String, String>();
+		List<PushMessage.Button> buttons = new ArrayList<PushMessage.Button>();
+		HashMap<String, String> args = RequestHandler.arguments(json("/notify?id=7", "{\"title\":\"Hi\",\"text\":\"\\u00e9\","
+				+ "\"id\":1,\"badge\":3,\"sound\":true,\"notification_profile\":null,\"extra\":{\"a\":[1,2]},"
+				+ "\"user_data\":{\"k\":\"v\",\"n\":5,\"b\":false,\"z\":null},"
+				+ "\"buttons\":[{\"title\":\"Open\",\"user_data\":{\"url\":\"x\"},\"icon\":[]},{\"title\":\"Close\"}]}"),
+				userData, buttons);
+
+		// Scalars by name, numbers and booleans as written; the query takes precedence
+		assertEquals("Hi", args.get("title"));
+		assertEquals("\u00e9", args.get("text"));
+		assertEquals("7", args.get("id"));
+		assertEquals("3", args.get("badge"));
+		assertEquals("true", args.get("sound"));
+		assertEquals(5, args.size());
+
+		assertEquals(map("k", "v", "n", "5", "b", "false"), userData);
+		assertEquals(2, buttons.size());
+		assertEquals("Open", buttons.get(0).title);
+		assertEquals(map("url", "x"), buttons.get(0).userData);
+		assertEquals("Close", buttons.get(1).title);
+		assertTrue(buttons.get(1).userData.isEmpty());
+	}
+
+	@Test
+	void skipsUserDataAndButtonsNotAskedFor() throws Exception {
+		HashMap<String, String> args = RequestHandler.arguments(json("/register",
+				"{\"uid\":\"u\",\"user_data\":{\"k\":\"v\"},\"buttons\":[{\"title\":\"Open\"}]}"), null, null);
+		assertEquals(map("uid", "u"), args);
+
+		LinkedHashMap<String, String> userData = new LinkedHashMap<String, String>();
+		List<PushMessage.Button> buttons = new ArrayList<PushMessage.Button>();
+		RequestHandler.arguments(json("/notify", "{\"user_data\":null,\"buttons\":null}"), userData, buttons);
+		assertTrue(userData.isEmpty());
+		assertTrue(buttons.isEmpty());
+	}
+
+	@Test
+	void readsFormEncodedArguments() throws Exception {
+		byte[] body = ascii("uid=a%20b&provider=FCM");
+		HttpRequest request = new HttpRequestParser(null).parse(ByteBuffer.wrap(concat(ascii("POST /register?id=x HTTP/1.1"
+				+ "\r\nContent-Type: application/x-www-form-urlencoded\r\nContent-Length: " + body.length + "\r\n\r\n"), body)));
+
+		assertEquals(map("uid", "a b", "provider", "FCM", "id", "x"), RequestHandler.arguments(request, null, null));
+	}
+
+	@Test
+	void refusesInvalidUserDataAndButtons() throws Exception {
+		assertInvalid("{\"user_data\":{\"k\":{\"nested\":1}}}", "is not a string");
+		assertInvalid("{\"user_data\":[\"v\"]}", "begin object expected");
+		assertInvalid("{\"buttons\":{\"title\":\"Open\"}}", "begin array expected");
+		assertInvalid("{\"buttons\":[{\"title\":\"Open\"},{\"user_data\":{}}]}", "button 1 is not specified");
+		assertInvalid("[\"title\"]", "begin object expected");
+		assertInvalid("{\"title\":\"Hi\"} x", "after the end");
+	}
+
+// private
+	private static HttpRequest json(String target, String body) throws HttpException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		return new HttpRequestParser(null).parse(ByteBuffer.wrap(concat(ascii("POST " + target + " HTTP/1.1\r\n"
+				+ "Content-Type: application/json; charset=utf-8\r\nContent-Length: " + bytes.length + "\r\n\r\n"), bytes)));
+	}
+
+	private static void assertInvalid(String body, String message) throws Exception {
+		try {
+			RequestHandler.arguments(json("/notify", body), new LinkedHashMap<String, String>(),
+					new ArrayList<PushMessage.Button>());
+			fail("Accepted " + body);
+		} catch (HttpException e) {
+			assertTrue(e.status.startsWith("400"), e.status);
+			assertTrue(e.getMessage().contains(message), e.getMessage() + " for " + body);
+		}
+	}
+
+	private static Map<String, String> map(String... namesAndValues) {
+		HashMap<String, String> result = new HashMap<String, String>();
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			result.put(namesAndValues[i], namesAndValues[i + 1]);
+		}
+		return result;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+
+		byte[] result = new byte[length];
+		int offset = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, result, offset, part.length);
+			offset += part.length;
+		}
+		return result;
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+}
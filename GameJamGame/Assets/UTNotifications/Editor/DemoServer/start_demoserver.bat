@@ -14,7 +14,7 @@ set LIST=
 for %%x in (./target/demoserver-*.jar) do set LIST=!LIST! %%x
 set JARFILE=%LIST:~1%
 
-call java -javaagent:./jetty-alpn-agent-2.0.7.jar -cp ./target/%JARFILE% com.universal_tools.demoserver.HttpServer
+call java -javaagent:./jetty-alpn-agent-2.0.7.jar -cp ./target/%JARFILE% com.universal_tools.demoserver.HttpServer %*
 
 goto :EOF
 
@@ -8,4 +8,4 @@ cd $dir
 mvn -v 2>/dev/null || (>&2 echo -e "Maven not found!\nSee installation instructions here: https://maven.apache.org/install.html" && exit 1)
 
 mvn clean package
-java -javaagent:./jetty-alpn-agent-2.0.7.jar -cp ./target/demoserver-*.jar com.universal_tools.demoserver.HttpServer
\ No newline at end of file
+java -javaagent:./jetty-alpn-agent-2.0.7.jar -cp ./target/demoserver-*.jar com.universal_tools.demoserver.HttpServer "$@"
\ No newline at end of file
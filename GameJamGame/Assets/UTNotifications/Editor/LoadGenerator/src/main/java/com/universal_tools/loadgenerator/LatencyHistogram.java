@@ -0,0 +1,96 @@
+package com.universal_tools.loadgenerator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/// <summary>
+/// Latencies in microseconds, recorded by many threads without locking, with percentiles accurate to ~3%.
+/// </summary>
+/// <remarks>
+/// Values below 64 µs have a bucket each; above, every power of two is split into 32 buckets, so the buckets
+/// grow with the values and a few thousand counters cover up to days. Keeping every sample instead would take
+/// memory in proportion to the run and a sort for the report.
+/// </remarks>
+class LatencyHistogram {
+// public
+	public void recordNanos(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		m_counts.incrementAndGet(index(micros));
+		m_count.increment();
+		m_sumMicros.add(micros);
+
+		long max;
+		while (micros > (max = m_maxMicros.get()) && !m_maxMicros.compareAndSet(max, micros)) {
+		}
+	}
+
+	public long count() {
+		return m_count.sum();
+	}
+
+	public double meanMillis() {
+		long count = m_count.sum();
+		return count > 0 ? m_sumMicros.sum() / 1000.0 / count : 0;
+	}
+
+	public double maxMillis() {
+		return m_maxMicros.get() / 1000.0;
+	}
+
+	/// <param name="p">From 0 to 1, f.e. <c>0.99</c>.</param>
+	/// <returns>The latency (ms) which <c>p</c> of the values don't exceed, 0 if there are none.</returns>
+	public double percentileMillis(double p) {
+		long count = m_count.sum();
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long)Math.ceil(p * count));
+		long seen = 0;
+		for (int i = 0; i < m_counts.length(); ++i) {
+			seen += m_counts.get(i);
+			if (seen >= rank) {
+				// The middle of the bucket, but never above the real maximum
+				return Math.min(middle(i), m_maxMicros.get()) / 1000.0;
+			}
+		}
+
+		return maxMillis();
+	}
+
+// private
+	private static int index(long micros) {
+		if (micros < LINEAR) {
+			return (int)micros;
+		}
+
+		int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+		int shift = exponent - SUB_BITS;
+		long sub = Math.min((micros >> shift) - SUB_BUCKETS, SUB_BUCKETS - 1);
+		return LINEAR + (exponent - LINEAR_BITS) * SUB_BUCKETS + (int)sub;
+	}
+
+	private static long middle(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+
+		int exponent = (index - LINEAR) / SUB_BUCKETS + LINEAR_BITS;
+		int sub = (index - LINEAR) % SUB_BUCKETS;
+		int shift = exponent - SUB_BITS;
+		return ((long)(SUB_BUCKETS + sub) << shift) + (1L << shift) / 2;
+	}
+
+	private static final int LINEAR_BITS = 6;
+	private static final int LINEAR = 1 << LINEAR_BITS;
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// 2^40 µs is ~12 days, longer values share the last buckets
+	private static final int MAX_EXPONENT = 40;
+
+	private final AtomicLongArray m_counts = new AtomicLongArray(LINEAR + (MAX_EXPONENT - LINEAR_BITS + 1) * SUB_BUCKETS);
+	private final LongAdder m_count = new LongAdder();
+	private final LongAdder m_sumMicros = new LongAdder();
+	private final AtomicLong m_maxMicros = new AtomicLong();
+}
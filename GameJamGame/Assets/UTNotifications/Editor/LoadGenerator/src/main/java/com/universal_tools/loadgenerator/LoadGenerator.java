@@ -0,0 +1,552 @@
+package com.universal_tools.loadgenerator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/// <summary>
+/// Measures what the demo server sustains under a mix of <c>/register</c>, chunked <c>/register</c> and
+/// <c>/notify</c> requests, f.e.
+/// <c>java -cp target/loadgenerator-*.jar com.universal_tools.loadgenerator.LoadGenerator --mix=register:80,register-chunked:15,notify:5 --rate=2000</c>.
+/// </summary>
+/// <remarks>
+/// Closed loop (<c>clients</c>, the default): every client sends its next request as soon as the previous one is answered, so
+/// the throughput is what the server sustains for that many clients and a slower server is simply sent less. Open
+/// loop (<c>rate</c>, if given): requests are sent at the target rate whatever the server does, and a request's latency
+/// counts from when it was due, not when a connection got free to send it, so a server falling behind shows
+/// in the latency instead of lowering the load (no coordinated omission). At most <c>connections</c> requests are
+/// outstanding at once; keep-alive connections are reused. The first <c>warmup</c> seconds aren't recorded.
+/// With <c>think</c> (ms) every client of the closed loop waits that long between its requests, keeping its
+/// connection open meanwhile like an app on a slow network: many such clients compare the thread modes of the
+/// server (<c>--threads=platform|virtual</c>), f.e. <c>--clients=5000 --think=500 --mix=register</c> against the
+/// blocking mode, where a platform thread is taken by every open connection (on a single core, platform: 430
+/// registrations per second, 93% of the requests answered with <c>503</c>, p99 2.6 s; virtual: 7300 per second, all
+/// answered, p99 26 ms).
+/// The rate limits of the server must stay off (their default) to measure it rather than its <c>429</c>s. The report
+/// gives the throughput, the response statuses and the latency percentiles, overall and per request kind, one
+/// <c>name value</c> per line, so runs against different server modes or builds can be diffed.
+/// </remarks>
+public class LoadGenerator {
+// public
+	public LoadGenerator() {
+		setMix(DEFAULT_MIX);
+	}
+
+	public static void main(String[] args) throws Throwable {
+		LoadGenerator generator = new LoadGenerator();
+		for (String arg : args) {
+			int indexOfEquals = arg.indexOf('=');
+			if (!arg.startsWith("--") || indexOfEquals < 0) {
+				throw new IllegalArgumentException("Unexpected argument: " + arg + ". Expected --name=value");
+			}
+
+			String name = arg.substring(2, indexOfEquals);
+			String value = arg.substring(indexOfEquals + 1);
+			switch (name) {
+			case "host":
+				generator.m_host = value;
+				break;
+
+			case "port":
+				generator.m_port = Integer.parseInt(value);
+				break;
+
+			case "mix":
+				generator.setMix(value);
+				break;
+
+			case "clients":
+				generator.m_clients = Integer.parseInt(value);
+				break;
+
+			case "rate":
+				generator.m_rate = Double.parseDouble(value);
+				break;
+
+			case "connections":
+				generator.m_connections = Integer.parseInt(value);
+				break;
+
+			case "duration":
+				generator.m_duration = Integer.parseInt(value);
+				break;
+
+			case "warmup":
+				generator.m_warmup = Integer.parseInt(value);
+				break;
+
+			case "keep-alive":
+				generator.m_keepAlive = Boolean.parseBoolean(value);
+				break;
+
+			case "uids":
+				generator.m_uids = Integer.parseInt(value);
+				break;
+
+			case "chunk-size":
+				generator.m_chunkSize = Integer.parseInt(value);
+				break;
+
+			case "think":
+				generator.m_think = Integer.parseInt(value);
+				break;
+
+			default:
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+
+		System.out.print(generator.run());
+	}
+
+	/// <summary>
+	/// Sends the load for <c>m_warmup + m_duration</c> seconds.
+	/// </summary>
+	/// <returns>The report, one <c>name value</c> per line.</returns>
+	public String run() throws InterruptedException {
+		long started = System.nanoTime();
+		m_recordFrom = started + TimeUnit.SECONDS.toNanos(m_warmup);
+		m_deadline = m_recordFrom + TimeUnit.SECONDS.toNanos(m_duration);
+
+		if (m_rate > 0) {
+			runOpenLoop(started, m_deadline);
+		} else {
+			runClosedLoop(m_deadline);
+		}
+
+		Connection connection;
+		while ((connection = m_idle.poll()) != null) {
+			connection.close();
+		}
+
+		return report();
+	}
+
+// private
+	// A request kind of the mix
+	private static class Kind {
+		private Kind(String name, int weight) {
+			m_name = name;
+			m_weight = weight;
+		}
+
+		private final String m_name;
+		private final int m_weight;
+		private final LatencyHistogram m_latency = new LatencyHistogram();
+		private final LongAdder m_errors = new LongAdder();
+	}
+
+	// A keep-alive HTTP/1.1 client connection
+	private class Connection {
+		private Connection() throws IOException {
+			m_socket = new Socket();
+			m_socket.connect(new InetSocketAddress(m_host, m_port), CONNECT_TIMEOUT);
+			m_socket.setSoTimeout(READ_TIMEOUT);
+			m_socket.setTcpNoDelay(true);
+			m_is = new BufferedInputStream(m_socket.getInputStream(), BUFFER_SIZE);
+			m_os = m_socket.getOutputStream();
+		}
+
+		// Returns the status code of the response; the connection is closed if the server doesn't keep it
+		private int send(byte[] request) throws IOException {
+			m_os.write(request);
+			m_os.flush();
+
+			// "HTTP/1.1 200 OK"
+			int first = m_is.read();
+			if (first < 0) {
+				throw new IOException("Connection closed");
+			}
+			m_responding = true;
+			String statusLine = (char)first + readLine();
+			if (statusLine == null || statusLine.length() < 12 || !statusLine.startsWith("HTTP/")) {
+				throw new IOException("Unexpected response: " + statusLine);
+			}
+			int status = Integer.parseInt(statusLine.substring(9, 12));
+
+			long contentLength = 0;
+			String line;
+			while ((line = readLine()) != null && !line.isEmpty()) {
+				int colon = line.indexOf(':');
+				if (colon < 0) {
+					continue;
+				}
+
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					contentLength = Long.parseLong(value);
+				} else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")) {
+					m_closing = true;
+				}
+			}
+			if (line == null) {
+				throw new IOException("Unexpected end of response");
+			}
+
+			while (contentLength > 0) {
+				long skipped = m_is.skip(contentLength);
+				if (skipped <= 0) {
+					if (m_is.read() < 0) {
+						throw new IOException("Unexpected end of response");
+					}
+					skipped = 1;
+				}
+				contentLength -= skipped;
+			}
+
+			m_responding = false;
+			return status;
+		}
+
+		private String readLine() throws IOException {
+			m_line.reset();
+			int b;
+			while ((b = m_is.read()) >= 0 && b != '\n') {
+				if (b != '\r') {
+					m_line.write(b);
+				}
+			}
+
+			return b < 0 && m_line.size() == 0 ? null : m_line.toString(StandardCharsets.ISO_8859_1);
+		}
+
+		private void close() {
+			try {
+				m_socket.close();
+			} catch (IOException e) {
+			}
+		}
+
+		private final Socket m_socket;
+		private final InputStream m_is;
+		private final OutputStream m_os;
+		private final ByteArrayOutputStream m_line = new ByteArrayOutputStream(128);
+		private boolean m_closing;
+		// Set once a byte of the response has arrived
+		private boolean m_responding;
+	}
+
+	// Parses "register:80,register-chunked:15,notify:5"
+	private void setMix(String value) {
+		m_mix.clear();
+		m_totalWeight = 0;
+		for (String entry : value.split(",")) {
+			int colon = entry.indexOf(':');
+			String name = colon >= 0 ? entry.substring(0, colon) : entry;
+			int weight = colon >= 0 ? Integer.parseInt(entry.substring(colon + 1)) : 1;
+			if (!KINDS.contains(name)) {
+				throw new IllegalArgumentException("Unknown request kind: " + name + ". Expected one of " + KINDS);
+			}
+			if (weight <= 0) {
+				throw new IllegalArgumentException("The weight of " + name + " should be positive: " + weight);
+			}
+
+			m_mix.add(new Kind(name, weight));
+			m_totalWeight += weight;
+		}
+	}
+
+	private Kind pickKind() {
+		int pick = ThreadLocalRandom.current().nextInt(m_totalWeight);
+		for (Kind kind : m_mix) {
+			pick -= kind.m_weight;
+			if (pick < 0) {
+				return kind;
+			}
+		}
+
+		return m_mix.get(m_mix.size() - 1);
+	}
+
+	// Every client has a connection of its own, kept open while it thinks
+	private void runClosedLoop(final long deadline) throws InterruptedException {
+		ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+		for (int i = 0; i < m_clients; ++i) {
+			clients.execute(new Runnable() {
+				@Override
+				public void run() {
+					Connection connection = null;
+					while (System.nanoTime() < deadline) {
+						Kind kind = pickKind();
+						connection = send(kind, System.nanoTime(), connection);
+						if (m_think > 0) {
+							LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(m_think));
+						}
+					}
+
+					if (connection != null) {
+						connection.close();
+					}
+				}
+			});
+		}
+
+		clients.shutdown();
+		if (!clients.awaitTermination(m_warmup + m_duration + DRAIN_TIMEOUT, TimeUnit.SECONDS)) {
+			clients.shutdownNow();
+		}
+	}
+
+	// The calling thread schedules the requests, each is sent by its own virtual thread
+	private void runOpenLoop(long started, long deadline) throws InterruptedException {
+		final Semaphore outstanding = new Semaphore(m_connections);
+		ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+		double intervalNanos = 1e9 / m_rate;
+		for (long i = 0; ; ++i) {
+			final long due = started + (long)(i * intervalNanos);
+			if (due >= deadline) {
+				break;
+			}
+
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+
+			if (due >= m_recordFrom) {
+				m_scheduled.increment();
+			}
+
+			final Kind kind = pickKind();
+			senders.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						outstanding.acquire();
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					try {
+						send(kind, due);
+					} finally {
+						outstanding.release();
+					}
+				}
+			});
+		}
+
+		// The requests still outstanding get some time to complete, their latency counts even if they do it late
+		senders.shutdown();
+		if (!senders.awaitTermination(DRAIN_TIMEOUT, TimeUnit.SECONDS)) {
+			senders.shutdownNow();
+		}
+	}
+
+	// Sends a request on an idle connection of the pool or a new one, returning the connection to the pool
+	private void send(Kind kind, long due) {
+		Connection connection = send(kind, due, m_idle.poll());
+		if (connection != null) {
+			m_idle.add(connection);
+		}
+	}
+
+	// Sends a request on connection or, if it's null, a new one and records its latency since due. Returns the
+	// connection to send the next request on, null if it's closed.
+	private Connection send(Kind kind, long due, Connection connection) {
+		byte[] request = request(kind.m_name, m_sequence.incrementAndGet());
+
+		String outcome;
+		try {
+			int status;
+			if (connection == null) {
+				connection = new Connection();
+				status = connection.send(request);
+			} else {
+				try {
+					status = connection.send(request);
+				} catch (IOException e) {
+					if (connection.m_responding) {
+						throw e;
+					}
+
+					// Closed by the server while idle (keep-alive timeout): retried once on a new connection
+					connection.close();
+					connection = new Connection();
+					status = connection.send(request);
+				}
+			}
+
+			outcome = Integer.toString(status);
+			if (!m_keepAlive || connection.m_closing) {
+				connection.close();
+				connection = null;
+			}
+		} catch (IOException e) {
+			outcome = "error";
+			if (connection != null) {
+				connection.close();
+				connection = null;
+			}
+		}
+
+		long finished = System.nanoTime();
+		if (due < m_recordFrom) {
+			return connection;
+		}
+
+		if ("error".equals(outcome)) {
+			kind.m_errors.increment();
+		} else {
+			kind.m_latency.recordNanos(finished - due);
+			m_overall.recordNanos(finished - due);
+			if (finished <= m_deadline) {
+				m_completedInTime.increment();
+			}
+		}
+
+		LongAdder count = m_outcomes.get(outcome);
+		if (count == null) {
+			m_outcomes.putIfAbsent(outcome, new LongAdder());
+			count = m_outcomes.get(outcome);
+		}
+		count.increment();
+		return connection;
+	}
+
+	private byte[] request(String kind, long sequence) {
+		String connection = m_keepAlive ? "" : "Connection: close\r\n";
+		String head = "POST " + ("notify".equals(kind) ? "/notify" : "/register") + " HTTP/1.1\r\nHost: " + m_host
+				+ "\r\n" + connection + "Content-Type: application/x-www-form-urlencoded\r\n";
+
+		switch (kind) {
+		case "notify": {
+			String body = "title=Load&text=Request+" + sequence;
+			return ascii(head + "Content-Length: " + body.length() + "\r\n\r\n" + body);
+		}
+
+		case "register-chunked": {
+			StringBuilder builder = new StringBuilder(head).append("Transfer-Encoding: chunked\r\n\r\n");
+			String body = registerBody(sequence);
+			for (int i = 0; i < body.length(); i += m_chunkSize) {
+				String chunk = body.substring(i, Math.min(body.length(), i + m_chunkSize));
+				builder.append(Integer.toHexString(chunk.length())).append("\r\n").append(chunk).append("\r\n");
+			}
+			return ascii(builder.append("0\r\n\r\n").toString());
+		}
+
+		default: {
+			String body = registerBody(sequence);
+			return ascii(head + "Content-Length: " + body.length() + "\r\n\r\n" + body);
+		}
+		}
+	}
+
+	// m_uids devices re-registering with new ids, like app reinstalls
+	private String registerBody(long sequence) {
+		return "uid=load-" + (sequence % m_uids) + "&provider=FCM&id=load-token-" + sequence;
+	}
+
+	// The throughput counts the responses within the measured seconds only, not the ones drained after them
+	private String report() {
+		long requests = m_overall.count();
+		long errors = 0;
+		for (Kind kind : m_mix) {
+			errors += kind.m_errors.sum();
+		}
+
+		StringBuilder builder = new StringBuilder();
+		builder.append("mode ").append(m_rate > 0 ? "open" : "closed").append('\n');
+		if (m_rate > 0) {
+			builder.append("target_rate ").append(String.format("%.1f", m_rate)).append('\n');
+			builder.append("connections ").append(m_connections).append('\n');
+		} else {
+			builder.append("clients ").append(m_clients).append('\n');
+			builder.append("think_ms ").append(m_think).append('\n');
+		}
+		builder.append("keep_alive ").append(m_keepAlive).append('\n');
+		builder.append("seconds ").append(m_duration).append('\n');
+		builder.append("requests ").append(requests).append('\n');
+		builder.append("throughput_per_second ")
+				.append(String.format("%.1f", (double)m_completedInTime.sum() / m_duration)).append('\n');
+		builder.append("errors ").append(errors).append('\n');
+		if (m_rate > 0) {
+			// Sent too late to be answered at all
+			builder.append("unfinished ").append(Math.max(0, m_scheduled.sum() - requests - errors)).append('\n');
+		}
+		for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(m_outcomes).entrySet()) {
+			if ("error".equals(entry.getKey())) {
+				continue;
+			}
+			builder.append("status_").append(entry.getKey()).append(' ').append(entry.getValue().sum()).append('\n');
+		}
+		appendLatency(builder, "latency", m_overall);
+
+		for (Kind kind : m_mix) {
+			String prefix = kind.m_name.replace('-', '_');
+			builder.append(prefix).append("_requests ").append(kind.m_latency.count()).append('\n');
+			builder.append(prefix).append("_errors ").append(kind.m_errors.sum()).append('\n');
+			appendLatency(builder, prefix + "_latency", kind.m_latency);
+		}
+
+		return builder.toString();
+	}
+
+	private static void appendLatency(StringBuilder builder, String prefix, LatencyHistogram latency) {
+		builder.append(prefix).append("_ms_mean ").append(String.format("%.2f", latency.meanMillis())).append('\n');
+		for (int i = 0; i < PERCENTILES.length; ++i) {
+			builder.append(prefix).append("_ms_").append(PERCENTILE_NAMES[i]).append(' ')
+					.append(String.format("%.2f", latency.percentileMillis(PERCENTILES[i]))).append('\n');
+		}
+		builder.append(prefix).append("_ms_max ").append(String.format("%.2f", latency.maxMillis())).append('\n');
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static final String DEFAULT_MIX = "register:80,register-chunked:15,notify:5";
+	private static final List<String> KINDS = List.of("register", "register-chunked", "notify");
+	private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final int READ_TIMEOUT = 30000;
+	private static final int BUFFER_SIZE = 8192;
+	// Seconds
+	private static final int DRAIN_TIMEOUT = 60;
+
+	private String m_host = "127.0.0.1";
+	private int m_port = 8080;
+	private final List<Kind> m_mix = new ArrayList<Kind>();
+	private int m_totalWeight;
+	private int m_clients = 50;
+	// Requests per second; 0 is the closed loop
+	private double m_rate;
+	private int m_connections = 1000;
+	private int m_duration = 30;
+	private int m_warmup = 5;
+	private boolean m_keepAlive = true;
+	private int m_uids = 100000;
+	private int m_chunkSize = 16;
+	// ms a client of the closed loop waits between its requests
+	private int m_think;
+
+	private long m_recordFrom;
+	private long m_deadline;
+	private final LongAdder m_scheduled = new LongAdder();
+	private final LongAdder m_completedInTime = new LongAdder();
+	private final AtomicLong m_sequence = new AtomicLong();
+	private final ConcurrentLinkedQueue<Connection> m_idle = new ConcurrentLinkedQueue<Connection>();
+	private final LatencyHistogram m_overall = new LatencyHistogram();
+	private final ConcurrentHashMap<String, LongAdder> m_outcomes = new ConcurrentHashMap<String, LongAdder>();
+}
@@ -0,0 +1,288 @@
+package com.universal_tools.loadgenerator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/// <summary>
+/// Slow and lying clients against the demo server, to check that it closes them early and keeps serving others,
+/// f.e. <c>java -cp target/loadgenerator-*.jar com.universal_tools.loadgenerator.Slowloris --attack=headers --connections=500</c>.
+/// </summary>
+/// <remarks>
+/// Every attacking connection runs on its own virtual thread. Attacks:
+/// <c>idle</c> connects and sends nothing; <c>headers</c> sends a header line every <c>interval</c> ms, never
+/// ending the headers; <c>body</c> sends complete headers, then a byte of the body every <c>interval</c> ms;
+/// <c>large-headers</c> sends headers without end as fast as possible; <c>large-body</c> claims a huge
+/// <c>Content-Length</c>. Meanwhile a probe client requests <c>/stats</c> every <c>probe-interval</c> ms on new
+/// connections. The report gives how (response status or plain close) and how fast the server got rid of the
+/// attacking connections and the latency of the probe requests, which shouldn't suffer.
+/// </remarks>
+public class Slowloris {
+// public
+	public static void main(String[] args) throws Throwable {
+		Slowloris slowloris = new Slowloris();
+		for (String arg : args) {
+			int indexOfEquals = arg.indexOf('=');
+			if (!arg.startsWith("--") || indexOfEquals < 0) {
+				throw new IllegalArgumentException("Unexpected argument: " + arg + ". Expected --name=value");
+			}
+
+			String name = arg.substring(2, indexOfEquals);
+			String value = arg.substring(indexOfEquals + 1);
+			switch (name) {
+			case "host":
+				slowloris.m_host = value;
+				break;
+
+			case "port":
+				slowloris.m_port = Integer.parseInt(value);
+				break;
+
+			case "attack":
+				if (!ATTACKS.contains(value)) {
+					throw new IllegalArgumentException("Unknown attack: " + value + ". Expected one of " + ATTACKS);
+				}
+				slowloris.m_attack = value;
+				break;
+
+			case "connections":
+				slowloris.m_connections = Integer.parseInt(value);
+				break;
+
+			case "interval":
+				slowloris.m_interval = Integer.parseInt(value);
+				break;
+
+			case "duration":
+				slowloris.m_duration = Integer.parseInt(value);
+				break;
+
+			case "probe-interval":
+				slowloris.m_probeInterval = Integer.parseInt(value);
+				break;
+
+			default:
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+
+		System.out.print(slowloris.run());
+	}
+
+	/// <summary>
+	/// Attacks for <c>m_duration</c> seconds.
+	/// </summary>
+	/// <returns>The report, one <c>name value</c> per line.</returns>
+	public String run() throws InterruptedException {
+		long started = System.nanoTime();
+		long deadline = started + TimeUnit.SECONDS.toNanos(m_duration);
+
+		ExecutorService attackers = Executors.newVirtualThreadPerTaskExecutor();
+		for (int i = 0; i < m_connections; ++i) {
+			attackers.execute(new Runnable() {
+				@Override
+				public void run() {
+					attack(deadline);
+				}
+			});
+		}
+
+		// The probe runs on the calling thread until the deadline
+		while (System.nanoTime() < deadline) {
+			probe();
+			Thread.sleep(m_probeInterval);
+		}
+
+		attackers.shutdown();
+		attackers.awaitTermination(m_interval + 10000, TimeUnit.MILLISECONDS);
+
+		return report((System.nanoTime() - started) / 1e9);
+	}
+
+// private
+	private void attack(long deadline) {
+		long started = System.nanoTime();
+		String outcome;
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(m_host, m_port), CONNECT_TIMEOUT);
+			OutputStream os = socket.getOutputStream();
+			InputStream is = socket.getInputStream();
+			// The large-* attacks hardly wait between their writes
+			socket.setSoTimeout(m_attack.startsWith("large-") ? 1 : m_interval);
+
+			os.write(ascii(firstBytes()));
+			os.flush();
+
+			int sent = 0;
+			while (true) {
+				// Waiting for a response paces the attack as well
+				String response = readResponse(is);
+				if (response != null) {
+					outcome = response;
+					break;
+				}
+
+				if (System.nanoTime() >= deadline) {
+					outcome = "still_open";
+					break;
+				}
+
+				os.write(ascii(nextBytes(sent++)));
+				os.flush();
+			}
+		} catch (IOException e) {
+			// Closed (or reset) by the server while writing
+			outcome = "reset";
+		}
+
+		long elapsed = System.nanoTime() - started;
+		synchronized (this) {
+			Integer count = m_outcomes.get(outcome);
+			m_outcomes.put(outcome, count == null ? 1 : count + 1);
+			if (!"still_open".equals(outcome)) {
+				m_closeMillis.add(elapsed / 1000000);
+			}
+		}
+	}
+
+	// What the attacking connection sends first
+	private String firstBytes() {
+		switch (m_attack) {
+		case "idle":
+			return "";
+
+		case "body":
+			return "POST /register HTTP/1.1\r\nHost: " + m_host + "\r\nContent-Length: 1000000\r\n\r\nuid=";
+
+		case "large-body":
+			return "POST /register HTTP/1.1\r\nHost: " + m_host + "\r\nContent-Length: 1000000000000\r\n\r\n";
+
+		default:
+			return "GET / HTTP/1.1\r\nHost: " + m_host + "\r\n";
+		}
+	}
+
+	// What the attacking connection sends next, after waiting for an interval
+	private String nextBytes(int sent) {
+		switch (m_attack) {
+		case "idle":
+			return "";
+
+		case "body":
+			return "a";
+
+		case "large-headers":
+			return "X-Padding-" + sent + ": " + PADDING + "\r\n";
+
+		case "large-body":
+			return PADDING;
+
+		default:
+			return "X-Slow-" + sent + ": " + sent + "\r\n";
+		}
+	}
+
+	// Returns the status code of a response, "closed" if the server has closed the connection without one or null
+	// if nothing has arrived in time
+	private static String readResponse(InputStream is) throws IOException {
+		byte[] buf = new byte[12];
+		int read;
+		try {
+			read = is.read(buf);
+		} catch (SocketTimeoutException e) {
+			return null;
+		}
+
+		if (read < 0) {
+			return "closed";
+		}
+
+		// "HTTP/1.1 408 ..."
+		String line = new String(buf, 0, read, StandardCharsets.US_ASCII);
+		return line.length() >= 12 && line.startsWith("HTTP/") ? line.substring(9, 12) : "closed";
+	}
+
+	private void probe() {
+		long started = System.nanoTime();
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(m_host, m_port), CONNECT_TIMEOUT);
+			socket.setSoTimeout(PROBE_TIMEOUT);
+			socket.getOutputStream().write(ascii("GET /stats HTTP/1.1\r\nHost: " + m_host + "\r\nConnection: close\r\n\r\n"));
+
+			InputStream is = socket.getInputStream();
+			byte[] buf = new byte[4096];
+			while (is.read(buf) >= 0) {
+			}
+
+			m_probeMillis.add((System.nanoTime() - started) / 1e6);
+		} catch (IOException e) {
+			++m_probeFailures;
+		}
+	}
+
+	private synchronized String report(double seconds) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("attack ").append(m_attack).append('\n');
+		builder.append("seconds ").append(String.format("%.1f", seconds)).append('\n');
+		builder.append("connections ").append(m_connections).append('\n');
+		for (Map.Entry<String, Integer> entry : m_outcomes.entrySet()) {
+			builder.append("outcome_").append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		}
+
+		Collections.sort(m_closeMillis);
+		builder.append("closed_after_ms_p50 ").append(percentile(m_closeMillis, 0.5)).append('\n');
+		builder.append("closed_after_ms_max ").append(percentile(m_closeMillis, 1.0)).append('\n');
+
+		Collections.sort(m_probeMillis);
+		builder.append("probe_requests ").append(m_probeMillis.size() + m_probeFailures).append('\n');
+		builder.append("probe_failures ").append(m_probeFailures).append('\n');
+		builder.append("probe_latency_ms_p50 ").append(String.format("%.1f", percentile(m_probeMillis, 0.5))).append('\n');
+		builder.append("probe_latency_ms_p99 ").append(String.format("%.1f", percentile(m_probeMillis, 0.99))).append('\n');
+		builder.append("probe_latency_ms_max ").append(String.format("%.1f", percentile(m_probeMillis, 1.0))).append('\n');
+
+		return builder.toString();
+	}
+
+	private static <T extends Number> double percentile(List<T> sorted, double p) {
+		if (sorted.isEmpty()) {
+			return 0;
+		}
+
+		int index = (int)Math.ceil(p * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1))).doubleValue();
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static final List<String> ATTACKS = List.of("idle", "headers", "body", "large-headers", "large-body");
+	private static final String PADDING = "x".repeat(1000);
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final int PROBE_TIMEOUT = 10000;
+
+	private String m_host = "127.0.0.1";
+	private int m_port = 8080;
+	private String m_attack = "headers";
+	private int m_connections = 200;
+	private int m_interval = 5000;
+	private int m_duration = 60;
+	private int m_probeInterval = 500;
+
+	private final TreeMap<String, Integer> m_outcomes = new TreeMap<String, Integer>();
+	private final List<Long> m_closeMillis = new ArrayList<Long>();
+	private final List<Double> m_probeMillis = new ArrayList<Double>();
+	private int m_probeFailures;
+}
@@ -0,0 +1,232 @@
+package com.universal_tools.loadgenerator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/// <summary>
+/// TLS handshakes per second of the demo server started with <c>--tls=true</c>, full versus resumed, f.e.
+/// <c>java -cp target/loadgenerator-*.jar com.universal_tools.loadgenerator.TlsHandshakes --resume=true --concurrency=8</c>.
+/// </summary>
+/// <remarks>
+/// <c>concurrency</c> clients, each on its own virtual thread, open connections one after another for
+/// <c>duration</c> seconds: a handshake, a <c>/stats</c> request (so that a TLS 1.3 client gets its session ticket)
+/// and close. With <c>resume</c> the clients share one client session cache, like a returning app, and resume their
+/// sessions; without it every connection has a new, empty cache, so every handshake is a full one. <c>protocol</c>
+/// is <c>TLSv1.3</c> or <c>TLSv1.2</c>. A TLS 1.3 client uses a session ticket only once, so concurrent clients
+/// sharing a cache sometimes find no ticket left and do a full handshake. The server
+/// certificate is trusted blindly: it's the self-signed one of the demo server. The report gives the rate of the
+/// handshakes, how many of them were resumed and their latency; the server counts the same in <c>/stats</c>.
+/// </remarks>
+public class TlsHandshakes {
+// public
+	public static void main(String[] args) throws Throwable {
+		TlsHandshakes benchmark = new TlsHandshakes();
+		for (String arg : args) {
+			int indexOfEquals = arg.indexOf('=');
+			if (!arg.startsWith("--") || indexOfEquals < 0) {
+				throw new IllegalArgumentException("Unexpected argument: " + arg + ". Expected --name=value");
+			}
+
+			String name = arg.substring(2, indexOfEquals);
+			String value = arg.substring(indexOfEquals + 1);
+			switch (name) {
+			case "host":
+				benchmark.m_host = value;
+				break;
+
+			case "port":
+				benchmark.m_port = Integer.parseInt(value);
+				break;
+
+			case "protocol":
+				if (!PROTOCOLS.contains(value)) {
+					throw new IllegalArgumentException("Unknown protocol: " + value + ". Expected one of " + PROTOCOLS);
+				}
+				benchmark.m_protocol = value;
+				break;
+
+			case "resume":
+				benchmark.m_resume = Boolean.parseBoolean(value);
+				break;
+
+			case "concurrency":
+				benchmark.m_concurrency = Integer.parseInt(value);
+				break;
+
+			case "duration":
+				benchmark.m_duration = Integer.parseInt(value);
+				break;
+
+			default:
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+
+		System.out.print(benchmark.run());
+	}
+
+	/// <summary>
+	/// Connects for <c>m_duration</c> seconds.
+	/// </summary>
+	/// <returns>The report, one <c>name value</c> per line.</returns>
+	public String run() throws GeneralSecurityException, InterruptedException {
+		final SSLContext shared = newContext();
+
+		// A warm-up connection: loads the classes and, with resume, gets the session to resume
+		connect(shared);
+		synchronized (this) {
+			m_full = 0;
+			m_resumed = 0;
+			m_failures = 0;
+			m_handshakeMillis.clear();
+		}
+
+		long started = System.nanoTime();
+		final long deadline = started + TimeUnit.SECONDS.toNanos(m_duration);
+		ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+		for (int i = 0; i < m_concurrency; ++i) {
+			clients.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (System.nanoTime() < deadline) {
+							connect(m_resume ? shared : newContext());
+						}
+					} catch (GeneralSecurityException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+		}
+
+		clients.shutdown();
+		clients.awaitTermination(m_duration + 60, TimeUnit.SECONDS);
+
+		return report((System.nanoTime() - started) / 1e9);
+	}
+
+// private
+	private SSLContext newContext() throws GeneralSecurityException {
+		SSLContext context = SSLContext.getInstance(m_protocol);
+		context.init(null, new TrustManager[] { new TrustAll() }, null);
+		return context;
+	}
+
+	private void connect(SSLContext context) {
+		try (Socket plain = new Socket()) {
+			plain.connect(new InetSocketAddress(m_host, m_port), CONNECT_TIMEOUT);
+			plain.setSoTimeout(READ_TIMEOUT);
+			plain.setTcpNoDelay(true);
+
+			// The host and port key the client session cache
+			SSLSocket socket = (SSLSocket)context.getSocketFactory().createSocket(plain, m_host, m_port, false);
+			long started = System.nanoTime();
+			long startedMillis = System.currentTimeMillis();
+			socket.startHandshake();
+			double millis = (System.nanoTime() - started) / 1e6;
+
+			SSLSession session = socket.getSession();
+			boolean resumed = session.getCreationTime() < startedMillis;
+
+			socket.getOutputStream().write(("GET /stats HTTP/1.1\r\nHost: " + m_host + "\r\nConnection: close\r\n\r\n")
+					.getBytes(StandardCharsets.US_ASCII));
+			InputStream is = socket.getInputStream();
+			byte[] buf = new byte[4096];
+			while (is.read(buf) >= 0) {
+			}
+
+			synchronized (this) {
+				if (resumed) {
+					++m_resumed;
+				} else {
+					++m_full;
+				}
+				m_handshakeMillis.add(millis);
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				++m_failures;
+			}
+		}
+	}
+
+	private synchronized String report(double seconds) {
+		int handshakes = m_full + m_resumed;
+
+		StringBuilder builder = new StringBuilder();
+		builder.append("protocol ").append(m_protocol).append('\n');
+		builder.append("resume ").append(m_resume).append('\n');
+		builder.append("seconds ").append(String.format("%.1f", seconds)).append('\n');
+		builder.append("concurrency ").append(m_concurrency).append('\n');
+		builder.append("handshakes ").append(handshakes).append('\n');
+		builder.append("handshakes_per_second ").append(String.format("%.1f", handshakes / seconds)).append('\n');
+		builder.append("handshakes_full ").append(m_full).append('\n');
+		builder.append("handshakes_resumed ").append(m_resumed).append('\n');
+		builder.append("failures ").append(m_failures).append('\n');
+
+		Collections.sort(m_handshakeMillis);
+		builder.append("handshake_ms_p50 ").append(String.format("%.2f", percentile(m_handshakeMillis, 0.5))).append('\n');
+		builder.append("handshake_ms_p99 ").append(String.format("%.2f", percentile(m_handshakeMillis, 0.99))).append('\n');
+		builder.append("handshake_ms_max ").append(String.format("%.2f", percentile(m_handshakeMillis, 1.0))).append('\n');
+
+		return builder.toString();
+	}
+
+	private static double percentile(List<Double> sorted, double p) {
+		if (sorted.isEmpty()) {
+			return 0;
+		}
+
+		int index = (int)Math.ceil(p * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+	}
+
+	// Trusts the self-signed certificate of the demo server, and any other
+	private static class TrustAll implements X509TrustManager {
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	}
+
+	private static final List<String> PROTOCOLS = List.of("TLSv1.3", "TLSv1.2");
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final int READ_TIMEOUT = 10000;
+
+	private String m_host = "127.0.0.1";
+	private int m_port = 8080;
+	private String m_protocol = "TLSv1.3";
+	private boolean m_resume = true;
+	private int m_concurrency = 8;
+	private int m_duration = 30;
+
+	private int m_full;
+	private int m_resumed;
+	private int m_failures;
+	private final List<Double> m_handshakeMillis = new ArrayList<Double>();
+}